@@ -0,0 +1,262 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Repeating;
+import org.rapla.entities.domain.Reservation;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * AppointmentReconciler computes the difference between the appointments a reservation currently has and the
+ * appointments parsed from an ICS file. Appointments with identical start, end and repeating structure are kept,
+ * appointments of the same shape whose time changed are moved, and only the rest is removed or added.
+ * This keeps appointment ids stable and lets unchanged reservations be skipped entirely.
+ */
+public class AppointmentReconciler {
+
+    private static final Comparator<Appointment> BY_START =
+            Comparator.comparing(Appointment::getStart, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    /**
+     * An existing appointment that is moved to the time of a parsed one.
+     */
+    public static class Move {
+        private final Appointment existing;
+        private final Appointment target;
+
+        Move(Appointment existing, Appointment target) {
+            this.existing = existing;
+            this.target = target;
+        }
+
+        public Appointment getExisting() {
+            return existing;
+        }
+
+        public Appointment getTarget() {
+            return target;
+        }
+    }
+
+    /**
+     * The changes needed to turn the current appointments of a reservation into the parsed ones.
+     */
+    public static class Plan {
+        private final List<Appointment> additions = new ArrayList<>();
+        private final List<Appointment> removals = new ArrayList<>();
+        private final List<Move> moves = new ArrayList<>();
+        private int kept;
+
+        /**
+         * Gets the parsed appointments that have no counterpart in the reservation.
+         */
+        public List<Appointment> getAdditions() {
+            return additions;
+        }
+
+        /**
+         * Gets the existing appointments that have no counterpart in the ICS file.
+         */
+        public List<Appointment> getRemovals() {
+            return removals;
+        }
+
+        public List<Move> getMoves() {
+            return moves;
+        }
+
+        /**
+         * Gets the number of existing appointments that already match a parsed one.
+         */
+        public int getKept() {
+            return kept;
+        }
+
+        /**
+         * Checks whether the reservation already matches the ICS file, so it does not need to be edited or stored.
+         */
+        public boolean isUnchanged() {
+            return additions.isEmpty() && removals.isEmpty() && moves.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "added=" + additions.size() + ", removed=" + removals.size() + ", moved=" + moves.size() + ", kept=" + kept;
+        }
+    }
+
+    /**
+     * Computes the changes for one reservation.
+     *
+     * @param existing the appointments the reservation currently has
+     * @param parsed   the appointments parsed from the ICS file
+     * @return the plan of additions, removals and moves
+     */
+    public Plan plan(Appointment[] existing, List<Appointment> parsed) {
+        Plan plan = new Plan();
+        Map<String, Deque<Appointment>> existingByKey = new LinkedHashMap<>();
+        for (Appointment appointment : existing) {
+            existingByKey.computeIfAbsent(key(appointment), k -> new ArrayDeque<>()).add(appointment);
+        }
+
+        // Exact matches are kept as they are
+        List<Appointment> unmatchedParsed = new ArrayList<>();
+        for (Appointment appointment : parsed) {
+            Deque<Appointment> candidates = existingByKey.get(key(appointment));
+            if (candidates != null && !candidates.isEmpty()) {
+                candidates.poll();
+                plan.kept++;
+            } else {
+                unmatchedParsed.add(appointment);
+            }
+        }
+
+        // Remaining appointments of the same shape are paired in chronological order and moved
+        Map<String, Deque<Appointment>> unmatchedExistingByShape = new HashMap<>();
+        List<Appointment> unmatchedExisting = new ArrayList<>();
+        existingByKey.values().forEach(unmatchedExisting::addAll);
+        unmatchedExisting.sort(BY_START);
+        for (Appointment appointment : unmatchedExisting) {
+            unmatchedExistingByShape.computeIfAbsent(shape(appointment), k -> new ArrayDeque<>()).add(appointment);
+        }
+        unmatchedParsed.sort(BY_START);
+        for (Appointment appointment : unmatchedParsed) {
+            Deque<Appointment> candidates = unmatchedExistingByShape.get(shape(appointment));
+            if (candidates != null && !candidates.isEmpty()) {
+                plan.moves.add(new Move(candidates.poll(), appointment));
+            } else {
+                plan.additions.add(appointment);
+            }
+        }
+        unmatchedExistingByShape.values().forEach(plan.removals::addAll);
+        return plan;
+    }
+
+    /**
+     * Applies a plan computed on the persistent reservation to its editable copy.
+     *
+     * @param plan        the plan computed by {@link #plan(Appointment[], List)}
+     * @param reservation the reservation opened for editing
+     */
+    public void apply(Plan plan, Reservation reservation) {
+        Map<String, Appointment> editableById = new HashMap<>();
+        for (Appointment appointment : reservation.getAppointments()) {
+            editableById.put(appointment.getId(), appointment);
+        }
+        for (Appointment removal : plan.removals) {
+            Appointment editable = editableById.get(removal.getId());
+            if (editable != null) {
+                reservation.removeAppointment(editable);
+            }
+        }
+        for (Move move : plan.moves) {
+            Appointment editable = editableById.get(move.existing.getId());
+            if (editable == null) {
+                reservation.addAppointment(move.target);
+                continue;
+            }
+            editable.move(move.target.getStart(), move.target.getEnd());
+            Repeating repeating = editable.getRepeating();
+            Repeating targetRepeating = move.target.getRepeating();
+            if (repeating != null && targetRepeating != null) {
+                if (!repeating.isFixedNumber()) {
+                    repeating.setEnd(targetRepeating.getEnd());
+                }
+                repeating.clearExceptions();
+                for (Date exception : targetRepeating.getExceptions()) {
+                    repeating.addException(exception);
+                }
+            }
+        }
+        for (Appointment addition : plan.additions) {
+            reservation.addAppointment(addition);
+        }
+    }
+
+    /**
+     * Computes a content hash of an event group that does not depend on the order of the appointments.
+     *
+     * @param appointments the parsed appointments of one reservation
+     * @return the hex encoded SHA-256 hash
+     */
+    public static String fingerprint(List<Appointment> appointments) {
+        List<String> keys = new ArrayList<>(appointments.size());
+        for (Appointment appointment : appointments) {
+            keys.add(key(appointment));
+        }
+        Collections.sort(keys);
+        MessageDigest digest = IcsFingerprint.newDigest();
+        for (String key : keys) {
+            digest.update(key.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return IcsFingerprint.hex(digest.digest());
+    }
+
+    /**
+     * The identity of an appointment for matching: time, whole day flag and the complete repeating rule.
+     */
+    static String key(Appointment appointment) {
+        StringBuilder key = new StringBuilder(shape(appointment));
+        key.append('|').append(time(appointment.getStart())).append('|').append(time(appointment.getEnd()));
+        Repeating repeating = appointment.getRepeating();
+        if (repeating != null) {
+            if (!repeating.isFixedNumber()) {
+                key.append('|').append(time(repeating.getEnd()));
+            }
+            Date[] exceptions = repeating.getExceptions();
+            if (exceptions != null && exceptions.length > 0) {
+                Date[] sorted = exceptions.clone();
+                Arrays.sort(sorted);
+                for (Date exception : sorted) {
+                    key.append(',').append(time(exception));
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * The structure of an appointment independent of its dates, appointments of the same shape can be moved into each other.
+     */
+    static String shape(Appointment appointment) {
+        Repeating repeating = appointment.getRepeating();
+        String repeatingShape = repeating == null ? "single"
+                : repeating.getType() + "/" + repeating.getInterval() + "/" + (repeating.isFixedNumber() ? repeating.getNumber() : "end");
+        return appointment.isWholeDaysSet() + "|" + repeatingShape;
+    }
+
+    private static String time(Date date) {
+        return Objects.toString(date == null ? null : date.getTime());
+    }
+}
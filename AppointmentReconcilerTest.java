@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.Test;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Reservation;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the AppointmentReconciler class.
+ */
+public class AppointmentReconcilerTest {
+
+    private static final long HOUR = 3600_000L;
+
+    private final AppointmentReconciler reconciler = new AppointmentReconciler();
+
+    private Appointment appointment(String id, long start, long end) {
+        Appointment appointment = mock(Appointment.class);
+        when(appointment.getId()).thenReturn(id);
+        when(appointment.getStart()).thenReturn(new Date(start));
+        when(appointment.getEnd()).thenReturn(new Date(end));
+        return appointment;
+    }
+
+    /**
+     * Test that re-importing identical appointments results in an unchanged plan.
+     */
+    @Test
+    public void testPlan_Unchanged() {
+        Appointment existing = appointment("a1", 10 * HOUR, 11 * HOUR);
+        Appointment parsed = appointment(null, 10 * HOUR, 11 * HOUR);
+
+        AppointmentReconciler.Plan plan = reconciler.plan(new Appointment[]{existing}, Collections.singletonList(parsed));
+
+        assertTrue(plan.isUnchanged());
+        assertEquals(1, plan.getKept());
+    }
+
+    /**
+     * Test that changed appointments are moved, surplus ones removed and missing ones added.
+     */
+    @Test
+    public void testPlan_MoveRemoveAdd() {
+        Appointment kept = appointment("a1", 10 * HOUR, 11 * HOUR);
+        Appointment moved = appointment("a2", 20 * HOUR, 21 * HOUR);
+        Appointment wholeDay = appointment("a3", 24 * HOUR, 48 * HOUR);
+        when(wholeDay.isWholeDaysSet()).thenReturn(true);
+        Appointment parsedKept = appointment(null, 10 * HOUR, 11 * HOUR);
+        Appointment parsedMoved = appointment(null, 30 * HOUR, 32 * HOUR);
+
+        AppointmentReconciler.Plan plan = reconciler.plan(new Appointment[]{kept, moved, wholeDay}, Arrays.asList(parsedKept, parsedMoved));
+
+        assertEquals(1, plan.getKept());
+        assertEquals(1, plan.getMoves().size());
+        assertSame(moved, plan.getMoves().get(0).getExisting());
+        assertEquals(Collections.singletonList(wholeDay), plan.getRemovals());
+        assertTrue(plan.getAdditions().isEmpty());
+
+        // Applying the plan works on the editable copies, found by id
+        Reservation reservation = mock(Reservation.class);
+        Appointment editableMoved = appointment("a2", 20 * HOUR, 21 * HOUR);
+        Appointment editableWholeDay = appointment("a3", 24 * HOUR, 48 * HOUR);
+        when(reservation.getAppointments()).thenReturn(new Appointment[]{appointment("a1", 10 * HOUR, 11 * HOUR), editableMoved, editableWholeDay});
+
+        reconciler.apply(plan, reservation);
+
+        verify(editableMoved).move(new Date(30 * HOUR), new Date(32 * HOUR));
+        verify(reservation).removeAppointment(editableWholeDay);
+        verify(reservation, never()).addAppointment(any(Appointment.class));
+    }
+}
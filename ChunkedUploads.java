@@ -0,0 +1,183 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * ChunkedUploads spools uploads that arrive in several requests into the work directory. The state of an upload
+ * is its part file alone: the name carries the owner and the upload id, the size is the acknowledged offset.
+ * Uploads therefore survive a restart of the server, and a client whose connection dropped asks for the offset
+ * and continues from there.
+ */
+public class ChunkedUploads {
+
+    private static final Pattern UPLOAD_ID = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    /**
+     * Signals an append at an offset other than the acknowledged one, or concurrent appends to the same upload.
+     */
+    public static class OffsetConflictException extends IOException {
+        private final long offset;
+
+        OffsetConflictException(long offset) {
+            super("Upload continues at offset " + offset);
+            this.offset = offset;
+        }
+
+        /**
+         * Gets the offset the client has to continue from.
+         */
+        public long getOffset() {
+            return offset;
+        }
+    }
+
+    /**
+     * Starts a new upload and removes abandoned ones.
+     *
+     * @param userName the uploading user
+     * @return the id of the upload
+     * @throws IOException if the part file cannot be created
+     */
+    public String initiate(String userName) throws IOException {
+        Path directory = ImportSettings.getWorkDirectory();
+        Files.createDirectories(directory);
+        removeExpired(directory);
+        String uploadId = UUID.randomUUID().toString();
+        Files.createFile(partFile(userName, uploadId));
+        return uploadId;
+    }
+
+    /**
+     * Gets the part file of an upload.
+     *
+     * @param userName the uploading user
+     * @param uploadId the id returned by {@link #initiate(String)}
+     * @return the part file, or null if the upload is unknown or belongs to another user
+     */
+    public Path find(String userName, String uploadId) {
+        if (uploadId == null || !UPLOAD_ID.matcher(uploadId).matches()) {
+            return null;
+        }
+        Path file = partFile(userName, uploadId);
+        return Files.isRegularFile(file) ? file : null;
+    }
+
+    /**
+     * Gets the number of bytes received and stored durably so far.
+     *
+     * @param file the part file
+     * @return the offset the next chunk has to start at
+     * @throws IOException if the file cannot be accessed
+     */
+    public long getOffset(Path file) throws IOException {
+        return Files.size(file);
+    }
+
+    /**
+     * Appends a chunk. The bytes are forced to disk before the new offset is acknowledged; if the connection drops
+     * during the chunk, the bytes received so far stay and the offset reflects them.
+     *
+     * @param file   the part file
+     * @param offset the offset the client assumes the chunk starts at
+     * @param chunk  the chunk content
+     * @return the new offset
+     * @throws IOException if the chunk cannot be written, or an {@link OffsetConflictException} if the offset does
+     *                     not match or another chunk is being appended
+     */
+    public long append(Path file, long offset, InputStream chunk) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new OffsetConflictException(channel.size());
+            }
+            try {
+                if (offset != channel.size()) {
+                    throw new OffsetConflictException(channel.size());
+                }
+                channel.position(offset);
+                ByteBuffer buffer = ByteBuffer.allocate(GzipUploads.BUFFER_SIZE);
+                try {
+                    int read;
+                    while ((read = chunk.read(buffer.array())) != -1) {
+                        buffer.limit(read);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                } finally {
+                    channel.force(false);
+                }
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                return channel.size();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Removes an upload.
+     *
+     * @param file the part file
+     * @throws IOException if the file cannot be deleted
+     */
+    public void delete(Path file) throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private Path partFile(String userName, String uploadId) {
+        return ImportSettings.getWorkDirectory().resolve(IcsFingerprint.hex(userName.getBytes(StandardCharsets.UTF_8)) + "-" + uploadId + ".part");
+    }
+
+    private void removeExpired(Path directory) throws IOException {
+        long expiry = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(ImportSettings.getUploadRetentionHours());
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(directory, "*.part")) {
+            for (Path part : parts) {
+                try {
+                    if (Files.getLastModifiedTime(part).toMillis() < expiry) {
+                        Files.deleteIfExists(part);
+                    }
+                } catch (IOException e) {
+                    // Still mapped by a running import or already gone, the next sweep tries again
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ChunkedUploads class.
+ */
+public class ChunkedUploadsTest {
+
+    private Path workDir;
+    private ChunkedUploads uploads;
+
+    /**
+     * Set up the test environment before each test.
+     *
+     * @throws Exception if an error occurs during setup
+     */
+    @Before
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("semesterplan-upload-test");
+        System.setProperty(ImportSettings.PREFIX + "workDir", workDir.toString());
+        uploads = new ChunkedUploads();
+    }
+
+    /**
+     * Remove the work directory after each test.
+     *
+     * @throws Exception if an error occurs during cleanup
+     */
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(ImportSettings.PREFIX + "workDir");
+        try (Stream<Path> files = Files.list(workDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(workDir);
+    }
+
+    /**
+     * Test that chunks are appended at the acknowledged offset and the spooled file is read back unchanged.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testAppendAndResume() throws Exception {
+        String uploadId = uploads.initiate("semesterplaner");
+        Path partFile = uploads.find("semesterplaner", uploadId);
+        assertNotNull(partFile);
+        assertNull("Uploads of other users must not be visible", uploads.find("other", uploadId));
+        assertNull(uploads.find("semesterplaner", "../" + uploadId));
+
+        assertEquals(16, uploads.append(partFile, 0, chunk("BEGIN:VCALENDAR\n")));
+        try {
+            // A repeated chunk whose acknowledgement got lost
+            uploads.append(partFile, 0, chunk("BEGIN:VCALENDAR\n"));
+            fail("An append at a stale offset must be rejected");
+        } catch (ChunkedUploads.OffsetConflictException expected) {
+            assertEquals(16, expected.getOffset());
+        }
+        assertEquals(30, uploads.append(partFile, uploads.getOffset(partFile), chunk("END:VCALENDAR\n")));
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream in = new MappedFileInputStream(partFile)) {
+            byte[] buffer = new byte[7];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+        }
+        assertEquals("BEGIN:VCALENDAR\nEND:VCALENDAR\n", new String(content.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static InputStream chunk(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
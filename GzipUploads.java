@@ -0,0 +1,55 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * GzipUploads recognizes gzip compressed uploads by their magic bytes and decompresses them while they are
+ * streamed into the parser. This covers .ics.gz files as well as parts compressed by the upload page, whatever
+ * name or content type the browser sends for them.
+ */
+public final class GzipUploads {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private GzipUploads() {
+    }
+
+    /**
+     * Returns a stream of the uncompressed ICS content.
+     *
+     * @param in the upload as received
+     * @return the decompressing stream if the upload starts with the gzip magic bytes, otherwise the upload itself
+     * @throws IOException if the upload cannot be read or its gzip header is invalid
+     */
+    public static InputStream decode(InputStream in) throws IOException {
+        BufferedInputStream buffered = in instanceof BufferedInputStream ? (BufferedInputStream) in : new BufferedInputStream(in, BUFFER_SIZE);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+        if (first != (GZIPInputStream.GZIP_MAGIC & 0xff) || second != (GZIPInputStream.GZIP_MAGIC >> 8)) {
+            return buffered;
+        }
+        return new LimitedInputStream(new GZIPInputStream(buffered, BUFFER_SIZE), ImportSettings.getMaxDecompressedBytes(), "Decompressed upload");
+    }
+}
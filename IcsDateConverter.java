@@ -0,0 +1,536 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import net.fortuna.ical4j.model.Property;
+
+import java.text.ParseException;
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.Month;
+import java.time.Year;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneOffsetTransitionRule;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * IcsDateConverter converts ICS date and date-time values into Rapla dates.
+ * Rapla stores the wall clock time of its server time zone (Europe/Berlin) encoded as UTC, so every value
+ * is first resolved to an instant and then shifted by the Berlin offset valid at that instant.
+ * <p>
+ * Supported forms are UTC times (20210702T120000Z), local times with a TZID parameter, floating local times
+ * and all-day values (VALUE=DATE). TZIDs are resolved against the Java time zone database first and against
+ * the VTIMEZONE blocks of the file second. Values are parsed without formatter allocations and offsets are
+ * looked up in precomputed transition tables, so converting a date costs a binary search at most.
+ * Instances are thread safe; time zones registered from a file only apply to the instance they were registered with.
+ */
+public class IcsDateConverter {
+
+    /**
+     * The time zone whose wall clock time Rapla stores.
+     */
+    public static final ZoneId RAPLA_ZONE = ZoneId.of("Europe/Berlin");
+
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    /**
+     * Transition tables cover this many years before and after the first date looked up, i.e. a semester
+     * with some margin. Dates outside trigger a recomputation around the new date.
+     */
+    private static final int TABLE_YEARS_BEFORE = 1;
+    private static final int TABLE_YEARS_AFTER = 2;
+
+    private static final Map<String, ZoneOffsets> JAVA_ZONES = new ConcurrentHashMap<>();
+    private static final Set<String> UNKNOWN_JAVA_ZONES = ConcurrentHashMap.newKeySet();
+    private static final ZoneOffsets RAPLA_OFFSETS = new ZoneOffsets(RAPLA_ZONE.getRules());
+
+    private final Map<String, ZoneOffsets> fileZones = new ConcurrentHashMap<>();
+
+    /**
+     * Converts the value of a DTSTART or DTEND property, honoring its TZID and VALUE parameters.
+     *
+     * @param property the date property of a VEVENT
+     * @return the date in Rapla time
+     * @throws ParseException if the value or its TZID cannot be interpreted
+     */
+    public Date toRaplaDate(IcsProperty property) throws ParseException {
+        return toRaplaDate(property.getValue(), property.getParameter(Property.TZID));
+    }
+
+    /**
+     * Converts an ICS date or date-time value into Rapla time.
+     *
+     * @param value the value, e.g. 20210702T120000Z, 20210702T140000 or 20210702
+     * @param tzid  the TZID parameter of the value, or null for UTC, floating and date values
+     * @return the date in Rapla time
+     * @throws ParseException if the value or the TZID cannot be interpreted
+     */
+    public Date toRaplaDate(String value, String tzid) throws ParseException {
+        if (value == null) {
+            throw new ParseException("Missing date value", 0);
+        }
+        return toRaplaDate(parseEpochSeconds(value), value.length(), tzid);
+    }
+
+    /**
+     * Converts a value given as seconds since the epoch into Rapla time, e.g. an occurrence computed from a
+     * recurrence rule in the time zone of its DTSTART.
+     *
+     * @param localSeconds the value as returned by {@link #parseEpochSeconds(String)}
+     * @param length       the length of the value form: 16 for UTC, 15 for local and 8 for date values
+     * @param tzid         the TZID parameter of the value, or null for UTC, floating and date values
+     * @return the date in Rapla time
+     * @throws ParseException if the TZID cannot be interpreted
+     */
+    Date toRaplaDate(long localSeconds, int length, String tzid) throws ParseException {
+        if (length == 16) {
+            // UTC time, shift into Berlin wall clock time
+            return toDate(localSeconds + RAPLA_OFFSETS.offsetAt(localSeconds));
+        }
+        if (length == 8 || tzid == null) {
+            // All-day and floating values are wall clock times already
+            return toDate(localSeconds);
+        }
+        ZoneOffsets zone = resolveZone(tzid);
+        if (zone == RAPLA_OFFSETS) {
+            return toDate(localSeconds);
+        }
+        long utcSeconds = localSeconds - zone.offsetForLocal(localSeconds);
+        return toDate(utcSeconds + RAPLA_OFFSETS.offsetAt(utcSeconds));
+    }
+
+    /**
+     * Checks whether a date property denotes a whole day rather than a point in time.
+     *
+     * @param property the date property of a VEVENT
+     * @return true for VALUE=DATE and for plain yyyyMMdd values
+     */
+    public boolean isDateOnly(IcsProperty property) {
+        return "DATE".equalsIgnoreCase(property.getParameter("VALUE"))
+                || (property.getValue() != null && property.getValue().length() == 8);
+    }
+
+    /**
+     * Determines the end of an event. If DTEND is missing the end is derived from DURATION, or, as defined in
+     * RFC 5545, is the start of the following day for all-day events and the start itself otherwise.
+     *
+     * @param start    the DTSTART property
+     * @param end      the DTEND property, may be null
+     * @param duration the DURATION property, may be null
+     * @param startDate the converted start date
+     * @return the end date in Rapla time
+     * @throws ParseException if a value cannot be interpreted
+     */
+    public Date toRaplaEnd(IcsProperty start, IcsProperty end, IcsProperty duration, Date startDate) throws ParseException {
+        if (end != null) {
+            return toRaplaDate(end);
+        }
+        if (duration != null) {
+            return new Date(startDate.getTime() + parseDurationSeconds(duration.getValue()) * 1000L);
+        }
+        if (isDateOnly(start)) {
+            return new Date(startDate.getTime() + SECONDS_PER_DAY * 1000L);
+        }
+        return startDate;
+    }
+
+    /**
+     * Registers a VTIMEZONE block of the file, so values referencing its TZID can be converted
+     * even if the TZID is not a known Java time zone id.
+     *
+     * @param timeZone the VTIMEZONE read from the file
+     * @throws ParseException if the observances of the block cannot be interpreted
+     */
+    public void registerTimeZone(IcsTimeZone timeZone) throws ParseException {
+        if (timeZone.getTzid() == null || timeZone.getObservances().isEmpty()) {
+            return;
+        }
+        fileZones.put(timeZone.getTzid(), new ZoneOffsets(buildRules(timeZone)));
+    }
+
+    /**
+     * Resolves a TZID. Java zone ids win over VTIMEZONE definitions because the Java database also knows
+     * historic changes. Prefixed ids such as /mozilla.org/20050126_1/Europe/Berlin are resolved by their suffix.
+     */
+    private ZoneOffsets resolveZone(String tzid) throws ParseException {
+        ZoneOffsets zone = javaZone(tzid);
+        if (zone == null) {
+            zone = fileZones.get(tzid);
+        }
+        if (zone == null) {
+            throw new ParseException("Unknown time zone '" + tzid + "'", 0);
+        }
+        return zone;
+    }
+
+    private static ZoneOffsets javaZone(String tzid) {
+        ZoneOffsets cached = JAVA_ZONES.get(tzid);
+        if (cached != null || UNKNOWN_JAVA_ZONES.contains(tzid)) {
+            return cached;
+        }
+        String candidate = tzid;
+        while (true) {
+            try {
+                ZoneId zoneId = ZoneId.of(candidate);
+                ZoneOffsets zone = zoneId.equals(RAPLA_ZONE) ? RAPLA_OFFSETS : new ZoneOffsets(zoneId.getRules());
+                JAVA_ZONES.put(tzid, zone);
+                return zone;
+            } catch (DateTimeException e) {
+                int separator = candidate.indexOf('/', 1);
+                if (separator < 0) {
+                    UNKNOWN_JAVA_ZONES.add(tzid);
+                    return null;
+                }
+                candidate = candidate.substring(separator + 1);
+            }
+        }
+    }
+
+    /**
+     * Parses the supported value forms into seconds since the epoch, as if the value was given in UTC.
+     */
+    static long parseEpochSeconds(String value) throws ParseException {
+        int length = value.length();
+        if (length != 8 && length != 15 && !(length == 16 && value.charAt(15) == 'Z')) {
+            throw new ParseException("Unsupported date value '" + value + "'", 0);
+        }
+        int year = digits(value, 0, 4);
+        int month = digits(value, 4, 2);
+        int day = digits(value, 6, 2);
+        if (month < 1 || month > 12 || day < 1 || day > Month.of(month).length(Year.isLeap(year))) {
+            throw new ParseException("Invalid date value '" + value + "'", 0);
+        }
+        long seconds = epochDay(year, month, day) * SECONDS_PER_DAY;
+        if (length == 8) {
+            return seconds;
+        }
+        if (value.charAt(8) != 'T') {
+            throw new ParseException("Invalid date-time value '" + value + "'", 8);
+        }
+        int hour = digits(value, 9, 2);
+        int minute = digits(value, 11, 2);
+        // RFC 5545 allows a leap second, which Rapla cannot represent
+        int second = Math.min(digits(value, 13, 2), 59);
+        if (hour > 23 || minute > 59) {
+            throw new ParseException("Invalid date-time value '" + value + "'", 9);
+        }
+        return seconds + hour * 3600L + minute * 60L + second;
+    }
+
+    private static int digits(String value, int offset, int count) throws ParseException {
+        int result = 0;
+        for (int i = offset; i < offset + count; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new ParseException("Invalid date value '" + value + "'", i);
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /**
+     * Days since 1970-01-01 for a proleptic Gregorian date, without allocating a LocalDate.
+     */
+    private static long epochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Parses an ICS duration such as PT1H30M, P1D or P2W.
+     */
+    static long parseDurationSeconds(String value) throws ParseException {
+        if (value == null || value.isEmpty()) {
+            throw new ParseException("Missing duration value", 0);
+        }
+        int index = 0;
+        int sign = 1;
+        if (value.charAt(0) == '+' || value.charAt(0) == '-') {
+            sign = value.charAt(0) == '-' ? -1 : 1;
+            index++;
+        }
+        if (index >= value.length() || value.charAt(index) != 'P') {
+            throw new ParseException("Invalid duration value '" + value + "'", index);
+        }
+        index++;
+        long seconds = 0;
+        long number = -1;
+        boolean time = false;
+        for (; index < value.length(); index++) {
+            char c = value.charAt(index);
+            if (c >= '0' && c <= '9') {
+                number = (number < 0 ? 0 : number * 10) + (c - '0');
+                continue;
+            }
+            if (c == 'T') {
+                time = true;
+                continue;
+            }
+            if (number < 0) {
+                throw new ParseException("Invalid duration value '" + value + "'", index);
+            }
+            switch (c) {
+                case 'W':
+                    seconds += number * 7 * SECONDS_PER_DAY;
+                    break;
+                case 'D':
+                    seconds += number * SECONDS_PER_DAY;
+                    break;
+                case 'H':
+                    seconds += number * 3600;
+                    break;
+                case 'M':
+                    seconds += number * 60;
+                    break;
+                case 'S':
+                    seconds += number;
+                    break;
+                default:
+                    throw new ParseException("Invalid duration value '" + value + "'", index);
+            }
+            if ((c == 'W' || c == 'D') == time) {
+                throw new ParseException("Invalid duration value '" + value + "'", index);
+            }
+            number = -1;
+        }
+        if (number >= 0) {
+            throw new ParseException("Invalid duration value '" + value + "'", value.length());
+        }
+        return sign * seconds;
+    }
+
+    private static Date toDate(long epochSeconds) {
+        return new Date(epochSeconds * 1000L);
+    }
+
+    /**
+     * Builds Java zone rules from the STANDARD and DAYLIGHT observances of a VTIMEZONE. Observances with a
+     * yearly RRULE become transition rules, a single observance without RRULE becomes a fixed offset.
+     */
+    static ZoneRules buildRules(IcsTimeZone timeZone) throws ParseException {
+        IcsTimeZone.Observance standard = latest(timeZone.getObservances(), false);
+        IcsTimeZone.Observance daylight = latest(timeZone.getObservances(), true);
+        if (standard == null) {
+            standard = daylight;
+        }
+        ZoneOffset standardOffset = parseOffset(standard.getOffsetTo());
+        if (daylight == null || standard.getRecurrenceRule() == null || daylight.getRecurrenceRule() == null) {
+            return ZoneRules.of(standardOffset);
+        }
+        ZoneOffsetTransitionRule toStandard = transitionRule(standard, standardOffset);
+        ZoneOffsetTransitionRule toDaylight = transitionRule(daylight, standardOffset);
+        long latestStart = Math.max(parseEpochSeconds(standard.getStart()), parseEpochSeconds(daylight.getStart()));
+        int year = LocalDateTime.ofEpochSecond(latestStart, 0, ZoneOffset.UTC).getYear();
+        List<ZoneOffsetTransitionRule> lastRules = Arrays.asList(toStandard, toDaylight);
+        // ZoneRules expects the yearly rules in the order they occur within a year
+        lastRules.sort(Comparator.comparing(rule -> rule.createTransition(year)));
+        List<ZoneOffsetTransition> transitions = Arrays.asList(
+                lastRules.get(0).createTransition(year), lastRules.get(1).createTransition(year));
+        return ZoneRules.of(standardOffset, transitions.get(0).getOffsetBefore(), new ArrayList<>(), transitions, lastRules);
+    }
+
+    private static IcsTimeZone.Observance latest(List<IcsTimeZone.Observance> observances, boolean daylight) throws ParseException {
+        IcsTimeZone.Observance result = null;
+        long resultStart = Long.MIN_VALUE;
+        for (IcsTimeZone.Observance observance : observances) {
+            if (observance.isDaylight() != daylight || observance.getStart() == null) {
+                continue;
+            }
+            long start = parseEpochSeconds(observance.getStart());
+            if (start > resultStart) {
+                result = observance;
+                resultStart = start;
+            }
+        }
+        return result;
+    }
+
+    private static ZoneOffsetTransitionRule transitionRule(IcsTimeZone.Observance observance, ZoneOffset standardOffset) throws ParseException {
+        Month month = null;
+        DayOfWeek dayOfWeek = null;
+        int dayOfMonthIndicator = 0;
+        for (String part : observance.getRecurrenceRule().split(";")) {
+            int separator = part.indexOf('=');
+            if (separator < 0) {
+                continue;
+            }
+            String name = part.substring(0, separator).toUpperCase(Locale.ROOT);
+            String value = part.substring(separator + 1).toUpperCase(Locale.ROOT);
+            if (name.equals("FREQ") && !value.equals("YEARLY")) {
+                throw new ParseException("Unsupported VTIMEZONE rule '" + observance.getRecurrenceRule() + "'", 0);
+            } else if (name.equals("BYMONTH")) {
+                month = Month.of(Integer.parseInt(value));
+            } else if (name.equals("BYDAY") && value.length() >= 2) {
+                dayOfWeek = dayOfWeek(value.substring(value.length() - 2));
+                String ordinal = value.substring(0, value.length() - 2);
+                int n = ordinal.isEmpty() || ordinal.equals("+") ? 1 : Integer.parseInt(ordinal.replace("+", ""));
+                dayOfMonthIndicator = n > 0 ? 1 + 7 * (n - 1) : -1 - 7 * (-n - 1);
+            }
+        }
+        if (month == null || dayOfWeek == null) {
+            throw new ParseException("Unsupported VTIMEZONE rule '" + observance.getRecurrenceRule() + "'", 0);
+        }
+        long start = parseEpochSeconds(observance.getStart());
+        LocalTime time = LocalTime.ofSecondOfDay(Math.floorMod(start, SECONDS_PER_DAY));
+        return ZoneOffsetTransitionRule.of(month, dayOfMonthIndicator, dayOfWeek, time, false,
+                ZoneOffsetTransitionRule.TimeDefinition.WALL, standardOffset,
+                parseOffset(observance.getOffsetFrom()), parseOffset(observance.getOffsetTo()));
+    }
+
+    /**
+     * Maps the two letter weekday of an RRULE (MO, TU, ...) to a DayOfWeek.
+     */
+    static DayOfWeek dayOfWeek(String weekday) throws ParseException {
+        switch (weekday.toUpperCase(Locale.ROOT)) {
+            case "MO": return DayOfWeek.MONDAY;
+            case "TU": return DayOfWeek.TUESDAY;
+            case "WE": return DayOfWeek.WEDNESDAY;
+            case "TH": return DayOfWeek.THURSDAY;
+            case "FR": return DayOfWeek.FRIDAY;
+            case "SA": return DayOfWeek.SATURDAY;
+            case "SU": return DayOfWeek.SUNDAY;
+            default: throw new ParseException("Invalid weekday '" + weekday + "'", 0);
+        }
+    }
+
+    private static ZoneOffset parseOffset(String offset) throws ParseException {
+        try {
+            // TZOFFSETTO values are [+-]HHMM[SS], which ZoneOffset.of understands
+            return ZoneOffset.of(offset);
+        } catch (DateTimeException | NullPointerException e) {
+            throw new ParseException("Invalid time zone offset '" + offset + "'", 0);
+        }
+    }
+
+    /**
+     * The offsets of a zone, backed by a transition table that is recomputed when a date outside of it is requested.
+     */
+    static final class ZoneOffsets {
+        private final ZoneRules rules;
+        private final Integer fixedOffset;
+        private volatile OffsetTable table;
+
+        ZoneOffsets(ZoneRules rules) {
+            this.rules = rules;
+            this.fixedOffset = rules.isFixedOffset() ? rules.getOffset(Instant.EPOCH).getTotalSeconds() : null;
+        }
+
+        /**
+         * Gets the offset in seconds at an instant.
+         */
+        int offsetAt(long epochSeconds) {
+            if (fixedOffset != null) {
+                return fixedOffset;
+            }
+            OffsetTable current = table;
+            if (current == null || !current.covers(epochSeconds)) {
+                current = OffsetTable.around(rules, epochSeconds);
+                table = current;
+            }
+            return current.offsetAt(epochSeconds);
+        }
+
+        /**
+         * Gets the offset in seconds for a wall clock time. Times in a DST gap are interpreted with the offset
+         * before the gap, i.e. moved forward, and times in an overlap resolve to the earlier of the two instants.
+         */
+        int offsetForLocal(long localSeconds) {
+            int earlier = offsetAt(localSeconds - SECONDS_PER_DAY);
+            int later = offsetAt(localSeconds + SECONDS_PER_DAY);
+            if (earlier == later) {
+                return earlier;
+            }
+            int candidate = Math.max(earlier, later);
+            if (offsetAt(localSeconds - candidate) == candidate) {
+                return candidate;
+            }
+            return Math.min(earlier, later);
+        }
+    }
+
+    /**
+     * The offsets of a zone between two instants, as sorted transition instants and the offset valid from each.
+     */
+    private static final class OffsetTable {
+        private final long from;
+        private final long to;
+        private final int initialOffset;
+        private final long[] transitions;
+        private final int[] offsets;
+
+        private OffsetTable(long from, long to, int initialOffset, long[] transitions, int[] offsets) {
+            this.from = from;
+            this.to = to;
+            this.initialOffset = initialOffset;
+            this.transitions = transitions;
+            this.offsets = offsets;
+        }
+
+        static OffsetTable around(ZoneRules rules, long epochSeconds) {
+            int year = LocalDateTime.ofEpochSecond(epochSeconds, 0, ZoneOffset.UTC).getYear();
+            long from = LocalDateTime.of(year - TABLE_YEARS_BEFORE, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+            long to = LocalDateTime.of(year + TABLE_YEARS_AFTER + 1, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+            List<ZoneOffsetTransition> list = new ArrayList<>();
+            ZoneOffsetTransition transition = rules.nextTransition(Instant.ofEpochSecond(from));
+            while (transition != null && transition.toEpochSecond() < to) {
+                list.add(transition);
+                transition = rules.nextTransition(transition.getInstant());
+            }
+            long[] transitions = new long[list.size()];
+            int[] offsets = new int[list.size()];
+            for (int i = 0; i < list.size(); i++) {
+                transitions[i] = list.get(i).toEpochSecond();
+                offsets[i] = list.get(i).getOffsetAfter().getTotalSeconds();
+            }
+            int initialOffset = rules.getOffset(Instant.ofEpochSecond(from)).getTotalSeconds();
+            return new OffsetTable(from, to, initialOffset, transitions, offsets);
+        }
+
+        boolean covers(long epochSeconds) {
+            return epochSeconds >= from && epochSeconds < to;
+        }
+
+        int offsetAt(long epochSeconds) {
+            int index = Arrays.binarySearch(transitions, epochSeconds);
+            if (index < 0) {
+                // insertion point minus one is the last transition before the instant
+                index = -index - 2;
+            }
+            return index < 0 ? initialOffset : offsets[index];
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the IcsDateConverter class.
+ */
+public class IcsDateConverterTest {
+
+    private IcsDateConverter converter;
+    private SimpleDateFormat raplaFormat;
+
+    /**
+     * Set up the test environment before each test.
+     */
+    @Before
+    public void setUp() {
+        converter = new IcsDateConverter();
+        // Rapla dates carry the Berlin wall clock time encoded as UTC
+        raplaFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        raplaFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Test that local times with a TZID parameter are converted into Berlin wall clock time.
+     *
+     * @throws ParseException if a parsing error occurs
+     */
+    @Test
+    public void testToRaplaDate_Tzid() throws ParseException {
+        assertEquals("2021-07-02 14:00", raplaFormat.format(converter.toRaplaDate("20210702T140000", "Europe/Berlin")));
+        assertEquals("2021-07-02 14:00", raplaFormat.format(converter.toRaplaDate("20210702T080000", "America/New_York")));
+        assertEquals("2021-07-02 14:00", raplaFormat.format(converter.toRaplaDate("20210702T080000", "/mozilla.org/20050126_1/America/New_York")));
+    }
+
+    /**
+     * Test that floating times and all-day values are taken as wall clock time.
+     *
+     * @throws ParseException if a parsing error occurs
+     */
+    @Test
+    public void testToRaplaDate_FloatingAndDate() throws ParseException {
+        assertEquals("2021-07-02 08:00", raplaFormat.format(converter.toRaplaDate("20210702T080000", null)));
+
+        IcsProperty start = new IcsProperty("DTSTART", "20210702");
+        start.setParameter("VALUE", "DATE");
+        Date startDate = converter.toRaplaDate(start);
+        assertTrue(converter.isDateOnly(start));
+        assertEquals("2021-07-02 00:00", raplaFormat.format(startDate));
+        // Without DTEND an all-day event lasts one day
+        assertEquals("2021-07-03 00:00", raplaFormat.format(converter.toRaplaEnd(start, null, null, startDate)));
+    }
+
+    /**
+     * Test that a TZID unknown to Java is resolved by the VTIMEZONE block of the file.
+     *
+     * @throws ParseException if a parsing error occurs
+     */
+    @Test
+    public void testToRaplaDate_VTimeZone() throws ParseException {
+        IcsTimeZone timeZone = new IcsTimeZone();
+        timeZone.setTzid("W. Europe Standard Time");
+        IcsTimeZone.Observance standard = new IcsTimeZone.Observance(false);
+        standard.setStart("16010101T030000");
+        standard.setOffsetFrom("+0200");
+        standard.setOffsetTo("+0100");
+        standard.setRecurrenceRule("FREQ=YEARLY;BYDAY=-1SU;BYMONTH=10");
+        timeZone.addObservance(standard);
+        IcsTimeZone.Observance daylight = new IcsTimeZone.Observance(true);
+        daylight.setStart("16010101T020000");
+        daylight.setOffsetFrom("+0100");
+        daylight.setOffsetTo("+0200");
+        daylight.setRecurrenceRule("FREQ=YEARLY;BYDAY=-1SU;BYMONTH=3");
+        timeZone.addObservance(daylight);
+        converter.registerTimeZone(timeZone);
+
+        assertEquals("2021-07-02 14:00", raplaFormat.format(converter.toRaplaDate("20210702T140000", "W. Europe Standard Time")));
+        assertEquals("2021-01-02 14:00", raplaFormat.format(converter.toRaplaDate("20210102T140000", "W. Europe Standard Time")));
+    }
+
+    /**
+     * Test that unknown time zones and impossible dates are reported instead of being converted to null.
+     */
+    @Test
+    public void testToRaplaDate_Invalid() {
+        try {
+            converter.toRaplaDate("20210702T140000", "Nowhere/Unknown");
+            fail("Unknown TZID must be rejected");
+        } catch (ParseException expected) {
+            assertTrue(expected.getMessage().contains("Nowhere/Unknown"));
+        }
+        try {
+            converter.toRaplaDate("20210230T100000Z", null);
+            fail("February 30th must be rejected");
+        } catch (ParseException expected) {
+            assertTrue(expected.getMessage().contains("20210230T100000Z"));
+        }
+    }
+
+    /**
+     * Test the parsing of ICS durations.
+     *
+     * @throws ParseException if a parsing error occurs
+     */
+    @Test
+    public void testParseDurationSeconds() throws ParseException {
+        assertEquals(5400, IcsDateConverter.parseDurationSeconds("PT1H30M"));
+        assertEquals(93600, IcsDateConverter.parseDurationSeconds("P1DT2H"));
+        assertEquals(604800, IcsDateConverter.parseDurationSeconds("P1W"));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A lightweight representation of a single VEVENT read from an ICS file.
+ * Only the properties relevant for the import are kept, so one instance stays small
+ * regardless of how much additional data the exporting tool puts into the file.
+ */
+public class IcsEvent {
+
+    public static final String X_RAPLA_ID = "X-RAPLA-ID";
+
+    private final int index;
+    private final Map<String, List<IcsProperty>> properties = new HashMap<>(8);
+
+    /**
+     * Creates a new event.
+     *
+     * @param index the zero based position of the VEVENT within the ICS file
+     */
+    public IcsEvent(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Gets the zero based position of the VEVENT within the ICS file.
+     *
+     * @return the index of the event
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Adds a property to the event. Properties that may occur several times (e.g. EXDATE) are kept in order.
+     *
+     * @param property the property to add
+     */
+    public void addProperty(IcsProperty property) {
+        properties.computeIfAbsent(property.getName(), k -> new ArrayList<>(1)).add(property);
+    }
+
+    /**
+     * Gets the first property with the given name.
+     *
+     * @param name the property name
+     * @return the property, or null if the event does not contain it
+     */
+    public IcsProperty getProperty(String name) {
+        List<IcsProperty> list = properties.get(name.toUpperCase(Locale.ROOT));
+        return list == null || list.isEmpty() ? null : list.get(0);
+    }
+
+    /**
+     * Gets all properties with the given name.
+     *
+     * @param name the property name
+     * @return the properties in file order, never null
+     */
+    public List<IcsProperty> getProperties(String name) {
+        List<IcsProperty> list = properties.get(name.toUpperCase(Locale.ROOT));
+        return list == null ? Collections.emptyList() : list;
+    }
+
+    /**
+     * Gets the value of the first property with the given name.
+     *
+     * @param name the property name
+     * @return the property value, or null if the event does not contain it
+     */
+    public String getValue(String name) {
+        IcsProperty property = getProperty(name);
+        return property == null ? null : property.getValue();
+    }
+
+    /**
+     * Gets the Rapla reservation id the event belongs to.
+     *
+     * @return the value of X-RAPLA-ID, or null if not set
+     */
+    public String getRaplaId() {
+        return getValue(X_RAPLA_ID);
+    }
+
+    @Override
+    public String toString() {
+        return "VEVENT #" + index + " " + properties.values();
+    }
+}
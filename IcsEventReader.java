@@ -0,0 +1,324 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import net.fortuna.ical4j.data.CalendarParserImpl;
+import net.fortuna.ical4j.data.ContentHandler;
+import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.data.UnfoldingReader;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.Property;
+import org.rapla.framework.RaplaException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * IcsEventReader streams the VEVENTs of an ICS file to a callback without building an ical4j Calendar model.
+ * The ical4j parser is used for tokenizing, so the accepted syntax is the same as with CalendarBuilder,
+ * but only one event is held in memory at a time. VTIMEZONE blocks are passed to the callback as well,
+ * since they precede the events referring to them. Byte streams are read by the {@link IcsScanner} unless it is
+ * disabled, which falls back to ical4j for input it does not handle itself.
+ */
+public class IcsEventReader {
+
+    /**
+     * Callback receiving each VEVENT as soon as its END:VEVENT line has been read.
+     */
+    public interface IcsEventHandler {
+        void handleEvent(IcsEvent event) throws RaplaException, ParseException;
+
+        default void handleTimeZone(IcsTimeZone timeZone) throws RaplaException, ParseException {
+        }
+    }
+
+    /**
+     * The VEVENT properties the import needs, all other properties are skipped while parsing.
+     */
+    public static final Set<String> DEFAULT_PROPERTIES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            Property.DTSTART, Property.DTEND, Property.DURATION, Property.RRULE, Property.RDATE, Property.EXDATE,
+            Property.UID, Property.SEQUENCE, Property.LAST_MODIFIED, Property.RECURRENCE_ID, IcsEvent.X_RAPLA_ID)));
+
+    /**
+     * The VTIMEZONE properties the date conversion needs.
+     */
+    static final Set<String> TIME_ZONE_PROPERTIES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            Property.TZID, Property.DTSTART, Property.TZOFFSETFROM, Property.TZOFFSETTO, Property.RRULE)));
+
+    private static final String OBSERVANCE_STANDARD = "STANDARD";
+    private static final String OBSERVANCE_DAYLIGHT = "DAYLIGHT";
+
+    private final Set<String> propertyNames;
+    private boolean scanner = ImportSettings.isIcsScanner();
+
+    /**
+     * Creates a reader keeping the {@link #DEFAULT_PROPERTIES}.
+     */
+    public IcsEventReader() {
+        this(DEFAULT_PROPERTIES);
+    }
+
+    /**
+     * Creates a reader keeping only the given VEVENT properties.
+     *
+     * @param propertyNames the upper case names of the properties to keep
+     */
+    public IcsEventReader(Set<String> propertyNames) {
+        this.propertyNames = propertyNames;
+    }
+
+    /**
+     * Parses the ICS content and passes every VEVENT to the handler.
+     *
+     * @param reader  the reader providing the ICS content, it is not closed by this method
+     * @param handler the callback receiving the events in file order
+     * @return the number of VEVENTs read
+     * @throws IOException, ParserException if the content cannot be read or is not valid ICS
+     * @throws RaplaException, ParseException if the handler fails for an event
+     */
+    public int read(Reader reader, IcsEventHandler handler) throws IOException, ParserException, RaplaException, ParseException {
+        StreamingContentHandler contentHandler = new StreamingContentHandler(handler);
+        try {
+            parse(reader, contentHandler);
+        } catch (HandlerFailure failure) {
+            throw rethrow(failure);
+        }
+        return contentHandler.eventCount;
+    }
+
+    /**
+     * Parses UTF-8 encoded ICS content and passes every VEVENT to the handler. Unless the scanner is disabled, the
+     * bytes are scanned directly and only the kept properties are decoded.
+     *
+     * @param in      the stream providing the ICS content, it is not closed by this method
+     * @param handler the callback receiving the events in file order
+     * @return the number of VEVENTs read
+     * @throws IOException, ParserException if the content cannot be read or is not valid ICS
+     * @throws RaplaException, ParseException if the handler fails for an event
+     */
+    public int read(InputStream in, IcsEventHandler handler) throws IOException, ParserException, RaplaException, ParseException {
+        if (!scanner) {
+            return read(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), handler);
+        }
+        Set<String> scannedProperties = new HashSet<>(propertyNames);
+        scannedProperties.addAll(TIME_ZONE_PROPERTIES);
+        StreamingContentHandler contentHandler = new StreamingContentHandler(handler);
+        try {
+            new IcsScanner(in, scannedProperties).scan(contentHandler);
+        } catch (HandlerFailure failure) {
+            throw rethrow(failure);
+        }
+        return contentHandler.eventCount;
+    }
+
+    /**
+     * Sets whether byte streams are read by the {@link IcsScanner} or decoded and passed to ical4j.
+     *
+     * @param scanner true for the scanner, the default is {@link ImportSettings#isIcsScanner()}
+     */
+    public void setScanner(boolean scanner) {
+        this.scanner = scanner;
+    }
+
+    static void parse(Reader reader, ContentHandler contentHandler) throws IOException, ParserException {
+        try {
+            new CalendarParserImpl().parse(new UnfoldingReader(reader, true), contentHandler);
+        } catch (ParserException e) {
+            // ical4j wraps every exception of the content handler, the failure of the handler is passed on as is
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof HandlerFailure) {
+                    throw (HandlerFailure) cause;
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static RuntimeException rethrow(HandlerFailure failure) throws RaplaException, ParseException {
+        Exception cause = failure.getCause();
+        if (cause instanceof RaplaException) {
+            throw (RaplaException) cause;
+        }
+        throw (ParseException) cause;
+    }
+
+    /**
+     * Tunnels checked exceptions of the handler through the ical4j parser callbacks.
+     */
+    private static class HandlerFailure extends RuntimeException {
+        HandlerFailure(Exception cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized Exception getCause() {
+            return (Exception) super.getCause();
+        }
+    }
+
+    class StreamingContentHandler implements ContentHandler {
+        private final IcsEventHandler handler;
+        private final Deque<String> components = new ArrayDeque<>();
+        private IcsEvent event;
+        private IcsProperty property;
+        private IcsTimeZone timeZone;
+        private IcsTimeZone.Observance observance;
+        private String timeZoneProperty;
+        private int eventCount;
+
+        StreamingContentHandler(IcsEventHandler handler) {
+            this.handler = handler;
+        }
+
+        /**
+         * Drops the top level component in progress, so a parser can start over with it. Delivered events are
+         * still counted.
+         */
+        void reset() {
+            components.clear();
+            event = null;
+            property = null;
+            timeZone = null;
+            observance = null;
+            timeZoneProperty = null;
+        }
+
+        @Override
+        public void startCalendar() {
+        }
+
+        @Override
+        public void endCalendar() {
+        }
+
+        @Override
+        public void startComponent(String name) {
+            String componentName = name.toUpperCase(Locale.ROOT);
+            if (components.isEmpty() && Component.VEVENT.equals(componentName)) {
+                event = new IcsEvent(eventCount);
+            } else if (components.isEmpty() && Component.VTIMEZONE.equals(componentName)) {
+                timeZone = new IcsTimeZone();
+            } else if (timeZone != null && components.size() == 1) {
+                if (OBSERVANCE_STANDARD.equals(componentName) || OBSERVANCE_DAYLIGHT.equals(componentName)) {
+                    observance = new IcsTimeZone.Observance(OBSERVANCE_DAYLIGHT.equals(componentName));
+                }
+            }
+            components.push(componentName);
+        }
+
+        @Override
+        public void endComponent(String name) {
+            components.pop();
+            if (observance != null && components.size() == 1) {
+                timeZone.addObservance(observance);
+                observance = null;
+            }
+            if (!components.isEmpty()) {
+                // Only top level components are delivered, nested components such as VALARM are skipped
+                return;
+            }
+            try {
+                if (event != null) {
+                    IcsEvent completed = event;
+                    event = null;
+                    eventCount++;
+                    handler.handleEvent(completed);
+                } else if (timeZone != null) {
+                    IcsTimeZone completed = timeZone;
+                    timeZone = null;
+                    handler.handleTimeZone(completed);
+                }
+            } catch (RaplaException | ParseException e) {
+                throw new HandlerFailure(e);
+            }
+        }
+
+        @Override
+        public void startProperty(String name) {
+            String propertyName = name.toUpperCase(Locale.ROOT);
+            property = null;
+            timeZoneProperty = null;
+            if (event != null && components.size() == 1 && propertyNames.contains(propertyName)) {
+                property = new IcsProperty(propertyName);
+            } else if (timeZone != null && (components.size() == 1 || observance != null)) {
+                timeZoneProperty = propertyName;
+            }
+        }
+
+        @Override
+        public void propertyValue(String value) {
+            if (property != null) {
+                property.setValue(value);
+            } else if (timeZoneProperty != null) {
+                setTimeZoneValue(timeZoneProperty, value);
+            }
+        }
+
+        private void setTimeZoneValue(String propertyName, String value) {
+            if (observance == null) {
+                if (Property.TZID.equals(propertyName)) {
+                    timeZone.setTzid(value);
+                }
+                return;
+            }
+            switch (propertyName) {
+                case Property.DTSTART:
+                    observance.setStart(value);
+                    break;
+                case Property.TZOFFSETFROM:
+                    observance.setOffsetFrom(value);
+                    break;
+                case Property.TZOFFSETTO:
+                    observance.setOffsetTo(value);
+                    break;
+                case Property.RRULE:
+                    observance.setRecurrenceRule(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endProperty(String name) {
+            if (property != null) {
+                event.addProperty(property);
+                property = null;
+            }
+        }
+
+        @Override
+        public void parameter(String name, String value) {
+            if (property != null) {
+                property.setParameter(name, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Repeating;
+import org.rapla.entities.domain.Reservation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * IcsExport writes reservations as ICS, one VEVENT per appointment with the X-RAPLA-ID of its reservation, so an
+ * exported file can be imported again. Reservations are rendered one at a time into a reused buffer and written to
+ * the output directly, so a whole semester is exported without building the calendar in memory. The rendering of
+ * each reservation is cached until the reservation is modified in Rapla.
+ */
+public class IcsExport {
+
+    public static final String MEDIA_TYPE = "text/calendar";
+
+    static final String PRODUCT_ID = "-//Rapla//Semesterplan Export//DE";
+
+    private static final String TZID = IcsDateConverter.RAPLA_ZONE.getId();
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss", Locale.ROOT);
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyyMMdd", Locale.ROOT);
+    private static final long DAY_MILLIS = 86400000L;
+
+    /** The ICS lines must not be longer, longer lines are folded. */
+    private static final int MAX_LINE_OCTETS = 75;
+
+    /**
+     * The time zone all times are written in. Rapla stores wall clock times, so the rules only matter for clients.
+     */
+    private static final String VTIMEZONE = "BEGIN:VTIMEZONE\r\n" +
+            "TZID:" + TZID + "\r\n" +
+            "BEGIN:DAYLIGHT\r\n" +
+            "TZOFFSETFROM:+0100\r\n" +
+            "TZOFFSETTO:+0200\r\n" +
+            "TZNAME:CEST\r\n" +
+            "DTSTART:19700329T020000\r\n" +
+            "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=-1SU\r\n" +
+            "END:DAYLIGHT\r\n" +
+            "BEGIN:STANDARD\r\n" +
+            "TZOFFSETFROM:+0200\r\n" +
+            "TZOFFSETTO:+0100\r\n" +
+            "TZNAME:CET\r\n" +
+            "DTSTART:19701025T030000\r\n" +
+            "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU\r\n" +
+            "END:STANDARD\r\n" +
+            "END:VTIMEZONE\r\n";
+
+    private static class CachedRendering {
+        private final long lastChanged;
+        private final String text;
+
+        CachedRendering(long lastChanged, String text) {
+            this.lastChanged = lastChanged;
+            this.text = text;
+        }
+    }
+
+    private final Map<String, CachedRendering> cache;
+
+    /**
+     * Creates an export with a rendering cache.
+     *
+     * @param cacheSize the number of reservation renderings to keep, 0 disables the cache
+     */
+    public IcsExport(int cacheSize) {
+        cache = new LinkedHashMap<String, CachedRendering>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedRendering> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Writes the reservations as one VCALENDAR.
+     *
+     * @param reservations the reservations to export, they are rendered in iteration order
+     * @param locale       the locale of the reservation names
+     * @param out          the output, not closed
+     * @return the number of exported reservations
+     * @throws IOException if the output cannot be written
+     */
+    public int write(Iterable<Reservation> reservations, Locale locale, Writer out) throws IOException {
+        out.write("BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:" + PRODUCT_ID + "\r\nCALSCALE:GREGORIAN\r\n");
+        out.write(VTIMEZONE);
+        StringBuilder buffer = new StringBuilder(1024);
+        int count = 0;
+        for (Reservation reservation : reservations) {
+            out.write(render(reservation, locale, buffer));
+            count++;
+        }
+        out.write("END:VCALENDAR\r\n");
+        return count;
+    }
+
+    /**
+     * Gets the VEVENTs of a reservation from the cache, or renders them into the buffer if the reservation was
+     * modified since it was cached.
+     */
+    private String render(Reservation reservation, Locale locale, StringBuilder buffer) {
+        Date lastChanged = reservation.getLastChanged();
+        String key = reservation.getId() + "|" + locale;
+        if (lastChanged != null) {
+            CachedRendering cached;
+            synchronized (cache) {
+                cached = cache.get(key);
+            }
+            if (cached != null && cached.lastChanged == lastChanged.getTime()) {
+                return cached.text;
+            }
+        }
+        buffer.setLength(0);
+        renderReservation(reservation, locale, buffer);
+        String text = buffer.toString();
+        // Without a modification time a change in Rapla could not be noticed
+        if (lastChanged != null) {
+            synchronized (cache) {
+                cache.put(key, new CachedRendering(lastChanged.getTime(), text));
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Renders the VEVENTs of a reservation, one per appointment.
+     *
+     * @param reservation the reservation
+     * @param locale      the locale of the reservation name
+     * @param out         the buffer receiving the folded lines
+     */
+    static void renderReservation(Reservation reservation, Locale locale, StringBuilder out) {
+        Date lastChanged = reservation.getLastChanged();
+        String stamp = utc(lastChanged == null ? new Date() : lastChanged);
+        String name = reservation.getName(locale);
+        Appointment[] appointments = reservation.getAppointments();
+        for (int i = 0; i < appointments.length; i++) {
+            Appointment appointment = appointments[i];
+            String uid = appointment.getId() != null ? appointment.getId() : reservation.getId() + "-" + i;
+            line(out, "BEGIN:VEVENT");
+            line(out, "UID:" + text(uid) + "@rapla");
+            line(out, "DTSTAMP:" + stamp);
+            if (lastChanged != null) {
+                line(out, "LAST-MODIFIED:" + stamp);
+            }
+            boolean wholeDays = appointment.isWholeDaysSet();
+            line(out, "DTSTART" + time(appointment.getStart(), wholeDays));
+            line(out, "DTEND" + time(appointment.getEnd(), wholeDays));
+            Repeating repeating = appointment.isRepeatingEnabled() ? appointment.getRepeating() : null;
+            if (repeating != null) {
+                renderRepeating(appointment, repeating, out);
+            }
+            if (name != null && !name.isEmpty()) {
+                line(out, "SUMMARY:" + text(name));
+            }
+            line(out, IcsEvent.X_RAPLA_ID + ":" + text(reservation.getId()));
+            line(out, "END:VEVENT");
+        }
+    }
+
+    private static void renderRepeating(Appointment appointment, Repeating repeating, StringBuilder out) {
+        StringBuilder rule = new StringBuilder("RRULE:FREQ=").append(repeating.getType().name());
+        if (repeating.getInterval() > 1) {
+            rule.append(";INTERVAL=").append(repeating.getInterval());
+        }
+        if (repeating.isFixedNumber()) {
+            rule.append(";COUNT=").append(repeating.getNumber());
+        } else if (!repeating.isInfinite() && repeating.getEnd() != null) {
+            // Rapla ends a repeating before its end date, UNTIL is inclusive and in UTC for zoned start times
+            Date until = new Date(repeating.getEnd().getTime() - 1000L);
+            rule.append(";UNTIL=").append(appointment.isWholeDaysSet() ? DATE.format(local(until)) : utc(toInstant(until)));
+        }
+        line(out, rule.toString());
+        Date[] exceptions = repeating.getExceptions();
+        if (exceptions != null) {
+            long timeOfDay = Math.floorMod(appointment.getStart().getTime(), DAY_MILLIS);
+            for (Date exception : exceptions) {
+                // Exceptions are days, EXDATE has to hit the start of the skipped occurrence
+                Date excluded = new Date(Math.floorDiv(exception.getTime(), DAY_MILLIS) * DAY_MILLIS + timeOfDay);
+                line(out, "EXDATE" + time(excluded, appointment.isWholeDaysSet()));
+            }
+        }
+    }
+
+    /**
+     * Formats a Rapla time as a property value in the Rapla time zone, including the separating parameters.
+     */
+    private static String time(Date date, boolean wholeDays) {
+        return wholeDays ? ";VALUE=DATE:" + DATE.format(local(date)) : ";TZID=" + TZID + ":" + DATE_TIME.format(local(date));
+    }
+
+    /**
+     * Rapla times are wall clock times encoded as UTC.
+     */
+    private static LocalDateTime local(Date date) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(date.getTime(), 1000L), 0, ZoneOffset.UTC);
+    }
+
+    private static Date toInstant(Date raplaDate) {
+        return Date.from(local(raplaDate).atZone(IcsDateConverter.RAPLA_ZONE).toInstant());
+    }
+
+    private static String utc(Date date) {
+        return DATE_TIME.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(date.getTime()), ZoneOffset.UTC)) + "Z";
+    }
+
+    /**
+     * Escapes a TEXT value.
+     */
+    static String text(String value) {
+        StringBuilder escaped = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': escaped.append("\\\\"); break;
+                case ';': escaped.append("\\;"); break;
+                case ',': escaped.append("\\,"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Appends a content line, folded after 75 octets without splitting UTF-8 sequences.
+     */
+    static void line(StringBuilder out, String line) {
+        int octets = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            int length;
+            if (Character.isHighSurrogate(c) && i + 1 < line.length()) {
+                length = 4;
+            } else {
+                length = c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+            }
+            if (octets + length > MAX_LINE_OCTETS) {
+                out.append("\r\n ");
+                octets = 1;
+            }
+            out.append(c);
+            if (length == 4) {
+                out.append(line.charAt(++i));
+            }
+            octets += length;
+        }
+        out.append("\r\n");
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.Test;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Repeating;
+import org.rapla.entities.domain.RepeatingType;
+import org.rapla.entities.domain.Reservation;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the IcsExport class.
+ */
+public class IcsExportTest {
+
+    private static Date rapla(int year, int month, int day, int hour, int minute) {
+        return new Date(LocalDateTime.of(year, month, day, hour, minute).toEpochSecond(ZoneOffset.UTC) * 1000L);
+    }
+
+    /**
+     * A reservation with a weekly lecture of twelve weeks, the second week being a holiday.
+     */
+    private static Reservation lecture() {
+        Repeating repeating = mock(Repeating.class);
+        when(repeating.getType()).thenReturn(RepeatingType.WEEKLY);
+        when(repeating.getInterval()).thenReturn(1);
+        when(repeating.isFixedNumber()).thenReturn(true);
+        when(repeating.getNumber()).thenReturn(12);
+        when(repeating.getExceptions()).thenReturn(new Date[]{rapla(2021, 10, 11, 0, 0)});
+        Appointment appointment = mock(Appointment.class);
+        when(appointment.getId()).thenReturn("appointment1");
+        when(appointment.getStart()).thenReturn(rapla(2021, 10, 4, 9, 15));
+        when(appointment.getEnd()).thenReturn(rapla(2021, 10, 4, 10, 45));
+        when(appointment.isRepeatingEnabled()).thenReturn(true);
+        when(appointment.getRepeating()).thenReturn(repeating);
+        Reservation reservation = mock(Reservation.class);
+        when(reservation.getId()).thenReturn("lecture");
+        when(reservation.getName(any(Locale.class))).thenReturn("Mathematik I; Übung");
+        when(reservation.getLastChanged()).thenReturn(new Date(1625227200000L));
+        when(reservation.getAppointments()).thenReturn(new Appointment[]{appointment});
+        return reservation;
+    }
+
+    /**
+     * Test that an exported series is read back by the import as the same occurrences.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testWrite_RoundTrip() throws Exception {
+        StringWriter out = new StringWriter();
+        assertEquals(1, new IcsExport(10).write(Collections.singletonList(lecture()), Locale.GERMAN, out));
+
+        List<IcsEvent> events = new ArrayList<>();
+        IcsDateConverter dateConverter = new IcsDateConverter();
+        new IcsEventReader().read(new StringReader(out.toString()), new IcsEventReader.IcsEventHandler() {
+            @Override
+            public void handleEvent(IcsEvent event) {
+                events.add(event);
+            }
+
+            @Override
+            public void handleTimeZone(IcsTimeZone timeZone) throws java.text.ParseException {
+                dateConverter.registerTimeZone(timeZone);
+            }
+        });
+
+        assertEquals(1, events.size());
+        IcsEvent event = events.get(0);
+        assertEquals("lecture", event.getRaplaId());
+        assertEquals("appointment1@rapla", event.getValue("UID"));
+        IcsProperty start = event.getProperty("DTSTART");
+        Date startDate = dateConverter.toRaplaDate(start);
+        assertEquals(rapla(2021, 10, 4, 9, 15), startDate);
+        List<ParsedAppointment> occurrences = new RecurrenceExpander(dateConverter, 1000)
+                .expand(event, start, startDate, rapla(2021, 10, 4, 10, 45), false);
+        assertEquals(11, occurrences.size());
+        assertEquals(rapla(2021, 10, 18, 9, 15), occurrences.get(1).getStart());
+    }
+
+    /**
+     * Test that an unchanged reservation is rendered only once and a modified one again.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testWrite_CachedUntilModified() throws Exception {
+        Reservation reservation = lecture();
+        IcsExport export = new IcsExport(10);
+        StringWriter first = new StringWriter();
+        export.write(Collections.singletonList(reservation), Locale.GERMAN, first);
+        StringWriter second = new StringWriter();
+        export.write(Collections.singletonList(reservation), Locale.GERMAN, second);
+        assertEquals(first.toString(), second.toString());
+        verify(reservation, times(1)).getAppointments();
+
+        when(reservation.getLastChanged()).thenReturn(new Date(1625230800000L));
+        export.write(Collections.singletonList(reservation), Locale.GERMAN, new StringWriter());
+        verify(reservation, times(2)).getAppointments();
+    }
+
+    /**
+     * Test that text values are escaped and long lines folded without splitting a character.
+     */
+    @Test
+    public void testLine_EscapedAndFolded() {
+        assertEquals("a\\;b\\,c\\\\d\\ne", IcsExport.text("a;b,c\\d\r\ne"));
+
+        StringBuilder value = new StringBuilder("SUMMARY:");
+        for (int i = 0; i < 40; i++) {
+            value.append('ä');
+        }
+        StringBuilder out = new StringBuilder();
+        IcsExport.line(out, value.toString());
+        String[] lines = out.toString().split("\r\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].getBytes(StandardCharsets.UTF_8).length <= 75);
+        assertTrue(lines[1].startsWith(" "));
+        assertEquals(value.toString(), lines[0] + lines[1].substring(1));
+    }
+}
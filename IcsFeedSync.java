@@ -0,0 +1,297 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * IcsFeedSync pulls ICS files from HTTP URLs and local files or directories and imports those that changed since
+ * the last run. HTTP sources are requested conditionally with If-None-Match and If-Modified-Since, local files are
+ * compared by modification time and size, so an unchanged source costs one request or one stat call and is never
+ * parsed. The validators of a source are only remembered after an import in which every reservation was stored,
+ * so a failed or partly failed import is retried on the next run. They are kept in the work directory and survive
+ * a restart of the server.
+ */
+public class IcsFeedSync {
+
+    /**
+     * Imports a fetched ICS file.
+     */
+    public interface Importer {
+        ImportResult importFile(Path icsFile) throws Exception;
+    }
+
+    /**
+     * The outcome of one source, or of one file of a directory source.
+     */
+    public enum Status {
+        UNCHANGED, IMPORTED, FAILED
+    }
+
+    /**
+     * The outcome of syncing one ICS file.
+     */
+    public static class Outcome {
+        private final String source;
+        private final Status status;
+        private final ImportResult result;
+        private final String error;
+
+        Outcome(String source, Status status, ImportResult result, String error) {
+            this.source = source;
+            this.status = status;
+            this.result = result;
+            this.error = error;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Gets the summary of the import.
+         *
+         * @return the summary, or null if the source was unchanged or failed
+         */
+        public ImportResult getResult() {
+            return result;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return source + ": " + status + (error == null ? "" : " (" + error + ")");
+        }
+    }
+
+    static final int TIMEOUT_MILLIS = 30_000;
+    static final String VALIDATORS_FILE = "feeds.validators";
+
+    private final List<String> sources;
+    private final Importer importer;
+    private final Map<String, String> validators = new ConcurrentHashMap<>();
+    private boolean loaded;
+
+    /**
+     * Creates a sync.
+     *
+     * @param sources  the HTTP or HTTPS URLs, ICS files and directories of ICS files
+     * @param importer the import run for changed files
+     */
+    public IcsFeedSync(List<String> sources, Importer importer) {
+        this.sources = sources;
+        this.importer = importer;
+    }
+
+    /**
+     * Checks all sources once and imports the changed ones. Runs must not overlap.
+     *
+     * @return the outcome per ICS file, in source order
+     */
+    public List<Outcome> syncOnce() {
+        Path file = ImportSettings.getWorkDirectory().resolve(VALIDATORS_FILE);
+        if (!loaded) {
+            loadValidators(file);
+            loaded = true;
+        }
+        Map<String, String> before = new TreeMap<>(validators);
+        List<Outcome> outcomes = new ArrayList<>();
+        for (String source : sources) {
+            if (source.startsWith("http://") || source.startsWith("https://")) {
+                outcomes.add(syncUrl(source));
+            } else {
+                syncPath(Paths.get(source), outcomes);
+            }
+        }
+        if (!before.equals(new TreeMap<>(validators))) {
+            saveValidators(file);
+        }
+        return outcomes;
+    }
+
+    private void loadValidators(Path file) {
+        try {
+            if (Files.exists(file)) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    String[] fields = line.split("\t", 2);
+                    if (fields.length == 2) {
+                        validators.put(fields[0], fields[1]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Without validators every source is imported once more, which is safe
+            validators.clear();
+        }
+    }
+
+    private void saveValidators(Path file) {
+        List<String> lines = new ArrayList<>(validators.size());
+        for (Map.Entry<String, String> entry : new TreeMap<>(validators).entrySet()) {
+            lines.add(entry.getKey() + "\t" + entry.getValue());
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, lines, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The validators stay in memory, only a restart imports the sources again
+        }
+    }
+
+    private static boolean isComplete(ImportResult result) {
+        return result != null && result.getFailedReservationIds().isEmpty();
+    }
+
+    private Outcome syncUrl(String source) {
+        String[] previous = split(validators.get(source));
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(source).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            // The import recognizes gzip content by its magic bytes, so a compressed body is passed through as it is
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if (previous[0] != null) {
+                connection.setRequestProperty("If-None-Match", previous[0]);
+            }
+            if (previous[1] != null) {
+                connection.setRequestProperty("If-Modified-Since", previous[1]);
+            }
+            try {
+                int status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    return new Outcome(source, Status.UNCHANGED, null, null);
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    return new Outcome(source, Status.FAILED, null, "HTTP " + status);
+                }
+                Path spoolFile = spool(connection);
+                try {
+                    ImportResult result = importer.importFile(spoolFile);
+                    String etag = connection.getHeaderField("ETag");
+                    String lastModified = connection.getHeaderField("Last-Modified");
+                    if (!isComplete(result)) {
+                        validators.remove(source);
+                    } else if (etag != null || lastModified != null) {
+                        validators.put(source, join(etag, lastModified));
+                    }
+                    return new Outcome(source, Status.IMPORTED, result, null);
+                } finally {
+                    Files.deleteIfExists(spoolFile);
+                }
+            } finally {
+                connection.disconnect();
+            }
+        } catch (Exception e) {
+            return new Outcome(source, Status.FAILED, null, e.toString());
+        }
+    }
+
+    private static Path spool(HttpURLConnection connection) throws IOException {
+        Path workDirectory = ImportSettings.getWorkDirectory();
+        Files.createDirectories(workDirectory);
+        Path spoolFile = Files.createTempFile(workDirectory, "sync-", ".ics");
+        try (InputStream in = connection.getInputStream()) {
+            Files.copy(in, spoolFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(spoolFile);
+            throw e;
+        }
+        return spoolFile;
+    }
+
+    private void syncPath(Path path, List<Outcome> outcomes) {
+        if (!Files.isDirectory(path)) {
+            outcomes.add(syncFile(path));
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> directory = Files.newDirectoryStream(path)) {
+            for (Path file : directory) {
+                if (ImportBatch.isIcsFile(file.getFileName().toString()) && Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        } catch (IOException e) {
+            outcomes.add(new Outcome(path.toString(), Status.FAILED, null, e.toString()));
+            return;
+        }
+        files.sort(null);
+        for (Path file : files) {
+            outcomes.add(syncFile(file));
+        }
+    }
+
+    private Outcome syncFile(Path file) {
+        String source = file.toString();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            String validator = attributes.lastModifiedTime().toMillis() + "|" + attributes.size();
+            if (validator.equals(validators.get(source))) {
+                return new Outcome(source, Status.UNCHANGED, null, null);
+            }
+            ImportResult result = importer.importFile(file);
+            if (isComplete(result)) {
+                validators.put(source, validator);
+            } else {
+                validators.remove(source);
+            }
+            return new Outcome(source, Status.IMPORTED, result, null);
+        } catch (Exception e) {
+            return new Outcome(source, Status.FAILED, null, e.toString());
+        }
+    }
+
+    private static String join(String etag, String lastModified) {
+        return (etag == null ? "" : etag) + "\t" + (lastModified == null ? "" : lastModified);
+    }
+
+    private static String[] split(String validator) {
+        if (validator == null) {
+            return new String[2];
+        }
+        String[] parts = validator.split("\t", 2);
+        if (parts.length < 2) {
+            return new String[2];
+        }
+        return new String[]{parts[0].isEmpty() ? null : parts[0], parts[1].isEmpty() ? null : parts[1]};
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.rapla.entities.User;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.inject.Extension;
+import org.rapla.logger.Logger;
+import org.rapla.server.extensionpoints.ServerExtension;
+
+import javax.inject.Inject;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IcsFeedSyncExtension runs the {@link IcsFeedSync} of the configured sources on a schedule when the Rapla server
+ * starts. The sync is configured with the system properties syncSources, syncUser and syncIntervalMinutes, see
+ * {@link ImportSettings}; without sources or user it stays off.
+ */
+@Extension(provides = ServerExtension.class, id = "org.rapla.plugin.wwi2021.sync")
+public class IcsFeedSyncExtension implements ServerExtension {
+
+    private final RaplaFacade facade;
+    private final Logger logger;
+    private final ImportController importController;
+    private ScheduledExecutorService scheduler;
+
+    @Inject
+    public IcsFeedSyncExtension(RaplaFacade facade, Logger logger, ImportController importController) {
+        this.facade = facade;
+        this.logger = logger;
+        this.importController = importController;
+    }
+
+    @Override
+    public void start() {
+        List<String> sources = ImportSettings.getSyncSources();
+        String userName = ImportSettings.getSyncUser();
+        if (sources.isEmpty() || userName == null) {
+            return;
+        }
+        IcsFeedSync sync = new IcsFeedSync(sources, icsFile -> {
+            User user = facade.getUser(userName);
+            return importController.runImport(user, icsFile, ImportListener.NONE);
+        });
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "semesterplan-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int interval = ImportSettings.getSyncIntervalMinutes();
+        // A single thread with a fixed delay keeps runs from overlapping
+        scheduler.scheduleWithFixedDelay(() -> run(sync), 0, interval, TimeUnit.MINUTES);
+        logger.info("Syncing " + sources + " every " + interval + " minutes as " + userName);
+    }
+
+    private void run(IcsFeedSync sync) {
+        try {
+            for (IcsFeedSync.Outcome outcome : sync.syncOnce()) {
+                if (outcome.getStatus() == IcsFeedSync.Status.FAILED) {
+                    logger.warn("Sync of " + outcome);
+                } else if (outcome.getStatus() == IcsFeedSync.Status.IMPORTED && !outcome.getResult().getFailedReservationIds().isEmpty()) {
+                    logger.warn("Sync of " + outcome.getSource() + " failed for reservation IDs: " + String.join(", ", outcome.getResult().getFailedReservationIds()));
+                } else if (logger.isDebugEnabled()) {
+                    logger.debug("Sync of " + outcome);
+                }
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel all further runs
+            logger.error("Sync failed", e);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the IcsFeedSync class, against an HTTP server on the loopback interface and a temporary directory.
+ */
+public class IcsFeedSyncTest {
+
+    private Path workDir;
+    private HttpServer server;
+    private volatile String feed = "v1";
+    private volatile int feedStatus = 200;
+    private final List<String> imported = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean failImports;
+    private volatile boolean failReservations;
+
+    /**
+     * Start the feed server and set up the work directory before each test.
+     *
+     * @throws Exception if an error occurs during setup
+     */
+    @Before
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("semesterplan-sync-test");
+        System.setProperty(ImportSettings.PREFIX + "workDir", workDir.resolve("work").toString());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/plan.ics", exchange -> {
+            String etag = "\"" + feed + "\"";
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            byte[] body = ("BEGIN:VCALENDAR\r\nX-VERSION:" + feed + "\r\nEND:VCALENDAR\r\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.sendResponseHeaders(feedStatus, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stop the server and remove the temporary files after each test.
+     *
+     * @throws Exception if an error occurs during cleanup
+     */
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+        System.clearProperty(ImportSettings.PREFIX + "workDir");
+        try (Stream<Path> files = Files.walk(workDir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private IcsFeedSync sync(String... sources) {
+        return new IcsFeedSync(Arrays.asList(sources), icsFile -> {
+            if (failImports) {
+                throw new IllegalStateException("import failed");
+            }
+            imported.add(new String(Files.readAllBytes(icsFile), StandardCharsets.UTF_8));
+            ImportResult result = new ImportResult("fingerprint");
+            if (failReservations) {
+                result.getFailedReservationIds().add("locked");
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Test that an unchanged feed is answered with 304 and not imported, and a changed one is imported again.
+     */
+    @Test
+    public void testSyncOnce_ConditionalFetch() {
+        IcsFeedSync sync = sync("http://127.0.0.1:" + server.getAddress().getPort() + "/plan.ics");
+
+        assertEquals(IcsFeedSync.Status.IMPORTED, sync.syncOnce().get(0).getStatus());
+        assertEquals(IcsFeedSync.Status.UNCHANGED, sync.syncOnce().get(0).getStatus());
+        feed = "v2";
+        assertEquals(IcsFeedSync.Status.IMPORTED, sync.syncOnce().get(0).getStatus());
+
+        assertEquals(2, imported.size());
+        assertTrue(imported.get(1).contains("X-VERSION:v2"));
+        // Spooled downloads are removed after the import
+        assertArrayEquals(new String[]{IcsFeedSync.VALIDATORS_FILE}, workDir.resolve("work").toFile().list());
+    }
+
+    /**
+     * Test that a failed download or import is retried on the next run.
+     */
+    @Test
+    public void testSyncOnce_RetryAfterFailure() {
+        IcsFeedSync sync = sync("http://127.0.0.1:" + server.getAddress().getPort() + "/plan.ics");
+
+        feedStatus = 503;
+        IcsFeedSync.Outcome outcome = sync.syncOnce().get(0);
+        assertEquals(IcsFeedSync.Status.FAILED, outcome.getStatus());
+        assertEquals("HTTP 503", outcome.getError());
+
+        feedStatus = 200;
+        failImports = true;
+        assertEquals(IcsFeedSync.Status.FAILED, sync.syncOnce().get(0).getStatus());
+
+        failImports = false;
+        assertEquals(IcsFeedSync.Status.IMPORTED, sync.syncOnce().get(0).getStatus());
+        assertEquals(1, imported.size());
+    }
+
+    /**
+     * Test that a feed whose import failed for some reservations is fetched again, and that the validators of a
+     * complete import survive a new sync instance.
+     */
+    @Test
+    public void testSyncOnce_PartialFailureAndRestart() {
+        String source = "http://127.0.0.1:" + server.getAddress().getPort() + "/plan.ics";
+        IcsFeedSync sync = sync(source);
+
+        failReservations = true;
+        assertEquals(IcsFeedSync.Status.IMPORTED, sync.syncOnce().get(0).getStatus());
+        failReservations = false;
+        assertEquals(IcsFeedSync.Status.IMPORTED, sync.syncOnce().get(0).getStatus());
+        assertEquals(IcsFeedSync.Status.UNCHANGED, sync.syncOnce().get(0).getStatus());
+
+        assertEquals(IcsFeedSync.Status.UNCHANGED, sync(source).syncOnce().get(0).getStatus());
+        assertEquals(2, imported.size());
+    }
+
+    /**
+     * Test that the ICS files of a directory are imported once and again only after they changed.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testSyncOnce_Directory() throws Exception {
+        Path directory = Files.createDirectories(workDir.resolve("plans"));
+        Path first = Files.write(directory.resolve("a.ics"), "BEGIN:VCALENDAR\r\nEND:VCALENDAR\r\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("b.ics"), "BEGIN:VCALENDAR\r\nEND:VCALENDAR\r\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("notes.txt"), "ignored".getBytes(StandardCharsets.UTF_8));
+        IcsFeedSync sync = sync(directory.toString());
+
+        List<IcsFeedSync.Outcome> outcomes = sync.syncOnce();
+        assertEquals(2, outcomes.size());
+        assertEquals(IcsFeedSync.Status.IMPORTED, outcomes.get(0).getStatus());
+        assertEquals(IcsFeedSync.Status.IMPORTED, outcomes.get(1).getStatus());
+
+        for (IcsFeedSync.Outcome outcome : sync.syncOnce()) {
+            assertEquals(IcsFeedSync.Status.UNCHANGED, outcome.getStatus());
+        }
+
+        Files.write(first, "BEGIN:VCALENDAR\r\nX-CHANGED:1\r\nEND:VCALENDAR\r\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(first, FileTime.fromMillis(Files.getLastModifiedTime(first).toMillis() + 2000));
+        outcomes = sync.syncOnce();
+        assertEquals(IcsFeedSync.Status.IMPORTED, outcomes.get(0).getStatus());
+        assertEquals(IcsFeedSync.Status.UNCHANGED, outcomes.get(1).getStatus());
+        assertEquals(3, imported.size());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * IcsFingerprint computes SHA-256 content hashes of uploads while they are streamed into the parser,
+ * so identical files can be recognized without reading them twice.
+ */
+public final class IcsFingerprint {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private IcsFingerprint() {
+    }
+
+    /**
+     * Creates a new SHA-256 digest.
+     *
+     * @return the digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Wraps a stream so its content is hashed while it is read.
+     *
+     * @param in the stream to hash
+     * @return the hashing stream
+     */
+    public static DigestInputStream wrap(InputStream in) {
+        return new DigestInputStream(in, newDigest());
+    }
+
+    /**
+     * Reads the rest of the stream and returns the hash of everything read through it.
+     *
+     * @param in the stream returned by {@link #wrap(InputStream)}
+     * @return the hex encoded SHA-256 hash
+     * @throws IOException if the remaining content cannot be read
+     */
+    public static String finish(DigestInputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+            // drain, so content after END:VCALENDAR is part of the fingerprint as well
+        }
+        return hex(in.getMessageDigest().digest());
+    }
+
+    /**
+     * Hashes the ICS content of a file. Compressed files are hashed uncompressed, so they get the same
+     * fingerprint as the plain upload of the same content.
+     *
+     * @param file the file, e.g. a spooled upload
+     * @return the hex encoded SHA-256 hash
+     * @throws IOException if the file cannot be read
+     */
+    public static String of(Path file) throws IOException {
+        try (DigestInputStream in = wrap(GzipUploads.decode(new MappedFileInputStream(file)))) {
+            return finish(in);
+        }
+    }
+
+    /**
+     * Encodes bytes as lower case hex.
+     *
+     * @param bytes the bytes
+     * @return the hex string
+     */
+    public static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A single property of an ICS component as delivered by {@link IcsEventReader},
+ * consisting of its name, its raw value and its parameters (e.g. TZID or VALUE).
+ */
+public class IcsProperty {
+
+    private final String name;
+    private String value;
+    private Map<String, String> parameters;
+
+    /**
+     * Creates a new property without value and parameters.
+     *
+     * @param name the property name, normalized to upper case
+     */
+    public IcsProperty(String name) {
+        this.name = name.toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Creates a new property with the given value.
+     *
+     * @param name  the property name, normalized to upper case
+     * @param value the raw property value
+     */
+    public IcsProperty(String name, String value) {
+        this(name);
+        this.value = value;
+    }
+
+    /**
+     * Gets the upper case name of the property.
+     *
+     * @return the property name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the raw value of the property.
+     *
+     * @return the property value, or null if none was read
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Sets the raw value of the property.
+     *
+     * @param value the property value
+     */
+    public void setValue(String value) {
+        this.value = value;
+    }
+
+    /**
+     * Gets a parameter of the property.
+     *
+     * @param parameterName the name of the parameter, e.g. TZID
+     * @return the parameter value, or null if the parameter is not set
+     */
+    public String getParameter(String parameterName) {
+        if (parameters == null) {
+            return null;
+        }
+        return parameters.get(parameterName.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Gets all parameters of the property.
+     *
+     * @return an unmodifiable view of the parameters
+     */
+    public Map<String, String> getParameters() {
+        return parameters == null ? Collections.emptyMap() : Collections.unmodifiableMap(parameters);
+    }
+
+    /**
+     * Sets a parameter of the property. Parameters are rare, so the map is only created on demand.
+     *
+     * @param parameterName  the name of the parameter
+     * @param parameterValue the value of the parameter
+     */
+    public void setParameter(String parameterName, String parameterValue) {
+        if (parameters == null) {
+            parameters = new LinkedHashMap<>(4);
+        }
+        parameters.put(parameterName.toUpperCase(Locale.ROOT), parameterValue);
+    }
+
+    @Override
+    public String toString() {
+        return name + getParameters() + ":" + value;
+    }
+}
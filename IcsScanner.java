@@ -0,0 +1,419 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import net.fortuna.ical4j.data.ParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Locale;
+
+/**
+ * IcsScanner is the fast path of {@link IcsEventReader}. It scans the UTF-8 bytes of an ICS file directly, unfolds
+ * the lines and splits off the parameters itself, and only decodes the properties the reader keeps; all other lines
+ * are skipped without creating a single object. Unfolding happens before decoding, so a fold inside a multi-byte
+ * character is read correctly.
+ * <p>
+ * Input the scanner does not recognize as well formed, e.g. a line without colon, bare CR line endings or an END
+ * not matching its BEGIN, is handed to the ical4j parser from the start of the current top level component on.
+ * ical4j then either accepts it or reports the error, exactly as without the scanner.
+ */
+final class IcsScanner {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Largest top level component kept in the buffer for the fallback. Errors in larger components are reported by
+     * the scanner itself.
+     */
+    static final int MAX_RETAINED = 1 << 20;
+
+    private static final String VCALENDAR = "VCALENDAR";
+    private static final byte[] BEGIN = ascii("BEGIN");
+    private static final byte[] END = ascii("END");
+    private static final byte[] CALENDAR_START = ascii("BEGIN:" + VCALENDAR + "\r\n");
+    private static final String[] COMPONENT_NAMES = {VCALENDAR, "VEVENT", "VTIMEZONE", "STANDARD", "DAYLIGHT", "VALARM", "VTODO"};
+    private static final String[] PARAMETER_NAMES = {"TZID", "VALUE"};
+
+    /**
+     * Signals input the scanner leaves to ical4j. Thrown for control flow only, so without stack trace.
+     */
+    private static class Unsupported extends Exception {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Unsupported UNSUPPORTED = new Unsupported();
+
+    private final InputStream in;
+    private final String[] propertyNames;
+    private final byte[][] propertyNameBytes;
+    private final byte[][] componentNameBytes = asciiAll(COMPONENT_NAMES);
+    private final byte[][] parameterNameBytes = asciiAll(PARAMETER_NAMES);
+    private final Deque<String> components = new ArrayDeque<>();
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private boolean eof;
+    // Start of the current top level unit in the buffer, -1 once it outgrew MAX_RETAINED
+    private int keep;
+    private boolean keepInCalendar;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private int lineNumber;
+    private int calendars;
+    // Parameter values such as the TZID repeat in every event, the last one is reused
+    private byte[] lastParameterBytes = new byte[0];
+    private String lastParameterValue = "";
+
+    /**
+     * @param in             the UTF-8 encoded ICS content, it is not closed
+     * @param propertyNames  the upper case names of the properties passed to the handler
+     */
+    IcsScanner(InputStream in, Collection<String> propertyNames) {
+        this.in = in;
+        this.propertyNames = propertyNames.toArray(new String[0]);
+        this.propertyNameBytes = asciiAll(this.propertyNames);
+    }
+
+    /**
+     * Scans the content and drives the handler like the ical4j parser does.
+     *
+     * @param handler the handler receiving the components and kept properties
+     * @throws IOException, ParserException if the content cannot be read or ical4j rejects it after the fallback
+     */
+    void scan(IcsEventReader.StreamingContentHandler handler) throws IOException, ParserException {
+        try {
+            while (true) {
+                if (components.size() == 1 || (components.isEmpty() && calendars > 0)) {
+                    keep = pos;
+                    keepInCalendar = !components.isEmpty();
+                }
+                if (!readLine()) {
+                    break;
+                }
+                if (lineLength > 0) {
+                    handleLine(handler);
+                }
+            }
+            if (!components.isEmpty() || calendars == 0) {
+                throw UNSUPPORTED;
+            }
+        } catch (Unsupported e) {
+            fallback(handler);
+        }
+    }
+
+    private void handleLine(IcsEventReader.StreamingContentHandler handler) throws Unsupported {
+        int nameEnd = 0;
+        while (nameEnd < lineLength && isNameChar(line[nameEnd])) {
+            nameEnd++;
+        }
+        if (nameEnd == 0 || nameEnd == lineLength) {
+            throw UNSUPPORTED;
+        }
+        boolean begin = equalsIgnoreCase(BEGIN, 0, nameEnd);
+        if (begin || equalsIgnoreCase(END, 0, nameEnd)) {
+            if (line[nameEnd] != ':') {
+                throw UNSUPPORTED;
+            }
+            String componentName = componentName(nameEnd + 1);
+            if (begin) {
+                beginComponent(handler, componentName);
+            } else {
+                endComponent(handler, componentName);
+            }
+            return;
+        }
+        if (components.isEmpty()) {
+            throw UNSUPPORTED;
+        }
+        int known = find(propertyNameBytes, 0, nameEnd);
+        String propertyName = known < 0 ? null : propertyNames[known];
+        if (propertyName != null) {
+            handler.startProperty(propertyName);
+        }
+        int i = nameEnd;
+        while (line[i] == ';') {
+            int parameterStart = ++i;
+            while (i < lineLength && isNameChar(line[i])) {
+                i++;
+            }
+            if (i == parameterStart || i == lineLength || line[i] != '=') {
+                throw UNSUPPORTED;
+            }
+            int parameterEnd = i++;
+            int valueStart = i;
+            boolean quoted = false;
+            while (true) {
+                if (i < lineLength && line[i] == '"') {
+                    quoted = true;
+                    i++;
+                    while (i < lineLength && line[i] != '"') {
+                        i++;
+                    }
+                    if (i == lineLength) {
+                        throw UNSUPPORTED;
+                    }
+                    i++;
+                } else {
+                    while (i < lineLength && line[i] != ';' && line[i] != ':' && line[i] != ',' && line[i] != '"') {
+                        i++;
+                    }
+                }
+                if (i < lineLength && line[i] == ',') {
+                    i++;
+                } else {
+                    break;
+                }
+            }
+            if (i == lineLength) {
+                throw UNSUPPORTED;
+            }
+            if (propertyName != null) {
+                handler.parameter(parameterName(parameterStart, parameterEnd), parameterValue(valueStart, i, quoted));
+            }
+        }
+        if (line[i] != ':') {
+            throw UNSUPPORTED;
+        }
+        if (propertyName != null) {
+            handler.propertyValue(new String(line, i + 1, lineLength - i - 1, StandardCharsets.UTF_8));
+            handler.endProperty(propertyName);
+        }
+    }
+
+    private void beginComponent(IcsEventReader.StreamingContentHandler handler, String componentName) throws Unsupported {
+        if (VCALENDAR.equals(componentName)) {
+            if (!components.isEmpty()) {
+                throw UNSUPPORTED;
+            }
+            calendars++;
+            handler.startCalendar();
+        } else if (components.isEmpty()) {
+            throw UNSUPPORTED;
+        } else {
+            handler.startComponent(componentName);
+        }
+        components.push(componentName);
+    }
+
+    private void endComponent(IcsEventReader.StreamingContentHandler handler, String componentName) throws Unsupported {
+        if (components.isEmpty() || !components.peek().equals(componentName)) {
+            throw UNSUPPORTED;
+        }
+        components.pop();
+        if (VCALENDAR.equals(componentName)) {
+            handler.endCalendar();
+        } else {
+            handler.endComponent(componentName);
+        }
+    }
+
+    /**
+     * Hands the rest of the input to ical4j, starting with the top level component the scanner stopped in.
+     */
+    private void fallback(IcsEventReader.StreamingContentHandler handler) throws IOException, ParserException {
+        if (keep < 0) {
+            throw new ParserException("Invalid ICS content in line " + lineNumber, lineNumber);
+        }
+        handler.reset();
+        byte[] prefix = keepInCalendar ? CALENDAR_START : new byte[0];
+        byte[] retained = new byte[prefix.length + limit - keep];
+        System.arraycopy(prefix, 0, retained, 0, prefix.length);
+        System.arraycopy(buffer, keep, retained, prefix.length, limit - keep);
+        buffer = null;
+        InputStream rest = eof ? new ByteArrayInputStream(retained) : new SequenceInputStream(new ByteArrayInputStream(retained), in);
+        IcsEventReader.parse(new InputStreamReader(rest, StandardCharsets.UTF_8), handler);
+    }
+
+    /**
+     * Reads the next content line into {@link #line}, joining folded lines and removing the line ending.
+     *
+     * @return false at the end of the input
+     */
+    private boolean readLine() throws IOException, Unsupported {
+        lineLength = 0;
+        boolean read = false;
+        while (true) {
+            if (pos == limit && !fill()) {
+                return read;
+            }
+            read = true;
+            int end = pos;
+            while (end < limit && buffer[end] != '\n') {
+                end++;
+            }
+            append(pos, end);
+            if (end == limit) {
+                pos = limit;
+                continue;
+            }
+            pos = end + 1;
+            lineNumber++;
+            if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                lineLength--;
+            }
+            if ((pos < limit || fill()) && (buffer[pos] == ' ' || buffer[pos] == '\t')) {
+                pos++;
+                continue;
+            }
+            for (int i = 0; i < lineLength; i++) {
+                if (line[i] == '\r') {
+                    // Bare CR line endings are left to ical4j
+                    throw UNSUPPORTED;
+                }
+            }
+            return true;
+        }
+    }
+
+    private void append(int start, int end) {
+        int length = end - start;
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+        }
+        System.arraycopy(buffer, start, line, lineLength, length);
+        lineLength += length;
+    }
+
+    /**
+     * Reads more input behind {@link #limit}. The buffer is compacted to the retained unit first and grows while
+     * the unit does not fit, up to {@link #MAX_RETAINED}.
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        int start = keep >= 0 ? keep : pos;
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            pos -= start;
+            if (keep >= 0) {
+                keep = 0;
+            }
+        }
+        if (limit == buffer.length) {
+            if (buffer.length >= MAX_RETAINED) {
+                keep = -1;
+                return fill();
+            }
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    private String componentName(int start) throws Unsupported {
+        for (int i = start; i < lineLength; i++) {
+            if (!isNameChar(line[i])) {
+                throw UNSUPPORTED;
+            }
+        }
+        if (start == lineLength) {
+            throw UNSUPPORTED;
+        }
+        int known = find(componentNameBytes, start, lineLength);
+        return known >= 0 ? COMPONENT_NAMES[known] : new String(line, start, lineLength - start, StandardCharsets.US_ASCII).toUpperCase(Locale.ROOT);
+    }
+
+    private String parameterName(int start, int end) {
+        int known = find(parameterNameBytes, start, end);
+        return known >= 0 ? PARAMETER_NAMES[known] : new String(line, start, end - start, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Decodes a parameter value. The quotes of quoted values are not part of the value.
+     */
+    private String parameterValue(int start, int end, boolean quoted) {
+        int length = end - start;
+        if (length == lastParameterBytes.length && regionMatches(lastParameterBytes, start)) {
+            return lastParameterValue;
+        }
+        String value = new String(line, start, length, StandardCharsets.UTF_8);
+        lastParameterBytes = Arrays.copyOfRange(line, start, end);
+        lastParameterValue = quoted ? value.replace("\"", "") : value;
+        return lastParameterValue;
+    }
+
+    private boolean regionMatches(byte[] bytes, int start) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != line[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int find(byte[][] names, int start, int end) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].length == end - start && equalsIgnoreCase(names[i], start, end)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equalsIgnoreCase(byte[] upperCase, int start, int end) {
+        if (upperCase.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < upperCase.length; i++) {
+            byte b = line[start + i];
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+            if (b != upperCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNameChar(byte b) {
+        return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '-';
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[][] asciiAll(String[] values) {
+        byte[][] bytes = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = ascii(values[i]);
+        }
+        return bytes;
+    }
+}
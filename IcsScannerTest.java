@@ -0,0 +1,298 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import net.fortuna.ical4j.data.ParserException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Conformance tests of the IcsScanner: every file of the corpus must be read exactly as by the ical4j path.
+ */
+public class IcsScannerTest {
+
+    private static final String TIME_ZONE = "BEGIN:VTIMEZONE\r\n"
+            + "TZID:Europe/Berlin\r\n"
+            + "BEGIN:DAYLIGHT\r\n"
+            + "TZOFFSETFROM:+0100\r\n"
+            + "TZOFFSETTO:+0200\r\n"
+            + "DTSTART:19700329T020000\r\n"
+            + "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=-1SU\r\n"
+            + "END:DAYLIGHT\r\n"
+            + "BEGIN:STANDARD\r\n"
+            + "TZOFFSETFROM:+0200\r\n"
+            + "TZOFFSETTO:+0100\r\n"
+            + "DTSTART:19701025T030000\r\n"
+            + "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU\r\n"
+            + "END:STANDARD\r\n"
+            + "END:VTIMEZONE\r\n";
+
+    private static final String[] CORPUS = {
+            // Plain event with a TZID parameter
+            calendar("BEGIN:VEVENT\r\n"
+                    + "UID:1@test\r\n"
+                    + "DTSTART;TZID=Europe/Berlin:20241007T091500\r\n"
+                    + "DTEND;TZID=Europe/Berlin:20241007T104500\r\n"
+                    + "SUMMARY:Mathematik I\r\n"
+                    + "X-RAPLA-ID:module1\r\n"
+                    + "END:VEVENT\r\n"),
+            // Time zone definition, whole day and UTC values, several parameters
+            calendar(TIME_ZONE
+                    + "BEGIN:VEVENT\r\n"
+                    + "DTSTART;VALUE=DATE:20241224\r\n"
+                    + "DTEND;VALUE=DATE:20241225\r\n"
+                    + "X-RAPLA-ID:holiday\r\n"
+                    + "END:VEVENT\r\n"
+                    + "BEGIN:VEVENT\r\n"
+                    + "DTSTART:20241007T071500Z\r\n"
+                    + "DURATION:PT1H30M\r\n"
+                    + "RRULE:FREQ=WEEKLY;COUNT=12;BYDAY=MO\r\n"
+                    + "EXDATE;VALUE=DATE-TIME;TZID=Europe/Berlin:20241014T091500,20241021T091500\r\n"
+                    + "EXDATE;TZID=Europe/Berlin:20241104T091500\r\n"
+                    + "X-RAPLA-ID:module2\r\n"
+                    + "END:VEVENT\r\n"),
+            // LF line endings, folds with space and tab, also inside names and values
+            calendar("BEGIN:VEVENT\n"
+                    + "DTST\n ART;TZID=Europe/\n\tBerlin:20241007T09\n 1500\n"
+                    + "DTEND;TZID=Europe/Berlin:20241007T104500\n"
+                    + "DESCRIPTION:A long description: with colons\\, commas\\; and semicolons\n"
+                    + "  that goes on\n"
+                    + "X-RAPLA-ID:mod\n ule3\n"
+                    + "END:VEVENT\n").replace("\r\n", "\n"),
+            // Nested components, lower case property names, unknown and X- properties, a recurrence override
+            calendar("BEGIN:VEVENT\r\n"
+                    + "dtstart;tzid=Europe/Berlin:20241008T131500\r\n"
+                    + "DtEnd;TzId=Europe/Berlin:20241008T144500\r\n"
+                    + "X-UNKNOWN;X-PARAM=a,b:ignored\r\n"
+                    + "UID:4@test\r\n"
+                    + "SEQUENCE:2\r\n"
+                    + "RECURRENCE-ID;TZID=Europe/Berlin:20241008T131500\r\n"
+                    + "BEGIN:VALARM\r\n"
+                    + "TRIGGER:-PT15M\r\n"
+                    + "DTSTART:20000101T000000Z\r\n"
+                    + "END:VALARM\r\n"
+                    + "X-RAPLA-ID:module4\r\n"
+                    + "END:VEVENT\r\n"
+                    + "BEGIN:VTODO\r\n"
+                    + "DTSTART:20241008T131500Z\r\n"
+                    + "END:VTODO\r\n"),
+            // Values with non-ASCII characters and an empty value
+            calendar("BEGIN:VEVENT\r\n"
+                    + "DTSTART:20241009T080000Z\r\n"
+                    + "DTEND:20241009T093000Z\r\n"
+                    + "SUMMARY:Übung Größen\r\n"
+                    + "LOCATION:\r\n"
+                    + "X-RAPLA-ID:modül5\r\n"
+                    + "END:VEVENT\r\n"),
+            // Bare CR line endings in the second event, left to ical4j
+            calendar("BEGIN:VEVENT\r\n"
+                    + "DTSTART:20241009T080000Z\r\n"
+                    + "X-RAPLA-ID:module6\r\n"
+                    + "END:VEVENT\r\n"
+                    + "BEGIN:VEVENT\r"
+                    + "DTSTART:20241010T080000Z\r"
+                    + "X-RAPLA-ID:module7\r"
+                    + "END:VEVENT\r\n"
+                    + "BEGIN:VEVENT\r\n"
+                    + "DTSTART:20241011T080000Z\r\n"
+                    + "X-RAPLA-ID:module8\r\n"
+                    + "END:VEVENT\r\n"),
+            generated(true),
+            generated(false),
+    };
+
+    private static String calendar(String components) {
+        return "BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//Test//Corpus//DE\r\n" + components + "END:VCALENDAR\r\n";
+    }
+
+    private static String generated(boolean localTimes) {
+        SyntheticSemesterplanGenerator generator = new SyntheticSemesterplanGenerator();
+        generator.setModules(5);
+        generator.setEventsPerModule(4);
+        generator.setLocalTimes(localTimes);
+        return generator.generate();
+    }
+
+    /**
+     * Reads the content and renders everything delivered to the handler, in order.
+     */
+    private static String read(byte[] content, boolean scanner, Set<String> propertyNames) throws Exception {
+        StringBuilder out = new StringBuilder();
+        IcsEventReader reader = new IcsEventReader(propertyNames);
+        reader.setScanner(scanner);
+        int count = reader.read(new ByteArrayInputStream(content), new IcsEventReader.IcsEventHandler() {
+            @Override
+            public void handleEvent(IcsEvent event) {
+                out.append("VEVENT ").append(event.getIndex()).append('\n');
+                Map<String, String> sorted = new TreeMap<>();
+                for (String name : propertyNames) {
+                    int i = 0;
+                    for (IcsProperty property : event.getProperties(name)) {
+                        sorted.put(name + "#" + i++, property.getParameters() + ":" + property.getValue());
+                    }
+                }
+                sorted.forEach((key, value) -> out.append(key).append(value).append('\n'));
+            }
+
+            @Override
+            public void handleTimeZone(IcsTimeZone timeZone) {
+                out.append("VTIMEZONE ").append(timeZone.getTzid()).append('\n');
+                for (IcsTimeZone.Observance observance : timeZone.getObservances()) {
+                    out.append(observance.isDaylight()).append(' ').append(observance.getStart()).append(' ')
+                            .append(observance.getOffsetFrom()).append(' ').append(observance.getOffsetTo()).append(' ')
+                            .append(observance.getRecurrenceRule()).append('\n');
+                }
+            }
+        });
+        return out.append(count).toString();
+    }
+
+    /**
+     * Test that the scanner reads every file of the corpus exactly as the ical4j path.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testRead_Corpus() throws Exception {
+        Set<String> propertyNames = new HashSet<>(IcsEventReader.DEFAULT_PROPERTIES);
+        propertyNames.addAll(Arrays.asList("SUMMARY", "DESCRIPTION", "LOCATION"));
+        for (int i = 0; i < CORPUS.length; i++) {
+            byte[] content = CORPUS[i].getBytes(StandardCharsets.UTF_8);
+            String expected = read(content, false, propertyNames);
+            assertEquals("Corpus file " + i, expected, read(content, true, propertyNames));
+        }
+    }
+
+    /**
+     * Test the values of the corpus, so a common mistake of both paths is noticed as well.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testRead_Values() throws Exception {
+        String folded = read(CORPUS[2].getBytes(StandardCharsets.UTF_8), true, IcsEventReader.DEFAULT_PROPERTIES);
+        assertTrue(folded, folded.contains("DTSTART#0{TZID=Europe/Berlin}:20241007T091500\n"));
+        assertTrue(folded, folded.contains("X-RAPLA-ID#0{}:module3\n"));
+
+        String fallback = read(CORPUS[5].getBytes(StandardCharsets.UTF_8), true, IcsEventReader.DEFAULT_PROPERTIES);
+        assertTrue(fallback, fallback.contains("VEVENT 1\nDTSTART#0{}:20241010T080000Z\nX-RAPLA-ID#0{}:module7\n"));
+        assertTrue(fallback, fallback.endsWith("X-RAPLA-ID#0{}:module8\n3"));
+    }
+
+    /**
+     * Test that quoted parameter values may contain colons and semicolons and lose their quotes.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testRead_QuotedParameter() throws Exception {
+        byte[] content = calendar("BEGIN:VEVENT\r\n"
+                + "DTSTART;TZID=\"Europe/Berlin\";X-LABEL=\"a:b;c\":20241007T091500\r\n"
+                + "X-RAPLA-ID:module1\r\n"
+                + "END:VEVENT\r\n").getBytes(StandardCharsets.UTF_8);
+        String read = read(content, true, IcsEventReader.DEFAULT_PROPERTIES);
+        assertTrue(read, read.contains("DTSTART#0{TZID=Europe/Berlin, X-LABEL=a:b;c}:20241007T091500\n"));
+    }
+
+    /**
+     * Test that a fold inside a multi-byte character is joined before the value is decoded.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testRead_FoldInsideCharacter() throws Exception {
+        byte[] value = "X-RAPLA-ID:modül".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write("BEGIN:VCALENDAR\r\nBEGIN:VEVENT\r\nDTSTART:20241009T080000Z\r\n".getBytes(StandardCharsets.US_ASCII));
+        content.write(value, 0, value.length - 1);
+        content.write("\r\n ".getBytes(StandardCharsets.US_ASCII));
+        content.write(value, value.length - 1, 1);
+        content.write("\r\nEND:VEVENT\r\nEND:VCALENDAR\r\n".getBytes(StandardCharsets.US_ASCII));
+        String read = read(content.toByteArray(), true, IcsEventReader.DEFAULT_PROPERTIES);
+        assertTrue(read, read.contains("X-RAPLA-ID#0{}:modül\n"));
+    }
+
+    /**
+     * Test that malformed files the scanner leaves to ical4j are accepted or rejected just as by the ical4j path.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testRead_Malformed() throws Exception {
+        String[] malformed = {
+                "",
+                "\uFEFF" + CORPUS[0],
+                "BEGIN:VCALENDAR\r\nBEGIN:VEVENT\r\nDTSTART:20241009T080000Z\r\n",
+                calendar("BEGIN:VEVENT\r\nX-RAPLA-ID:module1\r\nEND:VEVENT\r\nBEGIN:VEVENT\r\nDTSTART 20241009T080000Z\r\nEND:VEVENT\r\n"),
+                calendar("BEGIN:VEVENT\r\nX-RAPLA-ID:module1\r\nEND:VTODO\r\n"),
+        };
+        for (String content : malformed) {
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            assertEquals(content, outcome(bytes, false), outcome(bytes, true));
+        }
+    }
+
+    /**
+     * Test that an exception of the handler reaches the caller unchanged on the scanner path, the ical4j path and
+     * when the scanner falls back to ical4j.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testRead_HandlerFailure() throws Exception {
+        byte[] plain = CORPUS[0].getBytes(StandardCharsets.UTF_8);
+        // The scanner does not accept the underscore in a property name and leaves the file to ical4j
+        byte[] fallback = calendar("BEGIN:VEVENT\r\nX-LEGACY_ID:1\r\nX-RAPLA-ID:module1\r\nEND:VEVENT\r\n")
+                .getBytes(StandardCharsets.UTF_8);
+        assertEquals("invalid event 0", handlerFailure(plain, true));
+        assertEquals("invalid event 0", handlerFailure(plain, false));
+        assertEquals("invalid event 0", handlerFailure(fallback, true));
+    }
+
+    private static String handlerFailure(byte[] content, boolean scanner) throws Exception {
+        IcsEventReader reader = new IcsEventReader();
+        reader.setScanner(scanner);
+        try {
+            reader.read(new ByteArrayInputStream(content), event -> {
+                throw new ParseException("invalid event " + event.getIndex(), 0);
+            });
+        } catch (ParseException e) {
+            return e.getMessage();
+        }
+        return null;
+    }
+
+    private static String outcome(byte[] content, boolean scanner) throws Exception {
+        try {
+            return read(content, scanner, IcsEventReader.DEFAULT_PROPERTIES);
+        } catch (ParserException e) {
+            return "ParserException";
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A VTIMEZONE block read from an ICS file, consisting of its TZID and its STANDARD and DAYLIGHT observances.
+ */
+public class IcsTimeZone {
+
+    /**
+     * A single STANDARD or DAYLIGHT observance of a VTIMEZONE.
+     */
+    public static class Observance {
+        private final boolean daylight;
+        private String start;
+        private String offsetFrom;
+        private String offsetTo;
+        private String recurrenceRule;
+
+        public Observance(boolean daylight) {
+            this.daylight = daylight;
+        }
+
+        public boolean isDaylight() {
+            return daylight;
+        }
+
+        /**
+         * Gets the local start of the observance (DTSTART), given in the offset before the transition.
+         *
+         * @return the DTSTART value
+         */
+        public String getStart() {
+            return start;
+        }
+
+        public void setStart(String start) {
+            this.start = start;
+        }
+
+        public String getOffsetFrom() {
+            return offsetFrom;
+        }
+
+        public void setOffsetFrom(String offsetFrom) {
+            this.offsetFrom = offsetFrom;
+        }
+
+        public String getOffsetTo() {
+            return offsetTo;
+        }
+
+        public void setOffsetTo(String offsetTo) {
+            this.offsetTo = offsetTo;
+        }
+
+        /**
+         * Gets the yearly rule of the observance (RRULE), e.g. FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU.
+         *
+         * @return the RRULE value, or null for a one-time observance
+         */
+        public String getRecurrenceRule() {
+            return recurrenceRule;
+        }
+
+        public void setRecurrenceRule(String recurrenceRule) {
+            this.recurrenceRule = recurrenceRule;
+        }
+    }
+
+    private String tzid;
+    private final List<Observance> observances = new ArrayList<>(2);
+
+    public String getTzid() {
+        return tzid;
+    }
+
+    public void setTzid(String tzid) {
+        this.tzid = tzid;
+    }
+
+    public List<Observance> getObservances() {
+        return observances;
+    }
+
+    public void addObservance(Observance observance) {
+        observances.add(observance);
+    }
+}
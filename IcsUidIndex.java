@@ -0,0 +1,364 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import net.fortuna.ical4j.model.Property;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * IcsUidIndex remembers per user which VEVENTs were imported into which reservation, keyed by UID and
+ * RECURRENCE-ID, together with their SEQUENCE, LAST-MODIFIED and a hash of their content. The events of a new file
+ * are observed one by one and then evaluated against the index, which tells which event groups contain new,
+ * modified or removed VEVENTs, so only those groups are converted and committed. A group is also imported again if its reservation was modified in Rapla since.
+ * The index is kept in the work directory and survives restarts.
+ */
+public class IcsUidIndex {
+
+    private static final Object FILE_LOCK = new Object();
+
+    /** The properties that determine the appointments of an event, in a fixed order for hashing. */
+    private static final List<String> HASHED_PROPERTIES = Collections.unmodifiableList(Arrays.asList(
+            Property.DTSTART, Property.DTEND, Property.DURATION, Property.RRULE, Property.RDATE, Property.EXDATE,
+            Property.RECURRENCE_ID, IcsEvent.X_RAPLA_ID));
+
+    /**
+     * The imported revision of one VEVENT.
+     */
+    static final class Entry {
+        private final String raplaId;
+        private final String sequence;
+        private final String lastModified;
+        private final String contentHash;
+
+        Entry(String raplaId, String sequence, String lastModified, String contentHash) {
+            this.raplaId = raplaId;
+            this.sequence = sequence;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+        }
+
+        boolean sameRevision(Entry other) {
+            return raplaId.equals(other.raplaId) && sequence.equals(other.sequence)
+                    && lastModified.equals(other.lastModified) && contentHash.equals(other.contentHash);
+        }
+    }
+
+    /**
+     * The state of a reservation after its event group was imported.
+     */
+    static final class Group {
+        private final long lastChanged;
+        private final int appointmentCount;
+
+        Group(long lastChanged, int appointmentCount) {
+            this.lastChanged = lastChanged;
+            this.appointmentCount = appointmentCount;
+        }
+    }
+
+    private final Path file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, Group> groups = new HashMap<>();
+    private final Map<String, Set<String>> keysByGroup = new HashMap<>();
+
+    private IcsUidIndex(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the index of a user, or creates an empty one if the user did not import events with UIDs before.
+     *
+     * @param directory the directory holding the indexes
+     * @param userName  the importing user
+     * @return the index
+     * @throws IOException if an existing index cannot be read
+     */
+    public static IcsUidIndex load(Path directory, String userName) throws IOException {
+        IcsUidIndex index = new IcsUidIndex(directory.resolve(IcsFingerprint.hex(userName.getBytes(StandardCharsets.UTF_8)) + ".uids"));
+        synchronized (FILE_LOCK) {
+            index.read();
+        }
+        return index;
+    }
+
+    private void read() throws IOException {
+        entries.clear();
+        groups.clear();
+        keysByGroup.clear();
+        if (!Files.exists(file)) {
+            return;
+        }
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t", -1);
+            if (fields[0].equals("G") && fields.length == 4) {
+                groups.put(fields[1], new Group(Long.parseLong(fields[2]), Integer.parseInt(fields[3])));
+            } else if (fields[0].equals("E") && fields.length == 6) {
+                put(fields[1], new Entry(fields[2], fields[3], fields[4], fields[5]));
+            }
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            keysByGroup.get(previous.raplaId).remove(key);
+        }
+        keysByGroup.computeIfAbsent(entry.raplaId, k -> new HashSet<>()).add(key);
+    }
+
+    private void removeGroup(String raplaId) {
+        groups.remove(raplaId);
+        Set<String> keys = keysByGroup.remove(raplaId);
+        if (keys != null) {
+            entries.keySet().removeAll(keys);
+        }
+    }
+
+    /**
+     * Starts comparing the VEVENTs of a new file with the index.
+     *
+     * @param lastChanged looks up the modification time of a reservation in Rapla, returns null if it is unknown
+     * @return the comparison, to be filled by {@link Changes#observe(IcsEvent)} and {@link Changes#evaluate()}
+     */
+    public Changes compare(Function<String, Date> lastChanged) {
+        return new Changes(lastChanged);
+    }
+
+    private void record(Changes changes, Map<String, Date> committed, Map<String, Integer> appointmentCounts, Set<String> failedIds) throws IOException {
+        synchronized (FILE_LOCK) {
+            read();
+            boolean modified = false;
+            for (String failedId : failedIds) {
+                modified |= groups.remove(failedId) != null;
+            }
+            for (Map.Entry<String, Date> group : committed.entrySet()) {
+                String raplaId = group.getKey();
+                Map<String, Entry> revisions = changes.revisionsByGroup.get(raplaId);
+                if (revisions == null) {
+                    continue;
+                }
+                removeGroup(raplaId);
+                revisions.forEach(this::put);
+                if (group.getValue() != null && !changes.untrackedGroups.contains(raplaId)) {
+                    groups.put(raplaId, new Group(group.getValue().getTime(), appointmentCounts.getOrDefault(raplaId, 0)));
+                }
+                modified = true;
+            }
+            if (modified && (!entries.isEmpty() || !groups.isEmpty() || Files.exists(file))) {
+                write();
+            }
+        }
+    }
+
+    private void write() throws IOException {
+        List<String> lines = new ArrayList<>(groups.size() + entries.size());
+        for (Map.Entry<String, Group> group : new TreeMap<>(groups).entrySet()) {
+            lines.add("G\t" + group.getKey() + "\t" + group.getValue().lastChanged + "\t" + group.getValue().appointmentCount);
+        }
+        for (Map.Entry<String, Entry> entry : new TreeMap<>(entries).entrySet()) {
+            Entry value = entry.getValue();
+            lines.add("E\t" + entry.getKey() + "\t" + value.raplaId + "\t" + value.sequence + "\t" + value.lastModified + "\t" + value.contentHash);
+        }
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The comparison of the VEVENTs of one file with the index.
+     */
+    public class Changes {
+        private final Function<String, Date> lastChanged;
+        private final Map<String, Map<String, Entry>> revisionsByGroup = new LinkedHashMap<>();
+        private final Set<String> untrackedGroups = new HashSet<>();
+        private final Set<String> unchangedGroups = new LinkedHashSet<>();
+
+        private Changes(Function<String, Date> lastChanged) {
+            this.lastChanged = lastChanged;
+        }
+
+        /**
+         * Checks whether the index holds any imported group. Without one no group can be unchanged, so the events
+         * can be observed while they are converted instead of in a separate pass.
+         *
+         * @return true if groups of an earlier import are known
+         */
+        public boolean hasIndexedGroups() {
+            return !groups.isEmpty();
+        }
+
+        /**
+         * Records the revision of one event of the file. Only the key and hashes are kept, not the event, so a file
+         * can be compared in a first pass without holding its events.
+         *
+         * @param event the next event of the file
+         */
+        public void observe(IcsEvent event) {
+            String raplaId = event.getRaplaId();
+            Map<String, Entry> revisions = revisionsByGroup.computeIfAbsent(raplaId, k -> new LinkedHashMap<>());
+            String key = key(event);
+            if (key == null || raplaId == null || !trackable(raplaId) || revisions.containsKey(key)) {
+                untrackedGroups.add(raplaId);
+                return;
+            }
+            revisions.put(key, revision(event, raplaId));
+        }
+
+        /**
+         * Compares the observed events with the index, once all events of the file were observed. A group is
+         * unchanged unless it has a new, modified or removed VEVENT or an event without UID, or its reservation was
+         * modified in Rapla or failed during the last import.
+         *
+         * @return the X-RAPLA-IDs of the groups that are unchanged and need not be imported
+         */
+        public Set<String> evaluate() {
+            for (Map.Entry<String, Map<String, Entry>> group : revisionsByGroup.entrySet()) {
+                if (isUnchanged(group.getKey(), group.getValue())) {
+                    unchangedGroups.add(group.getKey());
+                }
+            }
+            return unchangedGroups;
+        }
+
+        private boolean isUnchanged(String raplaId, Map<String, Entry> revisions) {
+            Group group = groups.get(raplaId);
+            if (group == null || untrackedGroups.contains(raplaId)) {
+                return false;
+            }
+            // A VEVENT removed from the file leaves a key of the group unmatched
+            Set<String> indexedKeys = keysByGroup.getOrDefault(raplaId, Collections.emptySet());
+            if (indexedKeys.size() != revisions.size()) {
+                return false;
+            }
+            for (Map.Entry<String, Entry> revision : revisions.entrySet()) {
+                Entry indexed = entries.get(revision.getKey());
+                if (indexed == null || !indexed.sameRevision(revision.getValue())) {
+                    return false;
+                }
+            }
+            // Only now the reservation is looked up, so unchanged groups cost one lookup and changed ones none
+            Date changed = lastChanged.apply(raplaId);
+            return changed != null && changed.getTime() == group.lastChanged;
+        }
+
+        /**
+         * Records the revisions of the event groups committed by the import. Groups that failed are forgotten, so
+         * the next import commits them again. The index file is read again before, so concurrent imports of the
+         * same user do not overwrite each other.
+         *
+         * @param committed         the modification times of the committed reservations by X-RAPLA-ID, null if a
+         *                          reservation has none
+         * @param appointmentCounts the number of imported appointments by X-RAPLA-ID
+         * @param failedIds         the X-RAPLA-IDs that could not be committed
+         * @throws IOException if the index cannot be written
+         */
+        public void record(Map<String, Date> committed, Map<String, Integer> appointmentCounts, Set<String> failedIds) throws IOException {
+            IcsUidIndex.this.record(this, committed, appointmentCounts, failedIds);
+        }
+
+        /**
+         * Gets the X-RAPLA-IDs of the groups that are unchanged since the last import and are not converted.
+         *
+         * @return the ids in file order
+         */
+        public Set<String> getUnchangedGroups() {
+            return unchangedGroups;
+        }
+
+        /**
+         * Gets the number of appointments the unchanged groups were imported into.
+         *
+         * @return the sum of the recorded appointment counts
+         */
+        public int getUnchangedAppointmentCount() {
+            int count = 0;
+            for (String raplaId : unchangedGroups) {
+                count += groups.get(raplaId).appointmentCount;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * The key of a VEVENT in the index: its UID, followed by the RECURRENCE-ID for overridden occurrences.
+     *
+     * @param event the event
+     * @return the key, or null if the event has no UID that can be stored
+     */
+    static String key(IcsEvent event) {
+        String uid = event.getValue(Property.UID);
+        if (uid == null || uid.isEmpty()) {
+            return null;
+        }
+        String recurrenceId = event.getValue(Property.RECURRENCE_ID);
+        String key = recurrenceId == null ? uid : uid + "/" + recurrenceId;
+        return trackable(key) ? key : null;
+    }
+
+    private static boolean trackable(String value) {
+        return value.indexOf('\t') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0;
+    }
+
+    private static Entry revision(IcsEvent event, String raplaId) {
+        return new Entry(raplaId, valueOrEmpty(event, Property.SEQUENCE), valueOrEmpty(event, Property.LAST_MODIFIED), contentHash(event));
+    }
+
+    private static String valueOrEmpty(IcsEvent event, String name) {
+        String value = event.getValue(name);
+        return value == null || !trackable(value) ? "" : value.trim();
+    }
+
+    /**
+     * Hashes the properties of an event that determine its appointments, so an edit is noticed even if the
+     * exporting tool does not increase SEQUENCE or update LAST-MODIFIED.
+     */
+    static String contentHash(IcsEvent event) {
+        MessageDigest digest = IcsFingerprint.newDigest();
+        for (String name : HASHED_PROPERTIES) {
+            for (IcsProperty property : event.getProperties(name)) {
+                StringBuilder line = new StringBuilder(name);
+                for (Map.Entry<String, String> parameter : new TreeMap<>(property.getParameters()).entrySet()) {
+                    line.append(';').append(parameter.getKey()).append('=').append(parameter.getValue());
+                }
+                line.append(':').append(property.getValue()).append('\n');
+                digest.update(line.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return IcsFingerprint.hex(digest.digest());
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import net.fortuna.ical4j.model.Property;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the IcsUidIndex class.
+ */
+public class IcsUidIndexTest {
+
+    private Path workDir;
+    private final Map<String, Date> lastChanged = new HashMap<>();
+
+    /**
+     * Set up the test environment before each test.
+     *
+     * @throws Exception if an error occurs during setup
+     */
+    @Before
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("semesterplan-uid-test");
+        lastChanged.put("lecture", new Date(1000L));
+        lastChanged.put("exam", new Date(2000L));
+    }
+
+    /**
+     * Remove the work directory after each test.
+     *
+     * @throws Exception if an error occurs during cleanup
+     */
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.list(workDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(workDir);
+    }
+
+    private static IcsEvent event(String uid, String sequence, String raplaId, String start) {
+        IcsEvent event = new IcsEvent(0);
+        if (uid != null) {
+            event.addProperty(new IcsProperty(Property.UID, uid));
+        }
+        event.addProperty(new IcsProperty(Property.SEQUENCE, sequence));
+        event.addProperty(new IcsProperty(Property.DTSTART, start));
+        event.addProperty(new IcsProperty(IcsEvent.X_RAPLA_ID, raplaId));
+        return event;
+    }
+
+    private static List<IcsEvent> plan() {
+        return new ArrayList<>(Arrays.asList(
+                event("l1@dhbw", "0", "lecture", "20211004T091500"),
+                event("l2@dhbw", "0", "lecture", "20211011T091500"),
+                event("e1@dhbw", "0", "exam", "20211220T100000")));
+    }
+
+    /**
+     * Observes the events and evaluates them, keeping the events of the groups the import would convert.
+     */
+    private static List<IcsEvent> changedEvents(IcsUidIndex.Changes changes, List<IcsEvent> events) {
+        for (IcsEvent event : events) {
+            changes.observe(event);
+        }
+        Set<String> unchanged = changes.evaluate();
+        List<IcsEvent> changed = new ArrayList<>();
+        for (IcsEvent event : events) {
+            if (!unchanged.contains(event.getRaplaId())) {
+                changed.add(event);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Imports the events into a fresh index and records all groups as committed.
+     */
+    private void importAll(List<IcsEvent> events, String... failedIds) throws Exception {
+        IcsUidIndex.Changes changes = IcsUidIndex.load(workDir, "semesterplaner").compare(lastChanged::get);
+        Map<String, Date> committed = new LinkedHashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        for (IcsEvent event : changedEvents(changes, events)) {
+            committed.put(event.getRaplaId(), lastChanged.get(event.getRaplaId()));
+            counts.merge(event.getRaplaId(), 1, Integer::sum);
+        }
+        Set<String> failed = new HashSet<>(Arrays.asList(failedIds));
+        committed.keySet().removeAll(failed);
+        changes.record(committed, counts, failed);
+    }
+
+    private IcsUidIndex.Changes compare(List<IcsEvent> events, List<IcsEvent> expectedChanged) throws Exception {
+        IcsUidIndex.Changes changes = IcsUidIndex.load(workDir, "semesterplaner").compare(lastChanged::get);
+        assertEquals(expectedChanged, changedEvents(changes, events));
+        return changes;
+    }
+
+    /**
+     * Test that a file imported before converts no events and reports its groups as unchanged.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testEvaluate_Unchanged() throws Exception {
+        List<IcsEvent> events = plan();
+        importAll(events);
+
+        IcsUidIndex.Changes changes = compare(plan(), Collections.emptyList());
+        assertEquals(Arrays.asList("lecture", "exam"), new ArrayList<>(changes.getUnchangedGroups()));
+        assertEquals(3, changes.getUnchangedAppointmentCount());
+    }
+
+    /**
+     * Test that a higher SEQUENCE or a modified time changes only the group of the event.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testEvaluate_ModifiedEvent() throws Exception {
+        importAll(plan());
+
+        List<IcsEvent> events = plan();
+        events.set(2, event("e1@dhbw", "1", "exam", "20211220T100000"));
+        compare(events, Collections.singletonList(events.get(2)));
+
+        events = plan();
+        events.set(0, event("l1@dhbw", "0", "lecture", "20211004T111500"));
+        compare(events, events.subList(0, 2));
+    }
+
+    /**
+     * Test that removing a VEVENT or adding a new one changes the remaining events of its group.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testEvaluate_RemovedAndAddedEvent() throws Exception {
+        importAll(plan());
+
+        List<IcsEvent> events = plan();
+        events.remove(1);
+        compare(events, events.subList(0, 1));
+
+        events = plan();
+        events.add(event("e2@dhbw", "0", "exam", "20220110T100000"));
+        compare(events, events.subList(2, 4));
+    }
+
+    /**
+     * Test that a reservation modified in Rapla, a failed group and events without UID are always converted.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testEvaluate_NotTrusted() throws Exception {
+        importAll(plan(), "exam");
+        List<IcsEvent> events = plan();
+        compare(events, events.subList(2, 3));
+
+        importAll(plan());
+        lastChanged.put("lecture", new Date(1500L));
+        events = plan();
+        compare(events, events.subList(0, 2));
+
+        lastChanged.put("lecture", new Date(1000L));
+        events = plan();
+        events.set(2, event(null, "0", "exam", "20211220T100000"));
+        importAll(events);
+        compare(events, events.subList(2, 3));
+    }
+
+    /**
+     * Test that only an index with imported groups asks for a separate comparison pass.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testHasIndexedGroups() throws Exception {
+        assertFalse(IcsUidIndex.load(workDir, "semesterplaner").compare(lastChanged::get).hasIndexedGroups());
+
+        importAll(plan(), "lecture", "exam");
+        assertFalse(IcsUidIndex.load(workDir, "semesterplaner").compare(lastChanged::get).hasIndexedGroups());
+
+        importAll(plan());
+        assertTrue(IcsUidIndex.load(workDir, "semesterplaner").compare(lastChanged::get).hasIndexedGroups());
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ImportAdmission bounds the imports running at the same time. Requests beyond the global limit wait in a fair,
+ * first come first served queue of bounded length; requests of a user who already has the maximum number of
+ * imports running or queued, and requests finding the queue full, are rejected at once, so they do not pile up on
+ * servlet threads. Rejections carry an estimate after how many seconds a retry is likely to be admitted.
+ */
+public class ImportAdmission {
+
+    /**
+     * Why a request was not admitted, the label is used in the metrics.
+     */
+    public enum Rejection {
+        USER_LIMIT("user_limit"),
+        QUEUE_FULL("queue_full"),
+        QUEUE_TIMEOUT("queue_timeout");
+
+        private final String label;
+
+        Rejection(String label) {
+            this.label = label;
+        }
+
+        public String label() {
+            return label;
+        }
+    }
+
+    /**
+     * Assumed duration of an import until the first one finished.
+     */
+    static final long INITIAL_DURATION_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final int maxConcurrent;
+    private final int maxPerUser;
+    private final int maxQueued;
+    private final Semaphore slots;
+    private final Map<String, Integer> perUser = new HashMap<>();
+    private int queued;
+    private long averageNanos = INITIAL_DURATION_NANOS;
+
+    /**
+     * The admission of one request. A permit that was entered must be closed, whether it got a slot or not.
+     */
+    public class Permit implements AutoCloseable {
+        private final String userName;
+        private Rejection rejection;
+        private boolean inQueue;
+        private long slotStart;
+        private boolean closed;
+
+        private Permit(String userName, Rejection rejection) {
+            this.userName = userName;
+            this.rejection = rejection;
+            this.inQueue = rejection == null;
+        }
+
+        /**
+         * Checks whether the request passed the user and queue limits, or got a slot after waiting.
+         */
+        public boolean isAdmitted() {
+            return rejection == null;
+        }
+
+        /**
+         * Gets why the request was rejected.
+         *
+         * @return the reason, or null if it was admitted
+         */
+        public Rejection getRejection() {
+            return rejection;
+        }
+
+        /**
+         * Gets the number of seconds after which a retry is likely to be admitted, for the Retry-After header.
+         */
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds();
+        }
+
+        /**
+         * Waits in the queue for a slot.
+         *
+         * @param timeout the longest time to wait
+         * @param unit    the unit of the timeout
+         * @return true if the import may run now, false if the request was rejected or the wait timed out
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        public boolean awaitSlot(long timeout, TimeUnit unit) throws InterruptedException {
+            if (rejection != null) {
+                return false;
+            }
+            if (slotStart != 0) {
+                return true;
+            }
+            boolean acquired = slots.tryAcquire(timeout, unit);
+            synchronized (ImportAdmission.this) {
+                queued--;
+                inQueue = false;
+                if (acquired) {
+                    slotStart = System.nanoTime();
+                } else {
+                    rejection = Rejection.QUEUE_TIMEOUT;
+                }
+            }
+            return acquired;
+        }
+
+        /**
+         * Releases the slot and the place in the user limit.
+         */
+        @Override
+        public void close() {
+            synchronized (ImportAdmission.this) {
+                if (closed || (rejection != null && rejection != Rejection.QUEUE_TIMEOUT)) {
+                    return;
+                }
+                closed = true;
+                if (inQueue) {
+                    queued--;
+                }
+                perUser.computeIfPresent(userName, (name, count) -> count > 1 ? count - 1 : null);
+                if (slotStart != 0) {
+                    // Moving average of the import durations, used to estimate Retry-After
+                    averageNanos = (averageNanos * 7 + (System.nanoTime() - slotStart)) / 8;
+                }
+            }
+            if (slotStart != 0) {
+                slots.release();
+            }
+        }
+    }
+
+    /**
+     * Creates an admission.
+     *
+     * @param maxConcurrent the number of imports running at the same time
+     * @param maxPerUser    the number of imports a user may have running or queued
+     * @param maxQueued     the number of requests waiting for a slot
+     */
+    public ImportAdmission(int maxConcurrent, int maxPerUser, int maxQueued) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerUser = maxPerUser;
+        this.maxQueued = maxQueued;
+        this.slots = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Checks the user and queue limits and enters the queue. Does not block; wait for the slot with
+     * {@link Permit#awaitSlot(long, TimeUnit)}.
+     *
+     * @param userName the user requesting an import
+     * @return the permit, rejected if a limit is reached
+     */
+    public synchronized Permit enter(String userName) {
+        if (perUser.getOrDefault(userName, 0) >= maxPerUser) {
+            return new Permit(userName, Rejection.USER_LIMIT);
+        }
+        if (queued >= maxQueued + Math.max(0, slots.availablePermits())) {
+            return new Permit(userName, Rejection.QUEUE_FULL);
+        }
+        perUser.merge(userName, 1, Integer::sum);
+        queued++;
+        return new Permit(userName, null);
+    }
+
+    /**
+     * Gets the number of imports currently running.
+     */
+    public int getRunning() {
+        return maxConcurrent - slots.availablePermits();
+    }
+
+    /**
+     * Gets the number of requests currently waiting for a slot.
+     */
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    /**
+     * Renders the running and queued imports as Prometheus gauges.
+     *
+     * @return the metrics
+     */
+    public String toPrometheus() {
+        return "# HELP semesterplan_imports_running Imports currently running.\n"
+                + "# TYPE semesterplan_imports_running gauge\n"
+                + "semesterplan_imports_running " + getRunning() + "\n"
+                + "# HELP semesterplan_imports_queued Imports currently waiting for a slot.\n"
+                + "# TYPE semesterplan_imports_queued gauge\n"
+                + "semesterplan_imports_queued " + getQueued() + "\n";
+    }
+
+    private synchronized int retryAfterSeconds() {
+        // The queue ahead drains at maxConcurrent imports per average import duration
+        long nanos = averageNanos * (queued + 1) / maxConcurrent;
+        return (int) Math.max(1, Math.min(3600, (nanos + 999999999L) / 1000000000L));
+    }
+}
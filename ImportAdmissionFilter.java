@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.rapla.entities.User;
+import org.rapla.server.RemoteSession;
+import org.rapla.storage.RaplaSecurityException;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * ImportAdmissionFilter checks multipart import requests before RESTEasy reads their body. RESTEasy spools a
+ * multipart form completely before the resource method is invoked, so a check in the method would only run after
+ * an oversized or rejected upload was already received. The filter answers a Content-Length above
+ * {@link ImportSettings#getMaxUploadBytes()} with 413 and passes the {@link ImportAdmission}, answering 429 when
+ * the user or the queue is at its limit. An admitted body without Content-Length is spooled to the work directory
+ * first and answered with 413 as soon as it exceeds the limit.
+ * The permit of an admitted request is handed to the resource method as a request property and closed when the
+ * response is written, unless the method took it over for an asynchronous import.
+ */
+@Provider
+@PreMatching
+public class ImportAdmissionFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    /**
+     * The request property holding the {@link ImportAdmission.Permit} of an admitted import.
+     */
+    static final String PERMIT_PROPERTY = ImportAdmissionFilter.class.getName() + ".permit";
+
+    /**
+     * The request property holding the file a body without Content-Length was spooled to.
+     */
+    static final String SPOOL_PROPERTY = ImportAdmissionFilter.class.getName() + ".spool";
+
+    private final ImportController controller;
+    private final RemoteSession session;
+
+    @Context
+    HttpServletRequest request;
+
+    @Inject
+    public ImportAdmissionFilter(ImportController controller, RemoteSession session) {
+        this.controller = controller;
+        this.session = session;
+    }
+
+    @Override
+    public void filter(ContainerRequestContext context) {
+        if (!isMultipartImport(context)) {
+            return;
+        }
+        long maxUploadBytes = ImportSettings.getMaxUploadBytes();
+        if (contentLength(context) > maxUploadBytes) {
+            controller.getMetrics().recordTooLarge();
+            context.abortWith(Response.status(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE)
+                    .type(MediaType.TEXT_PLAIN + ";charset=UTF-8")
+                    .entity("Upload is larger than " + maxUploadBytes + " bytes")
+                    .build());
+            return;
+        }
+        boolean chunked = contentLength(context) < 0;
+        if (!chunked) {
+            context.setEntityStream(new LimitedInputStream(context.getEntityStream(), maxUploadBytes, "Upload"));
+        }
+
+        User user;
+        try {
+            user = session.checkAndGetUser(request);
+        } catch (RaplaSecurityException e) {
+            // The resource method answers with 401
+            return;
+        }
+        ImportAdmission.Permit permit = controller.getAdmission().enter(user.getUsername());
+        if (!permit.isAdmitted()) {
+            controller.getMetrics().recordRejected(permit.getRejection());
+            context.abortWith(Response.status(ImportController.SC_TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, permit.getRetryAfterSeconds())
+                    .type(MediaType.TEXT_PLAIN + ";charset=UTF-8")
+                    .entity(ImportController.busyMessage(permit.getRejection()))
+                    .build());
+            return;
+        }
+        if (chunked) {
+            // RESTEasy would wrap the exception of a limited stream while parsing the form and answer with 400 or
+            // 500, so a body without Content-Length is spooled here and answered with 413 once it exceeds the limit
+            try {
+                spool(context, maxUploadBytes);
+            } catch (UploadTooLargeException e) {
+                permit.close();
+                controller.getMetrics().recordTooLarge();
+                context.abortWith(Response.status(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE)
+                        .type(MediaType.TEXT_PLAIN + ";charset=UTF-8")
+                        .entity(e.getMessage())
+                        .build());
+                return;
+            } catch (IOException e) {
+                permit.close();
+                context.abortWith(Response.status(HttpServletResponse.SC_BAD_REQUEST)
+                        .type(MediaType.TEXT_PLAIN + ";charset=UTF-8")
+                        .entity("Upload could not be read: " + e.getMessage())
+                        .build());
+                return;
+            }
+        }
+        context.setProperty(PERMIT_PROPERTY, permit);
+    }
+
+    /**
+     * Copies the body to a file in the work directory and replaces the entity stream with it. The file is removed
+     * when the response is written.
+     */
+    private void spool(ContainerRequestContext context, long maxUploadBytes) throws IOException {
+        Path directory = Files.createDirectories(ImportSettings.getWorkDirectory());
+        Path spoolFile = Files.createTempFile(directory, "request-", ".part");
+        try (InputStream in = new LimitedInputStream(context.getEntityStream(), maxUploadBytes, "Upload")) {
+            Files.copy(in, spoolFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            delete(spoolFile);
+            throw e;
+        }
+        context.setProperty(SPOOL_PROPERTY, spoolFile);
+        context.setEntityStream(Files.newInputStream(spoolFile, StandardOpenOption.DELETE_ON_CLOSE));
+    }
+
+    private void delete(Path spoolFile) {
+        try {
+            Files.deleteIfExists(spoolFile);
+        } catch (IOException e) {
+            controller.logger.warn("Could not delete spooled request " + spoolFile, e);
+        }
+    }
+
+    @Override
+    public void filter(ContainerRequestContext context, ContainerResponseContext response) {
+        Object permit = context.getProperty(PERMIT_PROPERTY);
+        if (permit instanceof ImportAdmission.Permit) {
+            // Closing is idempotent, the resource method may have closed the permit already
+            ((ImportAdmission.Permit) permit).close();
+        }
+        Object spoolFile = context.getProperty(SPOOL_PROPERTY);
+        if (spoolFile instanceof Path) {
+            delete((Path) spoolFile);
+        }
+    }
+
+    /**
+     * Checks whether a request is a POST to one of the multipart import endpoints, semesterplan/import or
+     * semesterplan/import/batch.
+     */
+    static boolean isMultipartImport(ContainerRequestContext context) {
+        if (!"POST".equals(context.getMethod())) {
+            return false;
+        }
+        String path = context.getUriInfo().getPath();
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.endsWith("semesterplan/import") || path.endsWith("semesterplan/import/batch");
+    }
+
+    private static long contentLength(ContainerRequestContext context) {
+        String contentLength = context.getHeaderString(HttpHeaders.CONTENT_LENGTH);
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.rapla.entities.User;
+import org.rapla.server.RemoteSession;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the ImportAdmissionFilter class.
+ */
+public class ImportAdmissionFilterTest {
+
+    private ImportAdmission admission;
+    private ImportMetrics metrics;
+    private ImportAdmissionFilter filter;
+    private Path workDir;
+
+    /**
+     * Set up the test environment before each test.
+     *
+     * @throws Exception if an error occurs during setup
+     */
+    @Before
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("semesterplan-filter-test");
+        System.setProperty(ImportSettings.PREFIX + "workDir", workDir.toString());
+        admission = new ImportAdmission(4, 1, 10);
+        metrics = new ImportMetrics();
+        ImportController controller = mock(ImportController.class);
+        when(controller.getAdmission()).thenReturn(admission);
+        when(controller.getMetrics()).thenReturn(metrics);
+        User user = mock(User.class);
+        when(user.getUsername()).thenReturn("semesterplaner");
+        RemoteSession session = mock(RemoteSession.class);
+        when(session.checkAndGetUser(any())).thenReturn(user);
+        filter = new ImportAdmissionFilter(controller, session);
+        filter.request = mock(HttpServletRequest.class);
+    }
+
+    /**
+     * Remove the temporary files after each test.
+     *
+     * @throws Exception if an error occurs during cleanup
+     */
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(ImportSettings.PREFIX + "workDir");
+        try (Stream<Path> files = Files.walk(workDir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static ContainerRequestContext request(String method, String path, String contentLength) {
+        return request(method, path, contentLength, new byte[0]);
+    }
+
+    private static ContainerRequestContext request(String method, String path, String contentLength, byte[] body) {
+        ContainerRequestContext context = mock(ContainerRequestContext.class);
+        UriInfo uriInfo = mock(UriInfo.class);
+        when(uriInfo.getPath()).thenReturn(path);
+        when(context.getMethod()).thenReturn(method);
+        when(context.getUriInfo()).thenReturn(uriInfo);
+        when(context.getHeaderString("Content-Length")).thenReturn(contentLength);
+        when(context.getEntityStream()).thenReturn(new ByteArrayInputStream(body));
+        return context;
+    }
+
+    /**
+     * Test that an upload announcing more than the limit is answered with 413 before its body is read.
+     */
+    @Test
+    public void testFilter_TooLarge() {
+        ContainerRequestContext context = request("POST", "/semesterplan/import", String.valueOf(ImportSettings.getMaxUploadBytes() + 1));
+
+        filter.filter(context);
+
+        ArgumentCaptor<Response> response = ArgumentCaptor.forClass(Response.class);
+        verify(context).abortWith(response.capture());
+        assertEquals(413, response.getValue().getStatus());
+        verify(context, never()).getEntityStream();
+        assertEquals(0, admission.getQueued());
+    }
+
+    /**
+     * Test that a chunked upload without Content-Length is answered with 413 as soon as it exceeds the limit, and
+     * its spooled part and permit are released.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testFilter_ChunkedTooLarge() throws Exception {
+        System.setProperty(ImportSettings.PREFIX + "maxUploadBytes", "16");
+        try {
+            ContainerRequestContext context = request("POST", "/semesterplan/import", null, new byte[17]);
+
+            filter.filter(context);
+
+            ArgumentCaptor<Response> response = ArgumentCaptor.forClass(Response.class);
+            verify(context).abortWith(response.capture());
+            assertEquals(413, response.getValue().getStatus());
+            assertEquals("Upload is larger than 16 bytes", response.getValue().getEntity());
+            assertTrue(metrics.toPrometheus().contains("semesterplan_import_rejections_total{reason=\"too_large\"} 1"));
+            verify(context, never()).setProperty(eq(ImportAdmissionFilter.PERMIT_PROPERTY), any());
+            assertEquals(0, admission.getQueued());
+            try (Stream<Path> files = Files.list(workDir)) {
+                assertEquals(0, files.count());
+            }
+        } finally {
+            System.clearProperty(ImportSettings.PREFIX + "maxUploadBytes");
+        }
+    }
+
+    /**
+     * Test that a chunked upload within the limit is passed on unchanged and its spool file removed with the
+     * response.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testFilter_ChunkedWithinLimit() throws Exception {
+        byte[] body = "BEGIN:VCALENDAR".getBytes("UTF-8");
+        ContainerRequestContext context = request("POST", "/semesterplan/import", null, body);
+
+        filter.filter(context);
+
+        verify(context, never()).abortWith(any());
+        ArgumentCaptor<InputStream> entity = ArgumentCaptor.forClass(InputStream.class);
+        verify(context).setEntityStream(entity.capture());
+        ArgumentCaptor<Object> spoolFile = ArgumentCaptor.forClass(Object.class);
+        verify(context).setProperty(eq(ImportAdmissionFilter.SPOOL_PROPERTY), spoolFile.capture());
+        byte[] read = new byte[body.length + 1];
+        assertEquals(body.length, entity.getValue().read(read));
+        assertEquals("BEGIN:VCALENDAR", new String(read, 0, body.length, "UTF-8"));
+
+        when(context.getProperty(ImportAdmissionFilter.SPOOL_PROPERTY)).thenReturn(spoolFile.getValue());
+        filter.filter(context, mock(ContainerResponseContext.class));
+        assertFalse(Files.exists((Path) spoolFile.getValue()));
+        entity.getValue().close();
+    }
+
+    /**
+     * Test that the permit of an admitted import is passed on and released with the response, and a second import
+     * of the same user is rejected with 429 meanwhile.
+     */
+    @Test
+    public void testFilter_Admission() {
+        ContainerRequestContext first = request("POST", "/semesterplan/import/batch/", null);
+        filter.filter(first);
+        verify(first, never()).abortWith(any());
+        verify(first).setEntityStream(any(InputStream.class));
+        ArgumentCaptor<Object> permit = ArgumentCaptor.forClass(Object.class);
+        verify(first).setProperty(eq(ImportAdmissionFilter.PERMIT_PROPERTY), permit.capture());
+
+        ContainerRequestContext second = request("POST", "/semesterplan/import", "100");
+        filter.filter(second);
+        ArgumentCaptor<Response> rejection = ArgumentCaptor.forClass(Response.class);
+        verify(second).abortWith(rejection.capture());
+        assertEquals(ImportController.SC_TOO_MANY_REQUESTS, rejection.getValue().getStatus());
+        assertNotNull(rejection.getValue().getHeaderString("Retry-After"));
+
+        when(first.getProperty(ImportAdmissionFilter.PERMIT_PROPERTY)).thenReturn(permit.getValue());
+        filter.filter(first, mock(ContainerResponseContext.class));
+        assertTrue(admission.enter("semesterplaner").isAdmitted());
+    }
+
+    /**
+     * Test that other requests pass untouched.
+     */
+    @Test
+    public void testFilter_OtherRequests() {
+        ContainerRequestContext context = request("PUT", "/semesterplan/upload/1", "100");
+        filter.filter(context);
+        ContainerRequestContext export = request("POST", "/semesterplan/export", "100");
+        filter.filter(export);
+
+        verify(context, never()).setEntityStream(any());
+        verify(export, never()).setEntityStream(any());
+        verify(context, never()).abortWith(any());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ImportAdmission class.
+ */
+public class ImportAdmissionTest {
+
+    /**
+     * Test that a user beyond the per user limit is rejected at once, while other users are admitted.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testEnter_UserLimit() throws Exception {
+        ImportAdmission admission = new ImportAdmission(4, 2, 10);
+        ImportAdmission.Permit first = admission.enter("alice");
+        ImportAdmission.Permit second = admission.enter("alice");
+        assertTrue(first.isAdmitted());
+        assertTrue(second.isAdmitted());
+
+        ImportAdmission.Permit third = admission.enter("alice");
+        assertFalse(third.isAdmitted());
+        assertEquals(ImportAdmission.Rejection.USER_LIMIT, third.getRejection());
+        assertTrue(third.getRetryAfterSeconds() >= 1);
+        assertTrue(admission.enter("bob").isAdmitted());
+
+        first.close();
+        // Closing twice must not free a second place
+        first.close();
+        assertTrue(admission.enter("alice").isAdmitted());
+        assertFalse(admission.enter("alice").isAdmitted());
+    }
+
+    /**
+     * Test that requests beyond the free slots and the queue length are rejected, and a closed import lets the
+     * next queued one run.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testAwaitSlot_Queue() throws Exception {
+        ImportAdmission admission = new ImportAdmission(1, 5, 1);
+        ImportAdmission.Permit running = admission.enter("a");
+        assertTrue(running.awaitSlot(1, TimeUnit.SECONDS));
+        assertEquals(1, admission.getRunning());
+
+        ImportAdmission.Permit queued = admission.enter("b");
+        assertTrue(queued.isAdmitted());
+        ImportAdmission.Permit rejected = admission.enter("c");
+        assertEquals(ImportAdmission.Rejection.QUEUE_FULL, rejected.getRejection());
+
+        CountDownLatch waiting = new CountDownLatch(1);
+        AtomicBoolean admitted = new AtomicBoolean();
+        Thread thread = new Thread(() -> {
+            waiting.countDown();
+            try {
+                admitted.set(queued.awaitSlot(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        waiting.await();
+        running.close();
+        thread.join(10000);
+        assertTrue(admitted.get());
+        assertEquals(0, admission.getQueued());
+        assertEquals(1, admission.getRunning());
+        queued.close();
+        assertEquals(0, admission.getRunning());
+    }
+
+    /**
+     * Test that a request waiting longer than its timeout is rejected and gives its place back.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testAwaitSlot_Timeout() throws Exception {
+        ImportAdmission admission = new ImportAdmission(1, 1, 1);
+        ImportAdmission.Permit running = admission.enter("a");
+        assertTrue(running.awaitSlot(1, TimeUnit.SECONDS));
+
+        ImportAdmission.Permit waiting = admission.enter("b");
+        assertFalse(waiting.awaitSlot(10, TimeUnit.MILLISECONDS));
+        assertEquals(ImportAdmission.Rejection.QUEUE_TIMEOUT, waiting.getRejection());
+        waiting.close();
+        assertEquals(0, admission.getQueued());
+        assertTrue(admission.enter("b").isAdmitted());
+        running.close();
+    }
+
+    /**
+     * Test that the size limit is enforced while the stream is read.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testLimitedInputStream() throws Exception {
+        InputStream in = new LimitedInputStream(new ByteArrayInputStream(new byte[100]), 64, "Upload");
+        byte[] buffer = new byte[32];
+        assertEquals(32, in.read(buffer));
+        assertEquals(32, in.read(buffer));
+        UploadTooLargeException e = assertThrows(UploadTooLargeException.class, () -> in.read(buffer));
+        assertEquals(64, e.getLimit());
+
+        InputStream exact = new LimitedInputStream(new ByteArrayInputStream(new byte[64]), 64, "Upload");
+        assertEquals(64, exact.read(new byte[128]));
+        assertEquals(-1, exact.read());
+    }
+}
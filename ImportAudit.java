@@ -0,0 +1,439 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * ImportAudit keeps an append-only trail of all imports: who imported which file, how every reservation changed,
+ * how long the stages took and what failed. Finished imports are put into a bounded ring buffer and written as
+ * JSON lines by a background thread, so an import never waits for the disk. If the buffer is full the record is
+ * dropped rather than blocking the import, and the number of dropped records is written to the trail instead.
+ * <p>
+ * Every import is one line of type "import", followed by one line of type "reservation" per reservation it touched.
+ * The file is rotated once to {@code <file>.1} when it exceeds its maximum size.
+ */
+public class ImportAudit {
+
+    /**
+     * The outcome of a reservation within an import.
+     */
+    public enum Outcome {
+        STORED("stored"),
+        UNCHANGED("unchanged"),
+        SKIPPED("skipped"),
+        FAILED("failed");
+
+        private final String label;
+
+        Outcome(String label) {
+            this.label = label;
+        }
+
+        public String label() {
+            return label;
+        }
+    }
+
+    private static class Entry {
+        private final String reservationId;
+        private Outcome outcome;
+        private int before = -1;
+        private int after = -1;
+        private int added;
+        private int removed;
+        private int moved;
+        private boolean waited;
+        private String reason;
+
+        Entry(String reservationId) {
+            this.reservationId = reservationId;
+        }
+    }
+
+    /**
+     * Collects the audit record of one import. It is passed to the import as listener and forwards all
+     * notifications to the listener it wraps. Like every listener it is only called by the thread running the import.
+     */
+    public class Trail implements ImportListener {
+        private final String id = UUID.randomUUID().toString();
+        private final Instant started = Instant.now();
+        private final String userName;
+        private final String source;
+        private final ImportListener delegate;
+        private final Map<String, Entry> entries = new LinkedHashMap<>();
+        private String error;
+
+        private Trail(String userName, String source, ImportListener delegate) {
+            this.userName = userName;
+            this.source = source;
+            this.delegate = delegate;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        private Entry entry(String reservationId) {
+            return entries.computeIfAbsent(reservationId, Entry::new);
+        }
+
+        @Override
+        public void phaseChanged(Phase phase) {
+            delegate.phaseChanged(phase);
+        }
+
+        @Override
+        public void parsed(int eventCount, int reservationCount) {
+            delegate.parsed(eventCount, reservationCount);
+        }
+
+        @Override
+        public void reservationCommitted(String reservationId, AppointmentReconciler.Plan plan) {
+            Entry entry = entry(reservationId);
+            entry.outcome = plan.isUnchanged() ? Outcome.UNCHANGED : Outcome.STORED;
+            entry.added = plan.getAdditions().size();
+            entry.removed = plan.getRemovals().size();
+            entry.moved = plan.getMoves().size();
+            entry.before = plan.getKept() + entry.moved + entry.removed;
+            entry.after = plan.getKept() + entry.moved + entry.added;
+            delegate.reservationCommitted(reservationId, plan);
+        }
+
+        @Override
+        public void reservationSkipped(String reservationId) {
+            entry(reservationId).outcome = Outcome.SKIPPED;
+            delegate.reservationSkipped(reservationId);
+        }
+
+        @Override
+        public void reservationWaited(String reservationId) {
+            entry(reservationId).waited = true;
+            delegate.reservationWaited(reservationId);
+        }
+
+        @Override
+        public void reservationFailed(String reservationId, String reason) {
+            Entry entry = entry(reservationId);
+            entry.outcome = Outcome.FAILED;
+            entry.reason = reason;
+            delegate.reservationFailed(reservationId, reason);
+        }
+
+        /**
+         * Records the error that ended the import as a whole.
+         *
+         * @param e the error
+         */
+        public void failed(Throwable e) {
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        }
+
+        /**
+         * Hands the record of the finished import to the background writer.
+         *
+         * @param result the summary of the import, or null if it failed as a whole
+         * @param timing the stage timings of the import
+         */
+        public void finish(ImportResult result, ImportMetrics.Timing timing) {
+            long[] millis = new long[ImportMetrics.Stage.values().length];
+            for (ImportMetrics.Stage stage : ImportMetrics.Stage.values()) {
+                millis[stage.ordinal()] = timing.get(stage) / 1000000L;
+            }
+            offer(new Record(this, result, millis));
+        }
+    }
+
+    private static class Record {
+        private final Trail trail;
+        private final ImportResult result;
+        private final long[] millis;
+
+        Record(Trail trail, ImportResult result, long[] millis) {
+            this.trail = trail;
+            this.result = result;
+            this.millis = millis;
+        }
+    }
+
+    private final Path file;
+    private final long maxBytes;
+    private final Consumer<Exception> errorHandler;
+    private final Record[] ring;
+    private int head;
+    private int count;
+    private long dropped;
+    private long accepted;
+    private long written;
+    private Thread writer;
+
+    /**
+     * Creates an audit trail.
+     *
+     * @param file          the file the trail is appended to, its directory is created on demand
+     * @param capacity      the number of finished imports buffered for the writer
+     * @param maxBytes      the size after which the file is rotated
+     * @param errorHandler  receives errors of the background writer
+     */
+    public ImportAudit(Path file, int capacity, long maxBytes, Consumer<Exception> errorHandler) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.errorHandler = errorHandler;
+        this.ring = new Record[Math.max(1, capacity)];
+    }
+
+    /**
+     * Starts the record of an import.
+     *
+     * @param userName  the user performing the import
+     * @param source    the name of the imported file, or null if unknown
+     * @param listener  the listener of the import, receiving all notifications passed to the trail
+     * @return the trail, to be passed to the import as listener
+     */
+    public Trail start(String userName, String source, ImportListener listener) {
+        return new Trail(userName, source, listener);
+    }
+
+    private synchronized void offer(Record record) {
+        if (count == ring.length) {
+            dropped++;
+            return;
+        }
+        ring[(head + count) % ring.length] = record;
+        count++;
+        accepted++;
+        if (writer == null) {
+            writer = new Thread(this::writeLoop, "semesterplan-audit");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits until the records offered so far are written, so a query sees the latest imports.
+     *
+     * @param timeoutMillis the longest time to wait
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized void awaitWritten(long timeoutMillis) throws InterruptedException {
+        long target = accepted;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (written < target) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+            wait(remaining);
+        }
+    }
+
+    /**
+     * Gets the number of records dropped because the buffer was full and not yet reported in the file.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>();
+        while (true) {
+            long droppedRecords;
+            synchronized (this) {
+                while (count == 0 && dropped == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                for (; count > 0; count--) {
+                    batch.add(ring[head]);
+                    ring[head] = null;
+                    head = (head + 1) % ring.length;
+                }
+                droppedRecords = dropped;
+                dropped = 0;
+            }
+            try {
+                write(batch, droppedRecords);
+            } catch (IOException | RuntimeException e) {
+                // The records of the batch are lost, the writer keeps running for the next ones
+                errorHandler.accept(e);
+            }
+            synchronized (this) {
+                written += batch.size();
+                notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    private void write(List<Record> batch, long droppedRecords) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        if (Files.exists(file) && Files.size(file) > maxBytes) {
+            Files.move(file, rotated(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (droppedRecords > 0) {
+                out.write("{\"type\":\"dropped\",\"time\":" + Json.quote(Instant.now().toString()) + ",\"count\":" + droppedRecords + "}\n");
+            }
+            StringBuilder line = new StringBuilder(256);
+            for (Record record : batch) {
+                line.setLength(0);
+                appendImport(line, record);
+                out.write(line.append('\n').toString());
+                for (Entry entry : record.trail.entries.values()) {
+                    line.setLength(0);
+                    appendEntry(line, record.trail.id, entry);
+                    out.write(line.append('\n').toString());
+                }
+            }
+        }
+    }
+
+    private static void appendImport(StringBuilder out, Record record) {
+        Trail trail = record.trail;
+        ImportResult result = record.result;
+        out.append("{\"type\":\"import\",\"id\":").append(Json.quote(trail.id))
+                .append(",\"user\":").append(Json.quote(trail.userName))
+                .append(",\"time\":").append(Json.quote(trail.started.toString()));
+        if (trail.source != null) {
+            out.append(",\"source\":").append(Json.quote(trail.source));
+        }
+        out.append(",\"result\":\"").append(result == null ? "failure" : "success").append('"');
+        if (trail.error != null) {
+            out.append(",\"error\":").append(Json.quote(trail.error));
+        }
+        if (result != null) {
+            if (result.getFingerprint() != null) {
+                out.append(",\"fingerprint\":").append(Json.quote(result.getFingerprint()));
+            }
+            out.append(",\"events\":").append(result.getEventCount())
+                    .append(",\"reservations\":").append(result.getReservationCount())
+                    .append(",\"stored\":").append(result.getStoredCount())
+                    .append(",\"unchanged\":").append(result.getUnchangedCount())
+                    .append(",\"skipped\":").append(result.getSkippedCount())
+                    .append(",\"failed\":").append(result.getFailedReservationIds().size());
+        }
+        out.append(",\"millis\":{");
+        for (ImportMetrics.Stage stage : ImportMetrics.Stage.values()) {
+            out.append(stage.ordinal() == 0 ? "" : ",").append('"').append(stage.label()).append("\":").append(record.millis[stage.ordinal()]);
+        }
+        out.append("}}");
+    }
+
+    private static void appendEntry(StringBuilder out, String importId, Entry entry) {
+        out.append("{\"type\":\"reservation\",\"import\":").append(Json.quote(importId))
+                .append(",\"reservation\":").append(Json.quote(entry.reservationId));
+        if (entry.outcome != null) {
+            out.append(",\"outcome\":\"").append(entry.outcome.label()).append('"');
+        }
+        if (entry.before >= 0) {
+            out.append(",\"before\":").append(entry.before)
+                    .append(",\"after\":").append(entry.after)
+                    .append(",\"added\":").append(entry.added)
+                    .append(",\"removed\":").append(entry.removed)
+                    .append(",\"moved\":").append(entry.moved);
+        }
+        if (entry.waited) {
+            out.append(",\"waited\":true");
+        }
+        if (entry.reason != null) {
+            out.append(",\"reason\":").append(Json.quote(entry.reason));
+        }
+        out.append('}');
+    }
+
+    /**
+     * Gets the latest imports, newest first, as the JSON objects of their "import" lines.
+     *
+     * @param userName  the user whose imports are returned, or null for all users
+     * @param limit     the maximum number of imports
+     * @return the imports
+     * @throws IOException if the trail cannot be read
+     */
+    public List<String> history(String userName, int limit) throws IOException {
+        String prefix = "{\"type\":\"import\",";
+        String userField = userName == null ? null : ",\"user\":" + Json.quote(userName) + ",";
+        Deque<String> latest = new ArrayDeque<>();
+        for (Path path : new Path[]{rotated(), file}) {
+            try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith(prefix) && (userField == null || line.contains(userField))) {
+                        latest.addFirst(line);
+                        if (latest.size() > limit) {
+                            latest.removeLast();
+                        }
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // Not written or rotated yet
+            }
+        }
+        return new ArrayList<>(latest);
+    }
+
+    /**
+     * Gets the record of one import: its "import" line followed by its "reservation" lines.
+     *
+     * @param importId the id of the import
+     * @return the JSON objects of the lines, empty if the import is not in the trail
+     * @throws IOException if the trail cannot be read
+     */
+    public List<String> lines(String importId) throws IOException {
+        String importField = "{\"type\":\"import\",\"id\":" + Json.quote(importId) + ",";
+        String entryField = "{\"type\":\"reservation\",\"import\":" + Json.quote(importId) + ",";
+        List<String> lines = new ArrayList<>();
+        for (Path path : new Path[]{rotated(), file}) {
+            try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith(importField) || (!lines.isEmpty() && line.startsWith(entryField))) {
+                        lines.add(line);
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // Not written or rotated yet
+            }
+        }
+        return lines;
+    }
+
+    private Path rotated() {
+        return file.resolveSibling(file.getFileName() + ".1");
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.rapla.entities.domain.Appointment;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ImportAudit class.
+ */
+public class ImportAuditTest {
+
+    private Path workDir;
+
+    @Before
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("semesterplan-audit-test");
+    }
+
+    /**
+     * Remove the work directory after each test.
+     *
+     * @throws Exception if an error occurs during cleanup
+     */
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.list(workDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(workDir);
+    }
+
+    private static ImportResult finish(ImportAudit audit, String userName, String source) {
+        List<String> forwarded = new ArrayList<>();
+        ImportAudit.Trail trail = audit.start(userName, source, new ImportListener() {
+            @Override
+            public void reservationFailed(String reservationId, String reason) {
+                forwarded.add(reservationId);
+            }
+        });
+        ImportResult result = new ImportResult("abc");
+        result.setEventCount(3);
+        result.setReservationCount(3);
+        result.getFailedReservationIds().add("c");
+        trail.reservationCommitted("a", new AppointmentReconciler().plan(new Appointment[0], Collections.emptyList()));
+        trail.reservationWaited("b");
+        trail.reservationSkipped("b");
+        trail.reservationFailed("c", "Unknown reservation id");
+        assertEquals(Collections.singletonList("c"), forwarded);
+        trail.finish(result, new ImportMetrics.Timing());
+        return result;
+    }
+
+    /**
+     * Test that a finished import is written with one line per reservation and can be queried.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testFinish_WrittenAndQueried() throws Exception {
+        ImportAudit audit = new ImportAudit(workDir.resolve("audit.log"), 16, 1 << 20, e -> fail(e.toString()));
+        finish(audit, "alice", "plan.ics");
+        ImportAudit.Trail failed = audit.start("bob", null, ImportListener.NONE);
+        failed.failed(new java.text.ParseException("Invalid DTSTART", 0));
+        failed.finish(null, new ImportMetrics.Timing());
+        audit.awaitWritten(5000);
+
+        List<String> history = audit.history(null, 10);
+        assertEquals(2, history.size());
+        assertTrue(history.get(0), history.get(0).contains(",\"user\":\"bob\",") && history.get(0).contains("\"result\":\"failure\",\"error\":\"Invalid DTSTART\""));
+        List<String> alice = audit.history("alice", 10);
+        assertEquals(1, alice.size());
+        assertTrue(alice.get(0), alice.get(0).contains(",\"source\":\"plan.ics\",\"result\":\"success\",\"fingerprint\":\"abc\",\"events\":3,"));
+
+        String importId = alice.get(0).substring("{\"type\":\"import\",\"id\":\"".length(), alice.get(0).indexOf("\",\"user\""));
+        List<String> lines = audit.lines(importId);
+        assertEquals(4, lines.size());
+        assertEquals(alice.get(0), lines.get(0));
+        String prefix = "{\"type\":\"reservation\",\"import\":\"" + importId + "\",\"reservation\":";
+        assertEquals(prefix + "\"a\",\"outcome\":\"unchanged\",\"before\":0,\"after\":0,\"added\":0,\"removed\":0,\"moved\":0}", lines.get(1));
+        assertEquals(prefix + "\"b\",\"outcome\":\"skipped\",\"waited\":true}", lines.get(2));
+        assertEquals(prefix + "\"c\",\"outcome\":\"failed\",\"reason\":\"Unknown reservation id\"}", lines.get(3));
+        assertTrue(audit.lines("unknown").isEmpty());
+    }
+
+    /**
+     * Test that the trail is rotated once it exceeds its size and the history spans both files.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testWrite_Rotated() throws Exception {
+        ImportAudit audit = new ImportAudit(workDir.resolve("audit.log"), 16, 1, e -> fail(e.toString()));
+        for (int i = 0; i < 3; i++) {
+            finish(audit, "alice", "plan" + i + ".ics");
+            audit.awaitWritten(5000);
+        }
+        assertTrue(Files.exists(workDir.resolve("audit.log.1")));
+        List<String> history = audit.history("alice", 10);
+        assertEquals(2, history.size());
+        assertTrue(history.get(0), history.get(0).contains("plan2.ics"));
+        assertTrue(history.get(1), history.get(1).contains("plan1.ics"));
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.storage.RaplaSecurityException;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * ImportBatch imports several ICS files, given as separate uploads or packed into ZIP archives, as a pipeline:
+ * a parser thread reads and parses file N+1 while the calling thread commits file N. At most one parsed file waits
+ * for its commit, so up to three files are held at once: the one being parsed, the queued one and the one being
+ * committed.
+ * All files are committed the same way. A reservation that occurs in several files receives the appointments of
+ * all of them, instead of each file replacing the appointments of the one before. For that the parsed appointments
+ * of every reservation are kept until the batch ends, so memory grows with the appointments of the whole batch;
+ * ZIP archives are therefore limited in their number of entries and in their inflated size.
+ */
+public class ImportBatch {
+
+    /**
+     * An uploaded file, a plain or gzip compressed ICS file or a ZIP archive of them.
+     */
+    public interface Upload {
+        String getName();
+
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Parses one ICS file.
+     */
+    public interface Parser {
+        ParsedImport parse(String name, InputStream in) throws Exception;
+    }
+
+    /**
+     * Commits one parsed ICS file.
+     */
+    public interface Committer {
+        ImportResult commit(String name, ParsedImport parsed) throws Exception;
+    }
+
+    /**
+     * The outcome of one file of the batch.
+     */
+    public static class FileResult {
+        private final String name;
+        private final ImportResult result;
+        private final String error;
+
+        FileResult(String name, ImportResult result, String error) {
+            this.name = name;
+            this.result = result;
+            this.error = error;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the summary of the file.
+         *
+         * @return the summary, or null if the file could not be read, parsed or committed
+         */
+        public ImportResult getResult() {
+            return result;
+        }
+
+        /**
+         * Gets the reason the file failed.
+         *
+         * @return the error, or null if the file was imported
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Writes the outcome as JSON.
+         *
+         * @return the JSON object
+         */
+        public String toJson() {
+            StringBuilder json = new StringBuilder("{\"name\":").append(Json.quote(name));
+            if (result != null) {
+                result.appendJsonMembers(json.append(','));
+            }
+            return json.append(",\"error\":").append(Json.quote(error)).append('}').toString();
+        }
+    }
+
+    /**
+     * A file handed from the parser thread to the committing thread.
+     */
+    private static class Parsed {
+        private final String name;
+        private final ParsedImport parsed;
+        private final Exception error;
+
+        Parsed(String name, ParsedImport parsed, Exception error) {
+            this.name = name;
+            this.parsed = parsed;
+            this.error = error;
+        }
+    }
+
+    private static final Parsed END = new Parsed(null, null, null);
+    private static final int ZIP_MAGIC = 0x504b0304;
+
+    private final Parser parser;
+    private final Committer committer;
+
+    public ImportBatch(Parser parser, Committer committer) {
+        this.parser = parser;
+        this.committer = committer;
+    }
+
+    /**
+     * Imports all files. Failures of single files are reported in their result and do not stop the batch.
+     *
+     * @param uploads the uploaded files in the order they are imported
+     * @return the outcome per ICS file, in import order
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the parser
+     */
+    public List<FileResult> run(List<? extends Upload> uploads) throws InterruptedException {
+        BlockingQueue<Parsed> queue = new ArrayBlockingQueue<>(1);
+        Thread parserThread = new Thread(() -> parseAll(uploads, queue), "semesterplan-batch-parser");
+        parserThread.setDaemon(true);
+        parserThread.start();
+
+        List<FileResult> results = new ArrayList<>();
+        Map<String, List<Appointment>> committedGroups = new HashMap<>();
+        try {
+            for (Parsed next = queue.take(); next != END; next = queue.take()) {
+                if (next.error != null) {
+                    results.add(new FileResult(next.name, null, describe(next.error)));
+                    continue;
+                }
+                mergeEarlierFiles(next.parsed, committedGroups);
+                ImportResult result;
+                try {
+                    result = committer.commit(next.name, next.parsed);
+                } catch (Exception e) {
+                    results.add(new FileResult(next.name, null, describe(e)));
+                    continue;
+                }
+                recordCommittedGroups(next.parsed, result, committedGroups);
+                results.add(new FileResult(next.name, result, null));
+            }
+        } finally {
+            parserThread.interrupt();
+        }
+        return results;
+    }
+
+    /**
+     * Adds the appointments committed by earlier files of the batch to reservations that occur again.
+     */
+    private static void mergeEarlierFiles(ParsedImport parsed, Map<String, List<Appointment>> committedGroups) {
+        for (Map.Entry<ReferenceInfo<Reservation>, List<Appointment>> entry : parsed.getAppointments().entrySet()) {
+            List<Appointment> earlier = committedGroups.get(entry.getKey().getId());
+            if (earlier != null) {
+                List<Appointment> merged = new ArrayList<>(earlier);
+                merged.addAll(entry.getValue());
+                entry.setValue(merged);
+            }
+        }
+    }
+
+    /**
+     * Remembers the groups of a committed file for the following ones. Reservations that failed are left out, so
+     * a later file does not store the appointments of a commit that was reported as failed.
+     */
+    private static void recordCommittedGroups(ParsedImport parsed, ImportResult result, Map<String, List<Appointment>> committedGroups) {
+        Set<String> failedIds = result == null ? Collections.emptySet() : new HashSet<>(result.getFailedReservationIds());
+        for (Map.Entry<ReferenceInfo<Reservation>, List<Appointment>> entry : parsed.getAppointments().entrySet()) {
+            if (!failedIds.contains(entry.getKey().getId())) {
+                committedGroups.put(entry.getKey().getId(), entry.getValue());
+            }
+        }
+    }
+
+    private void parseAll(List<? extends Upload> uploads, BlockingQueue<Parsed> queue) {
+        try {
+            for (Upload upload : uploads) {
+                try (BufferedInputStream in = new BufferedInputStream(upload.open(), GzipUploads.BUFFER_SIZE)) {
+                    if (isZip(in)) {
+                        parseZip(upload.getName(), in, queue);
+                    } else {
+                        queue.put(parse(upload.getName(), in));
+                    }
+                } catch (IOException e) {
+                    queue.put(new Parsed(upload.getName(), null, e));
+                }
+            }
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // the committing thread gave up, nobody takes further files
+        }
+    }
+
+    private void parseZip(String archiveName, InputStream in, BlockingQueue<Parsed> queue) throws IOException, InterruptedException {
+        ZipInputStream zip = new ZipInputStream(in);
+        // The parser must not close the archive when it is done with an entry
+        LimitedInputStream inflated = new LimitedInputStream(new FilterInputStream(zip) {
+            @Override
+            public void close() {
+            }
+        }, ImportSettings.getMaxArchiveBytes(), "Archive " + archiveName);
+        int maxEntries = ImportSettings.getMaxArchiveEntries();
+        int entryCount = 0;
+        for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+            if (++entryCount > maxEntries) {
+                throw new IOException("Archive " + archiveName + " has more than " + maxEntries + " entries");
+            }
+            if (entry.isDirectory() || !isIcsFile(entry.getName())) {
+                continue;
+            }
+            String name = archiveName + "/" + entry.getName();
+            queue.put(parse(name, new LimitedInputStream(inflated, ImportSettings.getMaxDecompressedBytes(), "Entry " + name)));
+            if (inflated.isExceeded()) {
+                throw new UploadTooLargeException("Archive " + archiveName + " is larger than " + ImportSettings.getMaxArchiveBytes() + " bytes",
+                        ImportSettings.getMaxArchiveBytes());
+            }
+        }
+    }
+
+    private Parsed parse(String name, InputStream in) {
+        try {
+            return new Parsed(name, parser.parse(name, in), null);
+        } catch (Exception e) {
+            return new Parsed(name, null, e);
+        }
+    }
+
+    private static boolean isZip(BufferedInputStream in) throws IOException {
+        in.mark(4);
+        int magic = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = in.read();
+            if (b < 0) {
+                in.reset();
+                return false;
+            }
+            magic = magic << 8 | b;
+        }
+        in.reset();
+        return magic == ZIP_MAGIC;
+    }
+
+    static boolean isIcsFile(String entryName) {
+        String name = entryName.toLowerCase(Locale.ROOT);
+        // Resource forks added by macOS carry the same names
+        if (name.startsWith("__macosx/") || name.contains("/._") || name.startsWith("._")) {
+            return false;
+        }
+        return name.endsWith(".ics") || name.endsWith(".ical") || name.endsWith(".ics.gz") || name.endsWith(".ical.gz");
+    }
+
+    private static String describe(Exception e) {
+        if (e instanceof RaplaSecurityException) {
+            return "Forbidden: insufficient rights";
+        }
+        return "Error processing the ICS file: " + e.getMessage();
+    }
+}
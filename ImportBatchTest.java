@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.Test;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.storage.ReferenceInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ImportBatch class. The parser reads lines of the form "reservationId:appointmentCount",
+ * so the pipeline can be tested without ICS parsing and storage.
+ */
+public class ImportBatchTest {
+
+    private static ImportBatch.Upload upload(String name, byte[] content) {
+        return new ImportBatch.Upload() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(content);
+            }
+        };
+    }
+
+    private static ParsedImport parse(String name, InputStream in) throws Exception {
+        Map<ReferenceInfo<Reservation>, List<Appointment>> appointments = new LinkedHashMap<>();
+        Scanner scanner = new Scanner(in, StandardCharsets.UTF_8.name());
+        while (scanner.hasNextLine()) {
+            String[] line = scanner.nextLine().split(":");
+            if (line.length != 2) {
+                throw new IllegalArgumentException("Invalid line in " + name);
+            }
+            appointments.put(new ReferenceInfo<>(line[0], Reservation.class), new ArrayList<>(Collections.nCopies(Integer.parseInt(line[1]), null)));
+        }
+        // Scanner swallows read errors such as an exceeded size limit
+        if (scanner.ioException() != null) {
+            throw scanner.ioException();
+        }
+        return new ParsedImport(appointments, new ImportResult(name), new ImportMetrics.Timing());
+    }
+
+    private static byte[] zip(String... entries) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            Writer writer = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+            for (int i = 0; i < entries.length; i += 2) {
+                zip.putNextEntry(new ZipEntry(entries[i]));
+                writer.write(entries[i + 1]);
+                writer.flush();
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Test that plain files and the ICS entries of a ZIP archive are committed in order, that a failing file
+     * does not stop the batch, and that a reservation occurring in several files keeps the appointments of all of them.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testRun_PlainAndZip() throws Exception {
+        Map<String, Integer> committedSizes = new LinkedHashMap<>();
+        ImportBatch batch = new ImportBatch(ImportBatchTest::parse, (name, parsed) -> {
+            for (Map.Entry<ReferenceInfo<Reservation>, List<Appointment>> entry : parsed.getAppointments().entrySet()) {
+                committedSizes.put(name + "#" + entry.getKey().getId(), entry.getValue().size());
+            }
+            ImportResult result = parsed.getResult();
+            result.setReservationCount(parsed.getAppointments().size());
+            return result;
+        });
+
+        byte[] archive = zip("plans/b.ics", "b:1\na:1",
+                "__MACOSX/plans/._b.ics", "garbage",
+                "readme.txt", "garbage",
+                "plans/broken.ics", "no count");
+        List<ImportBatch.FileResult> results = batch.run(Arrays.asList(
+                upload("a.ics", "a:2".getBytes(StandardCharsets.UTF_8)),
+                upload("plans.zip", archive)));
+
+        assertEquals(3, results.size());
+        assertEquals("a.ics", results.get(0).getName());
+        assertNull(results.get(0).getError());
+        assertEquals("plans.zip/plans/b.ics", results.get(1).getName());
+        assertEquals(2, results.get(1).getResult().getReservationCount());
+        assertEquals("plans.zip/plans/broken.ics", results.get(2).getName());
+        assertNull(results.get(2).getResult());
+        assertTrue(results.get(2).getError().contains("Invalid line"));
+
+        assertEquals(Integer.valueOf(2), committedSizes.get("a.ics#a"));
+        assertEquals(Integer.valueOf(1), committedSizes.get("plans.zip/plans/b.ics#b"));
+        assertEquals(Integer.valueOf(3), committedSizes.get("plans.zip/plans/b.ics#a"));
+    }
+
+    /**
+     * Test that a failing commit is reported for its file only.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testRun_CommitFailure() throws Exception {
+        ImportBatch batch = new ImportBatch(ImportBatchTest::parse, (name, parsed) -> {
+            if (name.equals("first.ics")) {
+                throw new IllegalStateException("storage unavailable");
+            }
+            return parsed.getResult();
+        });
+
+        List<ImportBatch.FileResult> results = batch.run(Arrays.asList(
+                upload("first.ics", "a:1".getBytes(StandardCharsets.UTF_8)),
+                upload("second.ics", "b:1".getBytes(StandardCharsets.UTF_8))));
+
+        assertEquals("Error processing the ICS file: storage unavailable", results.get(0).getError());
+        assertNull(results.get(1).getError());
+        assertTrue(results.get(0).toJson().startsWith("{\"name\":\"first.ics\""));
+    }
+
+    /**
+     * Test that an entry inflating beyond the limit fails on its own and an archive with too many entries is
+     * rejected after the allowed ones.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testRun_ArchiveLimits() throws Exception {
+        System.setProperty(ImportSettings.PREFIX + "maxDecompressedBytes", "8");
+        System.setProperty(ImportSettings.PREFIX + "maxArchiveEntries", "2");
+        try {
+            ImportBatch batch = new ImportBatch(ImportBatchTest::parse, (name, parsed) -> parsed.getResult());
+
+            List<ImportBatch.FileResult> results = batch.run(Collections.singletonList(upload("plans.zip",
+                    zip("large.ics", "a:1\nb:1\nc:1", "small.ics", "d:1", "third.ics", "e:1"))));
+
+            assertEquals(3, results.size());
+            assertTrue(results.get(0).getError().contains("Entry plans.zip/large.ics is larger than 8 bytes"));
+            assertNull(results.get(1).getError());
+            assertEquals("plans.zip", results.get(2).getName());
+            assertTrue(results.get(2).getError().contains("more than 2 entries"));
+        } finally {
+            System.clearProperty(ImportSettings.PREFIX + "maxDecompressedBytes");
+            System.clearProperty(ImportSettings.PREFIX + "maxArchiveEntries");
+        }
+    }
+
+    /**
+     * Test that a reservation of a file whose commit failed, or that failed within a committed file, does not
+     * pass its appointments on to later files of the batch.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testRun_FailedFileNotMerged() throws Exception {
+        Map<String, Integer> committedSizes = new LinkedHashMap<>();
+        ImportBatch batch = new ImportBatch(ImportBatchTest::parse, (name, parsed) -> {
+            if (name.equals("first.ics")) {
+                throw new IllegalStateException("storage unavailable");
+            }
+            ImportResult result = parsed.getResult();
+            for (Map.Entry<ReferenceInfo<Reservation>, List<Appointment>> entry : parsed.getAppointments().entrySet()) {
+                committedSizes.put(name + "#" + entry.getKey().getId(), entry.getValue().size());
+                if (name.equals("second.ics") && entry.getKey().getId().equals("b")) {
+                    result.getFailedReservationIds().add("b");
+                }
+            }
+            return result;
+        });
+
+        batch.run(Arrays.asList(
+                upload("first.ics", "a:2".getBytes(StandardCharsets.UTF_8)),
+                upload("second.ics", "a:1\nb:3".getBytes(StandardCharsets.UTF_8)),
+                upload("third.ics", "a:1\nb:1".getBytes(StandardCharsets.UTF_8))));
+
+        assertEquals(Integer.valueOf(1), committedSizes.get("second.ics#a"));
+        assertEquals(Integer.valueOf(2), committedSizes.get("third.ics#a"));
+        assertEquals(Integer.valueOf(1), committedSizes.get("third.ics#b"));
+    }
+
+    /**
+     * Test which archive entries are treated as ICS files.
+     */
+    @Test
+    public void testIsIcsFile() {
+        assertTrue(ImportBatch.isIcsFile("WWI21.ics"));
+        assertTrue(ImportBatch.isIcsFile("kurse/WWI21.ICAL.gz"));
+        assertFalse(ImportBatch.isIcsFile("__MACOSX/kurse/._WWI21.ics"));
+        assertFalse(ImportBatch.isIcsFile("kurse/._WWI21.ics"));
+        assertFalse(ImportBatch.isIcsFile("readme.txt"));
+    }
+}
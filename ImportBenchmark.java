@@ -0,0 +1,241 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.rapla.entities.User;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Repeating;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.logger.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.CharArrayWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the import pipeline against a stub facade, so parsing and conversion are measured without
+ * a Rapla server. Run with the JMH runner of the build or via {@link #main(String[])}, which adds the GC profiler:
+ * gc.alloc.rate.norm is the allocation per operation, divided by the "events" counter it gives the bytes
+ * allocated per event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImportBenchmark {
+
+    @Param({"20", "200"})
+    public int modules;
+
+    @Param({"12", "24"})
+    public int eventsPerModule;
+
+    @Param({"true", "false"})
+    public boolean localTimes;
+
+    private ImportController controller;
+    private byte[] icsFile;
+    private String[] utcDates;
+    private int dateIndex;
+    private CharArrayWriter page;
+    private HttpServletResponse response;
+
+    /**
+     * Counts the converted events, reported by JMH as events per second next to the operations.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class EventCounter {
+        public long events;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            events = 0;
+        }
+    }
+
+    /**
+     * Selects the reader of {@link #readEvents}: the {@link IcsScanner} or the ical4j tokenizer.
+     */
+    @State(Scope.Benchmark)
+    public static class Parser {
+        @Param({"true", "false"})
+        public boolean scanner;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticSemesterplanGenerator generator = new SyntheticSemesterplanGenerator();
+        generator.setModules(modules);
+        generator.setEventsPerModule(eventsPerModule);
+        generator.setLocalTimes(localTimes);
+        icsFile = generator.generateBytes();
+
+        controller = new ImportController(null);
+        controller.facade = stubFacade();
+        controller.logger = stub(Logger.class);
+
+        utcDates = new String[1024];
+        for (int i = 0; i < utcDates.length; i++) {
+            utcDates[i] = String.format("2024%02d%02dT%02d%02d00Z", 1 + i % 12, 1 + i % 28, i % 24, i % 60);
+        }
+
+        page = new CharArrayWriter(4096);
+        PrintWriter pageWriter = new PrintWriter(page);
+        response = (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(), new Class<?>[]{HttpServletResponse.class},
+                (proxy, method, args) -> "getWriter".equals(method.getName()) ? pageWriter : defaultValue(method.getReturnType()));
+    }
+
+    @Benchmark
+    public Map<ReferenceInfo<Reservation>, List<Appointment>> importAppointmentsFromIcs(EventCounter counter) throws Exception {
+        Map<ReferenceInfo<Reservation>, List<Appointment>> result = controller.importAppointmentsFromIcs(new ByteArrayInputStream(icsFile), "benchmark");
+        counter.events += (long) modules * eventsPerModule;
+        return result;
+    }
+
+    @Benchmark
+    public int readEvents(Parser parser, EventCounter counter) throws Exception {
+        IcsEventReader reader = new IcsEventReader();
+        reader.setScanner(parser.scanner);
+        int[] properties = new int[1];
+        int events = reader.read(new ByteArrayInputStream(icsFile), event -> properties[0] += event.getValue(IcsEvent.X_RAPLA_ID).length());
+        counter.events += events;
+        return properties[0];
+    }
+
+    @Benchmark
+    public Date convertToDateWithUTCAdjustment() throws Exception {
+        return controller.convertToDateWithUTCAdjustment(utcDates[dateIndex++ & (utcDates.length - 1)]);
+    }
+
+    @Benchmark
+    public int generatePage() throws Exception {
+        page.reset();
+        controller.generatePage(response, HttpServletResponse.SC_OK);
+        return page.size();
+    }
+
+    /**
+     * Runs all benchmarks of this class with the GC profiler.
+     *
+     * @param args unused
+     * @throws RunnerException if JMH fails
+     */
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ImportBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    /**
+     * Creates a facade that only supports what the parsing needs: users and new appointments.
+     */
+    static RaplaFacade stubFacade() {
+        User user = stub(User.class);
+        return (RaplaFacade) Proxy.newProxyInstance(RaplaFacade.class.getClassLoader(), new Class<?>[]{RaplaFacade.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getUser":
+                    return user;
+                case "newAppointmentWithUser":
+                    return stubAppointment((Date) args[0], (Date) args[1]);
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static Appointment stubAppointment(Date start, Date end) {
+        boolean[] wholeDays = new boolean[1];
+        Repeating repeating = stub(Repeating.class);
+        return (Appointment) Proxy.newProxyInstance(Appointment.class.getClassLoader(), new Class<?>[]{Appointment.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getStart":
+                    return start;
+                case "getEnd":
+                    return end;
+                case "setWholeDays":
+                    wholeDays[0] = (Boolean) args[0];
+                    return null;
+                case "isWholeDaysSet":
+                    return wholeDays[0];
+                case "getRepeating":
+                    return repeating;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static <T> T stub(Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> defaultValue(method.getReturnType())));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == char.class) {
+            return '\0';
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == double.class) {
+            return 0d;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ImportCheckpoint records which X-RAPLA-IDs of an upload have already been committed.
+ * The checkpoint is keyed by user and file fingerprint, so uploading the same file again after a failed
+ * import skips the chunks that were stored successfully. It is deleted once an import ran to the end.
+ * Checkpoints untouched for longer than {@link ImportSettings#getCheckpointRetentionHours()} are discarded, so a
+ * re-upload days later stores every reservation again instead of skipping ones that were edited in the meantime.
+ */
+public class ImportCheckpoint {
+
+    private final Path file;
+    private final Set<String> committedIds = new HashSet<>();
+
+    private ImportCheckpoint(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the checkpoint of an upload, or creates an empty one if the upload was not interrupted before.
+     *
+     * @param directory   the directory holding the checkpoints
+     * @param userName    the user importing the file
+     * @param fingerprint the content hash of the file
+     * @return the checkpoint
+     * @throws IOException if an existing checkpoint cannot be read
+     */
+    public static ImportCheckpoint load(Path directory, String userName, String fingerprint) throws IOException {
+        String fileName = IcsFingerprint.hex(userName.getBytes(StandardCharsets.UTF_8)) + "-" + fingerprint + ".checkpoint";
+        ImportCheckpoint checkpoint = new ImportCheckpoint(directory.resolve(fileName));
+        if (Files.isDirectory(directory)) {
+            removeExpired(directory);
+        }
+        if (Files.exists(checkpoint.file)) {
+            for (String line : Files.readAllLines(checkpoint.file, StandardCharsets.UTF_8)) {
+                if (!line.isEmpty()) {
+                    checkpoint.committedIds.add(line);
+                }
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Checks whether a reservation was committed by an earlier, interrupted import of the same file.
+     *
+     * @param reservationId the X-RAPLA-ID
+     * @return true if the reservation can be skipped
+     */
+    public boolean isCommitted(String reservationId) {
+        return committedIds.contains(reservationId);
+    }
+
+    /**
+     * Gets the number of reservations committed so far.
+     *
+     * @return the number of committed ids
+     */
+    public int getCommittedCount() {
+        return committedIds.size();
+    }
+
+    /**
+     * Appends the ids of a successfully committed chunk to the checkpoint file.
+     *
+     * @param reservationIds the ids of the chunk
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void markCommitted(Collection<String> reservationIds) throws IOException {
+        if (reservationIds.isEmpty()) {
+            return;
+        }
+        committedIds.addAll(reservationIds);
+        Files.createDirectories(file.getParent());
+        Files.write(file, reservationIds, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+    }
+
+    /**
+     * Deletes the checkpoint after the import ran to the end.
+     *
+     * @throws IOException if the checkpoint cannot be deleted
+     */
+    public void complete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static void removeExpired(Path directory) throws IOException {
+        long expiry = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(ImportSettings.getCheckpointRetentionHours());
+        try (DirectoryStream<Path> checkpoints = Files.newDirectoryStream(directory, "*.checkpoint")) {
+            for (Path checkpoint : checkpoints) {
+                if (Files.getLastModifiedTime(checkpoint).toMillis() < expiry) {
+                    Files.deleteIfExists(checkpoint);
+                }
+            }
+        }
+    }
+}
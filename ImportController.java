@@ -17,16 +17,17 @@
 
 package org.rapla.plugin.wwi2021;
 
-import net.fortuna.ical4j.data.CalendarBuilder;
 import net.fortuna.ical4j.data.ParserException;
-import net.fortuna.ical4j.model.Component;
 import net.fortuna.ical4j.model.Property;
 import org.jboss.resteasy.annotations.providers.multipart.MultipartForm;
+import org.jboss.resteasy.plugins.providers.multipart.InputPart;
+import org.jboss.resteasy.plugins.providers.multipart.MultipartFormDataInput;
 import org.rapla.entities.Entity;
-import org.rapla.entities.EntityNotFoundException;
 import org.rapla.entities.User;
 import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Repeating;
 import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.domain.permission.PermissionController;
 import org.rapla.entities.storage.ReferenceInfo;
 import org.rapla.facade.RaplaFacade;
 import org.rapla.framework.RaplaException;
@@ -39,19 +40,23 @@ import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
 import java.text.ParseException;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ImportController handles the import of semester plans from ICS files.
@@ -59,125 +64,1460 @@ import java.util.*;
 @Singleton
 @Path("semesterplan")
 public class ImportController {
+    /**
+     * Too Many Requests, not defined by the servlet API.
+     */
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
     @Inject
     public RaplaFacade facade;
 
-    @Inject
-    public Logger logger;
+    @Inject
+    public Logger logger;
+
+    @Inject
+    RemoteSession session;
+
+    private final IcsDateConverter utcConverter = new IcsDateConverter();
+    private final AppointmentReconciler reconciler = new AppointmentReconciler();
+    private final ImportJobs jobs = new ImportJobs();
+    private final ImportFingerprintCache fingerprints = new ImportFingerprintCache();
+    private final ImportMetrics metrics = new ImportMetrics();
+    private final ChunkedUploads uploads = new ChunkedUploads();
+    private final ReservationLocks locks = new ReservationLocks(ImportSettings.getLockStripes());
+    private final IcsExport export = new IcsExport(ImportSettings.getExportCacheSize());
+    private final ImportAdmission admission = new ImportAdmission(ImportSettings.getMaxConcurrentImports(), ImportSettings.getMaxImportsPerUser(), ImportSettings.getImportQueueLength());
+    private final ImportAudit audit = new ImportAudit(ImportSettings.getAuditFile(), ImportSettings.getAuditBufferSize(), ImportSettings.getAuditMaxBytes(),
+            e -> logger.warn("Could not write the import audit trail", e));
+
+    @Inject
+    public ImportController(@Context HttpServletRequest request){
+    }
+
+    /**
+     * Endpoint logic for importing a semester plan from an ICS file. The file may be gzip compressed.
+     * With the query parameter async=true the upload is only spooled and queued, and the response (202) contains
+     * the id of the import job, whose progress can be queried at semesterplan/import/{jobId}.
+     * With the query parameter dryRun=true the file is only parsed and compared with the referenced reservations,
+     * and the response is a JSON preview of the appointments that would be added, removed, moved or kept.
+     * With format=ndjson or an Accept header of application/x-ndjson the progress is streamed as one JSON line per
+     * reservation, followed by a summary line; see {@link NdjsonImportListener}.
+     * Imports pass the {@link ImportAdmission}: when the user or the queue is at its limit the response is 429 with
+     * a Retry-After header, and uploads larger than {@link ImportSettings#getMaxUploadBytes()} are answered with 413.
+     * Both checks run in the {@link ImportAdmissionFilter} before the form is read.
+     *
+     * @param req   the HTTP request
+     * @param res   the HTTP response
+     * @param form  the form containing the ICS file
+     * @throws Exception if an error occurs during the import
+     */
+    @POST
+    @Path("/import")
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @Produces({MediaType.TEXT_PLAIN, MediaType.APPLICATION_JSON, NdjsonImportListener.MEDIA_TYPE})
+    public void importSemesterplan(@Context HttpServletRequest req, @Context HttpServletResponse res, @MultipartForm ICSFileUploadForm form) throws Exception {
+        InputStream icsInputStream = null;
+        User user;
+
+        try {
+            // Check and get the user from the session
+            user = session.checkAndGetUser(req);
+        } catch (RaplaSecurityException sec) {
+            logger.error("Unauthorized access: No user found in session.", sec);
+            res.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            generatePage(res, res.getStatus());
+            return;
+        }
+
+        ImportAdmission.Permit permit = filterPermit(req);
+        if (permit == null) {
+            if (!checkUploadSize(req, res, 0)) {
+                return;
+            }
+            permit = admit(user, res);
+            if (permit == null) {
+                return;
+            }
+        }
+        boolean dryRun = Boolean.parseBoolean(req.getParameter("dryRun"));
+
+        if (!dryRun && Boolean.parseBoolean(req.getParameter("async"))) {
+            // The job waits for the slot and closes the permit, the filter must not close it with the response
+            req.removeAttribute(ImportAdmissionFilter.PERMIT_PROPERTY);
+            importAsync(user, form, res, permit);
+            return;
+        }
+
+        try {
+            if (!awaitSlot(permit, res)) {
+                return;
+            }
+
+            if (dryRun) {
+                previewAndRespond(user, form, res);
+                return;
+            }
+
+            if (wantsNdjson(req)) {
+                importStreaming(user, form, res);
+                return;
+            }
+
+            try {
+                // Get the ICS file input stream
+                icsInputStream = openUpload(form);
+                ImportResult importResult = runImport(user, icsInputStream, ImportListener.NONE);
+
+                writeImportResult(res, importResult);
+            } catch (Exception e) {
+                writeImportError(res, e);
+            } finally {
+                if (icsInputStream != null) {
+                    icsInputStream.close();
+                }
+                // Optionally generating a web page displaying the results
+                generatePage(res, res.getStatus());
+            }
+        } finally {
+            permit.close();
+        }
+    }
+
+    /**
+     * Admits an import request, or answers it with status 429 and a Retry-After header if the user or the queue
+     * is at its limit.
+     *
+     * @param user  the user performing the import
+     * @param res   the HTTP response
+     * @return the permit, which must be closed, or null if the request was rejected
+     * @throws IOException if the response cannot be written
+     */
+    private ImportAdmission.Permit admit(User user, HttpServletResponse res) throws IOException {
+        ImportAdmission.Permit permit = admission.enter(user.getUsername());
+        if (!permit.isAdmitted()) {
+            rejectBusy(user, res, permit);
+            return null;
+        }
+        return permit;
+    }
+
+    /**
+     * Waits in the queue for a free import slot. A request still waiting after
+     * {@link ImportSettings#getImportQueueWaitSeconds()} is answered with status 429.
+     *
+     * @param permit  the admitted permit of the request
+     * @param res     the HTTP response
+     * @return true if the import may run
+     * @throws IOException if the response cannot be written
+     */
+    private boolean awaitSlot(ImportAdmission.Permit permit, HttpServletResponse res) throws IOException {
+        try {
+            if (permit.awaitSlot(ImportSettings.getImportQueueWaitSeconds(), TimeUnit.SECONDS)) {
+                return true;
+            }
+            rejectBusy(null, res, permit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            res.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+        return false;
+    }
+
+    private void rejectBusy(User user, HttpServletResponse res, ImportAdmission.Permit permit) throws IOException {
+        metrics.recordRejected(permit.getRejection());
+        if (user != null && permit.getRejection() == ImportAdmission.Rejection.USER_LIMIT) {
+            logger.info("Import of " + user.getUsername() + " rejected, too many imports of the user running");
+        }
+        res.setStatus(SC_TOO_MANY_REQUESTS);
+        res.setHeader("Retry-After", String.valueOf(permit.getRetryAfterSeconds()));
+        res.setContentType("text/plain;charset=UTF-8");
+        res.getWriter().write(busyMessage(permit.getRejection()));
+    }
+
+    static String busyMessage(ImportAdmission.Rejection rejection) {
+        return rejection == ImportAdmission.Rejection.USER_LIMIT
+                ? "Too many imports of this user running, retry later" : "Too many imports running, retry later";
+    }
+
+    /**
+     * Gets the permit the {@link ImportAdmissionFilter} admitted the request with.
+     *
+     * @param req  the HTTP request
+     * @return the permit, or null if the filter did not handle the request
+     */
+    private static ImportAdmission.Permit filterPermit(HttpServletRequest req) {
+        Object permit = req.getAttribute(ImportAdmissionFilter.PERMIT_PROPERTY);
+        return permit instanceof ImportAdmission.Permit ? (ImportAdmission.Permit) permit : null;
+    }
+
+    ImportAdmission getAdmission() {
+        return admission;
+    }
+
+    ImportMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Rejects a request whose Content-Length already exceeds {@link ImportSettings#getMaxUploadBytes()} with status
+     * 413. For a raw body such as an upload chunk this happens before the body is read. A multipart form is already
+     * spooled when the resource method runs, so for those the {@link ImportAdmissionFilter} checks first and this is
+     * only the fallback if the filter is not registered. The limit is enforced again while reading, for requests
+     * without Content-Length.
+     *
+     * @param req     the HTTP request
+     * @param res     the HTTP response
+     * @param offset  the number of bytes of the upload received before this request
+     * @return true if the request may be read
+     * @throws IOException if the response cannot be written
+     */
+    private boolean checkUploadSize(HttpServletRequest req, HttpServletResponse res, long offset) throws IOException {
+        long maxUploadBytes = ImportSettings.getMaxUploadBytes();
+        if (offset + req.getContentLengthLong() > maxUploadBytes) {
+            rejectTooLarge(res, new UploadTooLargeException("Upload is larger than " + maxUploadBytes + " bytes", maxUploadBytes));
+            return false;
+        }
+        return true;
+    }
+
+    private void rejectTooLarge(HttpServletResponse res, UploadTooLargeException e) throws IOException {
+        metrics.recordTooLarge();
+        res.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        res.setContentType("text/plain;charset=UTF-8");
+        res.getWriter().write(e.getMessage());
+    }
+
+    /**
+     * Finds the size limit violation that ended an import, wrapped by the parser or not.
+     */
+    private static UploadTooLargeException tooLarge(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof UploadTooLargeException) {
+                return (UploadTooLargeException) cause;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens the uploaded ICS file, failing once more than {@link ImportSettings#getMaxUploadBytes()} were read.
+     */
+    private static InputStream openUpload(ICSFileUploadForm form) throws IOException {
+        return new LimitedInputStream(form.getIcsFile(), ImportSettings.getMaxUploadBytes(), "Upload");
+    }
+
+    private static boolean wantsNdjson(HttpServletRequest req) {
+        String accept = req.getHeader("Accept");
+        return "ndjson".equals(req.getParameter("format")) || (accept != null && accept.contains(NdjsonImportListener.MEDIA_TYPE));
+    }
+
+    /**
+     * Runs an import and streams its progress as newline delimited JSON. The response is committed with status 200
+     * before the import starts and is sent in chunks as lines are flushed, so the outcome is in the last line.
+     *
+     * @param user  the user performing the import
+     * @param form  the form containing the ICS file
+     * @param res   the HTTP response, receiving the lines
+     * @throws IOException if the response cannot be written
+     */
+    private void importStreaming(User user, ICSFileUploadForm form, HttpServletResponse res) throws IOException {
+        res.setStatus(HttpServletResponse.SC_OK);
+        res.setContentType(NdjsonImportListener.MEDIA_TYPE + ";charset=UTF-8");
+        // Keep reverse proxies from buffering the stream
+        res.setHeader("X-Accel-Buffering", "no");
+        NdjsonImportListener listener = new NdjsonImportListener(res.getWriter());
+        try (InputStream icsInputStream = openUpload(form)) {
+            ImportResult importResult = runImport(user, icsInputStream, listener);
+            if (!importResult.getFailedReservationIds().isEmpty()) {
+                logger.warn("Failed to resolve the following reservation IDs: " + String.join(", ", importResult.getFailedReservationIds()));
+            }
+            listener.summary(importResult);
+        } catch (RaplaSecurityException e) {
+            logger.error("User doesn't have enough rights for storing the ICS file", e);
+            listener.error(HttpServletResponse.SC_FORBIDDEN, "Forbidden: insufficient rights");
+        } catch (Exception e) {
+            UploadTooLargeException tooLarge = tooLarge(e);
+            if (tooLarge != null) {
+                metrics.recordTooLarge();
+                listener.error(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, tooLarge.getMessage());
+                return;
+            }
+            logger.error("Error processing the ICS file", e);
+            listener.error(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error processing the ICS file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers a dry run with the JSON preview. Files that cannot be parsed are reported with status 400 and the
+     * parser message, so the coordinator can fix the draft.
+     *
+     * @param user  the user performing the dry run
+     * @param form  the form containing the ICS file
+     * @param res   the HTTP response, receiving the preview
+     * @throws IOException if the response cannot be written
+     */
+    private void previewAndRespond(User user, ICSFileUploadForm form, HttpServletResponse res) throws IOException {
+        res.setContentType("application/json;charset=UTF-8");
+        try (InputStream icsInputStream = openUpload(form)) {
+            ImportPreview preview = previewImport(user, icsInputStream);
+            res.setStatus(HttpServletResponse.SC_OK);
+            res.getWriter().write(preview.toJson());
+        } catch (ParseException | ParserException e) {
+            logger.info("Dry run of " + user.getUsername() + " found an invalid ICS file: " + e.getMessage());
+            res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            res.getWriter().write("{\"valid\":false,\"error\":" + Json.quote(e.getMessage()) + "}");
+        } catch (Exception e) {
+            writeImportError(res, e);
+        }
+    }
+
+    /**
+     * Writes the response of a successful import and logs the reservations that failed.
+     *
+     * @param res           the HTTP response
+     * @param importResult  the summary of the import
+     * @throws IOException if the response cannot be written
+     */
+    private void writeImportResult(HttpServletResponse res, ImportResult importResult) throws IOException {
+        // Log summary of failed reservations
+        if (!importResult.getFailedReservationIds().isEmpty()) {
+            logger.warn("Failed to resolve the following reservation IDs: " + String.join(", ", importResult.getFailedReservationIds()));
+        }
+
+        // Set successful response status
+        res.setStatus(HttpServletResponse.SC_OK);
+        res.setHeader("X-Import-Skipped", String.valueOf(importResult.getSkippedCount()));
+        res.setHeader("X-Import-Waited", String.valueOf(importResult.getWaitedReservationIds().size()));
+        res.setHeader("X-Import-Conflicted", String.valueOf(importResult.getConflictedReservationIds().size()));
+        StringBuilder message = new StringBuilder("Import successful");
+        if (importResult.getSkippedCount() > 0) {
+            message.append(", ").append(importResult.getSkippedCount()).append(" unchanged reservations skipped");
+        }
+        if (!importResult.getWaitedReservationIds().isEmpty()) {
+            message.append(", waited for a concurrent import of ").append(String.join(" ", importResult.getWaitedReservationIds()));
+        }
+        if (!importResult.getConflictedReservationIds().isEmpty()) {
+            message.append(", locked by a concurrent import and not updated: ").append(String.join(" ", importResult.getConflictedReservationIds()));
+        }
+        res.getWriter().write(message.toString());
+    }
+
+    /**
+     * Writes the response of a failed import.
+     *
+     * @param res   the HTTP response
+     * @param e     the error that ended the import
+     * @throws IOException if the response cannot be written
+     */
+    private void writeImportError(HttpServletResponse res, Exception e) throws IOException {
+        UploadTooLargeException tooLarge = tooLarge(e);
+        if (tooLarge != null) {
+            rejectTooLarge(res, tooLarge);
+        } else if (e instanceof RaplaSecurityException) {
+            logger.error("User doesn't have enough rights for storing the ICS file", e);
+            res.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            res.getWriter().write("Forbidden: insufficient rights");
+        } else {
+            logger.error("Error processing the ICS file", e);
+            res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            res.getWriter().write("Internal server error");
+        }
+    }
+
+    /**
+     * Endpoint starting a chunked upload. The chunks are sent with PUT semesterplan/upload/{uploadId}?offset=n
+     * and spooled to disk; a client that lost its connection asks for the offset with GET and continues from there.
+     * POST semesterplan/upload/{uploadId}/finalize imports the spooled file.
+     *
+     * @param req   the HTTP request
+     * @param res   the HTTP response, receiving the upload id
+     * @throws IOException if the upload cannot be created
+     */
+    @POST
+    @Path("/upload")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void initiateUpload(@Context HttpServletRequest req, @Context HttpServletResponse res) throws IOException {
+        User user = checkUser(req, res);
+        if (user == null) {
+            return;
+        }
+        String uploadId = uploads.initiate(user.getUsername());
+        res.setStatus(HttpServletResponse.SC_CREATED);
+        res.setContentType("application/json;charset=UTF-8");
+        res.setHeader("Location", "semesterplan/upload/" + uploadId);
+        res.getWriter().write("{\"uploadId\":" + Json.quote(uploadId) + ",\"offset\":0}");
+    }
+
+    /**
+     * Endpoint reporting how many bytes of a chunked upload have been received.
+     *
+     * @param req       the HTTP request
+     * @param res       the HTTP response, receiving the offset
+     * @param uploadId  the id returned when the upload was started
+     * @throws IOException if the upload cannot be accessed
+     */
+    @GET
+    @Path("/upload/{uploadId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getUpload(@Context HttpServletRequest req, @Context HttpServletResponse res, @PathParam("uploadId") String uploadId) throws IOException {
+        User user = checkUser(req, res);
+        if (user == null) {
+            return;
+        }
+        java.nio.file.Path partFile = findUpload(user, uploadId, res);
+        if (partFile != null) {
+            writeOffset(res, HttpServletResponse.SC_OK, uploads.getOffset(partFile));
+        }
+    }
+
+    /**
+     * Endpoint appending a chunk, the raw request body, to a chunked upload. A chunk that does not start at the
+     * acknowledged offset is rejected with 409 and the offset to continue from.
+     *
+     * @param req       the HTTP request, containing the chunk
+     * @param res       the HTTP response, receiving the new offset
+     * @param uploadId  the id returned when the upload was started
+     * @param offset    the offset of the chunk within the file
+     * @throws IOException if the chunk cannot be stored
+     */
+    @PUT
+    @Path("/upload/{uploadId}")
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void appendUpload(@Context HttpServletRequest req, @Context HttpServletResponse res, @PathParam("uploadId") String uploadId, @QueryParam("offset") long offset) throws IOException {
+        User user = checkUser(req, res);
+        if (user == null) {
+            return;
+        }
+        java.nio.file.Path partFile = findUpload(user, uploadId, res);
+        if (partFile == null) {
+            return;
+        }
+        if (!checkUploadSize(req, res, offset)) {
+            return;
+        }
+        long maxUploadBytes = ImportSettings.getMaxUploadBytes();
+        try (InputStream chunk = new LimitedInputStream(req.getInputStream(), Math.max(0, maxUploadBytes - offset), "Upload")) {
+            writeOffset(res, HttpServletResponse.SC_OK, uploads.append(partFile, offset, chunk));
+        } catch (ChunkedUploads.OffsetConflictException e) {
+            writeOffset(res, HttpServletResponse.SC_CONFLICT, e.getOffset());
+        } catch (UploadTooLargeException e) {
+            rejectTooLarge(res, e);
+        }
+    }
+
+    /**
+     * Endpoint importing a completed chunked upload. The spooled file is read through a memory mapping, so the heap
+     * use does not depend on its size. With async=true the import is queued like an asynchronous upload.
+     *
+     * @param req       the HTTP request
+     * @param res       the HTTP response
+     * @param uploadId  the id returned when the upload was started
+     * @throws IOException if an error occurs while writing the response
+     */
+    @POST
+    @Path("/upload/{uploadId}/finalize")
+    @Produces(MediaType.TEXT_PLAIN)
+    public void finalizeUpload(@Context HttpServletRequest req, @Context HttpServletResponse res, @PathParam("uploadId") String uploadId) throws IOException {
+        User user = checkUser(req, res);
+        if (user == null) {
+            return;
+        }
+        java.nio.file.Path partFile = findUpload(user, uploadId, res);
+        if (partFile == null) {
+            return;
+        }
+        ImportAdmission.Permit permit = admit(user, res);
+        if (permit == null) {
+            return;
+        }
+        if (Boolean.parseBoolean(req.getParameter("async"))) {
+            submitImport(user, partFile, res, permit);
+            return;
+        }
+        try {
+            if (!awaitSlot(permit, res)) {
+                // The upload is kept, so the client can finalize it again after Retry-After
+                return;
+            }
+            try {
+                writeImportResult(res, runImport(user, partFile, ImportListener.NONE));
+            } catch (Exception e) {
+                writeImportError(res, e);
+            } finally {
+                try {
+                    uploads.delete(partFile);
+                } catch (IOException e) {
+                    // A mapped file cannot be deleted on every platform, the retention sweep removes it later
+                    logger.warn("Could not delete upload " + partFile, e);
+                }
+            }
+        } finally {
+            permit.close();
+        }
+    }
+
+    /**
+     * Endpoint importing several ICS files in one request. Every form part named "file" is an ICS file, gzip
+     * compressed or not, or a ZIP archive of ICS files. The files are imported in order as a pipeline, the next
+     * file is parsed while the previous one is committed. The response is a JSON report with one entry per file;
+     * a failing file does not stop the others.
+     *
+     * @param req   the HTTP request
+     * @param res   the HTTP response, receiving the report
+     * @param input the multipart form
+     * @throws IOException if the report cannot be written
+     */
+    @POST
+    @Path("/import/batch")
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void importBatch(@Context HttpServletRequest req, @Context HttpServletResponse res, MultipartFormDataInput input) throws IOException {
+        User user = checkUser(req, res);
+        if (user == null) {
+            return;
+        }
+        ImportAdmission.Permit permit = filterPermit(req);
+        if (permit == null && !checkUploadSize(req, res, 0)) {
+            return;
+        }
+        List<ImportBatch.Upload> files = new ArrayList<>();
+        List<InputPart> parts = input.getFormDataMap().get("file");
+        if (parts != null) {
+            for (InputPart part : parts) {
+                String name = fileName(part, files.size());
+                files.add(new ImportBatch.Upload() {
+                    @Override
+                    public String getName() {
+                        return name;
+                    }
+
+                    @Override
+                    public InputStream open() throws IOException {
+                        return new LimitedInputStream(part.getBody(InputStream.class, null), ImportSettings.getMaxUploadBytes(), name);
+                    }
+                });
+            }
+        }
+        if (files.isEmpty()) {
+            res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            res.setContentType("application/json;charset=UTF-8");
+            res.getWriter().write("{\"error\":\"No file\"}");
+            return;
+        }
+
+        List<ImportBatch.FileResult> results;
+        if (permit == null) {
+            permit = admit(user, res);
+            if (permit == null) {
+                return;
+            }
+        }
+        try {
+            if (!awaitSlot(permit, res)) {
+                return;
+            }
+            results = runBatch(user, files);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            res.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        } finally {
+            permit.close();
+        }
+        StringBuilder json = new StringBuilder("{\"files\":[");
+        int failedFiles = 0;
+        for (int i = 0; i < results.size(); i++) {
+            ImportBatch.FileResult fileResult = results.get(i);
+            if (fileResult.getError() != null) {
+                failedFiles++;
+                logger.warn("Batch import of " + fileResult.getName() + " failed: " + fileResult.getError());
+            } else if (!fileResult.getResult().getFailedReservationIds().isEmpty()) {
+                logger.warn("Failed to resolve the following reservation IDs: " + String.join(", ", fileResult.getResult().getFailedReservationIds()));
+            }
+            json.append(i == 0 ? "" : ",").append(fileResult.toJson());
+        }
+        json.append("],\"imported\":").append(results.size() - failedFiles).append(",\"failed\":").append(failedFiles).append('}');
+        res.setStatus(HttpServletResponse.SC_OK);
+        res.setContentType("application/json;charset=UTF-8");
+        res.getWriter().write(json.toString());
+    }
+
+    /**
+     * Imports a batch of uploads. Each ICS file is recorded in the metrics as an import of its own.
+     *
+     * @param user   the user performing the import
+     * @param files  the uploaded files in import order
+     * @return the outcome per ICS file
+     * @throws InterruptedException if the request thread is interrupted while waiting for the parser
+     */
+    List<ImportBatch.FileResult> runBatch(User user, List<? extends ImportBatch.Upload> files) throws InterruptedException {
+        ImportBatch batch = new ImportBatch((name, in) -> {
+            ImportMetrics.Timing timing = new ImportMetrics.Timing();
+            long start = System.nanoTime();
+            try {
+                return parseImport(user, in, ImportListener.NONE, timing);
+            } catch (Exception e) {
+                metrics.record(timing, null);
+                ImportAudit.Trail trail = audit.start(user.getUsername(), name, ImportListener.NONE);
+                trail.failed(e);
+                trail.finish(null, timing);
+                throw e;
+            } finally {
+                timing.since(ImportMetrics.Stage.TOTAL, start);
+            }
+        }, (name, parsed) -> {
+            ImportMetrics.Timing timing = parsed.getTiming();
+            long start = System.nanoTime();
+            ImportResult importResult = null;
+            ImportAudit.Trail trail = audit.start(user.getUsername(), name, ImportListener.NONE);
+            try {
+                importResult = commitImport(user, parsed, trail);
+                return importResult;
+            } catch (Exception e) {
+                trail.failed(e);
+                throw e;
+            } finally {
+                timing.since(ImportMetrics.Stage.TOTAL, start);
+                metrics.record(timing, importResult);
+                trail.finish(importResult, timing);
+                logger.info("Import of " + name + " by " + user.getUsername() + (importResult == null ? " failed" : " finished") + " (" + timing + ")");
+            }
+        });
+        return batch.run(files);
+    }
+
+    /**
+     * Gets the file name of a form part from its Content-Disposition header.
+     */
+    private static String fileName(InputPart part, int index) {
+        String disposition = part.getHeaders().getFirst("Content-Disposition");
+        if (disposition != null) {
+            for (String parameter : disposition.split(";")) {
+                String[] pair = parameter.trim().split("=", 2);
+                if (pair.length == 2 && pair[0].equalsIgnoreCase("filename")) {
+                    return pair[1].replace("\"", "");
+                }
+            }
+        }
+        return "file" + (index + 1);
+    }
+
+    private User checkUser(HttpServletRequest req, HttpServletResponse res) {
+        try {
+            return session.checkAndGetUser(req);
+        } catch (RaplaSecurityException sec) {
+            logger.error("Unauthorized access: No user found in session.", sec);
+            res.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            return null;
+        }
+    }
+
+    private java.nio.file.Path findUpload(User user, String uploadId, HttpServletResponse res) throws IOException {
+        java.nio.file.Path partFile = uploads.find(user.getUsername(), uploadId);
+        if (partFile == null) {
+            // Uploads of other users are reported as unknown
+            res.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            res.setContentType("application/json;charset=UTF-8");
+            res.getWriter().write("{\"error\":\"Unknown upload\"}");
+        }
+        return partFile;
+    }
+
+    private void writeOffset(HttpServletResponse res, int status, long offset) throws IOException {
+        res.setStatus(status);
+        res.setContentType("application/json;charset=UTF-8");
+        res.getWriter().write("{\"offset\":" + offset + "}");
+    }
+
+    /**
+     * Endpoint reporting the status of an asynchronous import job as JSON.
+     *
+     * @param req   the HTTP request
+     * @param res   the HTTP response
+     * @param jobId the id returned when the import was queued
+     * @throws IOException if an error occurs while writing the response
+     */
+    @GET
+    @Path("/import/{jobId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getImportJob(@Context HttpServletRequest req, @Context HttpServletResponse res, @PathParam("jobId") String jobId) throws IOException {
+        User user;
+        try {
+            user = session.checkAndGetUser(req);
+        } catch (RaplaSecurityException sec) {
+            logger.error("Unauthorized access: No user found in session.", sec);
+            res.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+
+        res.setContentType("application/json;charset=UTF-8");
+        ImportJob job = jobs.get(jobId);
+        // Jobs of other users are reported as unknown
+        if (job == null || !(job.getUserName().equals(user.getUsername()) || user.isAdmin())) {
+            res.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            res.getWriter().write("{\"error\":\"Unknown import job\"}");
+            return;
+        }
+        res.setStatus(HttpServletResponse.SC_OK);
+        res.getWriter().write(job.toJson());
+    }
+
+    /**
+     * Endpoint exporting reservations with their appointments as ICS, the counterpart of the import: every VEVENT
+     * carries the X-RAPLA-ID of its reservation, so the file can be imported again. The reservations are either
+     * selected by id or by the period their appointments overlap, and streamed one by one to the response.
+     * Reservations the user may not read are left out.
+     *
+     * @param req   the HTTP request
+     * @param res   the HTTP response, receiving the ICS file
+     * @param ids   the X-RAPLA-IDs of the reservations to export
+     * @param from  the first day of the period, as yyyy-MM-dd, if no ids are given
+     * @param to    the last day of the period, as yyyy-MM-dd, if no ids are given
+     * @throws IOException if an error occurs while writing the response
+     */
+    @GET
+    @Path("/export")
+    @Produces({IcsExport.MEDIA_TYPE, MediaType.TEXT_PLAIN})
+    public void exportSemesterplan(@Context HttpServletRequest req, @Context HttpServletResponse res, @QueryParam("id") List<String> ids, @QueryParam("from") String from, @QueryParam("to") String to) throws IOException {
+        User user = checkUser(req, res);
+        if (user == null) {
+            return;
+        }
+        Collection<Reservation> reservations;
+        try {
+            reservations = exportedReservations(user, ids, from, to);
+        } catch (java.time.format.DateTimeParseException | IllegalArgumentException e) {
+            res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            res.setContentType("text/plain;charset=UTF-8");
+            res.getWriter().write("Either id or from and to (yyyy-MM-dd) are required");
+            return;
+        } catch (RaplaException e) {
+            logger.error("Error reading the reservations to export", e);
+            res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            res.setContentType("text/plain;charset=UTF-8");
+            res.getWriter().write("Error reading the reservations");
+            return;
+        }
+        res.setStatus(HttpServletResponse.SC_OK);
+        res.setContentType(IcsExport.MEDIA_TYPE + ";charset=UTF-8");
+        res.setHeader("Content-Disposition", "attachment; filename=\"semesterplan.ics\"");
+        Locale locale = req.getLocale() != null ? req.getLocale() : Locale.GERMAN;
+        int count = export.write(reservations, locale, res.getWriter());
+        logger.info("Exported " + count + " reservations for " + user.getUsername());
+    }
+
+    /**
+     * Gets the reservations selected by an export request that the user may read.
+     *
+     * @param user  the exporting user
+     * @param ids   the requested X-RAPLA-IDs, unknown and unreadable ids are skipped
+     * @param from  the first day of the period, used if no ids are given
+     * @param to    the last day of the period, used if no ids are given
+     * @return the reservations
+     * @throws RaplaException if the reservations cannot be queried
+     */
+    private Collection<Reservation> exportedReservations(User user, List<String> ids, String from, String to) throws RaplaException {
+        PermissionController permissions = facade.getPermissionController();
+        if (ids != null && !ids.isEmpty()) {
+            List<Reservation> reservations = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                Reservation reservation = facade.tryResolve(new ReferenceInfo<>(id, Reservation.class));
+                // Unreadable reservations are reported like unknown ones, so their existence is not revealed
+                if (reservation == null || !permissions.canRead(reservation, user)) {
+                    logger.warn("Export of unknown reservation " + id + " skipped");
+                } else {
+                    reservations.add(reservation);
+                }
+            }
+            return reservations;
+        }
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("No reservations selected");
+        }
+        // Rapla dates are wall clock times encoded as UTC, the end of the period is exclusive
+        Date start = new Date(java.time.LocalDate.parse(from).atStartOfDay(java.time.ZoneOffset.UTC).toInstant().toEpochMilli());
+        Date end = new Date(java.time.LocalDate.parse(to).plusDays(1).atStartOfDay(java.time.ZoneOffset.UTC).toInstant().toEpochMilli());
+        List<Reservation> reservations = new ArrayList<>();
+        // Iterated directly, since Rapla versions differ in whether the query returns an array or a collection
+        for (Reservation reservation : facade.getReservationsForAllocatable(null, start, end, null)) {
+            if (permissions.canRead(reservation, user)) {
+                reservations.add(reservation);
+            }
+        }
+        return reservations;
+    }
+
+    /**
+     * Endpoint listing the latest imports of the audit trail, newest first. Users see their own imports,
+     * administrators those of all users or, with the query parameter user, of one user.
+     *
+     * @param req       the HTTP request
+     * @param res       the HTTP response, receiving the imports as JSON
+     * @param userName  the user whose imports are listed, only honored for administrators
+     * @param limit     the maximum number of imports, default 50
+     * @throws IOException if the audit trail cannot be read
+     */
+    @GET
+    @Path("/audit")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getAuditHistory(@Context HttpServletRequest req, @Context HttpServletResponse res, @QueryParam("user") String userName, @QueryParam("limit") Integer limit) throws IOException {
+        User user = checkUser(req, res);
+        if (user == null) {
+            return;
+        }
+        String filter = user.isAdmin() ? userName : user.getUsername();
+        awaitAudit();
+        List<String> imports = audit.history(filter, limit == null || limit <= 0 ? 50 : Math.min(limit, 1000));
+        res.setStatus(HttpServletResponse.SC_OK);
+        res.setContentType("application/json;charset=UTF-8");
+        res.getWriter().write("{\"imports\":[" + String.join(",", imports) + "]}");
+    }
+
+    /**
+     * Endpoint returning one import of the audit trail with the outcome of every reservation it touched.
+     *
+     * @param req       the HTTP request
+     * @param res       the HTTP response, receiving the import as JSON
+     * @param importId  the id of the import in the audit trail
+     * @throws IOException if the audit trail cannot be read
+     */
+    @GET
+    @Path("/audit/{importId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getAuditRecord(@Context HttpServletRequest req, @Context HttpServletResponse res, @PathParam("importId") String importId) throws IOException {
+        User user = checkUser(req, res);
+        if (user == null) {
+            return;
+        }
+        awaitAudit();
+        List<String> lines = audit.lines(importId);
+        res.setContentType("application/json;charset=UTF-8");
+        // Imports of other users are reported as unknown
+        if (lines.isEmpty() || !(user.isAdmin() || lines.get(0).contains(",\"user\":" + Json.quote(user.getUsername()) + ","))) {
+            res.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            res.getWriter().write("{\"error\":\"Unknown import\"}");
+            return;
+        }
+        res.setStatus(HttpServletResponse.SC_OK);
+        res.getWriter().write("{\"import\":" + lines.get(0) + ",\"reservations\":[" + String.join(",", lines.subList(1, lines.size())) + "]}");
+    }
+
+    /**
+     * Gives the audit writer a moment to write the imports finished so far, so they show up in a query.
+     */
+    void awaitAudit() {
+        try {
+            audit.awaitWritten(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Endpoint exposing timings, counters and size histograms of all imports in the Prometheus text format.
+     * Unless the metrics are configured as public, only administrators may read them.
+     *
+     * @param req   the HTTP request
+     * @param res   the HTTP response
+     * @throws IOException if an error occurs while writing the response
+     */
+    @GET
+    @Path("/metrics")
+    @Produces(MediaType.TEXT_PLAIN)
+    public void getMetrics(@Context HttpServletRequest req, @Context HttpServletResponse res) throws IOException {
+        if (!ImportSettings.isMetricsPublic()) {
+            User user;
+            try {
+                user = session.checkAndGetUser(req);
+            } catch (RaplaSecurityException sec) {
+                logger.error("Unauthorized access: No user found in session.", sec);
+                res.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+                return;
+            }
+            if (!user.isAdmin()) {
+                res.setStatus(HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+        }
+        res.setStatus(HttpServletResponse.SC_OK);
+        res.setContentType("text/plain;version=0.0.4;charset=UTF-8");
+        res.getWriter().write(metrics.toPrometheus());
+        res.getWriter().write(admission.toPrometheus());
+    }
+
+    /**
+     * Queues an import on the background executor. The upload stream is only valid during the request,
+     * so it is spooled to a temporary file which the job reads and deletes.
+     *
+     * @param user    the user performing the import
+     * @param form    the form containing the ICS file
+     * @param res     the HTTP response, receiving the job id
+     * @param permit  the admitted permit, closed by the job
+     * @throws IOException if the upload cannot be spooled
+     */
+    private void importAsync(User user, ICSFileUploadForm form, HttpServletResponse res, ImportAdmission.Permit permit) throws IOException {
+        java.nio.file.Path spoolFile = null;
+        boolean spooled = false;
+        try {
+            java.nio.file.Path workDirectory = ImportSettings.getWorkDirectory();
+            Files.createDirectories(workDirectory);
+            spoolFile = Files.createTempFile(workDirectory, "upload-", ".ics");
+            try (InputStream in = openUpload(form)) {
+                Files.copy(in, spoolFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            spooled = true;
+        } catch (UploadTooLargeException e) {
+            rejectTooLarge(res, e);
+            return;
+        } finally {
+            if (!spooled) {
+                // No job takes over the permit and the spool file if spooling failed in any way
+                permit.close();
+                if (spoolFile != null) {
+                    deleteSpooled(spoolFile);
+                }
+            }
+        }
+        submitImport(user, spoolFile, res, permit);
+    }
+
+    /**
+     * Queues the import of a spooled file, which is deleted once the import ended.
+     *
+     * @param user       the user performing the import
+     * @param spoolFile  the spooled ICS file
+     * @param res        the HTTP response, receiving the job id
+     * @param permit     the admitted permit, the job waits for its slot and closes it
+     * @throws IOException if the response cannot be written
+     */
+    private void submitImport(User user, java.nio.file.Path spoolFile, HttpServletResponse res, ImportAdmission.Permit permit) throws IOException {
+        ImportJob job = new ImportJob(user.getUsername());
+        boolean submitted = false;
+        try {
+            jobs.submit(job, () -> {
+                try {
+                    // Queued jobs wait without timeout, their number is bounded by the admission
+                    permit.awaitSlot(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                    ImportResult importResult = runImport(user, spoolFile, job);
+                    if (!importResult.getFailedReservationIds().isEmpty()) {
+                        logger.warn("Failed to resolve the following reservation IDs: " + String.join(", ", importResult.getFailedReservationIds()));
+                    }
+                } catch (RaplaSecurityException e) {
+                    logger.error("User doesn't have enough rights for storing the ICS file", e);
+                    job.fail("Forbidden: insufficient rights");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    job.fail("Import cancelled");
+                } catch (Exception e) {
+                    logger.error("Error processing the ICS file", e);
+                    job.fail("Error processing the ICS file: " + e.getMessage());
+                } finally {
+                    permit.close();
+                    deleteSpooled(spoolFile);
+                }
+            });
+            submitted = true;
+        } finally {
+            if (!submitted) {
+                // The job never runs, so it cannot close the permit
+                permit.close();
+            }
+        }
 
-    @Inject
-    RemoteSession session;
+        res.setStatus(HttpServletResponse.SC_ACCEPTED);
+        res.setContentType("application/json;charset=UTF-8");
+        res.setHeader("Location", "semesterplan/import/" + job.getId());
+        res.getWriter().write("{\"jobId\":" + Json.quote(job.getId()) + "}");
+    }
 
-    @Inject
-    public ImportController(@Context HttpServletRequest request){
+    private void deleteSpooled(java.nio.file.Path spoolFile) {
+        try {
+            Files.deleteIfExists(spoolFile);
+        } catch (IOException e) {
+            logger.warn("Could not delete spooled upload " + spoolFile, e);
+        }
     }
 
     /**
-     * Endpoint logic for importing a semester plan from an ICS file.
+     * Runs an import of a spooled upload. The file is hashed before parsing, so an upload identical to one imported
+     * before is skipped without parsing as long as none of its reservations was modified in between.
      *
-     * @param req   the HTTP request
-     * @param res   the HTTP response
-     * @param form  the form containing the ICS file
-     * @throws Exception if an error occurs during the import
+     * @param user      the user performing the import
+     * @param icsFile   the spooled ICS file
+     * @param listener  the listener notified about the progress
+     * @return the summary of the import
+     * @throws RaplaException, ParseException, ParserException, IOException if an error occurs during import
      */
-    @POST
-    @Path("/import")
-    @Consumes(MediaType.MULTIPART_FORM_DATA)
-    @Produces(MediaType.TEXT_PLAIN)
-    public void importSemesterplan(@Context HttpServletRequest req, @Context HttpServletResponse res, @MultipartForm ICSFileUploadForm form) throws Exception {
-        InputStream icsInputStream = null;
-        User user;
-        String userName;
-        List<String> failedReservationIds = new ArrayList<>();
+    public ImportResult runImport(User user, java.nio.file.Path icsFile, ImportListener listener) throws RaplaException, ParseException, ParserException, IOException {
+        ImportMetrics.Timing timing = new ImportMetrics.Timing();
+        long start = System.nanoTime();
+        ImportResult importResult = null;
+        ImportAudit.Trail trail = audit.start(user.getUsername(), icsFile.getFileName().toString(), listener);
+        try {
+            importResult = skipKnownUpload(user, IcsFingerprint.of(icsFile), trail);
+            if (importResult == null) {
+                try (InputStream in = new MappedFileInputStream(icsFile)) {
+                    importResult = runImport(user, in, trail, timing);
+                }
+            }
+            return importResult;
+        } catch (Exception e) {
+            trail.failed(e);
+            throw e;
+        } finally {
+            timing.since(ImportMetrics.Stage.TOTAL, start);
+            metrics.record(timing, importResult);
+            trail.finish(importResult, timing);
+            logger.info("Import of " + user.getUsername() + (importResult == null ? " failed" : " finished") + " (" + timing + ")");
+        }
+    }
 
+    /**
+     * Runs an import: parses the ICS stream and commits the appointments of all referenced reservations. If the
+     * user imported uploads before, the stream is spooled and hashed first, so an upload identical to one imported
+     * before is skipped without parsing as long as none of its reservations was modified in between.
+     *
+     * @param user            the user performing the import
+     * @param icsInputStream  the ICS file
+     * @param listener        the listener notified about the progress
+     * @return the summary of the import
+     * @throws RaplaException, ParseException, ParserException, IOException if an error occurs during import
+     */
+    public ImportResult runImport(User user, InputStream icsInputStream, ImportListener listener) throws RaplaException, ParseException, ParserException, IOException {
+        ImportMetrics.Timing timing = new ImportMetrics.Timing();
+        long start = System.nanoTime();
+        ImportResult importResult = null;
+        ImportAudit.Trail trail = audit.start(user.getUsername(), null, listener);
         try {
-            // Check and get the user from the session
-            user = session.checkAndGetUser(req);
-            userName = user.getUsername();
-        } catch (RaplaSecurityException sec) {
-            logger.error("Unauthorized access: No user found in session.", sec);
-            res.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
-            generatePage(res, res.getStatus());
-            return;
+            if (fingerprints.hasUploads(user.getUsername())) {
+                importResult = runSpooledImport(user, icsInputStream, trail, timing);
+            } else {
+                importResult = runImport(user, icsInputStream, trail, timing);
+            }
+            return importResult;
+        } catch (Exception e) {
+            trail.failed(e);
+            throw e;
+        } finally {
+            timing.since(ImportMetrics.Stage.TOTAL, start);
+            metrics.record(timing, importResult);
+            trail.finish(importResult, timing);
+            logger.info("Import of " + user.getUsername() + (importResult == null ? " failed" : " finished") + " (" + timing + ")");
         }
+    }
 
+    private ImportResult runSpooledImport(User user, InputStream icsInputStream, ImportListener listener, ImportMetrics.Timing timing) throws RaplaException, ParseException, ParserException, IOException {
+        java.nio.file.Path workDirectory = ImportSettings.getWorkDirectory();
+        Files.createDirectories(workDirectory);
+        java.nio.file.Path spoolFile = Files.createTempFile(workDirectory, "upload-", ".ics");
         try {
-            // Get the ICS file input stream
-            icsInputStream = form.getIcsFile();
-            String ics = convertStreamToString(icsInputStream);
+            Files.copy(icsInputStream, spoolFile, StandardCopyOption.REPLACE_EXISTING);
+            ImportResult importResult = skipKnownUpload(user, IcsFingerprint.of(spoolFile), listener);
+            if (importResult != null) {
+                return importResult;
+            }
+            try (InputStream in = new MappedFileInputStream(spoolFile)) {
+                return runImport(user, in, listener, timing);
+            }
+        } finally {
+            deleteSpooled(spoolFile);
+        }
+    }
 
-            // Process the ICS file and update reservations
-            Map<ReferenceInfo<Reservation>, List<Appointment>> result = importAppointmentsFromIcs(ics, userName);
-            List<Reservation> reservationsToStore = new ArrayList<>();
+    private ImportResult runImport(User user, InputStream icsInputStream, ImportListener listener, ImportMetrics.Timing timing) throws RaplaException, ParseException, ParserException, IOException {
+        IcsUidIndex uidIndex = ImportSettings.isIncrementalImport()
+                ? IcsUidIndex.load(ImportSettings.getWorkDirectory(), user.getUsername()) : null;
+        return commitImport(user, parseImport(user, icsInputStream, listener, timing, uidIndex), listener);
+    }
 
-            for (Map.Entry<ReferenceInfo<Reservation>, List<Appointment>> entry : result.entrySet()) {
-                try {
-                    logger.info(entry.getKey().getId());
-                    processReservation(entry, reservationsToStore);
-                } catch (Exception e) {
-                    failedReservationIds.add(entry.getKey().getId());
-                    logger.error("Error processing reservation - wrong id: " + entry.getKey().getId());
-                }
-            }
+    /**
+     * Parses an ICS stream into the appointments of the referenced reservations, without changing any reservation.
+     *
+     * @param user            the user performing the import
+     * @param icsInputStream  the ICS file, plain or gzip compressed
+     * @param listener        the listener notified about the progress
+     * @param timing          the stage timings of the import
+     * @return the parsed import, to be passed to {@link #commitImport(User, ParsedImport, ImportListener)}
+     * @throws RaplaException, ParseException, ParserException, IOException if the file cannot be read or parsed
+     */
+    ParsedImport parseImport(User user, InputStream icsInputStream, ImportListener listener, ImportMetrics.Timing timing) throws RaplaException, ParseException, ParserException, IOException {
+        return parseImport(user, icsInputStream, listener, timing, null);
+    }
 
-            // Store all reservations at once
-            Entity[] events = reservationsToStore.toArray(Reservation.RESERVATION_ARRAY);
-            facade.storeAndRemove(events, new Entity[]{}, user);
+    /**
+     * Parses an ICS stream, converting only the event groups that changed since they were recorded in the UID index.
+     *
+     * @param user            the user performing the import
+     * @param icsInputStream  the ICS file, plain or gzip compressed
+     * @param listener        the listener notified about the progress
+     * @param timing          the stage timings of the import
+     * @param uidIndex        the UID index of the user, or null to convert all event groups
+     * @return the parsed import, to be passed to {@link #commitImport(User, ParsedImport, ImportListener)}
+     * @throws RaplaException, ParseException, ParserException, IOException if the file cannot be read or parsed
+     */
+    ParsedImport parseImport(User user, InputStream icsInputStream, ImportListener listener, ImportMetrics.Timing timing, IcsUidIndex uidIndex) throws RaplaException, ParseException, ParserException, IOException {
+        // Decompress gzip uploads on the fly and hash the ICS content while it is read to identify the upload
+        listener.phaseChanged(ImportListener.Phase.PARSING);
+        DigestInputStream digestStream = IcsFingerprint.wrap(GzipUploads.decode(timing.wrap(icsInputStream)));
+
+        // Stream the ICS file into the parser
+        long parseStart = System.nanoTime();
+        IcsUidIndex.Changes changes = uidIndex == null ? null : uidIndex.compare(this::lastChangedOf);
+        Map<ReferenceInfo<Reservation>, List<Appointment>> result = importAppointmentsFromIcs(digestStream, user.getUsername(), timing, changes);
+        // Reading and converting happen inside the parser callbacks, the rest is the parser itself
+        long parseNanos = System.nanoTime() - parseStart - timing.get(ImportMetrics.Stage.READ) - timing.get(ImportMetrics.Stage.CONVERT);
+        timing.add(ImportMetrics.Stage.PARSE, Math.max(0, parseNanos));
+        ImportResult importResult = new ImportResult(IcsFingerprint.finish(digestStream));
+        importResult.setEventCount(result.values().stream().mapToInt(List::size).sum());
+        importResult.setReservationCount(result.size());
+        if (changes != null) {
+            importResult.setEventCount(importResult.getEventCount() + changes.getUnchangedAppointmentCount());
+            importResult.setReservationCount(importResult.getReservationCount() + changes.getUnchangedGroups().size());
+        }
+        listener.parsed(importResult.getEventCount(), importResult.getReservationCount());
+        return new ParsedImport(result, importResult, timing, changes);
+    }
+
+    private Date lastChangedOf(String reservationId) {
+        Reservation reservation = facade.tryResolve(new ReferenceInfo<>(reservationId, Reservation.class));
+        return reservation == null ? null : reservation.getLastChanged();
+    }
+
+    /**
+     * Commits a parsed import to the referenced reservations.
+     *
+     * @param user      the user performing the import
+     * @param parsed    the result of {@link #parseImport(User, InputStream, ImportListener, ImportMetrics.Timing)}
+     * @param listener  the listener notified about the progress
+     * @return the summary of the import
+     * @throws RaplaException, IOException if the reservations cannot be stored or the checkpoint cannot be written
+     */
+    ImportResult commitImport(User user, ParsedImport parsed, ImportListener listener) throws RaplaException, IOException {
+        Map<ReferenceInfo<Reservation>, List<Appointment>> result = parsed.getAppointments();
+        ImportResult importResult = parsed.getResult();
 
-            // Log summary of failed reservations
-            if (!failedReservationIds.isEmpty()) {
-                logger.warn("Failed to resolve the following reservation IDs: " + String.join(", ", failedReservationIds));
+        // Commit in chunks, a failed import of the same file resumes after the last committed chunk
+        listener.phaseChanged(ImportListener.Phase.COMMITTING);
+        ImportCheckpoint checkpoint = ImportCheckpoint.load(ImportSettings.getWorkDirectory(), user.getUsername(), importResult.getFingerprint());
+        Map<String, String> groupHashes = new LinkedHashMap<>();
+        for (Map.Entry<ReferenceInfo<Reservation>, List<Appointment>> entry : result.entrySet()) {
+            groupHashes.put(entry.getKey().getId(), AppointmentReconciler.fingerprint(entry.getValue()));
+        }
+        IcsUidIndex.Changes changes = parsed.getChanges();
+        if (changes != null) {
+            // Groups without new, modified or removed VEVENTs were not even converted
+            for (String reservationId : changes.getUnchangedGroups()) {
+                importResult.addSkipped(1);
+                listener.reservationSkipped(reservationId);
             }
+        }
+        commitReservations(result, groupHashes, user, checkpoint, importResult, listener, parsed.getTiming());
+        if (changes != null) {
+            recordRevisions(changes, result, importResult);
+        }
+        // The upload can only be skipped as a whole later if the hashes of all its groups are known
+        if (importResult.getFailedReservationIds().isEmpty() && (changes == null || changes.getUnchangedGroups().isEmpty())) {
+            fingerprints.recordUpload(user.getUsername(), importResult.getFingerprint(), importResult.getEventCount(), groupHashes);
+        }
+        listener.phaseChanged(ImportListener.Phase.DONE);
+        return importResult;
+    }
 
-            // Set successful response status
-            res.setStatus(HttpServletResponse.SC_OK);
-            res.getWriter().write("Import successful");
-        } catch (RaplaSecurityException e) {
-            logger.error("User doesn't have enough rights for storing the ICS file", e);
-            res.setStatus(HttpServletResponse.SC_FORBIDDEN);
-            res.getWriter().write("Forbidden: insufficient rights");
-        } catch (Exception e) {
-            logger.error("Error processing the ICS file", e);
-            res.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            res.getWriter().write("Internal server error");
-        } finally {
-            if (icsInputStream != null) {
-                icsInputStream.close();
+    /**
+     * Records the VEVENT revisions of the committed groups in the UID index, together with the modification time of
+     * their reservations, so the next import can skip them while neither the file nor Rapla changed them.
+     *
+     * @param changes       the comparison with the UID index
+     * @param result        the committed appointments by reservation
+     * @param importResult  the summary holding the failed ids
+     * @throws IOException if the index cannot be written
+     */
+    private void recordRevisions(IcsUidIndex.Changes changes, Map<ReferenceInfo<Reservation>, List<Appointment>> result, ImportResult importResult) throws IOException {
+        Set<String> failedIds = new HashSet<>(importResult.getFailedReservationIds());
+        Map<String, Date> committed = new LinkedHashMap<>();
+        Map<String, Integer> appointmentCounts = new HashMap<>();
+        for (Map.Entry<ReferenceInfo<Reservation>, List<Appointment>> entry : result.entrySet()) {
+            String reservationId = entry.getKey().getId();
+            appointmentCounts.put(reservationId, entry.getValue().size());
+            if (!failedIds.contains(reservationId)) {
+                committed.put(reservationId, lastChangedOf(reservationId));
             }
-            // Optionally generating a web page displaying the results
-            generatePage(res, res.getStatus());
         }
+        changes.record(committed, appointmentCounts, failedIds);
     }
 
     /**
-     * Processes a reservation by removing placeholder appointments and adding recently parsed appointments.
+     * Computes the changes an import would make, without editing or storing any reservation. The referenced
+     * reservations are only resolved read-only, so no locks are taken and nothing is recorded.
      *
-     * @param entry                 the entry containing the reservation reference and appointments
-     * @param reservationsToStore   the list of reservations to store
-     * @throws RaplaException       if an error occurs during processing
+     * @param user            the user performing the dry run
+     * @param icsInputStream  the ICS file, plain or gzip compressed
+     * @return the changes per reservation and the unknown ids
+     * @throws RaplaException, ParseException, ParserException, IOException if the file cannot be read or parsed
+     */
+    public ImportPreview previewImport(User user, InputStream icsInputStream) throws RaplaException, ParseException, ParserException, IOException {
+        ParsedImport parsed = parseImport(user, icsInputStream, ImportListener.NONE, new ImportMetrics.Timing());
+        ImportPreview preview = new ImportPreview(parsed.getResult().getFingerprint(), parsed.getResult().getEventCount());
+        ReservationPrefetch.Resolution resolution = new ReservationPrefetch(facade).resolve(parsed.getAppointments().keySet());
+        for (Map.Entry<ReferenceInfo<Reservation>, Reservation> entry : resolution.getReservations().entrySet()) {
+            AppointmentReconciler.Plan plan = reconciler.plan(entry.getValue().getAppointments(), parsed.getAppointments().get(entry.getKey()));
+            preview.addEntry(entry.getKey().getId(), plan);
+        }
+        for (String unknownId : resolution.getUnknownIds()) {
+            preview.addUnknown(unknownId);
+        }
+        return preview;
+    }
+
+    /**
+     * Completes an import without parsing if the upload was imported before and all its reservations are unchanged.
+     *
+     * @param user        the user performing the import
+     * @param fingerprint the content hash of the upload
+     * @param listener    the listener notified about the progress
+     * @return the summary of the skipped import, or null if the upload has to be imported
+     */
+    private ImportResult skipKnownUpload(User user, String fingerprint, ImportListener listener) {
+        ImportFingerprintCache.KnownUpload upload = fingerprints.getUpload(user.getUsername(), fingerprint);
+        if (upload == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> group : upload.getGroupHashes().entrySet()) {
+            Reservation reservation = facade.tryResolve(new ReferenceInfo<>(group.getKey(), Reservation.class));
+            if (reservation == null || !fingerprints.isUnchanged(user.getUsername(), reservation, group.getValue())) {
+                return null;
+            }
+        }
+        logger.info("Upload " + fingerprint + " was imported before and is unchanged, skipping");
+        ImportResult importResult = new ImportResult(fingerprint);
+        importResult.setEventCount(upload.getEventCount());
+        importResult.setReservationCount(upload.getGroupHashes().size());
+        listener.parsed(importResult.getEventCount(), importResult.getReservationCount());
+        for (String reservationId : upload.getGroupHashes().keySet()) {
+            importResult.addSkipped(1);
+            listener.reservationSkipped(reservationId);
+        }
+        listener.phaseChanged(ImportListener.Phase.DONE);
+        return importResult;
+    }
+
+    /**
+     * Commits the parsed appointments chunk by chunk. Each chunk is resolved, reconciled and stored with its own
+     * storeAndRemove call and then recorded in the checkpoint, so lock hold times and memory per transaction stay
+     * bounded and a failure only affects the chunk it occurred in.
+     *
+     * @param result        the parsed appointments by reservation
+     * @param groupHashes   the hashes of the parsed event groups by X-RAPLA-ID
+     * @param user          the user performing the import
+     * @param checkpoint    the checkpoint of the upload
+     * @param importResult  the summary collecting counts and failed ids
+     * @param listener      the listener notified about each reservation
+     * @param timing        the stage timings of the import
+     * @throws RaplaException, IOException if a chunk cannot be stored or the checkpoint cannot be written
      */
-    private void processReservation(Map.Entry<ReferenceInfo<Reservation>, List<Appointment>> entry, List<Reservation> reservationsToStore) throws RaplaException {
-        Reservation reservation;
-        ReferenceInfo<Reservation> reservationId = entry.getKey();
-        List<Appointment> appointments = entry.getValue();
+    private void commitReservations(Map<ReferenceInfo<Reservation>, List<Appointment>> result, Map<String, String> groupHashes, User user, ImportCheckpoint checkpoint, ImportResult importResult, ImportListener listener, ImportMetrics.Timing timing) throws RaplaException, IOException {
+        List<ReferenceInfo<Reservation>> pending = new ArrayList<>();
+        for (ReferenceInfo<Reservation> reference : result.keySet()) {
+            if (!checkpoint.isCommitted(reference.getId())) {
+                pending.add(reference);
+            }
+        }
+        if (pending.size() < result.size()) {
+            logger.info("Resuming import, skipping " + (result.size() - pending.size()) + " reservations committed by an earlier attempt");
+        }
+
+        int batchSize = ImportSettings.getBatchSize();
+        for (int from = 0; from < pending.size(); from += batchSize) {
+            List<ReferenceInfo<Reservation>> chunk = pending.subList(from, Math.min(from + batchSize, pending.size()));
+            try {
+                checkpoint.markCommitted(commitChunk(chunk, result, groupHashes, user, importResult, listener, timing));
+            } catch (RaplaException | IOException e) {
+                logger.error("Import interrupted after " + checkpoint.getCommittedCount() + " of " + result.size()
+                        + " reservations, uploading the same file again resumes from there");
+                throw e;
+            }
+        }
+        checkpoint.complete();
+    }
 
+    /**
+     * Locks the reservations of a chunk against concurrent imports and commits it. Reservations that stay locked
+     * by another import beyond the lock timeout are reported as conflicted and left for a later import.
+     *
+     * @param chunk         the references of the chunk
+     * @param result        the parsed appointments by reservation
+     * @param groupHashes   the hashes of the parsed event groups by X-RAPLA-ID
+     * @param user          the user performing the import
+     * @param importResult  the summary collecting counts and failed ids
+     * @param listener      the listener notified about each reservation
+     * @param timing        the stage timings of the import
+     * @return the ids of the chunk that are up to date after storing, i.e. stored or unchanged
+     * @throws RaplaException if the chunk cannot be edited or stored
+     */
+    private List<String> commitChunk(List<ReferenceInfo<Reservation>> chunk, Map<ReferenceInfo<Reservation>, List<Appointment>> result, Map<String, String> groupHashes, User user, ImportResult importResult, ImportListener listener, ImportMetrics.Timing timing) throws RaplaException {
+        List<String> chunkIds = new ArrayList<>();
+        for (ReferenceInfo<Reservation> reference : chunk) {
+            chunkIds.add(reference.getId());
+        }
+        long lockStart = System.nanoTime();
+        ReservationLocks.Lease lease;
         try {
-            reservation = facade.edit(facade.resolve(reservationId));
-        } catch (EntityNotFoundException e) {
-            logger.error("Module id not found");
-            return;
+            lease = locks.acquire(chunkIds, ImportSettings.getLockTimeoutSeconds(), java.util.concurrent.TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RaplaException("Import interrupted while waiting for a concurrent import", e);
+        }
+        timing.since(ImportMetrics.Stage.LOCK, lockStart);
+
+        try (ReservationLocks.Lease held = lease) {
+            for (String waitedId : held.getWaitedIds()) {
+                importResult.getWaitedReservationIds().add(waitedId);
+                listener.reservationWaited(waitedId);
+            }
+            if (!held.getWaitedIds().isEmpty()) {
+                logger.info("Waited for a concurrent import of reservations " + String.join(", ", held.getWaitedIds()));
+            }
+            List<ReferenceInfo<Reservation>> lockedChunk = chunk;
+            if (!held.getConflictedIds().isEmpty()) {
+                logger.warn("Reservations locked by a concurrent import, skipping: " + String.join(", ", held.getConflictedIds()));
+                Set<String> conflictedIds = new HashSet<>(held.getConflictedIds());
+                lockedChunk = new ArrayList<>();
+                for (ReferenceInfo<Reservation> reference : chunk) {
+                    if (conflictedIds.contains(reference.getId())) {
+                        importResult.getConflictedReservationIds().add(reference.getId());
+                        reservationFailed(reference.getId(), ImportListener.LOCKED, importResult, listener);
+                    } else {
+                        lockedChunk.add(reference);
+                    }
+                }
+            }
+            return commitLockedChunk(lockedChunk, result, groupHashes, user, importResult, listener, timing);
+        }
+    }
+
+    /**
+     * Resolves, reconciles and stores one chunk of reservations while holding the locks of its reservations.
+     *
+     * @param chunk         the references of the chunk
+     * @param result        the parsed appointments by reservation
+     * @param groupHashes   the hashes of the parsed event groups by X-RAPLA-ID
+     * @param user          the user performing the import
+     * @param importResult  the summary collecting counts and failed ids
+     * @param listener      the listener notified about each reservation
+     * @param timing        the stage timings of the import
+     * @return the ids of the chunk that are up to date after storing, i.e. stored or unchanged
+     * @throws RaplaException if the chunk cannot be edited or stored
+     */
+    private List<String> commitLockedChunk(List<ReferenceInfo<Reservation>> chunk, Map<ReferenceInfo<Reservation>, List<Appointment>> result, Map<String, String> groupHashes, User user, ImportResult importResult, ImportListener listener, ImportMetrics.Timing timing) throws RaplaException {
+        List<String> committedIds = new ArrayList<>();
+        List<Reservation> reservationsToStore = new ArrayList<>();
+
+        // Resolve the referenced reservations read-only and compute the changes per reservation
+        long stageStart = System.nanoTime();
+        ReservationPrefetch prefetch = new ReservationPrefetch(facade);
+        ReservationPrefetch.Resolution resolution = prefetch.resolve(chunk);
+        timing.since(ImportMetrics.Stage.RESOLVE, stageStart);
+        for (String unknownId : resolution.getUnknownIds()) {
+            logger.error("Error processing reservation - wrong id: " + unknownId);
+            reservationFailed(unknownId, "Unknown reservation id", importResult, listener);
         }
 
-        // Remove placeholder appointments and add new ones
-        for (Appointment appointment : reservation.getAppointments()) {
-            reservation.removeAppointment(appointment);
+        stageStart = System.nanoTime();
+        Map<ReferenceInfo<Reservation>, Reservation> changedReservations = new LinkedHashMap<>();
+        Map<ReferenceInfo<Reservation>, AppointmentReconciler.Plan> plans = new LinkedHashMap<>();
+        for (Map.Entry<ReferenceInfo<Reservation>, Reservation> entry : resolution.getReservations().entrySet()) {
+            String reservationId = entry.getKey().getId();
+            String groupHash = groupHashes.get(reservationId);
+            // Reservations unchanged since the same event group was imported are not even compared
+            if (fingerprints.isUnchanged(user.getUsername(), entry.getValue(), groupHash)) {
+                committedIds.add(reservationId);
+                importResult.addSkipped(1);
+                listener.reservationSkipped(reservationId);
+                continue;
+            }
+            try {
+                AppointmentReconciler.Plan plan = reconciler.plan(entry.getValue().getAppointments(), result.get(entry.getKey()));
+                if (plan.isUnchanged()) {
+                    // Unchanged reservations are neither edited nor stored
+                    committedIds.add(reservationId);
+                    importResult.addUnchanged(1);
+                    fingerprints.recordGroup(user.getUsername(), entry.getValue(), groupHash);
+                    listener.reservationCommitted(reservationId, plan);
+                    continue;
+                }
+                changedReservations.put(entry.getKey(), entry.getValue());
+                plans.put(entry.getKey(), plan);
+            } catch (Exception e) {
+                logger.error("Error comparing appointments of reservation " + reservationId, e);
+                reservationFailed(reservationId, "Error comparing appointments", importResult, listener);
+            }
+        }
+
+        timing.since(ImportMetrics.Stage.RECONCILE, stageStart);
+
+        // Edit only the changed reservations, in one bulk operation
+        stageStart = System.nanoTime();
+        Map<ReferenceInfo<Reservation>, AppointmentReconciler.Plan> storedPlans = new LinkedHashMap<>();
+        Map<ReferenceInfo<Reservation>, Reservation> editableReservations = prefetch.edit(changedReservations);
+        for (ReferenceInfo<Reservation> reference : changedReservations.keySet()) {
+            // Not counted as committed, so neither the checkpoint nor the UID index skips it next time
+            if (!editableReservations.containsKey(reference)) {
+                logger.error("Reservation could not be opened for editing: " + reference.getId());
+                reservationFailed(reference.getId(), "Reservation could not be edited", importResult, listener);
+            }
+        }
+        for (Map.Entry<ReferenceInfo<Reservation>, Reservation> entry : editableReservations.entrySet()) {
+            String reservationId = entry.getKey().getId();
+            try {
+                processReservation(entry.getValue(), plans.get(entry.getKey()), reservationsToStore);
+                storedPlans.put(entry.getKey(), plans.get(entry.getKey()));
+            } catch (Exception e) {
+                logger.error("Error processing reservation - wrong id: " + reservationId);
+                reservationFailed(reservationId, "Error updating appointments", importResult, listener);
+            }
+        }
+
+        timing.since(ImportMetrics.Stage.EDIT, stageStart);
+
+        // Store the chunk in one transaction
+        if (!reservationsToStore.isEmpty()) {
+            stageStart = System.nanoTime();
+            Entity[] events = reservationsToStore.toArray(Reservation.RESERVATION_ARRAY);
+            facade.storeAndRemove(events, new Entity[]{}, user);
+            timing.since(ImportMetrics.Stage.STORE, stageStart);
         }
-        for (Appointment appointment : appointments) {
-            reservation.addAppointment(appointment);
+        importResult.addStored(storedPlans.size());
+        for (Map.Entry<ReferenceInfo<Reservation>, AppointmentReconciler.Plan> stored : storedPlans.entrySet()) {
+            String reservationId = stored.getKey().getId();
+            committedIds.add(reservationId);
+            listener.reservationCommitted(reservationId, stored.getValue());
+            // Remember the stored state, its modification time identifies later changes in Rapla
+            Reservation persistent = facade.tryResolve(stored.getKey());
+            if (persistent != null) {
+                fingerprints.recordGroup(user.getUsername(), persistent, groupHashes.get(reservationId));
+            }
         }
+        return committedIds;
+    }
+
+    private void reservationFailed(String reservationId, String reason, ImportResult importResult, ImportListener listener) {
+        importResult.getFailedReservationIds().add(reservationId);
+        listener.reservationFailed(reservationId, reason);
+    }
+
+    /**
+     * Processes a reservation by applying the computed differences: placeholder and outdated appointments are removed,
+     * changed ones are moved and new ones are added, while matching appointments stay untouched.
+     *
+     * @param reservation           the reservation, already opened for editing
+     * @param plan                  the differences between the reservation and the parsed appointments
+     * @param reservationsToStore   the list of reservations to store
+     */
+    private void processReservation(Reservation reservation, AppointmentReconciler.Plan plan, List<Reservation> reservationsToStore) {
+        reconciler.apply(plan, reservation);
 
         reservationsToStore.add(reservation);
-        logger.info("Successfully added reservation appointments for id " + reservationId + " from imported ics-File");
     }
 
     /**
@@ -189,68 +1529,285 @@ public class ImportController {
      * @throws RaplaException, ParseException, ParserException, IOException if an error occurs during import
      */
     public Map<ReferenceInfo<Reservation>, List<Appointment>> importAppointmentsFromIcs(String icsFile, String userName) throws RaplaException, ParseException, ParserException, IOException {
-        Map<ReferenceInfo<Reservation>, List<Appointment>> newMap = new LinkedHashMap<>();
-        StringReader sin = new StringReader(icsFile);
-        CalendarBuilder builder = new CalendarBuilder();
-        net.fortuna.ical4j.model.Calendar calendar = builder.build(sin);
-
-        // Temporary map to group appointments by X-RAPLA-ID
-        Map<String, List<Appointment>> tempMap = new HashMap<>();
-
-        for (Component event : calendar.getComponents(Component.VEVENT)) {
-            // Extract DTSTART, DTEND, and X-RAPLA-ID
-            String start = event.getProperty(Property.DTSTART).getValue();
-            String end = event.getProperty(Property.DTEND).getValue();
-            String raplaId = event.getProperty("X-RAPLA-ID").getValue();
+        return importAppointmentsFromIcs(new ByteArrayInputStream(icsFile.getBytes(StandardCharsets.UTF_8)), userName, new ImportMetrics.Timing(), null);
+    }
 
-            Date startDate = convertToDateWithUTCAdjustment(start);
-            Date endDate = convertToDateWithUTCAdjustment(end);
+    /**
+     * Streams the ICS file from the upload into the parser, so the file is never held in memory as a whole.
+     *
+     * @param icsStream the stream of the uploaded ICS file, decoded as UTF-8 and decompressed if it is gzip compressed
+     * @param userName the username of the user
+     * @return a map of reservations and their corresponding appointments
+     * @throws RaplaException, ParseException, ParserException, IOException if an error occurs during import
+     */
+    public Map<ReferenceInfo<Reservation>, List<Appointment>> importAppointmentsFromIcs(InputStream icsStream, String userName) throws RaplaException, ParseException, ParserException, IOException {
+        return importAppointmentsFromIcs(GzipUploads.decode(icsStream), userName, new ImportMetrics.Timing(), null);
+    }
 
-            // Create a new appointment with the start and end dates
-            Appointment appointment = facade.newAppointmentWithUser(startDate, endDate, facade.getUser(userName));
+    /**
+     * Reads the VEVENTs one by one and groups the resulting appointments by X-RAPLA-ID as each event completes.
+     * Peak memory is bounded by the event currently parsed plus the grouping map. An incremental import of a user
+     * with imported groups spools the decoded file to the work directory and reads it twice: first it only records
+     * the revision of each VEVENT to find the changed groups, then it converts the events of those groups, so
+     * neither pass holds the events. Without imported groups nothing can be skipped and the file is read once.
+     *
+     * @param icsStream the stream providing the UTF-8 encoded ICS content
+     * @param userName the username of the user
+     * @param timing the stage timings receiving the conversion time
+     * @param changes the comparison with the UID index selecting the groups to convert, or null to convert all
+     * @return a map of reservations and their corresponding appointments, in order of first occurrence in the file
+     * @throws RaplaException, ParseException, ParserException, IOException if an error occurs during import
+     */
+    private Map<ReferenceInfo<Reservation>, List<Appointment>> importAppointmentsFromIcs(InputStream icsStream, String userName, ImportMetrics.Timing timing, IcsUidIndex.Changes changes) throws RaplaException, ParseException, ParserException, IOException {
+        User user = facade.getUser(userName);
 
-            // Group appointments by X-RAPLA-ID
-            tempMap.computeIfAbsent(raplaId, k -> new ArrayList<>()).add(appointment);
+        Map<String, List<ParsedAppointment>> tempMap;
+        if (changes == null || !changes.hasIndexedGroups()) {
+            // Without imported groups every group is converted, so the events are observed in the same pass
+            tempMap = convertEvents(icsStream, timing, null, changes);
+        } else {
+            java.nio.file.Path workDirectory = ImportSettings.getWorkDirectory();
+            Files.createDirectories(workDirectory);
+            java.nio.file.Path spoolFile = Files.createTempFile(workDirectory, "incremental-", ".ics");
+            try {
+                Files.copy(icsStream, spoolFile, StandardCopyOption.REPLACE_EXISTING);
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(spoolFile), GzipUploads.BUFFER_SIZE)) {
+                    new IcsEventReader().read(in, changes::observe);
+                }
+                // Whether a group changed is only known once all its events were read
+                Set<String> unchangedGroups = changes.evaluate();
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(spoolFile), GzipUploads.BUFFER_SIZE)) {
+                    tempMap = convertEvents(in, timing, unchangedGroups, null);
+                }
+            } finally {
+                deleteSpooled(spoolFile);
+            }
         }
 
-        // Convert grouped appointments into the final map format
-        for (Map.Entry<String, List<Appointment>> entry : tempMap.entrySet()) {
-            String raplaId = entry.getKey();
-            List<Appointment> appointments = entry.getValue();
-
+        // Collapse regular occurrences into series and create the appointments of each reservation
+        long convertStart = System.nanoTime();
+        SeriesDetector seriesDetector = new SeriesDetector(ImportSettings.getMinSeriesLength());
+        Map<ReferenceInfo<Reservation>, List<Appointment>> newMap = new LinkedHashMap<>();
+        for (Map.Entry<String, List<ParsedAppointment>> entry : tempMap.entrySet()) {
+            List<ParsedAppointment> collapsed = seriesDetector.collapse(entry.getValue());
+            List<Appointment> appointments = new ArrayList<>(collapsed.size());
+            for (ParsedAppointment parsed : collapsed) {
+                appointments.add(createAppointment(parsed, user));
+            }
             // Convert raplaId to ReferenceInfo<Reservation>
-            ReferenceInfo<Reservation> refInfo = new ReferenceInfo<>(raplaId, Reservation.class);
+            ReferenceInfo<Reservation> refInfo = new ReferenceInfo<>(entry.getKey(), Reservation.class);
             newMap.put(refInfo, appointments);
         }
+        timing.since(ImportMetrics.Stage.CONVERT, convertStart);
         return newMap;
     }
 
     /**
-     * Converts a timestamp string to a Date object in UTC time zone, adjusting for DST.
+     * Reads the VEVENTs and converts them into occurrences grouped by X-RAPLA-ID, either as each event completes
+     * or, with a conversion parallelism above one, on a fork/join pool chunk by chunk.
      *
-     * @param timestamp the timestamp string
-     * @return the converted Date object
+     * @param icsStream the stream providing the UTF-8 encoded ICS content
+     * @param timing the stage timings receiving the conversion time
+     * @param skippedGroups the X-RAPLA-IDs of groups whose events are not converted, or null to convert all
+     * @param changes the comparison with the UID index observing every event read, or null
+     * @return the occurrences by X-RAPLA-ID, in order of first occurrence in the file
+     * @throws RaplaException, ParseException, ParserException, IOException if an error occurs during import
+     */
+    private Map<String, List<ParsedAppointment>> convertEvents(InputStream icsStream, ImportMetrics.Timing timing, Set<String> skippedGroups, IcsUidIndex.Changes changes) throws RaplaException, ParseException, ParserException, IOException {
+        // Converter per import, since VTIMEZONE definitions only apply to the file they are declared in
+        IcsDateConverter dateConverter = new IcsDateConverter();
+
+        RecurrenceExpander expander = new RecurrenceExpander(dateConverter, ImportSettings.getMaxOccurrences());
+
+        // Temporary map to group occurrences by X-RAPLA-ID
+        Map<String, List<ParsedAppointment>> tempMap;
+        if (ImportSettings.getConversionParallelism() > 1) {
+            // Collect the events in chunks and convert each full chunk on a fork/join pool, so only a chunk is held
+            ParallelEventConverter.EventConversion conversion = event -> convertEvent(event, dateConverter, expander);
+            int chunkSize = ImportSettings.getParallelChunkSize();
+            List<IcsEvent> chunk = new ArrayList<>(Math.min(chunkSize, 1024));
+            Map<String, List<ParsedAppointment>> grouped = new LinkedHashMap<>();
+            new IcsEventReader().read(icsStream, new IcsEventReader.IcsEventHandler() {
+                @Override
+                public void handleEvent(IcsEvent event) throws RaplaException, ParseException {
+                    if (changes != null) {
+                        changes.observe(event);
+                    }
+                    if (skippedGroups == null || !skippedGroups.contains(event.getRaplaId())) {
+                        chunk.add(event);
+                        if (chunk.size() >= chunkSize) {
+                            convertChunk(conversion, chunk, grouped, timing);
+                        }
+                    }
+                }
+
+                @Override
+                public void handleTimeZone(IcsTimeZone timeZone) throws ParseException {
+                    dateConverter.registerTimeZone(timeZone);
+                }
+            });
+            convertChunk(conversion, chunk, grouped, timing);
+            tempMap = grouped;
+        } else {
+            Map<String, List<ParsedAppointment>> grouped = new LinkedHashMap<>();
+            new IcsEventReader().read(icsStream, new IcsEventReader.IcsEventHandler() {
+                @Override
+                public void handleEvent(IcsEvent event) throws RaplaException, ParseException {
+                    if (changes != null) {
+                        changes.observe(event);
+                    }
+                    if (skippedGroups != null && skippedGroups.contains(event.getRaplaId())) {
+                        return;
+                    }
+                    long convertStart = System.nanoTime();
+                    List<ParsedAppointment> occurrences = convertEvent(event, dateConverter, expander);
+                    timing.since(ImportMetrics.Stage.CONVERT, convertStart);
+                    // Group occurrences by X-RAPLA-ID
+                    grouped.computeIfAbsent(event.getRaplaId(), k -> new ArrayList<>()).addAll(occurrences);
+                }
+
+                @Override
+                public void handleTimeZone(IcsTimeZone timeZone) throws ParseException {
+                    dateConverter.registerTimeZone(timeZone);
+                }
+            });
+            tempMap = grouped;
+        }
+        return tempMap;
+    }
+
+    /**
+     * Converts a chunk of events, on the fork/join pool if it is large enough, and appends their occurrences to the
+     * groups of the earlier chunks, which keeps the order of a sequential conversion. The chunk is cleared.
+     *
+     * @param conversion the conversion of the current import
+     * @param chunk the next events in file order
+     * @param grouped the occurrences of the earlier chunks by X-RAPLA-ID
+     * @param timing the stage timings receiving the conversion time
+     * @throws RaplaException, ParseException if an event cannot be converted
      */
-    public Date convertToDateWithUTCAdjustment(String timestamp) {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static void convertChunk(ParallelEventConverter.EventConversion conversion, List<IcsEvent> chunk, Map<String, List<ParsedAppointment>> grouped, ImportMetrics.Timing timing) throws RaplaException, ParseException {
+        long convertStart = System.nanoTime();
+        if (chunk.size() >= ImportSettings.getParallelThreshold()) {
+            for (Map.Entry<String, List<ParsedAppointment>> entry : new ParallelEventConverter(conversion).convert(chunk).entrySet()) {
+                grouped.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).addAll(entry.getValue());
+            }
+        } else {
+            for (IcsEvent event : chunk) {
+                grouped.computeIfAbsent(event.getRaplaId(), k -> new ArrayList<>()).addAll(conversion.convert(event));
+            }
+        }
+        chunk.clear();
+        timing.since(ImportMetrics.Stage.CONVERT, convertStart);
+    }
+
+    /**
+     * Converts a single VEVENT into its occurrences. Called from the fork/join pool in parallel mode, so it must
+     * only touch the thread-safe date converter and expander.
+     *
+     * @param event the parsed VEVENT
+     * @param dateConverter the converter of the current import
+     * @param expander the expander of RRULE, RDATE and EXDATE of the current import
+     * @return the occurrences ordered by start
+     * @throws ParseException if the event is invalid
+     */
+    private List<ParsedAppointment> convertEvent(IcsEvent event, IcsDateConverter dateConverter, RecurrenceExpander expander) throws ParseException {
+        // Extract DTSTART, DTEND, and X-RAPLA-ID
+        IcsProperty start = requireProperty(event, Property.DTSTART);
+        requireProperty(event, IcsEvent.X_RAPLA_ID);
+
+        Date startDate = convertDate(dateConverter, event, start);
+        Date endDate;
+        try {
+            endDate = dateConverter.toRaplaEnd(start, event.getProperty(Property.DTEND), event.getProperty(Property.DURATION), startDate);
+        } catch (ParseException e) {
+            throw invalidEvent(event, Property.DTEND, e);
+        }
+
         try {
-            LocalDateTime localDateTime = LocalDateTime.parse(timestamp, formatter);
-            ZonedDateTime utcDateTime = localDateTime.atZone(ZoneId.of("UTC"));
-            ZonedDateTime berlinDateTime = utcDateTime.withZoneSameInstant(ZoneId.of("Europe/Berlin"));
+            return expander.expand(event, start, startDate, endDate, dateConverter.isDateOnly(start));
+        } catch (ParseException e) {
+            throw invalidEvent(event, Property.RRULE, e);
+        }
+    }
 
-            // Check if the date is in DST in the Europe/Berlin time zone
-            boolean isDST = berlinDateTime.getZone().getRules().isDaylightSavings(berlinDateTime.toInstant());
+    /**
+     * Creates an appointment, with a repeating rule and its exceptions for a series.
+     *
+     * @param parsed the occurrence or series
+     * @param user the user creating the appointment
+     * @return the new appointment
+     * @throws RaplaException if the appointment cannot be created
+     */
+    private Appointment createAppointment(ParsedAppointment parsed, User user) throws RaplaException {
+        // Create a new appointment with the start and end dates
+        Appointment appointment = facade.newAppointmentWithUser(parsed.getStart(), parsed.getEnd(), user);
+        if (parsed.isWholeDays()) {
+            appointment.setWholeDays(true);
+        }
+        if (parsed.getRepeatingType() != null) {
+            appointment.setRepeatingEnabled(true);
+            Repeating repeating = appointment.getRepeating();
+            repeating.setType(parsed.getRepeatingType());
+            repeating.setInterval(parsed.getInterval());
+            repeating.setNumber(parsed.getNumber());
+            for (Date exception : parsed.getExceptions()) {
+                repeating.addException(exception);
+            }
+        }
+        return appointment;
+    }
 
-            // Adjust the UTC time by +1 or +2 hours
-            ZonedDateTime adjustedUtcDateTime = utcDateTime.plusHours(isDST ? 2 : 1);
+    /**
+     * Gets a mandatory property of an event.
+     *
+     * @param event the parsed VEVENT
+     * @param propertyName the name of the property
+     * @return the property
+     * @throws ParseException if the event does not contain the property
+     */
+    private IcsProperty requireProperty(IcsEvent event, String propertyName) throws ParseException {
+        IcsProperty property = event.getProperty(propertyName);
+        if (property == null || property.getValue() == null) {
+            throw new ParseException("VEVENT #" + (event.getIndex() + 1) + " is missing " + propertyName, event.getIndex());
+        }
+        return property;
+    }
 
-            return Date.from(adjustedUtcDateTime.toInstant());
-        } catch (DateTimeParseException e) {
-            e.printStackTrace();
-            return null;
+    /**
+     * Converts a date property of an event, naming the event in the error if the value is invalid.
+     *
+     * @param dateConverter the converter of the current import
+     * @param event the parsed VEVENT
+     * @param property the DTSTART or DTEND property
+     * @return the date in Rapla time
+     * @throws ParseException if the value cannot be converted
+     */
+    private Date convertDate(IcsDateConverter dateConverter, IcsEvent event, IcsProperty property) throws ParseException {
+        try {
+            return dateConverter.toRaplaDate(property);
+        } catch (ParseException e) {
+            throw invalidEvent(event, property.getName(), e);
         }
     }
 
+    private ParseException invalidEvent(IcsEvent event, String propertyName, ParseException cause) {
+        ParseException e = new ParseException("Invalid " + propertyName + " in VEVENT #" + (event.getIndex() + 1) + ": " + cause.getMessage(), event.getIndex());
+        e.initCause(cause);
+        return e;
+    }
+
+    /**
+     * Converts a UTC timestamp string (yyyyMMdd'T'HHmmss'Z') to a Date in Rapla time, adjusting for DST.
+     *
+     * @param timestamp the timestamp string
+     * @return the converted Date object
+     * @throws ParseException if the timestamp is not a valid ICS date-time
+     */
+    public Date convertToDateWithUTCAdjustment(String timestamp) throws ParseException {
+        return utcConverter.toRaplaDate(timestamp, null);
+    }
+
     /**
      * Generates an HTML response page.
      *
@@ -303,23 +1860,5 @@ public class ImportController {
         out.close();
     }
 
-    /**
-     * Converts an InputStream to a String.
-     *
-     * @param is the InputStream
-     * @return the resulting String
-     * @throws IOException if an error occurs during conversion
-     */
-    private String convertStreamToString(InputStream is) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line).append("\n");
-            }
-        }
-        return sb.toString();
-    }
-
 
 }
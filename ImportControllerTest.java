@@ -17,18 +17,26 @@
 
 package org.rapla.plugin.wwi2021;
 
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExternalResource;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.rapla.entities.User;
 import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Repeating;
+import org.rapla.entities.domain.RepeatingType;
 import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.domain.permission.PermissionController;
 import org.rapla.entities.storage.ReferenceInfo;
 import org.rapla.facade.RaplaFacade;
+import org.rapla.framework.RaplaException;
 import org.rapla.logger.Logger;
 import org.rapla.server.RemoteSession;
 import org.rapla.storage.RaplaSecurityException;
@@ -36,10 +44,20 @@ import org.rapla.storage.RaplaSecurityException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.ParseException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -73,6 +91,25 @@ public class ImportControllerTest {
 
     private User mockUser;
     private ICSFileUploadForm form;
+    private Path workDir;
+
+    /**
+     * Gives each test its own work directory for checkpoints, indexes and the audit trail. It is a rule, since the
+     * runner creates the controller, and with it the audit trail, before the {@code @Before} methods run.
+     */
+    @Rule
+    public final ExternalResource workDirectory = new ExternalResource() {
+        @Override
+        protected void before() throws IOException {
+            workDir = Files.createTempDirectory("semesterplan-test");
+            System.setProperty(ImportSettings.PREFIX + "workDir", workDir.toString());
+        }
+
+        @Override
+        protected void after() {
+            System.clearProperty(ImportSettings.PREFIX + "workDir");
+        }
+    };
 
     /**
      * Set up the test environment before each test.
@@ -95,6 +132,62 @@ public class ImportControllerTest {
         when(response.getWriter()).thenReturn(writer);
     }
 
+    /**
+     * Remove the work directory after each test.
+     *
+     * @throws Exception if an error occurs during cleanup
+     */
+    @After
+    public void tearDown() throws Exception {
+        // The audit trail is written in the background
+        importController.awaitAudit();
+        try (Stream<Path> files = Files.walk(workDir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Builds an ICS file with one event per reservation id, on consecutive days starting 2021-07-02.
+     */
+    private static String plan(String... reservationIds) {
+        StringBuilder ics = new StringBuilder("BEGIN:VCALENDAR\n");
+        for (int i = 0; i < reservationIds.length; i++) {
+            String day = String.format("202107%02d", 2 + i);
+            ics.append("BEGIN:VEVENT\n")
+                    .append("DTSTART:").append(day).append("T120000Z\n")
+                    .append("DTEND:").append(day).append("T130000Z\n")
+                    .append("X-RAPLA-ID:").append(reservationIds[i]).append('\n')
+                    .append("END:VEVENT\n");
+        }
+        return ics.append("END:VCALENDAR").toString();
+    }
+
+    /**
+     * Creates a reservation mock with the given id and no appointments.
+     */
+    private static Reservation stubReservation(String id) {
+        Reservation reservation = mock(Reservation.class);
+        when(reservation.getId()).thenReturn(id);
+        when(reservation.getAppointments()).thenReturn(new Appointment[0]);
+        return reservation;
+    }
+
+    /**
+     * Lets the facade resolve the given reservations, any other id is unknown, and create appointments for them.
+     */
+    private void stubReservations(Reservation... reservations) throws RaplaException {
+        Map<String, Reservation> byId = new HashMap<>();
+        for (Reservation reservation : reservations) {
+            byId.put(reservation.getId(), reservation);
+        }
+        when(facade.getUser(anyString())).thenReturn(mockUser);
+        when(facade.newAppointmentWithUser(any(Date.class), any(Date.class), any(User.class))).thenReturn(mock(Appointment.class));
+        when(facade.tryResolve(any(ReferenceInfo.class))).thenAnswer(invocation ->
+                byId.get(((ReferenceInfo<?>) invocation.getArgument(0)).getId()));
+    }
+
     /**
      * Test successful import of a semester plan.
      *
@@ -154,6 +247,390 @@ public class ImportControllerTest {
         verify(writer).close();
     }
 
+    /**
+     * Test that reservations are resolved and edited in one bulk operation and unknown ids are reported without exceptions.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testImportSemesterplan_BulkResolution() throws Exception {
+        when(session.checkAndGetUser(request)).thenReturn(mockUser);
+        String icsContent = plan("known", "unknown");
+        form.setIcsFile(new ByteArrayInputStream(icsContent.getBytes(StandardCharsets.UTF_8)));
+
+        stubReservations(stubReservation("known"));
+        Reservation editable = stubReservation("known");
+        when(facade.editList(anyCollection())).thenReturn(Collections.singletonList(editable));
+
+        importController.importSemesterplan(request, response, form);
+
+        verify(response).setStatus(HttpServletResponse.SC_OK);
+        verify(facade, times(1)).editList(anyCollection());
+        verify(facade, never()).resolve(any(ReferenceInfo.class));
+        verify(facade, never()).edit(any());
+        verify(editable).addAppointment(any(Appointment.class));
+        verify(logger).warn(contains("unknown"));
+    }
+
+    /**
+     * Test that a reservation the facade returns no editable copy for is reported as failed instead of being
+     * counted as stored.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testImportSemesterplan_EditListMissingCopy() throws Exception {
+        when(session.checkAndGetUser(request)).thenReturn(mockUser);
+        form.setIcsFile(new ByteArrayInputStream(plan("known", "lost").getBytes(StandardCharsets.UTF_8)));
+        stubReservations(stubReservation("known"), stubReservation("lost"));
+        Reservation editable = stubReservation("known");
+        when(facade.editList(anyCollection())).thenReturn(Collections.singletonList(editable));
+
+        importController.importSemesterplan(request, response, form);
+
+        verify(editable).addAppointment(any(Appointment.class));
+        verify(facade, times(1)).storeAndRemove(any(), any(), any());
+        verify(logger).error("Reservation could not be opened for editing: lost");
+        verify(logger).warn(contains("lost"));
+    }
+
+    /**
+     * Test that uploading the same file again skips reservations not modified since the first import.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testImportSemesterplan_SkipUnchanged() throws Exception {
+        when(session.checkAndGetUser(request)).thenReturn(mockUser);
+        String icsContent = plan("known");
+
+        Reservation persistent = stubReservation("known");
+        when(persistent.getLastChanged()).thenReturn(new Date(1625227200000L));
+        stubReservations(persistent);
+        Reservation editable = stubReservation("known");
+        when(facade.editList(anyCollection())).thenReturn(Collections.singletonList(editable));
+
+        form.setIcsFile(new ByteArrayInputStream(icsContent.getBytes(StandardCharsets.UTF_8)));
+        importController.importSemesterplan(request, response, form);
+        form.setIcsFile(new ByteArrayInputStream(icsContent.getBytes(StandardCharsets.UTF_8)));
+        importController.importSemesterplan(request, response, form);
+
+        verify(facade, times(1)).editList(anyCollection());
+        verify(facade, times(1)).storeAndRemove(any(), any(), any());
+        verify(response).setHeader("X-Import-Skipped", "1");
+        verify(writer).write("Import successful, 1 unchanged reservations skipped");
+    }
+
+    /**
+     * Test that uploading the same file again through the multipart endpoint is recognized by its fingerprint and
+     * skipped without parsing it again.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testImportSemesterplan_SkipKnownUpload() throws Exception {
+        System.setProperty(ImportSettings.PREFIX + "incrementalImport", "false");
+        try {
+            when(session.checkAndGetUser(request)).thenReturn(mockUser);
+            String icsContent = plan("known");
+
+            Reservation persistent = stubReservation("known");
+            when(persistent.getLastChanged()).thenReturn(new Date(1625227200000L));
+            stubReservations(persistent);
+            Reservation editable = stubReservation("known");
+            when(facade.editList(anyCollection())).thenReturn(Collections.singletonList(editable));
+
+            form.setIcsFile(new ByteArrayInputStream(icsContent.getBytes(StandardCharsets.UTF_8)));
+            importController.importSemesterplan(request, response, form);
+            form.setIcsFile(new ByteArrayInputStream(icsContent.getBytes(StandardCharsets.UTF_8)));
+            importController.importSemesterplan(request, response, form);
+
+            // The second upload is neither converted nor committed
+            verify(facade, times(1)).newAppointmentWithUser(any(Date.class), any(Date.class), any(User.class));
+            verify(facade, times(1)).editList(anyCollection());
+            verify(facade, times(1)).storeAndRemove(any(), any(), any());
+            verify(writer).write("Import successful, 1 unchanged reservations skipped");
+        } finally {
+            System.clearProperty(ImportSettings.PREFIX + "incrementalImport");
+        }
+    }
+
+    /**
+     * Test that the NDJSON mode streams one line per reservation and ends with a summary line.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testImportSemesterplan_Ndjson() throws Exception {
+        when(session.checkAndGetUser(request)).thenReturn(mockUser);
+        when(request.getHeader("Accept")).thenReturn("application/x-ndjson");
+        String icsContent = plan("known", "unknown");
+
+        stubReservations(stubReservation("known"));
+        Reservation editable = stubReservation("known");
+        when(facade.editList(anyCollection())).thenReturn(Collections.singletonList(editable));
+
+        form.setIcsFile(new ByteArrayInputStream(icsContent.getBytes(StandardCharsets.UTF_8)));
+        importController.importSemesterplan(request, response, form);
+
+        verify(response).setStatus(HttpServletResponse.SC_OK);
+        verify(response).setContentType("application/x-ndjson;charset=UTF-8");
+        verify(writer).write("{\"type\":\"parsed\",\"events\":2,\"reservations\":2}");
+        verify(writer).write("{\"type\":\"reservation\",\"id\":\"unknown\",\"status\":\"failed\",\"error\":\"Unknown reservation id\"}");
+        verify(writer).write("{\"type\":\"reservation\",\"id\":\"known\",\"status\":\"stored\",\"added\":1,\"removed\":0,\"moved\":0,\"kept\":0}");
+        verify(writer).write(startsWith("{\"type\":\"summary\","));
+        verify(writer, atLeast(5)).flush();
+        verify(writer, never()).close();
+    }
+
+    /**
+     * Test that a dry run reports the changes per reservation and the unknown ids without editing or storing.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testImportSemesterplan_DryRun() throws Exception {
+        when(session.checkAndGetUser(request)).thenReturn(mockUser);
+        when(request.getParameter("dryRun")).thenReturn("true");
+        String icsContent = plan("known", "unknown");
+
+        stubReservations(stubReservation("known"));
+
+        form.setIcsFile(new ByteArrayInputStream(icsContent.getBytes(StandardCharsets.UTF_8)));
+        importController.importSemesterplan(request, response, form);
+
+        verify(facade, never()).editList(anyCollection());
+        verify(facade, never()).storeAndRemove(any(), any(), any());
+        verify(response).setStatus(HttpServletResponse.SC_OK);
+        ArgumentCaptor<String> json = ArgumentCaptor.forClass(String.class);
+        verify(writer).write(json.capture());
+        assertTrue(json.getValue().startsWith("{\"valid\":false,"));
+        assertTrue(json.getValue().contains("{\"id\":\"known\",\"added\":1,\"removed\":0,\"moved\":0,\"kept\":0}"));
+        assertTrue(json.getValue().contains("\"unknownReservationIds\":[\"unknown\"]"));
+    }
+
+    /**
+     * Test that a dry run of an unparseable file reports the parser error.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testImportSemesterplan_DryRunInvalidDate() throws Exception {
+        when(session.checkAndGetUser(request)).thenReturn(mockUser);
+        when(request.getParameter("dryRun")).thenReturn("true");
+        when(facade.getUser(anyString())).thenReturn(mockUser);
+        String icsContent = "BEGIN:VCALENDAR\n" +
+                "BEGIN:VEVENT\n" +
+                "DTSTART:2021-07-02\n" +
+                "DTEND:20210702T130000Z\n" +
+                "X-RAPLA-ID:known\n" +
+                "END:VEVENT\n" +
+                "END:VCALENDAR";
+
+        form.setIcsFile(new ByteArrayInputStream(icsContent.getBytes(StandardCharsets.UTF_8)));
+        importController.importSemesterplan(request, response, form);
+
+        verify(facade, never()).storeAndRemove(any(), any(), any());
+        verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        verify(writer).write(startsWith("{\"valid\":false,\"error\":"));
+    }
+
+    /**
+     * Test that the audit record of an import is only shown to its user and reported as unknown to others.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testGetAuditRecord_OtherUser() throws Exception {
+        when(session.checkAndGetUser(request)).thenReturn(mockUser);
+        form.setIcsFile(new ByteArrayInputStream("BEGIN:VCALENDAR\nEND:VCALENDAR".getBytes(StandardCharsets.UTF_8)));
+        importController.importSemesterplan(request, response, form);
+
+        importController.getAuditHistory(request, response, null, 1);
+        ArgumentCaptor<String> history = ArgumentCaptor.forClass(String.class);
+        verify(writer, atLeastOnce()).write(history.capture());
+        Matcher id = Pattern.compile("\"id\":\"([^\"]+)\"").matcher(history.getValue());
+        assertTrue(id.find());
+
+        User other = mock(User.class);
+        when(other.getUsername()).thenReturn("other");
+        when(session.checkAndGetUser(request)).thenReturn(other);
+        importController.getAuditRecord(request, response, id.group(1));
+
+        verify(response).setStatus(HttpServletResponse.SC_NOT_FOUND);
+        verify(writer).write("{\"error\":\"Unknown import\"}");
+    }
+
+    /**
+     * Test that finished imports are counted in the metrics and that the metrics require an administrator.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testGetMetrics() throws Exception {
+        when(session.checkAndGetUser(request)).thenReturn(mockUser);
+        form.setIcsFile(new ByteArrayInputStream("BEGIN:VCALENDAR\nEND:VCALENDAR".getBytes(StandardCharsets.UTF_8)));
+        importController.importSemesterplan(request, response, form);
+
+        importController.getMetrics(request, response);
+        verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+
+        when(mockUser.isAdmin()).thenReturn(true);
+        importController.getMetrics(request, response);
+
+        ArgumentCaptor<String> output = ArgumentCaptor.forClass(String.class);
+        verify(writer, atLeastOnce()).write(output.capture());
+        String metrics = output.getValue();
+        assertTrue(metrics.contains("semesterplan_imports_total{result=\"success\"} 1\n"));
+        assertTrue(metrics.contains("semesterplan_import_payload_bytes_count 1\n"));
+        assertTrue(metrics.contains("semesterplan_import_stage_seconds_count{stage=\"total\"} 1\n"));
+    }
+
+    /**
+     * Test that a failed chunk keeps the committed chunks in the checkpoint and a re-upload resumes after them.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testImportSemesterplan_ResumeAfterFailedChunk() throws Exception {
+        System.setProperty(ImportSettings.PREFIX + "batchSize", "1");
+        try {
+            when(session.checkAndGetUser(request)).thenReturn(mockUser);
+            stubReservations(stubReservation("first"), stubReservation("second"));
+            when(facade.editList(anyCollection())).thenAnswer(invocation -> invocation.getArgument(0));
+            doNothing().doThrow(new RaplaException("storage unavailable")).doNothing()
+                    .when(facade).storeAndRemove(any(), any(), any());
+
+            String icsContent = plan("first", "second");
+
+            form.setIcsFile(new ByteArrayInputStream(icsContent.getBytes(StandardCharsets.UTF_8)));
+            importController.importSemesterplan(request, response, form);
+            verify(response).setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+
+            form.setIcsFile(new ByteArrayInputStream(icsContent.getBytes(StandardCharsets.UTF_8)));
+            importController.importSemesterplan(request, response, form);
+            verify(response).setStatus(HttpServletResponse.SC_OK);
+
+            // first chunk, failed second chunk, resumed second chunk
+            verify(facade, times(3)).storeAndRemove(any(), any(), any());
+            try (Stream<Path> files = Files.list(workDir)) {
+                assertEquals("checkpoint is removed after a complete import", 0, files.filter(file -> file.toString().endsWith(".checkpoint")).count());
+            }
+        } finally {
+            System.clearProperty(ImportSettings.PREFIX + "batchSize");
+        }
+    }
+
+    /**
+     * Test that an asynchronous import returns a job id immediately and its status can be polled until it is done.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testImportSemesterplan_Async() throws Exception {
+        when(session.checkAndGetUser(request)).thenReturn(mockUser);
+        when(request.getParameter("async")).thenReturn("true");
+        form.setIcsFile(new ByteArrayInputStream("BEGIN:VCALENDAR\nEND:VCALENDAR".getBytes(StandardCharsets.UTF_8)));
+
+        importController.importSemesterplan(request, response, form);
+
+        verify(response).setStatus(HttpServletResponse.SC_ACCEPTED);
+        ArgumentCaptor<String> body = ArgumentCaptor.forClass(String.class);
+        verify(writer).write(body.capture());
+        String jobId = body.getValue().replaceAll(".*\"jobId\":\"([^\"]+)\".*", "$1");
+
+        String status = "";
+        for (int attempt = 0; attempt < 100 && !status.contains("\"DONE\""); attempt++) {
+            Thread.sleep(50);
+            HttpServletResponse statusResponse = mock(HttpServletResponse.class);
+            StringWriter statusBody = new StringWriter();
+            when(statusResponse.getWriter()).thenReturn(new PrintWriter(statusBody));
+            importController.getImportJob(request, statusResponse, jobId);
+            status = statusBody.toString();
+        }
+        assertTrue(status, status.contains("\"phase\":\"DONE\""));
+        assertTrue(status, status.contains("\"failedReservationIds\":[]"));
+    }
+
+    /**
+     * Test that an asynchronous import whose upload fails with an unexpected exception while it is spooled releases
+     * its permit and leaves no spool file behind.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testImportSemesterplan_AsyncSpoolFailure() throws Exception {
+        when(session.checkAndGetUser(request)).thenReturn(mockUser);
+        when(request.getParameter("async")).thenReturn("true");
+        form.setIcsFile(new InputStream() {
+            @Override
+            public int read() {
+                throw new IllegalStateException("multipart part already consumed");
+            }
+        });
+
+        assertThrows(IllegalStateException.class, () -> importController.importSemesterplan(request, response, form));
+
+        assertEquals(0, importController.getAdmission().getQueued());
+        try (Stream<Path> files = Files.list(workDir)) {
+            assertEquals(0, files.filter(file -> file.getFileName().toString().startsWith("upload-")).count());
+        }
+    }
+
+    /**
+     * Test that the export leaves out reservations the user may not read and reports them like unknown ones.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testExportSemesterplan_ReadPermission() throws Exception {
+        when(session.checkAndGetUser(request)).thenReturn(mockUser);
+        Reservation readable = stubReservation("readable");
+        Reservation hidden = mock(Reservation.class);
+        when(facade.tryResolve(any(ReferenceInfo.class))).thenAnswer(invocation ->
+                "readable".equals(((ReferenceInfo<?>) invocation.getArgument(0)).getId()) ? readable : hidden);
+        PermissionController permissions = mock(PermissionController.class);
+        when(permissions.canRead(readable, mockUser)).thenReturn(true);
+        when(permissions.canRead(hidden, mockUser)).thenReturn(false);
+        when(facade.getPermissionController()).thenReturn(permissions);
+
+        importController.exportSemesterplan(request, response, Arrays.asList("readable", "hidden"), null, null);
+
+        verify(response).setStatus(HttpServletResponse.SC_OK);
+        verify(logger).warn("Export of unknown reservation hidden skipped");
+        verify(logger).info("Exported 1 reservations for semesterplaner");
+    }
+
+    /**
+     * Test that an export of a period queries the days from the first to the end of the last day and leaves out
+     * reservations the user may not read.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testExportSemesterplan_Period() throws Exception {
+        when(session.checkAndGetUser(request)).thenReturn(mockUser);
+        Reservation readable = stubReservation("readable");
+        Reservation hidden = stubReservation("hidden");
+        // Depending on the Rapla version the query returns an array or a collection
+        when(facade.getReservationsForAllocatable(isNull(), any(Date.class), any(Date.class), isNull())).thenAnswer(invocation ->
+                invocation.getMethod().getReturnType().isArray() ? new Reservation[]{readable, hidden} : Arrays.asList(readable, hidden));
+        PermissionController permissions = mock(PermissionController.class);
+        when(permissions.canRead(readable, mockUser)).thenReturn(true);
+        when(permissions.canRead(hidden, mockUser)).thenReturn(false);
+        when(facade.getPermissionController()).thenReturn(permissions);
+
+        importController.exportSemesterplan(request, response, null, "2021-10-01", "2021-10-31");
+
+        ArgumentCaptor<Date> start = ArgumentCaptor.forClass(Date.class);
+        ArgumentCaptor<Date> end = ArgumentCaptor.forClass(Date.class);
+        verify(facade).getReservationsForAllocatable(isNull(), start.capture(), end.capture(), isNull());
+        assertEquals(1633046400000L, start.getValue().getTime());
+        assertEquals(1635724800000L, end.getValue().getTime());
+        verify(response).setStatus(HttpServletResponse.SC_OK);
+        verify(logger).info("Exported 1 reservations for semesterplaner");
+    }
+
     /**
      * Test the importAppointmentsFromIcs method to ensure correct accumulation of entries with the same X-RAPLA-ID.
      *
@@ -187,16 +664,182 @@ public class ImportControllerTest {
     }
 
     /**
-     * Test the convertToDateWithUTCAdjustment method with an invalid date string.
+     * Test that importing from a stream groups events by X-RAPLA-ID in file order and ignores nested components.
      *
-     * @throws ParseException if a parsing error occurs
+     * @throws Exception if an error occurs during the test
      */
     @Test
+    public void testImportAppointmentsFromIcs_Stream() throws Exception {
+        String icsContent = "BEGIN:VCALENDAR\n" +
+                "BEGIN:VEVENT\n" +
+                "DTSTART:20210702T120000Z\n" +
+                "DTEND:20210702T130000Z\n" +
+                "X-RAPLA-ID:2\n" +
+                "BEGIN:VALARM\n" +
+                "TRIGGER:-PT15M\n" +
+                "END:VALARM\n" +
+                "END:VEVENT\n" +
+                "BEGIN:VEVENT\n" +
+                "DTSTART:20210703T120000Z\n" +
+                "DTEND:20210703T130000Z\n" +
+                "X-RAPLA-ID:1\n" +
+                "END:VEVENT\n" +
+                "BEGIN:VEVENT\n" +
+                "DTSTART:20210704T120000Z\n" +
+                "DTEND:20210704T130000Z\n" +
+                "X-RAPLA-ID:2\n" +
+                "END:VEVENT\n" +
+                "END:VCALENDAR";
+
+        when(facade.newAppointmentWithUser(any(Date.class), any(Date.class), any(User.class))).thenReturn(mock(Appointment.class));
+        when(facade.getUser(anyString())).thenReturn(mockUser);
+
+        InputStream icsStream = new ByteArrayInputStream(icsContent.getBytes(StandardCharsets.UTF_8));
+        Map<ReferenceInfo<Reservation>, List<Appointment>> result = importController.importAppointmentsFromIcs(icsStream, "semesterplaner");
+
+        assertEquals(2, result.size());
+        Iterator<Map.Entry<ReferenceInfo<Reservation>, List<Appointment>>> entries = result.entrySet().iterator();
+        assertEquals(2, entries.next().getValue().size());
+        assertEquals(1, entries.next().getValue().size());
+        verify(facade, times(1)).getUser("semesterplaner");
+    }
+
+    /**
+     * Test that the parallel conversion groups events exactly like the sequential one, also across chunks.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testImportAppointmentsFromIcs_Parallel() throws Exception {
+        StringBuilder icsContent = new StringBuilder("BEGIN:VCALENDAR\n");
+        for (int i = 0; i < 600; i++) {
+            icsContent.append("BEGIN:VEVENT\n")
+                    .append(String.format("DTSTART:202107%02dT%02d0000Z\n", 1 + i / 24, i % 24))
+                    .append("DURATION:PT1H\n")
+                    .append("X-RAPLA-ID:").append(i % 7).append('\n')
+                    .append("END:VEVENT\n");
+        }
+        icsContent.append("END:VCALENDAR");
+
+        Map<Appointment, Date> startDates = Collections.synchronizedMap(new IdentityHashMap<>());
+        when(facade.newAppointmentWithUser(any(Date.class), any(Date.class), any(User.class))).thenAnswer(invocation -> {
+            Appointment appointment = mock(Appointment.class);
+            startDates.put(appointment, invocation.getArgument(0));
+            return appointment;
+        });
+        when(facade.getUser(anyString())).thenReturn(mockUser);
+
+        System.setProperty(ImportSettings.PREFIX + "conversionParallelism", "4");
+        System.setProperty(ImportSettings.PREFIX + "parallelThreshold", "1");
+        // 600 events give nine full chunks and a remainder, each converted on the pool
+        System.setProperty(ImportSettings.PREFIX + "parallelChunkSize", "64");
+        // Keep one appointment per event, the events of a reservation recur weekly at the same time
+        System.setProperty(ImportSettings.PREFIX + "minSeriesLength", "0");
+        try {
+            Map<ReferenceInfo<Reservation>, List<Appointment>> result = importController.importAppointmentsFromIcs(icsContent.toString(), "semesterplaner");
+
+            assertEquals(7, result.size());
+            int expectedId = 0;
+            for (Map.Entry<ReferenceInfo<Reservation>, List<Appointment>> entry : result.entrySet()) {
+                assertEquals(String.valueOf(expectedId), entry.getKey().getId());
+                List<Appointment> appointments = entry.getValue();
+                assertEquals(expectedId < 600 % 7 ? 86 : 85, appointments.size());
+                for (int i = 1; i < appointments.size(); i++) {
+                    assertTrue(startDates.get(appointments.get(i - 1)).before(startDates.get(appointments.get(i))));
+                }
+                expectedId++;
+            }
+        } finally {
+            System.clearProperty(ImportSettings.PREFIX + "conversionParallelism");
+            System.clearProperty(ImportSettings.PREFIX + "parallelThreshold");
+            System.clearProperty(ImportSettings.PREFIX + "parallelChunkSize");
+            System.clearProperty(ImportSettings.PREFIX + "minSeriesLength");
+        }
+    }
+
+    /**
+     * Test that a weekly RRULE with an EXDATE and separately listed weekly events both become a single repeating
+     * appointment per reservation.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testImportAppointmentsFromIcs_WeeklySeries() throws Exception {
+        StringBuilder icsContent = new StringBuilder("BEGIN:VCALENDAR\n" +
+                "BEGIN:VEVENT\n" +
+                "DTSTART;TZID=Europe/Berlin:20211004T091500\n" +
+                "DTEND;TZID=Europe/Berlin:20211004T104500\n" +
+                "RRULE:FREQ=WEEKLY;COUNT=12\n" +
+                "EXDATE;TZID=Europe/Berlin:20211101T091500\n" +
+                "X-RAPLA-ID:rule\n" +
+                "END:VEVENT\n");
+        for (int week = 0; week < 4; week++) {
+            icsContent.append("BEGIN:VEVENT\n")
+                    .append(String.format("DTSTART;TZID=Europe/Berlin:202110%02dT131500\n", 5 + week * 7))
+                    .append("DURATION:PT90M\n")
+                    .append("X-RAPLA-ID:listed\n")
+                    .append("END:VEVENT\n");
+        }
+        icsContent.append("END:VCALENDAR");
+
+        Repeating repeating = mock(Repeating.class);
+        Appointment appointment = mock(Appointment.class);
+        when(appointment.getRepeating()).thenReturn(repeating);
+        when(facade.newAppointmentWithUser(any(Date.class), any(Date.class), any(User.class))).thenReturn(appointment);
+        when(facade.getUser(anyString())).thenReturn(mockUser);
+
+        Map<ReferenceInfo<Reservation>, List<Appointment>> result = importController.importAppointmentsFromIcs(icsContent.toString(), "semesterplaner");
+
+        assertEquals(2, result.size());
+        for (List<Appointment> appointments : result.values()) {
+            assertEquals(1, appointments.size());
+        }
+        verify(facade, times(2)).newAppointmentWithUser(any(Date.class), any(Date.class), any(User.class));
+        verify(appointment, times(2)).setRepeatingEnabled(true);
+        verify(repeating, times(2)).setType(RepeatingType.WEEKLY);
+        verify(repeating).setNumber(12);
+        verify(repeating).setNumber(4);
+        // Rapla time is the Berlin wall clock encoded as UTC
+        verify(repeating).addException(new Date(1635758100000L));
+    }
+
+    /**
+     * Test that gzip compressed uploads are recognized by their magic bytes and decompressed while parsing.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testImportAppointmentsFromIcs_Gzip() throws Exception {
+        String icsContent = "BEGIN:VCALENDAR\n" +
+                "BEGIN:VEVENT\n" +
+                "DTSTART:20210702T120000Z\n" +
+                "DTEND:20210702T130000Z\n" +
+                "X-RAPLA-ID:1\n" +
+                "END:VEVENT\n" +
+                "END:VCALENDAR";
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(icsContent.getBytes(StandardCharsets.UTF_8));
+        }
+
+        when(facade.newAppointmentWithUser(any(Date.class), any(Date.class), any(User.class))).thenReturn(mock(Appointment.class));
+        when(facade.getUser(anyString())).thenReturn(mockUser);
+
+        Map<ReferenceInfo<Reservation>, List<Appointment>> result = importController.importAppointmentsFromIcs(new ByteArrayInputStream(compressed.toByteArray()), "semesterplaner");
+
+        assertEquals(1, result.size());
+        assertEquals("1", result.keySet().iterator().next().getId());
+    }
+
+    /**
+     * Test that the convertToDateWithUTCAdjustment method rejects an invalid date string instead of returning null.
+     *
+     * @throws ParseException if a parsing error occurs
+     */
+    @Test(expected = ParseException.class)
     public void testConvertToDateWithUTCAdjustment_InvalidDate() throws ParseException {
         String timestamp = "invalid_date";
-        Date date = importController.convertToDateWithUTCAdjustment(timestamp);
-
-        assertNull(date);
+        importController.convertToDateWithUTCAdjustment(timestamp);
     }
 
     /**
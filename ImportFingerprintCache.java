@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.rapla.entities.domain.Reservation;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ImportFingerprintCache remembers the content hashes of recent uploads and of the event groups of every
+ * reservation a user imported. A reservation whose event group hash is unchanged and which was not modified in
+ * Rapla since the last import can be skipped without comparing or editing it. Both caches are bounded LRU maps.
+ */
+public class ImportFingerprintCache {
+
+    /**
+     * Users whose fingerprints are kept.
+     */
+    static final int MAX_USERS = 256;
+
+    /**
+     * Uploads remembered per user.
+     */
+    static final int MAX_UPLOADS = 8;
+
+    private static class GroupEntry {
+        private final String hash;
+        private final long lastChanged;
+
+        GroupEntry(String hash, long lastChanged) {
+            this.hash = hash;
+            this.lastChanged = lastChanged;
+        }
+    }
+
+    /**
+     * An upload that was imported completely before.
+     */
+    public static class KnownUpload {
+        private final int eventCount;
+        private final Map<String, String> groupHashes;
+
+        KnownUpload(int eventCount, Map<String, String> groupHashes) {
+            this.eventCount = eventCount;
+            this.groupHashes = groupHashes;
+        }
+
+        public int getEventCount() {
+            return eventCount;
+        }
+
+        /**
+         * Gets the event group hashes of the upload.
+         *
+         * @return the hashes by X-RAPLA-ID
+         */
+        public Map<String, String> getGroupHashes() {
+            return groupHashes;
+        }
+    }
+
+    private static class UserEntry {
+        private final Map<String, KnownUpload> uploads = new LruMap<>(MAX_UPLOADS);
+        private final Map<String, GroupEntry> groups;
+
+        UserEntry(int maxGroups) {
+            groups = new LruMap<>(maxGroups);
+        }
+    }
+
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private final int capacity;
+
+        LruMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final Map<String, UserEntry> users = new LruMap<>(MAX_USERS);
+
+    /**
+     * Checks whether a reservation still has the state the same event group was imported into last time.
+     *
+     * @param userName    the importing user
+     * @param reservation the persistent reservation
+     * @param groupHash   the hash of the parsed event group of the reservation
+     * @return true if the group can be skipped
+     */
+    public synchronized boolean isUnchanged(String userName, Reservation reservation, String groupHash) {
+        UserEntry user = users.get(userName);
+        if (user == null) {
+            return false;
+        }
+        GroupEntry entry = user.groups.get(reservation.getId());
+        Date lastChanged = reservation.getLastChanged();
+        // Without a modification time a change in Rapla cannot be ruled out
+        return entry != null && lastChanged != null && entry.hash.equals(groupHash) && entry.lastChanged == lastChanged.getTime();
+    }
+
+    /**
+     * Records that a reservation matches an event group after the import.
+     *
+     * @param userName    the importing user
+     * @param reservation the persistent reservation after storing
+     * @param groupHash   the hash of the imported event group
+     */
+    public synchronized void recordGroup(String userName, Reservation reservation, String groupHash) {
+        Date lastChanged = reservation.getLastChanged();
+        if (lastChanged == null) {
+            return;
+        }
+        user(userName).groups.put(reservation.getId(), new GroupEntry(groupHash, lastChanged.getTime()));
+    }
+
+    /**
+     * Gets an upload that was imported completely before.
+     *
+     * @param userName    the importing user
+     * @param fingerprint the content hash of the upload
+     * @return the upload, or null if it is unknown
+     */
+    public synchronized KnownUpload getUpload(String userName, String fingerprint) {
+        UserEntry user = users.get(userName);
+        return user == null ? null : user.uploads.get(fingerprint);
+    }
+
+    /**
+     * Checks whether a user has uploads that were imported completely before.
+     *
+     * @param userName the importing user
+     * @return true if an upload of the user is known
+     */
+    public synchronized boolean hasUploads(String userName) {
+        UserEntry user = users.get(userName);
+        return user != null && !user.uploads.isEmpty();
+    }
+
+    /**
+     * Records an upload that was imported without failures.
+     *
+     * @param userName    the importing user
+     * @param fingerprint the content hash of the upload
+     * @param eventCount  the number of events in the upload
+     * @param groupHashes the group hashes by X-RAPLA-ID
+     */
+    public synchronized void recordUpload(String userName, String fingerprint, int eventCount, Map<String, String> groupHashes) {
+        user(userName).uploads.put(fingerprint, new KnownUpload(eventCount, groupHashes));
+    }
+
+    private UserEntry user(String userName) {
+        return users.computeIfAbsent(userName, k -> new UserEntry(ImportSettings.getFingerprintCacheSize()));
+    }
+}
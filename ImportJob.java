@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ImportJob tracks an import running in the background. It is updated as {@link ImportListener} by the import
+ * and read by the job status endpoint, so all state is safe for concurrent access.
+ */
+public class ImportJob implements ImportListener {
+
+    private final String id = UUID.randomUUID().toString();
+    private final String userName;
+    private final long createdAt = System.currentTimeMillis();
+    private volatile long finishedAt;
+    private volatile Phase phase = Phase.QUEUED;
+    private volatile int eventCount;
+    private volatile int reservationCount;
+    private final AtomicInteger processedCount = new AtomicInteger();
+    private final AtomicInteger skippedCount = new AtomicInteger();
+    private final List<String> failedReservationIds = new CopyOnWriteArrayList<>();
+    private final List<String> waitedReservationIds = new CopyOnWriteArrayList<>();
+    private final List<String> conflictedReservationIds = new CopyOnWriteArrayList<>();
+    private volatile String error;
+
+    public ImportJob(String userName) {
+        this.userName = userName;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the name of the user who started the job. Only this user may query the job.
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Gets the time the job reached DONE or FAILED.
+     *
+     * @return the time in milliseconds, or 0 while the job is running
+     */
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public List<String> getFailedReservationIds() {
+        return failedReservationIds;
+    }
+
+    /**
+     * Marks the job as failed as a whole.
+     *
+     * @param message the error reported to the user
+     */
+    public void fail(String message) {
+        this.error = message;
+        phaseChanged(Phase.FAILED);
+    }
+
+    @Override
+    public void phaseChanged(Phase phase) {
+        this.phase = phase;
+        if (phase == Phase.DONE || phase == Phase.FAILED) {
+            finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public void parsed(int eventCount, int reservationCount) {
+        this.eventCount = eventCount;
+        this.reservationCount = reservationCount;
+    }
+
+    @Override
+    public void reservationCommitted(String reservationId, AppointmentReconciler.Plan plan) {
+        processedCount.incrementAndGet();
+    }
+
+    @Override
+    public void reservationSkipped(String reservationId) {
+        processedCount.incrementAndGet();
+        skippedCount.incrementAndGet();
+    }
+
+    @Override
+    public void reservationWaited(String reservationId) {
+        waitedReservationIds.add(reservationId);
+    }
+
+    @Override
+    public void reservationFailed(String reservationId, String reason) {
+        processedCount.incrementAndGet();
+        failedReservationIds.add(reservationId);
+        if (LOCKED.equals(reason)) {
+            conflictedReservationIds.add(reservationId);
+        }
+    }
+
+    /**
+     * Writes the status of the job as JSON.
+     *
+     * @return the JSON document
+     */
+    public String toJson() {
+        return "{\"id\":" + Json.quote(id)
+                + ",\"phase\":" + Json.quote(phase.name())
+                + ",\"createdAt\":" + createdAt
+                + ",\"finishedAt\":" + (finishedAt == 0 ? "null" : String.valueOf(finishedAt))
+                + ",\"events\":" + eventCount
+                + ",\"reservations\":" + reservationCount
+                + ",\"processed\":" + processedCount.get()
+                + ",\"skipped\":" + skippedCount.get()
+                + ",\"failedReservationIds\":" + Json.array(failedReservationIds)
+                + ",\"waitedReservationIds\":" + Json.array(waitedReservationIds)
+                + ",\"conflictedReservationIds\":" + Json.array(conflictedReservationIds)
+                + ",\"error\":" + Json.quote(error)
+                + "}";
+    }
+}
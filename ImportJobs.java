@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ImportJobs runs asynchronous imports on a dedicated executor and keeps their status for a while after they
+ * finished. Virtual threads are used when the JVM provides them, otherwise a small pool of daemon threads.
+ */
+public class ImportJobs {
+
+    private final ExecutorService executor = newExecutor();
+    private final Map<String, ImportJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Runs an import task in the background and registers its job for status queries.
+     *
+     * @param job  the job tracking the import
+     * @param task the import, reporting its progress to the job
+     */
+    public void submit(ImportJob job, Runnable task) {
+        evictFinished();
+        jobs.put(job.getId(), job);
+        executor.execute(task);
+    }
+
+    /**
+     * Gets a registered job.
+     *
+     * @param jobId the id returned when the job was submitted
+     * @return the job, or null if it is unknown or expired
+     */
+    public ImportJob get(String jobId) {
+        evictFinished();
+        return jobs.get(jobId);
+    }
+
+    private void evictFinished() {
+        long expiry = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(ImportSettings.getJobRetentionMinutes());
+        jobs.values().removeIf(job -> job.getFinishedAt() != 0 && job.getFinishedAt() < expiry);
+    }
+
+    private static ExecutorService newExecutor() {
+        try {
+            // Java 21 and newer, looked up reflectively so the plugin still runs on older JVMs
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger threadCount = new AtomicInteger();
+            return Executors.newFixedThreadPool(ImportSettings.getAsyncThreads(), runnable -> {
+                Thread thread = new Thread(runnable, "semesterplan-import-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+/**
+ * ImportListener is notified about the progress of an import, e.g. to report the status of an asynchronous import job.
+ * All methods are called on the thread running the import.
+ */
+public interface ImportListener {
+
+    /**
+     * The phases an import passes through.
+     */
+    enum Phase {
+        QUEUED, PARSING, COMMITTING, DONE, FAILED
+    }
+
+    /**
+     * The reason reported for reservations that stayed locked by a concurrent import.
+     */
+    String LOCKED = "Locked by a concurrent import";
+
+    /**
+     * Listener ignoring all notifications.
+     */
+    ImportListener NONE = new ImportListener() {
+    };
+
+    default void phaseChanged(Phase phase) {
+    }
+
+    /**
+     * Called once the ICS file has been parsed.
+     *
+     * @param eventCount       the number of VEVENTs in the file
+     * @param reservationCount the number of distinct X-RAPLA-IDs
+     */
+    default void parsed(int eventCount, int reservationCount) {
+    }
+
+    /**
+     * Called when a reservation has been brought up to date, either by storing it or because it was unchanged.
+     *
+     * @param reservationId the X-RAPLA-ID
+     * @param plan          the applied changes
+     */
+    default void reservationCommitted(String reservationId, AppointmentReconciler.Plan plan) {
+    }
+
+    /**
+     * Called when a reservation was skipped because its event group and the reservation are unchanged since the last import.
+     *
+     * @param reservationId the X-RAPLA-ID
+     */
+    default void reservationSkipped(String reservationId) {
+    }
+
+    /**
+     * Called when a reservation was locked by a concurrent import and the import had to wait for it.
+     *
+     * @param reservationId the X-RAPLA-ID
+     */
+    default void reservationWaited(String reservationId) {
+    }
+
+    /**
+     * Called when a reservation could not be processed.
+     *
+     * @param reservationId the X-RAPLA-ID
+     * @param reason        a short description of the problem
+     */
+    default void reservationFailed(String reservationId, String reason) {
+    }
+}
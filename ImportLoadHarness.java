@@ -0,0 +1,438 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.rapla.entities.User;
+import org.rapla.framework.RaplaException;
+import org.rapla.logger.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * ImportLoadHarness runs the import controller in-process against a {@link LatencyFacade} and lets many
+ * coordinators upload synthetic semester plans at the same time. It reports throughput, latency percentiles,
+ * the heap high-water mark and failure counts, and writes them with the configuration to a JSON report file, so
+ * runs before and after a change can be compared. Every upload moves the lectures of the previous one, so
+ * neither the fingerprint cache nor the UID index skips it.
+ * <p>
+ * Run via {@link #main(String[])} with options as key=value, e.g.
+ * {@code coordinators=50 uploads=4 modules=20 storeMicros=10000 sharedModules=true report=load.json}.
+ */
+public class ImportLoadHarness {
+
+    private int coordinators = 50;
+    private int uploads = 4;
+    private int modules = 20;
+    private int eventsPerModule = 12;
+    private boolean sharedModules = false;
+    private long resolveMicros = 200;
+    private long editMicros = 2000;
+    private long storeMicros = 10000;
+    private double jitter = 0.5;
+    private int storeConcurrency = 1;
+
+    /**
+     * The measured outcome of a run.
+     */
+    public static class Report {
+        private final Map<String, Object> config = new LinkedHashMap<>();
+        private int uploads;
+        private int appointments;
+        private int failedUploads;
+        private int failedReservations;
+        private int conflictedReservations;
+        private int waitedReservations;
+        private long durationNanos;
+        private long[] latencyNanos;
+        private long heapBaselineBytes;
+        private long heapHighWaterBytes;
+        private long storeCalls;
+        private long storeWaitNanos;
+
+        public int getUploads() {
+            return uploads;
+        }
+
+        public int getFailedUploads() {
+            return failedUploads;
+        }
+
+        public int getFailedReservations() {
+            return failedReservations;
+        }
+
+        /**
+         * Gets the completed uploads per second.
+         */
+        public double getThroughput() {
+            return durationNanos == 0 ? 0 : (uploads - failedUploads) * 1e9 / durationNanos;
+        }
+
+        /**
+         * Gets a latency percentile of the uploads by nearest rank.
+         *
+         * @param percentile the percentile between 0 and 100
+         * @return the latency in milliseconds
+         */
+        public double getLatencyMillis(double percentile) {
+            if (latencyNanos.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * latencyNanos.length);
+            return latencyNanos[Math.max(0, Math.min(latencyNanos.length, rank) - 1)] / 1e6;
+        }
+
+        public long getHeapHighWaterBytes() {
+            return heapHighWaterBytes;
+        }
+
+        /**
+         * Formats the report as JSON.
+         */
+        public String toJson() {
+            StringBuilder json = new StringBuilder("{\"timestamp\":").append(Json.quote(Instant.now().toString()));
+            json.append(",\"java\":").append(Json.quote(System.getProperty("java.version")));
+            json.append(",\"processors\":").append(Runtime.getRuntime().availableProcessors());
+            json.append(",\"config\":{");
+            String separator = "";
+            for (Map.Entry<String, Object> option : config.entrySet()) {
+                Object value = option.getValue();
+                json.append(separator).append(Json.quote(option.getKey())).append(':')
+                        .append(value instanceof String ? Json.quote((String) value) : String.valueOf(value));
+                separator = ",";
+            }
+            json.append("},\"uploads\":").append(uploads);
+            json.append(",\"appointments\":").append(appointments);
+            json.append(",\"failedUploads\":").append(failedUploads);
+            json.append(",\"failedReservations\":").append(failedReservations);
+            json.append(",\"conflictedReservations\":").append(conflictedReservations);
+            json.append(",\"waitedReservations\":").append(waitedReservations);
+            json.append(",\"durationMillis\":").append(durationNanos / 1000000L);
+            json.append(",\"uploadsPerSecond\":").append(format(getThroughput()));
+            json.append(",\"appointmentsPerSecond\":").append(format(durationNanos == 0 ? 0 : appointments * 1e9 / durationNanos));
+            json.append(",\"latencyMillis\":{\"p50\":").append(format(getLatencyMillis(50)))
+                    .append(",\"p90\":").append(format(getLatencyMillis(90)))
+                    .append(",\"p99\":").append(format(getLatencyMillis(99)))
+                    .append(",\"max\":").append(format(getLatencyMillis(100))).append('}');
+            json.append(",\"heapBaselineBytes\":").append(heapBaselineBytes);
+            json.append(",\"heapHighWaterBytes\":").append(heapHighWaterBytes);
+            json.append(",\"storeCalls\":").append(storeCalls);
+            json.append(",\"storeWaitMillis\":").append(storeWaitNanos / 1000000L);
+            return json.append('}').toString();
+        }
+
+        private static String format(double value) {
+            return String.format(java.util.Locale.ROOT, "%.2f", value);
+        }
+    }
+
+    public void setCoordinators(int coordinators) {
+        this.coordinators = coordinators;
+    }
+
+    /**
+     * Sets the number of uploads each coordinator performs one after the other.
+     */
+    public void setUploads(int uploads) {
+        this.uploads = uploads;
+    }
+
+    /**
+     * Sets the number of modules, i.e. reservations, per uploaded file.
+     */
+    public void setModules(int modules) {
+        this.modules = modules;
+    }
+
+    public void setEventsPerModule(int eventsPerModule) {
+        this.eventsPerModule = eventsPerModule;
+    }
+
+    /**
+     * Sets whether all coordinators upload the same modules, so their imports contend for the reservation locks,
+     * or disjoint modules each.
+     */
+    public void setSharedModules(boolean sharedModules) {
+        this.sharedModules = sharedModules;
+    }
+
+    public void setResolveMicros(long resolveMicros) {
+        this.resolveMicros = resolveMicros;
+    }
+
+    public void setEditMicros(long editMicros) {
+        this.editMicros = editMicros;
+    }
+
+    public void setStoreMicros(long storeMicros) {
+        this.storeMicros = storeMicros;
+    }
+
+    public void setJitter(double jitter) {
+        this.jitter = jitter;
+    }
+
+    public void setStoreConcurrency(int storeConcurrency) {
+        this.storeConcurrency = storeConcurrency;
+    }
+
+    /**
+     * Runs the load test. The imports use a temporary work directory, which is deleted afterwards.
+     *
+     * @return the report
+     * @throws IOException, RaplaException if the work directory or the users cannot be created
+     * @throws InterruptedException if the run is interrupted
+     */
+    public Report run() throws IOException, RaplaException, InterruptedException {
+        Report report = new Report();
+        report.config.put("coordinators", coordinators);
+        report.config.put("uploads", uploads);
+        report.config.put("modules", modules);
+        report.config.put("eventsPerModule", eventsPerModule);
+        report.config.put("sharedModules", sharedModules);
+        report.config.put("resolveMicros", resolveMicros);
+        report.config.put("editMicros", editMicros);
+        report.config.put("storeMicros", storeMicros);
+        report.config.put("jitter", jitter);
+        report.config.put("storeConcurrency", storeConcurrency);
+        report.config.put("batchSize", ImportSettings.getBatchSize());
+        report.config.put("incrementalImport", ImportSettings.isIncrementalImport());
+
+        LatencyFacade latencyFacade = new LatencyFacade();
+        latencyFacade.setResolveMicros(resolveMicros);
+        latencyFacade.setEditMicros(editMicros);
+        latencyFacade.setStoreMicros(storeMicros);
+        latencyFacade.setJitter(jitter);
+        latencyFacade.setStoreConcurrency(storeConcurrency);
+        int moduleCount = sharedModules ? modules : modules * coordinators;
+        for (int module = 0; module < moduleCount; module++) {
+            latencyFacade.addReservation(SyntheticSemesterplanGenerator.raplaId(module));
+        }
+
+        // Files are generated before the run, so the generation is not measured
+        byte[][][] files = new byte[coordinators][uploads][];
+        for (int coordinator = 0; coordinator < coordinators; coordinator++) {
+            for (int upload = 0; upload < uploads; upload++) {
+                SyntheticSemesterplanGenerator generator = new SyntheticSemesterplanGenerator();
+                generator.setModules(modules);
+                generator.setFirstModule(sharedModules ? 0 : coordinator * modules);
+                generator.setEventsPerModule(eventsPerModule);
+                generator.setDstSpanning(false);
+                generator.setSemesterStart(LocalDate.of(2024, 9, 30).plusDays(upload % 2 == 0 ? upload : -upload));
+                files[coordinator][upload] = generator.generateBytes();
+            }
+        }
+
+        Path workDirectory = Files.createTempDirectory("semesterplan-load");
+        String previousWorkDirectory = System.getProperty(ImportSettings.PREFIX + "workDir");
+        System.setProperty(ImportSettings.PREFIX + "workDir", workDirectory.toString());
+        ExecutorService executor = Executors.newFixedThreadPool(coordinators);
+        HeapSampler sampler = new HeapSampler();
+        try {
+            ImportController controller = new ImportController(null);
+            controller.facade = latencyFacade.create();
+            controller.logger = silentLogger();
+
+            List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger failedUploads = new AtomicInteger();
+            AtomicInteger failedReservations = new AtomicInteger();
+            AtomicInteger conflictedReservations = new AtomicInteger();
+            AtomicInteger waitedReservations = new AtomicInteger();
+            AtomicInteger appointments = new AtomicInteger();
+            CountDownLatch startGate = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(coordinators);
+            for (int coordinator = 0; coordinator < coordinators; coordinator++) {
+                User user = controller.facade.getUser("coordinator-" + coordinator);
+                byte[][] coordinatorFiles = files[coordinator];
+                executor.execute(() -> {
+                    try {
+                        startGate.await();
+                        for (byte[] file : coordinatorFiles) {
+                            long start = System.nanoTime();
+                            try {
+                                ImportResult result = controller.runImport(user, new ByteArrayInputStream(file), ImportListener.NONE);
+                                failedReservations.addAndGet(result.getFailedReservationIds().size());
+                                conflictedReservations.addAndGet(result.getConflictedReservationIds().size());
+                                waitedReservations.addAndGet(result.getWaitedReservationIds().size());
+                                appointments.addAndGet(result.getEventCount());
+                            } catch (Exception e) {
+                                failedUploads.incrementAndGet();
+                            }
+                            latencies.add(System.nanoTime() - start);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+
+            report.heapBaselineBytes = sampler.start();
+            long start = System.nanoTime();
+            startGate.countDown();
+            done.await();
+            report.durationNanos = System.nanoTime() - start;
+            report.heapHighWaterBytes = sampler.stop();
+
+            report.uploads = latencies.size();
+            report.latencyNanos = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            report.appointments = appointments.get();
+            report.failedUploads = failedUploads.get();
+            report.failedReservations = failedReservations.get();
+            report.conflictedReservations = conflictedReservations.get();
+            report.waitedReservations = waitedReservations.get();
+            report.storeCalls = latencyFacade.getStoreCalls();
+            report.storeWaitNanos = latencyFacade.getStoreWaitNanos();
+            return report;
+        } finally {
+            sampler.stop();
+            executor.shutdownNow();
+            if (previousWorkDirectory == null) {
+                System.clearProperty(ImportSettings.PREFIX + "workDir");
+            } else {
+                System.setProperty(ImportSettings.PREFIX + "workDir", previousWorkDirectory);
+            }
+            deleteRecursively(workDirectory);
+        }
+    }
+
+    /**
+     * Samples the used heap while the load runs, so the report contains its high-water mark.
+     */
+    private static class HeapSampler {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final AtomicLong highWater = new AtomicLong();
+        private Thread thread;
+
+        long start() {
+            System.gc();
+            long baseline = memory.getHeapMemoryUsage().getUsed();
+            highWater.set(baseline);
+            thread = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    highWater.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "import-load-heap-sampler");
+            thread.setDaemon(true);
+            thread.start();
+            return baseline;
+        }
+
+        long stop() throws InterruptedException {
+            if (thread != null) {
+                thread.interrupt();
+                thread.join();
+                thread = null;
+            }
+            return highWater.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+        }
+    }
+
+    private static Logger silentLogger() {
+        return (Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(), new Class<?>[]{Logger.class},
+                (proxy, method, args) -> method.getReturnType() == boolean.class ? false : null);
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Collections.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Runs the load test and writes the report file.
+     *
+     * @param args options as key=value: coordinators, uploads, modules, eventsPerModule, sharedModules,
+     *             resolveMicros, editMicros, storeMicros, jitter, storeConcurrency and report, the path of the
+     *             report file, default import-load-report.json
+     * @throws Exception if the run fails or the report cannot be written
+     */
+    public static void main(String[] args) throws Exception {
+        run(args);
+    }
+
+    /**
+     * Runs the load test configured by options and writes the report file.
+     *
+     * @param args options as key=value, see {@link #main(String[])}
+     * @return the report
+     * @throws Exception if the run fails or the report cannot be written
+     */
+    static Report run(String... args) throws Exception {
+        ImportLoadHarness harness = new ImportLoadHarness();
+        Path reportFile = Paths.get("import-load-report.json");
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            String key = arg.substring(0, separator);
+            String value = arg.substring(separator + 1);
+            switch (key) {
+                case "coordinators": harness.setCoordinators(Integer.parseInt(value)); break;
+                case "uploads": harness.setUploads(Integer.parseInt(value)); break;
+                case "modules": harness.setModules(Integer.parseInt(value)); break;
+                case "eventsPerModule": harness.setEventsPerModule(Integer.parseInt(value)); break;
+                case "sharedModules": harness.setSharedModules(Boolean.parseBoolean(value)); break;
+                case "resolveMicros": harness.setResolveMicros(Long.parseLong(value)); break;
+                case "editMicros": harness.setEditMicros(Long.parseLong(value)); break;
+                case "storeMicros": harness.setStoreMicros(Long.parseLong(value)); break;
+                case "jitter": harness.setJitter(Double.parseDouble(value)); break;
+                case "storeConcurrency": harness.setStoreConcurrency(Integer.parseInt(value)); break;
+                case "report": reportFile = Paths.get(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + key + ", expected one of "
+                        + Arrays.asList("coordinators", "uploads", "modules", "eventsPerModule", "sharedModules",
+                        "resolveMicros", "editMicros", "storeMicros", "jitter", "storeConcurrency", "report"));
+            }
+        }
+        Report report = harness.run();
+        Files.write(reportFile, report.toJson().getBytes(StandardCharsets.UTF_8));
+        return report;
+    }
+}
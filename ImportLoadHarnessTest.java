@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ImportLoadHarness class.
+ */
+public class ImportLoadHarnessTest {
+
+    /**
+     * Test that a small run imports every upload and reports its latencies.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testRun_SmallLoad() throws Exception {
+        ImportLoadHarness harness = new ImportLoadHarness();
+        harness.setCoordinators(3);
+        harness.setUploads(2);
+        harness.setModules(4);
+        harness.setResolveMicros(0);
+        harness.setEditMicros(0);
+        harness.setStoreMicros(100);
+
+        ImportLoadHarness.Report report = harness.run();
+
+        assertEquals(6, report.getUploads());
+        assertEquals(0, report.getFailedUploads());
+        assertEquals(0, report.getFailedReservations());
+        assertTrue(report.getThroughput() > 0);
+        assertTrue(report.getLatencyMillis(50) <= report.getLatencyMillis(99));
+        assertTrue(report.toJson().contains("\"p99\":"));
+    }
+
+    /**
+     * Test that a run configured by options writes its report to the given file.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testRun_Options() throws Exception {
+        Path reportFile = Files.createTempFile("import-load", ".json");
+        try {
+            ImportLoadHarness.Report report = ImportLoadHarness.run("coordinators=1", "uploads=1", "modules=2",
+                    "resolveMicros=0", "editMicros=0", "storeMicros=0", "report=" + reportFile);
+
+            assertEquals(1, report.getUploads());
+            String json = new String(Files.readAllBytes(reportFile), StandardCharsets.UTF_8);
+            assertTrue(json.contains("\"coordinators\":1,\"uploads\":1,\"modules\":2,"));
+            assertTrue(json.contains("\"latencyMillis\":{"));
+        } finally {
+            Files.delete(reportFile);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ImportMetrics collects timings per import stage, counters and size histograms of all imports and renders
+ * them in the Prometheus text format. Updates only touch LongAdders, so recording never blocks an import.
+ */
+public class ImportMetrics {
+
+    /**
+     * The stages of an import. READ, PARSE and CONVERT overlap in time because the file is streamed;
+     * PARSE is the time spent in the parser itself, without waiting for the stream and converting events.
+     * LOCK is the time spent waiting for reservations locked by concurrent imports.
+     */
+    public enum Stage {
+        READ, PARSE, CONVERT, LOCK, RESOLVE, RECONCILE, EDIT, STORE, TOTAL;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final long[] PAYLOAD_BYTES_BOUNDS = {16 << 10, 64 << 10, 256 << 10, 1 << 20, 4 << 20, 16 << 20, 64 << 20};
+    private static final long[] DURATION_NANOS_BOUNDS = {
+            TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(500), TimeUnit.SECONDS.toNanos(1),
+            TimeUnit.SECONDS.toNanos(5), TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(30),
+            TimeUnit.SECONDS.toNanos(60), TimeUnit.SECONDS.toNanos(300)};
+
+    /**
+     * The stage timings of a single import. Stages may be recorded from several threads.
+     */
+    public static class Timing {
+        private final LongAdder[] nanos = new LongAdder[Stage.values().length];
+        private final LongAdder bytes = new LongAdder();
+
+        public Timing() {
+            for (int i = 0; i < nanos.length; i++) {
+                nanos[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Adds time to a stage.
+         *
+         * @param stage   the stage
+         * @param elapsed the time in nanoseconds
+         */
+        public void add(Stage stage, long elapsed) {
+            nanos[stage.ordinal()].add(elapsed);
+        }
+
+        /**
+         * Adds the time since a start to a stage.
+         *
+         * @param stage     the stage
+         * @param startNanos the start, from {@link System#nanoTime()}
+         */
+        public void since(Stage stage, long startNanos) {
+            add(stage, System.nanoTime() - startNanos);
+        }
+
+        public long get(Stage stage) {
+            return nanos[stage.ordinal()].sum();
+        }
+
+        /**
+         * Gets the number of bytes read from the upload.
+         */
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * Wraps the upload stream, so the time spent waiting for it and its size are recorded as READ.
+         *
+         * @param in the upload stream
+         * @return the measuring stream
+         */
+        public InputStream wrap(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    long start = System.nanoTime();
+                    int b = super.read();
+                    since(Stage.READ, start);
+                    if (b >= 0) {
+                        bytes.increment();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    long start = System.nanoTime();
+                    int count = super.read(buffer, offset, length);
+                    since(Stage.READ, start);
+                    if (count > 0) {
+                        bytes.add(count);
+                    }
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            for (Stage stage : Stage.values()) {
+                out.append(out.length() == 0 ? "" : ", ").append(stage.label()).append('=').append(TimeUnit.NANOSECONDS.toMillis(get(stage))).append("ms");
+            }
+            return out.append(", bytes=").append(getBytes()).toString();
+        }
+    }
+
+    private static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+    }
+
+    private static class Histogram {
+        private final long[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sum.add(value);
+        }
+    }
+
+    private final Timer[] stages = new Timer[Stage.values().length];
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder unchanged = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failedReservations = new LongAdder();
+    private final LongAdder[] rejected = new LongAdder[ImportAdmission.Rejection.values().length];
+    private final LongAdder tooLarge = new LongAdder();
+    private final Histogram payloadBytes = new Histogram(PAYLOAD_BYTES_BOUNDS);
+    private final Histogram duration = new Histogram(DURATION_NANOS_BOUNDS);
+
+    public ImportMetrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Timer();
+        }
+        for (int i = 0; i < rejected.length; i++) {
+            rejected[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a finished import.
+     *
+     * @param timing the stage timings of the import
+     * @param result the summary of the import, or null if it failed as a whole
+     */
+    public void record(Timing timing, ImportResult result) {
+        for (Stage stage : Stage.values()) {
+            long elapsed = timing.get(stage);
+            // Stages an import did not reach, e.g. after a failure or when it was skipped, are not counted
+            if (elapsed > 0) {
+                stages[stage.ordinal()].record(elapsed);
+            }
+        }
+        duration.record(timing.get(Stage.TOTAL));
+        if (timing.getBytes() > 0) {
+            payloadBytes.record(timing.getBytes());
+        }
+        if (result == null) {
+            failed.increment();
+            return;
+        }
+        succeeded.increment();
+        events.add(result.getEventCount());
+        stored.add(result.getStoredCount());
+        unchanged.add(result.getUnchangedCount());
+        skipped.add(result.getSkippedCount());
+        failedReservations.add(result.getFailedReservationIds().size());
+    }
+
+    /**
+     * Records a request that was not admitted.
+     *
+     * @param rejection why the request was rejected
+     */
+    public void recordRejected(ImportAdmission.Rejection rejection) {
+        rejected[rejection.ordinal()].increment();
+    }
+
+    /**
+     * Records an upload that exceeded the size limit.
+     */
+    public void recordTooLarge() {
+        tooLarge.increment();
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format.
+     *
+     * @return the metrics
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP semesterplan_import_stage_seconds Time spent per import stage.\n");
+        out.append("# TYPE semesterplan_import_stage_seconds summary\n");
+        for (Stage stage : Stage.values()) {
+            Timer timer = stages[stage.ordinal()];
+            out.append("semesterplan_import_stage_seconds_count{stage=\"").append(stage.label()).append("\"} ").append(timer.count.sum()).append('\n');
+            out.append("semesterplan_import_stage_seconds_sum{stage=\"").append(stage.label()).append("\"} ").append(seconds(timer.sum.sum())).append('\n');
+        }
+        out.append("# HELP semesterplan_import_stage_seconds_max Longest time spent in an import stage.\n");
+        out.append("# TYPE semesterplan_import_stage_seconds_max gauge\n");
+        for (Stage stage : Stage.values()) {
+            out.append("semesterplan_import_stage_seconds_max{stage=\"").append(stage.label()).append("\"} ").append(seconds(stages[stage.ordinal()].max.get())).append('\n');
+        }
+        out.append("# HELP semesterplan_imports_total Finished imports.\n");
+        out.append("# TYPE semesterplan_imports_total counter\n");
+        out.append("semesterplan_imports_total{result=\"success\"} ").append(succeeded.sum()).append('\n');
+        out.append("semesterplan_imports_total{result=\"failure\"} ").append(failed.sum()).append('\n');
+        out.append("# HELP semesterplan_import_events_total Imported VEVENTs.\n");
+        out.append("# TYPE semesterplan_import_events_total counter\n");
+        out.append("semesterplan_import_events_total ").append(events.sum()).append('\n');
+        out.append("# HELP semesterplan_import_reservations_total Imported reservations by outcome.\n");
+        out.append("# TYPE semesterplan_import_reservations_total counter\n");
+        out.append("semesterplan_import_reservations_total{outcome=\"stored\"} ").append(stored.sum()).append('\n');
+        out.append("semesterplan_import_reservations_total{outcome=\"unchanged\"} ").append(unchanged.sum()).append('\n');
+        out.append("semesterplan_import_reservations_total{outcome=\"skipped\"} ").append(skipped.sum()).append('\n');
+        out.append("semesterplan_import_reservations_total{outcome=\"failed\"} ").append(failedReservations.sum()).append('\n');
+        out.append("# HELP semesterplan_import_rejections_total Import requests rejected by the admission or size limits.\n");
+        out.append("# TYPE semesterplan_import_rejections_total counter\n");
+        for (ImportAdmission.Rejection rejection : ImportAdmission.Rejection.values()) {
+            out.append("semesterplan_import_rejections_total{reason=\"").append(rejection.label()).append("\"} ").append(rejected[rejection.ordinal()].sum()).append('\n');
+        }
+        out.append("semesterplan_import_rejections_total{reason=\"too_large\"} ").append(tooLarge.sum()).append('\n');
+        appendHistogram(out, "semesterplan_import_payload_bytes", "Size of uploaded ICS files.", payloadBytes, false);
+        appendHistogram(out, "semesterplan_import_duration_seconds", "Duration of imports.", duration, true);
+        return out.toString();
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, String help, Histogram histogram, boolean nanos) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < histogram.buckets.length; i++) {
+            cumulative += histogram.buckets[i].sum();
+            String bound = i < histogram.bounds.length ? (nanos ? seconds(histogram.bounds[i]) : String.valueOf(histogram.bounds[i])) : "+Inf";
+            out.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        long sum = histogram.sum.sum();
+        out.append(name).append("_sum ").append(nanos ? seconds(sum) : String.valueOf(sum)).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.valueOf(nanos / 1e9);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ImportPreview is the outcome of a dry run: the changes an import would make to each referenced reservation,
+ * computed without editing or storing anything.
+ */
+public class ImportPreview {
+
+    /**
+     * The changes an import would make to one reservation.
+     */
+    public static class Entry {
+        private final String reservationId;
+        private final int added;
+        private final int removed;
+        private final int moved;
+        private final int kept;
+
+        Entry(String reservationId, AppointmentReconciler.Plan plan) {
+            this.reservationId = reservationId;
+            this.added = plan.getAdditions().size();
+            this.removed = plan.getRemovals().size();
+            this.moved = plan.getMoves().size();
+            this.kept = plan.getKept();
+        }
+
+        public String getReservationId() {
+            return reservationId;
+        }
+
+        public int getAdded() {
+            return added;
+        }
+
+        public int getRemoved() {
+            return removed;
+        }
+
+        public int getMoved() {
+            return moved;
+        }
+
+        public int getKept() {
+            return kept;
+        }
+
+        public boolean isUnchanged() {
+            return added == 0 && removed == 0 && moved == 0;
+        }
+    }
+
+    private final String fingerprint;
+    private final int eventCount;
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<String> unknownReservationIds = new ArrayList<>();
+
+    public ImportPreview(String fingerprint, int eventCount) {
+        this.fingerprint = fingerprint;
+        this.eventCount = eventCount;
+    }
+
+    /**
+     * Gets the SHA-256 content hash of the previewed file.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Gets the changes per existing reservation, in order of first occurrence in the file.
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    void addEntry(String reservationId, AppointmentReconciler.Plan plan) {
+        entries.add(new Entry(reservationId, plan));
+    }
+
+    /**
+     * Gets the X-RAPLA-IDs that do not refer to an existing reservation, the import would fail for them.
+     */
+    public List<String> getUnknownReservationIds() {
+        return unknownReservationIds;
+    }
+
+    void addUnknown(String reservationId) {
+        unknownReservationIds.add(reservationId);
+    }
+
+    /**
+     * Writes the preview as JSON.
+     *
+     * @return the JSON document
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"valid\":").append(unknownReservationIds.isEmpty())
+                .append(",\"fingerprint\":").append(Json.quote(fingerprint))
+                .append(",\"events\":").append(eventCount)
+                .append(",\"reservations\":[");
+        int added = 0;
+        int removed = 0;
+        int moved = 0;
+        int kept = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"id\":").append(Json.quote(entry.reservationId))
+                    .append(",\"added\":").append(entry.added)
+                    .append(",\"removed\":").append(entry.removed)
+                    .append(",\"moved\":").append(entry.moved)
+                    .append(",\"kept\":").append(entry.kept)
+                    .append('}');
+            added += entry.added;
+            removed += entry.removed;
+            moved += entry.moved;
+            kept += entry.kept;
+        }
+        return json.append("],\"unknownReservationIds\":").append(Json.array(unknownReservationIds))
+                .append(",\"added\":").append(added)
+                .append(",\"removed\":").append(removed)
+                .append(",\"moved\":").append(moved)
+                .append(",\"kept\":").append(kept)
+                .append('}').toString();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ImportResult summarizes a finished import.
+ */
+public class ImportResult {
+
+    private final String fingerprint;
+    private int eventCount;
+    private int reservationCount;
+    private int storedCount;
+    private int unchangedCount;
+    private int skippedCount;
+    private final List<String> failedReservationIds = new ArrayList<>();
+    private final List<String> waitedReservationIds = new ArrayList<>();
+    private final List<String> conflictedReservationIds = new ArrayList<>();
+
+    public ImportResult(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Gets the SHA-256 content hash of the imported file.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    void setEventCount(int eventCount) {
+        this.eventCount = eventCount;
+    }
+
+    public int getReservationCount() {
+        return reservationCount;
+    }
+
+    void setReservationCount(int reservationCount) {
+        this.reservationCount = reservationCount;
+    }
+
+    /**
+     * Gets the number of reservations that were changed and stored.
+     */
+    public int getStoredCount() {
+        return storedCount;
+    }
+
+    void addStored(int count) {
+        storedCount += count;
+    }
+
+    /**
+     * Gets the number of reservations that already matched the file and were skipped.
+     */
+    public int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    void addUnchanged(int count) {
+        unchangedCount += count;
+    }
+
+    /**
+     * Gets the number of reservations skipped by their fingerprint, without comparing their appointments.
+     */
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    void addSkipped(int count) {
+        skippedCount += count;
+    }
+
+    /**
+     * Gets the ids that could not be resolved or processed.
+     */
+    public List<String> getFailedReservationIds() {
+        return failedReservationIds;
+    }
+
+    /**
+     * Gets the ids that were locked by a concurrent import and could only be updated after waiting for it.
+     */
+    public List<String> getWaitedReservationIds() {
+        return waitedReservationIds;
+    }
+
+    /**
+     * Gets the ids that stayed locked by a concurrent import and were not updated. They are part of the failed ids.
+     */
+    public List<String> getConflictedReservationIds() {
+        return conflictedReservationIds;
+    }
+
+    /**
+     * Appends the summary as members of a JSON object, without the enclosing braces.
+     *
+     * @param json the JSON being written
+     * @return the given builder
+     */
+    StringBuilder appendJsonMembers(StringBuilder json) {
+        return json.append("\"fingerprint\":").append(Json.quote(fingerprint))
+                .append(",\"events\":").append(eventCount)
+                .append(",\"reservations\":").append(reservationCount)
+                .append(",\"stored\":").append(storedCount)
+                .append(",\"unchanged\":").append(unchangedCount)
+                .append(",\"skipped\":").append(skippedCount)
+                .append(",\"failedReservationIds\":").append(Json.array(failedReservationIds))
+                .append(",\"waitedReservationIds\":").append(Json.array(waitedReservationIds))
+                .append(",\"conflictedReservationIds\":").append(Json.array(conflictedReservationIds));
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ImportSettings bundles the tuning options of the semester plan import.
+ * All options are read from system properties prefixed with {@value #PREFIX}, so they can be set
+ * in the start script of the Rapla server without touching the plugin.
+ */
+public final class ImportSettings {
+
+    public static final String PREFIX = "org.rapla.plugin.wwi2021.";
+
+    private ImportSettings() {
+    }
+
+    /**
+     * Gets the number of reservations committed per storeAndRemove call.
+     *
+     * @return the batch size, {@code batchSize}, default 100
+     */
+    public static int getBatchSize() {
+        return Math.max(1, Integer.getInteger(PREFIX + "batchSize", 100));
+    }
+
+    /**
+     * Gets the directory for files the import keeps between requests, e.g. checkpoints of interrupted imports.
+     * The default in the temp directory may be cleared on reboot or by tmp cleaners, so production servers should
+     * set it to a durable directory, in particular since the audit trail is kept there unless {@code auditFile} is
+     * set.
+     *
+     * @return the directory, {@code workDir}, default rapla-semesterplan in the temp directory
+     */
+    public static Path getWorkDirectory() {
+        String workDir = System.getProperty(PREFIX + "workDir");
+        if (workDir != null) {
+            return Paths.get(workDir);
+        }
+        return Paths.get(System.getProperty("java.io.tmpdir"), "rapla-semesterplan");
+    }
+
+    /**
+     * Gets the number of threads running asynchronous imports if the JVM has no virtual threads.
+     *
+     * @return the thread count, {@code asyncThreads}, default 2
+     */
+    public static int getAsyncThreads() {
+        return Math.max(1, Integer.getInteger(PREFIX + "asyncThreads", 2));
+    }
+
+    /**
+     * Gets how long the status of a finished asynchronous import can be queried.
+     *
+     * @return the retention in minutes, {@code jobRetentionMinutes}, default 60
+     */
+    public static int getJobRetentionMinutes() {
+        return Integer.getInteger(PREFIX + "jobRetentionMinutes", 60);
+    }
+
+    /**
+     * Gets the number of threads converting VEVENTs into appointments. With 1 events are converted while the
+     * file is streamed; with more, events are collected in chunks and each chunk is converted on a fork/join pool.
+     *
+     * @return the parallelism, {@code conversionParallelism}, default 1
+     */
+    public static int getConversionParallelism() {
+        return Math.max(1, Integer.getInteger(PREFIX + "conversionParallelism", 1));
+    }
+
+    /**
+     * Gets the number of events from which a parallel conversion pays off; smaller files are converted sequentially.
+     *
+     * @return the threshold, {@code parallelThreshold}, default 2000
+     */
+    public static int getParallelThreshold() {
+        return Integer.getInteger(PREFIX + "parallelThreshold", 2000);
+    }
+
+    /**
+     * Gets the number of events a parallel conversion collects before converting them, which bounds the events
+     * held in memory; a chunk below {@link #getParallelThreshold()} is converted sequentially.
+     *
+     * @return the chunk size, {@code parallelChunkSize}, default 10000
+     */
+    public static int getParallelChunkSize() {
+        return Math.max(1, Integer.getInteger(PREFIX + "parallelChunkSize", 10000));
+    }
+
+    /**
+     * Gets the number of reservation fingerprints remembered per user to skip unchanged reservations on re-import.
+     *
+     * @return the cache size, {@code fingerprintCacheSize}, default 5000
+     */
+    public static int getFingerprintCacheSize() {
+        return Math.max(1, Integer.getInteger(PREFIX + "fingerprintCacheSize", 5000));
+    }
+
+    /**
+     * Gets whether semesterplan/metrics can be read without a session, e.g. by a monitoring system.
+     *
+     * @return {@code metricsPublic}, default false, then only administrators may read the metrics
+     */
+    public static boolean isMetricsPublic() {
+        return Boolean.getBoolean(PREFIX + "metricsPublic");
+    }
+
+    /**
+     * Gets the maximum size a compressed upload may expand to.
+     *
+     * @return the limit in bytes, {@code maxDecompressedBytes}, default 256 MiB
+     */
+    public static long getMaxDecompressedBytes() {
+        return Long.getLong(PREFIX + "maxDecompressedBytes", 256L << 20);
+    }
+
+    /**
+     * Gets the maximum size all entries of a ZIP archive may expand to together.
+     *
+     * @return the limit in bytes, {@code maxArchiveBytes}, default 1 GiB
+     */
+    public static long getMaxArchiveBytes() {
+        return Long.getLong(PREFIX + "maxArchiveBytes", 1L << 30);
+    }
+
+    /**
+     * Gets the maximum number of entries a ZIP archive of a batch import may contain, including skipped ones.
+     *
+     * @return the entry count, {@code maxArchiveEntries}, default 1000
+     */
+    public static int getMaxArchiveEntries() {
+        return Integer.getInteger(PREFIX + "maxArchiveEntries", 1000);
+    }
+
+    /**
+     * Gets how long an unfinished chunked upload is kept after its last chunk.
+     *
+     * @return the retention in hours, {@code uploadRetentionHours}, default 24
+     */
+    public static int getUploadRetentionHours() {
+        return Integer.getInteger(PREFIX + "uploadRetentionHours", 24);
+    }
+
+    /**
+     * Gets how long the checkpoint of an interrupted import is resumed, older checkpoints are discarded.
+     *
+     * @return the retention in hours, {@code checkpointRetentionHours}, default 24
+     */
+    public static int getCheckpointRetentionHours() {
+        return Integer.getInteger(PREFIX + "checkpointRetentionHours", 24);
+    }
+
+    /**
+     * Gets the number of lock stripes coordinating concurrent imports of the same reservations.
+     *
+     * @return the stripe count, {@code lockStripes}, default 256
+     */
+    public static int getLockStripes() {
+        return Integer.getInteger(PREFIX + "lockStripes", 256);
+    }
+
+    /**
+     * Gets how long an import waits for a reservation locked by a concurrent import before reporting a conflict.
+     *
+     * @return the timeout in seconds, {@code lockTimeoutSeconds}, default 60
+     */
+    public static int getLockTimeoutSeconds() {
+        return Integer.getInteger(PREFIX + "lockTimeoutSeconds", 60);
+    }
+
+    /**
+     * Gets the number of occurrences from which events of a reservation at the same weekday and time, or on
+     * consecutive days, are imported as one repeating appointment instead of one appointment each.
+     *
+     * @return the length, {@code minSeriesLength}, default 3; values below 2 keep one appointment per occurrence
+     */
+    public static int getMinSeriesLength() {
+        return Integer.getInteger(PREFIX + "minSeriesLength", 3);
+    }
+
+    /**
+     * Gets the number of occurrences a single VEVENT may expand to through RRULE and RDATE.
+     *
+     * @return the limit, {@code maxOccurrences}, default 1000
+     */
+    public static int getMaxOccurrences() {
+        return Math.max(1, Integer.getInteger(PREFIX + "maxOccurrences", 1000));
+    }
+
+    /**
+     * Checks whether imports compare the VEVENTs with the UID index of earlier imports and only convert and commit
+     * the event groups with new, modified or removed VEVENTs. Once the user has imported groups, the decoded file is
+     * spooled to the work directory and read twice, once to compare and once to convert, so the events are never
+     * held in memory together. The first import of a user reads the file once.
+     *
+     * @return the flag, {@code incrementalImport}, default true
+     */
+    public static boolean isIncrementalImport() {
+        return Boolean.parseBoolean(System.getProperty(PREFIX + "incrementalImport", "true"));
+    }
+
+    /**
+     * Gets the number of reservations whose ICS rendering the export keeps until they are modified.
+     *
+     * @return the size, {@code exportCacheSize}, default 5000; 0 disables the cache
+     */
+    public static int getExportCacheSize() {
+        return Math.max(0, Integer.getInteger(PREFIX + "exportCacheSize", 5000));
+    }
+
+    /**
+     * Gets the sources pulled by the scheduled sync: HTTP or HTTPS URLs of ICS feeds, ICS files and directories
+     * of ICS files.
+     *
+     * @return the sources, {@code syncSources} separated by commas, default none, which disables the sync
+     */
+    public static List<String> getSyncSources() {
+        List<String> sources = new ArrayList<>();
+        for (String source : System.getProperty(PREFIX + "syncSources", "").split(",")) {
+            if (!source.trim().isEmpty()) {
+                sources.add(source.trim());
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Gets the user whose rights the scheduled sync imports with.
+     *
+     * @return the user name, {@code syncUser}, default null, which disables the sync
+     */
+    public static String getSyncUser() {
+        return System.getProperty(PREFIX + "syncUser");
+    }
+
+    /**
+     * Gets the time between two runs of the scheduled sync.
+     *
+     * @return the interval in minutes, {@code syncIntervalMinutes}, default 15
+     */
+    public static int getSyncIntervalMinutes() {
+        return Math.max(1, Integer.getInteger(PREFIX + "syncIntervalMinutes", 15));
+    }
+
+    /**
+     * Gets the number of imports running at the same time, further imports wait in the queue.
+     *
+     * @return the number of imports, {@code maxConcurrentImports}, default 4
+     */
+    public static int getMaxConcurrentImports() {
+        return Math.max(1, Integer.getInteger(PREFIX + "maxConcurrentImports", 4));
+    }
+
+    /**
+     * Gets the number of imports a user may have running or queued at the same time.
+     *
+     * @return the number of imports, {@code maxImportsPerUser}, default 2
+     */
+    public static int getMaxImportsPerUser() {
+        return Math.max(1, Integer.getInteger(PREFIX + "maxImportsPerUser", 2));
+    }
+
+    /**
+     * Gets the number of imports that may wait for a slot, further requests are answered with status 429.
+     *
+     * @return the queue length, {@code importQueueLength}, default 16
+     */
+    public static int getImportQueueLength() {
+        return Math.max(0, Integer.getInteger(PREFIX + "importQueueLength", 16));
+    }
+
+    /**
+     * Gets how long a synchronous import waits in the queue before it is answered with status 429.
+     *
+     * @return the time in seconds, {@code importQueueWaitSeconds}, default 30
+     */
+    public static int getImportQueueWaitSeconds() {
+        return Math.max(0, Integer.getInteger(PREFIX + "importQueueWaitSeconds", 30));
+    }
+
+    /**
+     * Gets the maximum size of an upload as sent, before decompression. Larger uploads are answered with status 413.
+     *
+     * @return the limit in bytes, {@code maxUploadBytes}, default 64 MiB
+     */
+    public static long getMaxUploadBytes() {
+        return Long.getLong(PREFIX + "maxUploadBytes", 64L << 20);
+    }
+
+    /**
+     * Checks whether uploads are read by the {@link IcsScanner} instead of being decoded and tokenized by ical4j.
+     *
+     * @return {@code icsScanner}, default true
+     */
+    public static boolean isIcsScanner() {
+        return Boolean.parseBoolean(System.getProperty(PREFIX + "icsScanner", "true"));
+    }
+
+    /**
+     * Gets the file the import audit trail is appended to. The trail is only as durable as its location, so
+     * production servers should set this or {@code workDir} to a directory outside the temp directory.
+     *
+     * @return the file, {@code auditFile}, default audit.log in the work directory
+     */
+    public static Path getAuditFile() {
+        String auditFile = System.getProperty(PREFIX + "auditFile");
+        if (auditFile != null) {
+            return Paths.get(auditFile);
+        }
+        return getWorkDirectory().resolve("audit.log");
+    }
+
+    /**
+     * Gets the number of finished imports buffered for the audit writer, further ones are dropped while it is full.
+     *
+     * @return the number of imports, {@code auditBufferSize}, default 1024
+     */
+    public static int getAuditBufferSize() {
+        return Math.max(1, Integer.getInteger(PREFIX + "auditBufferSize", 1024));
+    }
+
+    /**
+     * Gets the size after which the audit trail is rotated. The previous file is kept as audit.log.1.
+     *
+     * @return the size in bytes, {@code auditMaxBytes}, default 64 MiB
+     */
+    public static long getAuditMaxBytes() {
+        return Long.getLong(PREFIX + "auditMaxBytes", 64L << 20);
+    }
+}
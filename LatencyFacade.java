@@ -0,0 +1,425 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.rapla.entities.Entity;
+import org.rapla.entities.EntityNotFoundException;
+import org.rapla.entities.User;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Repeating;
+import org.rapla.entities.domain.RepeatingType;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.RaplaFacade;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LatencyFacade is an in-memory stand-in for the Rapla facade that delays the calls the import makes against the
+ * storage: resolving, opening for editing and storing. Stores additionally queue for a limited number of writers,
+ * like a storage that serializes its transactions. Reservations, appointments and repeatings keep their state, so
+ * the import reconciles against what earlier imports stored. Used by the load test harness, see
+ * {@link ImportLoadHarness}.
+ */
+public class LatencyFacade {
+
+    private long resolveMicros = 0;
+    private long editMicros = 0;
+    private long storeMicros = 0;
+    private double jitter = 0;
+    private int storeConcurrency = 1;
+
+    private final Map<String, StoredReservation> reservations = new ConcurrentHashMap<>();
+    private final AtomicLong appointmentIds = new AtomicLong();
+    private final AtomicLong storeCalls = new AtomicLong();
+    private final AtomicLong storeWaitNanos = new AtomicLong();
+    private Semaphore writers;
+
+    /**
+     * Sets the delay of tryResolve and resolve.
+     */
+    public void setResolveMicros(long resolveMicros) {
+        this.resolveMicros = resolveMicros;
+    }
+
+    /**
+     * Sets the delay of edit and editList, per call.
+     */
+    public void setEditMicros(long editMicros) {
+        this.editMicros = editMicros;
+    }
+
+    /**
+     * Sets the delay of storeAndRemove, per call, while holding a writer permit.
+     */
+    public void setStoreMicros(long storeMicros) {
+        this.storeMicros = storeMicros;
+    }
+
+    /**
+     * Sets the random variation of the delays, e.g. 0.5 for delays between 50% and 150% of the configured value.
+     */
+    public void setJitter(double jitter) {
+        this.jitter = jitter;
+    }
+
+    /**
+     * Sets the number of storeAndRemove calls that may run at the same time, the others wait.
+     */
+    public void setStoreConcurrency(int storeConcurrency) {
+        this.storeConcurrency = storeConcurrency;
+    }
+
+    /**
+     * Adds an empty reservation.
+     *
+     * @param id the id, as referenced by X-RAPLA-ID
+     */
+    public void addReservation(String id) {
+        reservations.put(id, new StoredReservation(id));
+    }
+
+    /**
+     * Gets the number of storeAndRemove calls so far.
+     */
+    public long getStoreCalls() {
+        return storeCalls.get();
+    }
+
+    /**
+     * Gets the time storeAndRemove calls waited for a writer permit so far.
+     */
+    public long getStoreWaitNanos() {
+        return storeWaitNanos.get();
+    }
+
+    /**
+     * Gets the appointments currently stored for a reservation.
+     *
+     * @param id the id of the reservation
+     * @return the appointments, or null if the reservation does not exist
+     */
+    public Appointment[] getAppointments(String id) {
+        StoredReservation reservation = reservations.get(id);
+        return reservation == null ? null : reservation.appointments.clone();
+    }
+
+    /**
+     * Creates the facade. The settings must not be changed afterwards.
+     *
+     * @return the facade
+     */
+    public RaplaFacade create() {
+        writers = new Semaphore(storeConcurrency, true);
+        return proxy(RaplaFacade.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getUser":
+                    return user((String) args[0]);
+                case "newAppointmentWithUser":
+                    return new AppointmentState("appointment-" + appointmentIds.incrementAndGet(), (Date) args[0], (Date) args[1]).proxy();
+                case "tryResolve":
+                case "resolve":
+                    delay(resolveMicros);
+                    StoredReservation stored = reservations.get(((ReferenceInfo<?>) args[0]).getId());
+                    if (stored == null && method.getName().equals("resolve")) {
+                        throw new EntityNotFoundException("Unknown id " + ((ReferenceInfo<?>) args[0]).getId());
+                    }
+                    return stored == null ? null : stored.persistent();
+                case "edit":
+                    delay(editMicros);
+                    return editable((Reservation) args[0]);
+                case "editList":
+                    delay(editMicros);
+                    List<Reservation> editables = new ArrayList<>();
+                    for (Object reservation : (Collection<?>) args[0]) {
+                        editables.add(editable((Reservation) reservation));
+                    }
+                    return editables;
+                case "storeAndRemove":
+                    store((Entity<?>[]) args[0]);
+                    return null;
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    private Reservation editable(Reservation persistent) {
+        StoredReservation stored = reservations.get(persistent.getId());
+        List<Appointment> copies = new ArrayList<>();
+        for (Appointment appointment : stored.appointments) {
+            copies.add(((AppointmentState) Proxy.getInvocationHandler(appointment)).copy().proxy());
+        }
+        return new EditableReservation(stored, copies).proxy();
+    }
+
+    private void store(Entity<?>[] entities) throws InterruptedException {
+        long waitStart = System.nanoTime();
+        writers.acquire();
+        storeWaitNanos.addAndGet(System.nanoTime() - waitStart);
+        try {
+            delay(storeMicros);
+            for (Entity<?> entity : entities) {
+                InvocationHandler handler = Proxy.getInvocationHandler(entity);
+                if (handler instanceof EditableReservation) {
+                    EditableReservation editable = (EditableReservation) handler;
+                    editable.stored.appointments = editable.appointments.toArray(new Appointment[0]);
+                    editable.stored.lastChanged = System.currentTimeMillis();
+                }
+            }
+            storeCalls.incrementAndGet();
+        } finally {
+            writers.release();
+        }
+    }
+
+    private void delay(long micros) throws InterruptedException {
+        if (micros <= 0) {
+            return;
+        }
+        double factor = jitter <= 0 ? 1 : 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        long nanos = (long) (TimeUnit.MICROSECONDS.toNanos(micros) * factor);
+        Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+    }
+
+    private static User user(String name) {
+        return proxy(User.class, (proxy, method, args) -> method.getName().equals("getUsername") ? name : defaultValue(method));
+    }
+
+    private static class StoredReservation {
+        private final String id;
+        private volatile Appointment[] appointments = new Appointment[0];
+        private volatile long lastChanged = System.currentTimeMillis();
+
+        StoredReservation(String id) {
+            this.id = id;
+        }
+
+        Reservation persistent() {
+            return proxy(Reservation.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getId":
+                        return id;
+                    case "getName":
+                        return id;
+                    case "getReference":
+                        return new ReferenceInfo<>(id, Reservation.class);
+                    case "getAppointments":
+                        return appointments.clone();
+                    case "getLastChanged":
+                        return new Date(lastChanged);
+                    default:
+                        return identity(proxy, method, args);
+                }
+            });
+        }
+    }
+
+    private static class EditableReservation implements InvocationHandler {
+        private final StoredReservation stored;
+        private final List<Appointment> appointments;
+
+        EditableReservation(StoredReservation stored, List<Appointment> appointments) {
+            this.stored = stored;
+            this.appointments = appointments;
+        }
+
+        Reservation proxy() {
+            return LatencyFacade.proxy(Reservation.class, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getId":
+                    return stored.id;
+                case "getName":
+                    return stored.id;
+                case "getReference":
+                    return new ReferenceInfo<>(stored.id, Reservation.class);
+                case "getAppointments":
+                    return appointments.toArray(new Appointment[0]);
+                case "addAppointment":
+                    appointments.add((Appointment) args[0]);
+                    return null;
+                case "removeAppointment":
+                    appointments.remove(args[0]);
+                    return null;
+                case "getLastChanged":
+                    return new Date(stored.lastChanged);
+                default:
+                    return identity(proxy, method, args);
+            }
+        }
+    }
+
+    private static class AppointmentState implements InvocationHandler {
+        private final String id;
+        private Date start;
+        private Date end;
+        private boolean wholeDays;
+        private RepeatingState repeating;
+
+        AppointmentState(String id, Date start, Date end) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+        }
+
+        AppointmentState copy() {
+            AppointmentState copy = new AppointmentState(id, start, end);
+            copy.wholeDays = wholeDays;
+            copy.repeating = repeating == null ? null : repeating.copy();
+            return copy;
+        }
+
+        Appointment proxy() {
+            return LatencyFacade.proxy(Appointment.class, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getId":
+                    return id;
+                case "getStart":
+                    return start;
+                case "getEnd":
+                    return end;
+                case "move":
+                    start = (Date) args[0];
+                    end = (Date) args[1];
+                    return null;
+                case "isWholeDaysSet":
+                    return wholeDays;
+                case "setWholeDays":
+                    wholeDays = (Boolean) args[0];
+                    return null;
+                case "isRepeatingEnabled":
+                    return repeating != null;
+                case "setRepeatingEnabled":
+                    repeating = (Boolean) args[0] ? (repeating == null ? new RepeatingState() : repeating) : null;
+                    return null;
+                case "getRepeating":
+                    return repeating == null ? null : LatencyFacade.proxy(Repeating.class, repeating);
+                default:
+                    return identity(proxy, method, args);
+            }
+        }
+    }
+
+    private static class RepeatingState implements InvocationHandler {
+        private RepeatingType type = RepeatingType.WEEKLY;
+        private int interval = 1;
+        private int number = -1;
+        private Date end;
+        private final List<Date> exceptions = new ArrayList<>();
+
+        RepeatingState copy() {
+            RepeatingState copy = new RepeatingState();
+            copy.type = type;
+            copy.interval = interval;
+            copy.number = number;
+            copy.end = end;
+            copy.exceptions.addAll(exceptions);
+            return copy;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getType":
+                    return type;
+                case "setType":
+                    type = (RepeatingType) args[0];
+                    return null;
+                case "getInterval":
+                    return interval;
+                case "setInterval":
+                    interval = (Integer) args[0];
+                    return null;
+                case "getNumber":
+                    return number;
+                case "setNumber":
+                    number = (Integer) args[0];
+                    return null;
+                case "isFixedNumber":
+                    return number > 0;
+                case "getEnd":
+                    return end;
+                case "setEnd":
+                    end = (Date) args[0];
+                    return null;
+                case "addException":
+                    exceptions.add((Date) args[0]);
+                    return null;
+                case "clearExceptions":
+                    exceptions.clear();
+                    return null;
+                case "getExceptions":
+                    return exceptions.toArray(new Date[0]);
+                default:
+                    return identity(proxy, method, args);
+            }
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    /**
+     * Answers equals and hashCode by identity and all other calls with default values.
+     */
+    private static Object identity(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return proxy.getClass().getInterfaces()[0].getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            default:
+                return defaultValue(method);
+        }
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fails once more than the allowed number of bytes was read. The size is enforced while the stream is consumed,
+ * so an upload without or with a wrong Content-Length is stopped as soon as it exceeds the limit.
+ */
+class LimitedInputStream extends FilterInputStream {
+    private final long limit;
+    private final String description;
+    private long count;
+
+    /**
+     * @param in           the stream to limit
+     * @param limit        the number of bytes that may be read
+     * @param description  what exceeded the limit, used in the message
+     */
+    LimitedInputStream(InputStream in, long limit, String description) {
+        super(in);
+        this.limit = limit;
+        this.description = description;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = super.read(buffer, offset, length);
+        if (read > 0) {
+            count(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    /**
+     * Checks whether reading already failed because the limit was exceeded.
+     */
+    boolean isExceeded() {
+        return count > limit;
+    }
+
+    private void count(long bytes) throws IOException {
+        count += bytes;
+        if (count > limit) {
+            throw new UploadTooLargeException(description + " is larger than " + limit + " bytes", limit);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * MappedFileInputStream reads a spooled upload through memory-mapped regions of the file. The content is paged
+ * in by the operating system instead of being copied onto the heap, so heap use does not grow with the file size.
+ */
+public class MappedFileInputStream extends InputStream {
+
+    /**
+     * Size of the mapped regions; a single mapping is limited to 2 GiB.
+     */
+    static final long REGION_SIZE = 256L << 20;
+
+    private final FileChannel channel;
+    private final long size;
+    private long regionStart;
+    private MappedByteBuffer region;
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param file the file
+     * @throws IOException if the file cannot be opened
+     */
+    public MappedFileInputStream(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        size = channel.size();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureRegion()) {
+            return -1;
+        }
+        return region.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureRegion()) {
+            return -1;
+        }
+        int count = Math.min(length, region.remaining());
+        region.get(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return region == null ? (int) Math.min(size, Integer.MAX_VALUE) : (int) Math.min(size - regionStart - region.position(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The mapping itself is released by the garbage collector
+        region = null;
+        channel.close();
+    }
+
+    /**
+     * Maps the next region once the current one is exhausted.
+     *
+     * @return false at the end of the file
+     */
+    private boolean ensureRegion() throws IOException {
+        if (region != null && region.hasRemaining()) {
+            return true;
+        }
+        long next = region == null ? 0 : regionStart + region.capacity();
+        if (next >= size) {
+            return false;
+        }
+        regionStart = next;
+        region = channel.map(FileChannel.MapMode.READ_ONLY, next, Math.min(REGION_SIZE, size - next));
+        return true;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * NdjsonImportListener streams the progress of an import as newline delimited JSON, one object per line, and
+ * flushes after every line so a client sees each reservation as soon as it is processed. Every line has a "type":
+ * "phase", "parsed", "reservation", and finally either "summary" or "error".
+ * <p>
+ * If the client goes away, writing stops and the import continues.
+ */
+public class NdjsonImportListener implements ImportListener {
+
+    public static final String MEDIA_TYPE = "application/x-ndjson";
+
+    private final Writer out;
+    private boolean closed;
+
+    /**
+     * Creates a listener.
+     *
+     * @param out the response writer, flushed after every line
+     */
+    public NdjsonImportListener(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void phaseChanged(Phase phase) {
+        write("{\"type\":\"phase\",\"phase\":" + Json.quote(phase.name()) + "}");
+    }
+
+    @Override
+    public void parsed(int eventCount, int reservationCount) {
+        write("{\"type\":\"parsed\",\"events\":" + eventCount + ",\"reservations\":" + reservationCount + "}");
+    }
+
+    @Override
+    public void reservationCommitted(String reservationId, AppointmentReconciler.Plan plan) {
+        write(reservation(reservationId, plan.isUnchanged() ? "unchanged" : "stored")
+                .append(",\"added\":").append(plan.getAdditions().size())
+                .append(",\"removed\":").append(plan.getRemovals().size())
+                .append(",\"moved\":").append(plan.getMoves().size())
+                .append(",\"kept\":").append(plan.getKept())
+                .append('}').toString());
+    }
+
+    @Override
+    public void reservationSkipped(String reservationId) {
+        write(reservation(reservationId, "skipped").append('}').toString());
+    }
+
+    @Override
+    public void reservationWaited(String reservationId) {
+        write(reservation(reservationId, "waited").append('}').toString());
+    }
+
+    @Override
+    public void reservationFailed(String reservationId, String reason) {
+        write(reservation(reservationId, "failed").append(",\"error\":").append(Json.quote(reason)).append('}').toString());
+    }
+
+    /**
+     * Writes the final line of a finished import.
+     *
+     * @param result the summary of the import
+     */
+    public void summary(ImportResult result) {
+        write(result.appendJsonMembers(new StringBuilder("{\"type\":\"summary\",")).append('}').toString());
+    }
+
+    /**
+     * Writes the final line of a failed import.
+     *
+     * @param status  the HTTP status the import would have answered with
+     * @param message the description of the error
+     */
+    public void error(int status, String message) {
+        write("{\"type\":\"error\",\"status\":" + status + ",\"error\":" + Json.quote(message) + "}");
+    }
+
+    private static StringBuilder reservation(String reservationId, String status) {
+        return new StringBuilder("{\"type\":\"reservation\",\"id\":").append(Json.quote(reservationId))
+                .append(",\"status\":").append(Json.quote(status));
+    }
+
+    private void write(String line) {
+        if (closed) {
+            return;
+        }
+        try {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+            // A PrintWriter of the servlet response reports errors only on request
+            if (out instanceof PrintWriter && ((PrintWriter) out).checkError()) {
+                closed = true;
+            }
+        } catch (IOException e) {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.Test;
+import org.rapla.entities.domain.Appointment;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the NdjsonImportListener class.
+ */
+public class NdjsonImportListenerTest {
+
+    /**
+     * Test that every notification becomes one JSON line and the summary carries the result.
+     */
+    @Test
+    public void testLines() {
+        StringWriter out = new StringWriter();
+        NdjsonImportListener listener = new NdjsonImportListener(out);
+        ImportResult result = new ImportResult("abc");
+        result.setEventCount(3);
+        result.setReservationCount(2);
+        result.getFailedReservationIds().add("b\\\"");
+
+        listener.phaseChanged(ImportListener.Phase.PARSING);
+        listener.parsed(3, 2);
+        listener.reservationCommitted("a", new AppointmentReconciler().plan(new Appointment[0], Collections.emptyList()));
+        listener.reservationFailed("b\\\"", "Unknown reservation id");
+        listener.summary(result);
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(5, lines.length);
+        assertEquals("{\"type\":\"phase\",\"phase\":\"PARSING\"}", lines[0]);
+        assertEquals("{\"type\":\"parsed\",\"events\":3,\"reservations\":2}", lines[1]);
+        assertEquals("{\"type\":\"reservation\",\"id\":\"a\",\"status\":\"unchanged\",\"added\":0,\"removed\":0,\"moved\":0,\"kept\":0}", lines[2]);
+        assertEquals("{\"type\":\"reservation\",\"id\":\"b\\\\\\\"\",\"status\":\"failed\",\"error\":\"Unknown reservation id\"}", lines[3]);
+        assertTrue(lines[4].startsWith("{\"type\":\"summary\",\"fingerprint\":\"abc\",\"events\":3,\"reservations\":2,"));
+        assertTrue(lines[4].endsWith(",\"conflictedReservationIds\":[]}"));
+    }
+
+    /**
+     * Test that a client that went away stops the output without failing the import.
+     */
+    @Test
+    public void testClosedClient() {
+        int[] writes = new int[1];
+        Writer broken = new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) throws IOException {
+                writes[0]++;
+                throw new IOException("Broken pipe");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        NdjsonImportListener listener = new NdjsonImportListener(broken);
+
+        listener.reservationSkipped("a");
+        listener.reservationSkipped("b");
+        listener.error(500, "failed");
+
+        assertEquals(1, writes[0]);
+    }
+}
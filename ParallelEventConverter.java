@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.rapla.framework.RaplaException;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * ParallelEventConverter converts parsed VEVENTs into their occurrences on a fork/join pool.
+ * The event list is split recursively, every leaf groups its events by X-RAPLA-ID into a partial map and
+ * partial maps are merged left before right. The result therefore has exactly the order of a sequential
+ * conversion: reservations by first occurrence in the file and occurrences in file order.
+ */
+public class ParallelEventConverter {
+
+    /**
+     * Converts a single event, must be safe to call from several threads.
+     */
+    public interface EventConversion {
+        List<ParsedAppointment> convert(IcsEvent event) throws RaplaException, ParseException;
+    }
+
+    /**
+     * Events per leaf task; below this size splitting costs more than it gains.
+     */
+    static final int LEAF_SIZE = 256;
+
+    private static volatile ForkJoinPool pool;
+
+    private final EventConversion conversion;
+
+    public ParallelEventConverter(EventConversion conversion) {
+        this.conversion = conversion;
+    }
+
+    /**
+     * Converts the events and groups their occurrences by X-RAPLA-ID.
+     *
+     * @param events the events in file order
+     * @return the occurrences by X-RAPLA-ID, in order of first occurrence
+     * @throws RaplaException, ParseException if an event cannot be converted
+     */
+    public Map<String, List<ParsedAppointment>> convert(List<IcsEvent> events) throws RaplaException, ParseException {
+        try {
+            return getPool().invoke(new ConversionTask(events, 0, events.size()));
+        } catch (ConversionFailure failure) {
+            Exception cause = failure.getCause();
+            if (cause instanceof RaplaException) {
+                throw (RaplaException) cause;
+            }
+            throw (ParseException) cause;
+        }
+    }
+
+    /**
+     * Gets the shared pool, created on first use with the configured parallelism. A dedicated pool is used instead
+     * of the common pool so the configured parallelism applies and imports do not compete with other tasks.
+     */
+    private static ForkJoinPool getPool() {
+        ForkJoinPool result = pool;
+        if (result == null) {
+            synchronized (ParallelEventConverter.class) {
+                result = pool;
+                if (result == null) {
+                    result = new ForkJoinPool(ImportSettings.getConversionParallelism());
+                    pool = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static class ConversionFailure extends RuntimeException {
+        ConversionFailure(Exception cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized Exception getCause() {
+            return (Exception) super.getCause();
+        }
+    }
+
+    private class ConversionTask extends RecursiveTask<Map<String, List<ParsedAppointment>>> {
+        private final List<IcsEvent> events;
+        private final int from;
+        private final int to;
+
+        ConversionTask(List<IcsEvent> events, int from, int to) {
+            this.events = events;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<String, List<ParsedAppointment>> compute() {
+            if (to - from <= LEAF_SIZE) {
+                return convertRange();
+            }
+            int middle = (from + to) >>> 1;
+            ConversionTask left = new ConversionTask(events, from, middle);
+            ConversionTask right = new ConversionTask(events, middle, to);
+            right.fork();
+            Map<String, List<ParsedAppointment>> result = left.compute();
+            // Appending the right half keeps first-occurrence order and file order within each group
+            for (Map.Entry<String, List<ParsedAppointment>> entry : right.join().entrySet()) {
+                result.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).addAll(entry.getValue());
+            }
+            return result;
+        }
+
+        private Map<String, List<ParsedAppointment>> convertRange() {
+            Map<String, List<ParsedAppointment>> partial = new LinkedHashMap<>();
+            for (int i = from; i < to; i++) {
+                IcsEvent event = events.get(i);
+                try {
+                    partial.computeIfAbsent(event.getRaplaId(), k -> new ArrayList<>()).addAll(conversion.convert(event));
+                } catch (RaplaException | ParseException e) {
+                    throw new ConversionFailure(e);
+                }
+            }
+            return partial;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.rapla.entities.domain.RepeatingType;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * ParsedAppointment is an appointment read from an ICS file before it is created through the facade: a single
+ * occurrence, or a series with a fixed number of repetitions and the dates of the omitted ones.
+ * Dates are in Rapla time.
+ */
+public class ParsedAppointment {
+
+    private final Date start;
+    private final Date end;
+    private final boolean wholeDays;
+    private final RepeatingType repeatingType;
+    private final int interval;
+    private final int number;
+    private final List<Date> exceptions;
+
+    private ParsedAppointment(Date start, Date end, boolean wholeDays, RepeatingType repeatingType, int interval, int number, List<Date> exceptions) {
+        this.start = start;
+        this.end = end;
+        this.wholeDays = wholeDays;
+        this.repeatingType = repeatingType;
+        this.interval = interval;
+        this.number = number;
+        this.exceptions = exceptions;
+    }
+
+    /**
+     * Creates a single occurrence.
+     *
+     * @param start     the start in Rapla time
+     * @param end       the end in Rapla time
+     * @param wholeDays whether the occurrence covers whole days
+     * @return the appointment
+     */
+    public static ParsedAppointment single(Date start, Date end, boolean wholeDays) {
+        return new ParsedAppointment(start, end, wholeDays, null, 0, 1, Collections.emptyList());
+    }
+
+    /**
+     * Creates a series.
+     *
+     * @param first      the first occurrence
+     * @param type       the repeating type, DAILY or WEEKLY
+     * @param interval   the number of days or weeks between two occurrences
+     * @param number     the number of occurrences including the omitted ones
+     * @param exceptions the starts of the omitted occurrences
+     * @return the appointment
+     */
+    public static ParsedAppointment series(ParsedAppointment first, RepeatingType type, int interval, int number, List<Date> exceptions) {
+        return new ParsedAppointment(first.start, first.end, first.wholeDays, type, interval, number, exceptions);
+    }
+
+    public Date getStart() {
+        return start;
+    }
+
+    public Date getEnd() {
+        return end;
+    }
+
+    public boolean isWholeDays() {
+        return wholeDays;
+    }
+
+    /**
+     * Gets the repeating type of a series.
+     *
+     * @return the type, or null for a single occurrence
+     */
+    public RepeatingType getRepeatingType() {
+        return repeatingType;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Gets the number of occurrences, including the omitted ones.
+     */
+    public int getNumber() {
+        return number;
+    }
+
+    public List<Date> getExceptions() {
+        return exceptions;
+    }
+
+    long getDuration() {
+        return end.getTime() - start.getTime();
+    }
+
+    @Override
+    public String toString() {
+        return start + " - " + end + (repeatingType == null ? "" : " " + repeatingType + "/" + interval + " x" + number + " except " + exceptions);
+    }
+}
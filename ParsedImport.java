@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.storage.ReferenceInfo;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ParsedImport is an ICS file that has been parsed but not yet committed, so parsing and committing can run
+ * on different threads.
+ */
+public class ParsedImport {
+
+    private final Map<ReferenceInfo<Reservation>, List<Appointment>> appointments;
+    private final ImportResult result;
+    private final ImportMetrics.Timing timing;
+    private final IcsUidIndex.Changes changes;
+
+    public ParsedImport(Map<ReferenceInfo<Reservation>, List<Appointment>> appointments, ImportResult result, ImportMetrics.Timing timing) {
+        this(appointments, result, timing, null);
+    }
+
+    public ParsedImport(Map<ReferenceInfo<Reservation>, List<Appointment>> appointments, ImportResult result, ImportMetrics.Timing timing, IcsUidIndex.Changes changes) {
+        this.appointments = appointments;
+        this.result = result;
+        this.timing = timing;
+        this.changes = changes;
+    }
+
+    /**
+     * Gets the parsed appointments by reservation, in order of first occurrence in the file.
+     */
+    public Map<ReferenceInfo<Reservation>, List<Appointment>> getAppointments() {
+        return appointments;
+    }
+
+    /**
+     * Gets the summary of the import, filled with the parse counts and completed by the commit.
+     */
+    public ImportResult getResult() {
+        return result;
+    }
+
+    public ImportMetrics.Timing getTiming() {
+        return timing;
+    }
+
+    /**
+     * Gets the comparison with the UID index of an incremental import, whose unchanged groups are not contained
+     * in the appointments.
+     *
+     * @return the comparison, or null if the whole file was parsed
+     */
+    public IcsUidIndex.Changes getChanges() {
+        return changes;
+    }
+}
@@ -27,6 +27,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
@@ -34,6 +35,141 @@ import javax.ws.rs.core.MediaType;
 @Singleton
 @Path("semesterplan")
 public class RaplaImportSemesterplan{
+    /**
+     * The styles of the upload page, served separately so browsers cache them across page loads.
+     */
+    static final StaticAsset STYLE = new StaticAsset("text/css;charset=UTF-8",
+            "body { font-family: Arial, sans-serif; background-color: #f4f4f9; padding: 20px; color: #7c898f; position: relative; min-height: 100vh; }\n" +
+            ".container { max-width: 600px; margin: 0 auto; background: white; padding: 20px; border-radius: 8px; box-shadow: 0 0 10px rgba(0,0,0,0.1); }\n" +
+            "h1 { text-align: center; color: #4a90e2; }\n" +
+            ".upload-area { border: 2px dashed #7c898f; border-radius: 4px; padding: 40px 20px; text-align: center; background-color: #f9f9f9; position: relative; }\n" +
+            ".upload-area:hover { border-color: #4a90e2; }\n" +
+            ".upload-area label { cursor: pointer; color: #4a90e2; font-weight: bold; }\n" +
+            ".upload-area.dragging { border-color: #4a90e2; background-color: #f4f4f9; }\n" +
+            ".upload-icon { font-size: 48px; color: #7c898f; }\n" +
+            "input[type='file'] { display: none; }\n" +
+            "input[type='submit'] { background-color: #7c898f; color: white; padding: 10px 20px; border: none; border-radius: 4px; cursor: pointer; font-weight: bold; margin-top: 20px; display: block; width: 100%; transition: background-color 0.3s ease; }\n" +
+            "input[type='submit']:hover { background-color: #4a90e2; }\n" +
+            ".info { text-align: center; margin-top: 20px; color: #7c898f; }\n" +
+            ".footer { position: absolute; bottom: 40px; right: 20px; text-align: center; }\n" +
+            ".footer img { max-width: 100px; }\n" +
+            ".footer p { color: #7c898f; margin-top: 5px; font-size: 12px; }\n");
+
+    /**
+     * The drag and drop handling and validation of the upload form.
+     */
+    static final StaticAsset SCRIPT = new StaticAsset("application/javascript;charset=UTF-8",
+            "var uploadArea = document.getElementById('uploadfile');\n" +
+            "var fileInput = document.getElementById('file');\n" +
+            "var form = document.querySelector('form');\n" +
+            "var label = document.querySelector('label[for=\"file\"]');\n" +
+            "uploadArea.addEventListener('dragover', function(e) {\n" +
+            "  e.preventDefault();\n" +
+            "  uploadArea.classList.add('dragging');\n" +
+            "});\n" +
+            "uploadArea.addEventListener('dragleave', function(e) {\n" +
+            "  e.preventDefault();\n" +
+            "  uploadArea.classList.remove('dragging');\n" +
+            "});\n" +
+            "uploadArea.addEventListener('drop', function(e) {\n" +
+            "  e.preventDefault();\n" +
+            "  uploadArea.classList.remove('dragging');\n" +
+            "  var files = e.dataTransfer.files;\n" +
+            "  if (validateFile(files[0])) {\n" +
+            "    fileInput.files = files;\n" +
+            "    label.textContent = files[0].name + ' ausgewählt';\n" +
+            "    label.style.color = 'green';\n" +
+            "  } else {\n" +
+            "    alert('Bitte lade eine gültige .ics oder .ical Datei hoch');\n" +
+            "    fileInput.value = '';\n" +
+            "    label.innerHTML = '<span class=\"upload-icon\">&#x1F4E5;</span><br>Drag & Drop deine Datei hier oder klicke zum Hochladen';\n" +
+            "    label.style.color = '#4a90e2';\n" +
+            "  }\n" +
+            "});\n" +
+            "fileInput.addEventListener('change', function(e) {\n" +
+            "  var file = fileInput.files[0];\n" +
+            "  if (validateFile(file)) {\n" +
+            "    label.textContent = file.name + ' ausgewählt';\n" +
+            "    label.style.color = 'green';\n" +
+            "  } else {\n" +
+            "    alert('Bitte lade eine gültige .ics oder .ical Datei hoch');\n" +
+            "    fileInput.value = '';\n" +
+            "    label.innerHTML = '<span class=\"upload-icon\">&#x1F4E5;</span><br>Drag & Drop deine Datei hier oder klicke zum Hochladen';\n" +
+            "    label.style.color = '#4a90e2';\n" +
+            "  }\n" +
+            "});\n" +
+            "function validateFile(file) {\n" +
+            "  var validExtensions = ['ics', 'ical'];\n" +
+            "  var parts = file.name.toLowerCase().split('.');\n" +
+            "  var fileExtension = parts.pop();\n" +
+            "  // Already compressed files are accepted as .ics.gz or .ical.gz\n" +
+            "  if (fileExtension === 'gz') {\n" +
+            "    fileExtension = parts.pop();\n" +
+            "  }\n" +
+            "  return validExtensions.includes(fileExtension);\n" +
+            "}\n" +
+            "function isCompressible(file) {\n" +
+            "  return window.CompressionStream && window.fetch && file.size > 16384 && !/\\.gz$/i.test(file.name);\n" +
+            "}\n" +
+            "form.addEventListener('submit', function(e) {\n" +
+            "  if (fileInput.files.length === 0) {\n" +
+            "    e.preventDefault();\n" +
+            "    alert('Bitte wähle eine Datei zum Hochladen aus');\n" +
+            "    return;\n" +
+            "  }\n" +
+            "  var file = fileInput.files[0];\n" +
+            "  if (!isCompressible(file)) {\n" +
+            "    return;\n" +
+            "  }\n" +
+            "  // Compress the file in the browser, the server recognizes gzip by its magic bytes\n" +
+            "  e.preventDefault();\n" +
+            "  new Response(file.stream().pipeThrough(new CompressionStream('gzip'))).blob().then(function(compressed) {\n" +
+            "    var data = new FormData();\n" +
+            "    data.append('file', compressed, file.name + '.gz');\n" +
+            "    return fetch(form.action, { method: 'POST', body: data, credentials: 'same-origin' });\n" +
+            "  }).then(function(response) {\n" +
+            "    return response.text();\n" +
+            "  }).then(function(result) {\n" +
+            "    document.open();\n" +
+            "    document.write(result);\n" +
+            "    document.close();\n" +
+            "  }).catch(function() {\n" +
+            "    // Fall back to the uncompressed upload, submit() does not fire this listener again\n" +
+            "    form.submit();\n" +
+            "  });\n" +
+            "});\n");
+
+    /**
+     * The upload page itself. The asset URLs carry their content version, so the assets can be cached as immutable
+     * while the page is revalidated with its ETag.
+     */
+    static final StaticAsset PAGE = new StaticAsset("text/html;charset=UTF-8",
+            "<html>\n" +
+            "<head>\n" +
+            "  <meta charset='UTF-8'>\n" +
+            "  <title>Importiere Semesterplan (.ics)</title>\n" +
+            "  <link rel='stylesheet' href='semesterplan/assets/upload.css?v=" + STYLE.getVersion() + "'>\n" +
+            "</head>\n" +
+            "<body>\n" +
+            "  <div class='container'>\n" +
+            "    <h1>Importiere hier den Semesterplan</h1>\n" +
+            "    <form action='semesterplan/import' method='POST' enctype='multipart/form-data'>\n" +
+            "      <div class='upload-area' id='uploadfile'>\n" +
+            "        <input type='file' id='file' name='file' />\n" +
+            "        <label for='file'><span class='upload-icon'>&#x1F4E5;</span><br>Drag & Drop deine Datei hier oder klicke zum Hochladen</label>\n" +
+            "      </div>\n" +
+            "      <input type='submit' value='Hochladen'>\n" +
+            "    </form>\n" +
+            "    <div class='info'>Bitte lade eine gültige .ics oder .ical Datei hoch</div>\n" +
+            "  </div>\n" +
+            "  <div class='footer'>\n" +
+            "    <img src='path/to/dhbw_logo.png' alt='DHBW Logo' />\n" +
+            "    <p>Made by students of DHBW</p>\n" +
+            "  </div>\n" +
+            "  <script src='semesterplan/assets/upload.js?v=" + SCRIPT.getVersion() + "'></script>\n" +
+            "</body>\n" +
+            "</html>\n");
+
     @Inject
     public RaplaFacade facade;
 
@@ -50,105 +186,33 @@ public class RaplaImportSemesterplan{
     @GET
     @Produces(MediaType.TEXT_HTML)
     public void generatePage( @Context HttpServletRequest request, @Context HttpServletResponse response ) throws Exception {
-        java.io.PrintWriter out = response.getWriter();
-        out.println("<html>");
-        out.println("<head>");
-        out.println("  <title>Importiere Semesterplan (.ics)</title>");
-        out.println("  <style>");
-        out.println("    body { font-family: Arial, sans-serif; background-color: #f4f4f9; padding: 20px; color: #7c898f; position: relative; min-height: 100vh; }");
-        out.println("    .container { max-width: 600px; margin: 0 auto; background: white; padding: 20px; border-radius: 8px; box-shadow: 0 0 10px rgba(0,0,0,0.1); }");
-        out.println("    h1 { text-align: center; color: #4a90e2; }");
-        out.println("    .upload-area { border: 2px dashed #7c898f; border-radius: 4px; padding: 40px 20px; text-align: center; background-color: #f9f9f9; position: relative; }");
-        out.println("    .upload-area:hover { border-color: #4a90e2; }");
-        out.println("    .upload-area label { cursor: pointer; color: #4a90e2; font-weight: bold; }");
-        out.println("    .upload-area.dragging { border-color: #4a90e2; background-color: #f4f4f9; }");
-        out.println("    .upload-icon { font-size: 48px; color: #7c898f; }");
-        out.println("    input[type='file'] { display: none; }");
-        out.println("    input[type='submit'] { background-color: #7c898f; color: white; padding: 10px 20px; border: none; border-radius: 4px; cursor: pointer; font-weight: bold; margin-top: 20px; display: block; width: 100%; transition: background-color 0.3s ease; }");
-        out.println("    input[type='submit']:hover { background-color: #4a90e2; }");
-        out.println("    .info { text-align: center; margin-top: 20px; color: #7c898f; }");
-        out.println("    .footer { position: absolute; bottom: 40px; right: 20px; text-align: center; }");
-        out.println("    .footer img { max-width: 100px; }");
-        out.println("    .footer p { color: #7c898f; margin-top: 5px; font-size: 12px; }");
-        out.println("  </style>");
-        out.println("</head>");
-
-        out.println("<body>");
-        out.println("  <div class='container'>");
-        out.println("    <h1>Importiere hier den Semesterplan</h1>");
-        out.println("    <form action='semesterplan/import' method='POST' enctype='multipart/form-data'>");
-        out.println("      <div class='upload-area' id='uploadfile'>");
-        out.println("        <input type='file' id='file' name='file' />");
-        out.println("        <label for='file'><span class='upload-icon'>&#x1F4E5;</span><br>Drag & Drop deine Datei hier oder klicke zum Hochladen</label>");
-        out.println("      </div>");
-        out.println("      <input type='submit' value='Hochladen'>");
-        out.println("    </form>");
-        out.println("    <div class='info'>Bitte lade eine gültige .ics oder .ical Datei hoch</div>");
-        out.println("  </div>");
-        out.println("  <div class='footer'>");
-        out.println("    <img src='path/to/dhbw_logo.png' alt='DHBW Logo' />");
-        out.println("    <p>Made by students of DHBW</p>");
-        out.println("  </div>");
-        out.println("  <script>");
-        out.println("    var uploadArea = document.getElementById('uploadfile');");
-        out.println("    var fileInput = document.getElementById('file');");
-        out.println("    var form = document.querySelector('form');");
-        out.println("    var label = document.querySelector('label[for=\"file\"]');");
-
-        out.println("    uploadArea.addEventListener('dragover', function(e) {");
-        out.println("      e.preventDefault();");
-        out.println("      uploadArea.classList.add('dragging');");
-        out.println("    });");
-
-        out.println("    uploadArea.addEventListener('dragleave', function(e) {");
-        out.println("      e.preventDefault();");
-        out.println("      uploadArea.classList.remove('dragging');");
-        out.println("    });");
-
-        out.println("    uploadArea.addEventListener('drop', function(e) {");
-        out.println("      e.preventDefault();");
-        out.println("      uploadArea.classList.remove('dragging');");
-        out.println("      var files = e.dataTransfer.files;");
-        out.println("      if (validateFile(files[0])) {");
-        out.println("        fileInput.files = files;");
-        out.println("        label.textContent = files[0].name + ' ausgewählt';");
-        out.println("        label.style.color = 'green';");
-        out.println("      } else {");
-        out.println("        alert('Bitte lade eine gültige .ics oder .ical Datei hoch');");
-        out.println("        fileInput.value = '';");
-        out.println("        label.innerHTML = '<span class=\"upload-icon\">&#x1F4E5;</span><br>Drag & Drop deine Datei hier oder klicke zum Hochladen';");
-        out.println("        label.style.color = '#4a90e2';");
-        out.println("      }");
-        out.println("    });");
-
-        out.println("    fileInput.addEventListener('change', function(e) {");
-        out.println("      var file = fileInput.files[0];");
-        out.println("      if (validateFile(file)) {");
-        out.println("        label.textContent = file.name + ' ausgewählt';");
-        out.println("        label.style.color = 'green';");
-        out.println("      } else {");
-        out.println("        alert('Bitte lade eine gültige .ics oder .ical Datei hoch');");
-        out.println("        fileInput.value = '';");
-        out.println("        label.innerHTML = '<span class=\"upload-icon\">&#x1F4E5;</span><br>Drag & Drop deine Datei hier oder klicke zum Hochladen';");
-        out.println("        label.style.color = '#4a90e2';");
-        out.println("      }");
-        out.println("    });");
-
-        out.println("    function validateFile(file) {");
-        out.println("      var validExtensions = ['ics', 'ical'];");
-        out.println("      var fileExtension = file.name.split('.').pop().toLowerCase();");
-        out.println("      return validExtensions.includes(fileExtension);");
-        out.println("    }");
+        // The page is static, it is rendered and compressed once and answered with 304 while unchanged
+        PAGE.serve(request, response, StaticAsset.REVALIDATE);
+    }
 
-        out.println("    form.addEventListener('submit', function(e) {");
-        out.println("      if (fileInput.files.length === 0) {");
-        out.println("        e.preventDefault();");
-        out.println("        alert('Bitte wähle eine Datei zum Hochladen aus');");
-        out.println("      }");
-        out.println("    });");
-        out.println("  </script>");
-        out.println("</body>");
-        out.println("</html>");
-        out.close();
+    /**
+     * Serves the styles and scripts of the upload page.
+     *
+     * @param request  the HTTP request
+     * @param response the HTTP response
+     * @param name     the file name of the asset
+     * @throws Exception if the response cannot be written
+     */
+    @GET
+    @Path("/assets/{name}")
+    public void getAsset( @Context HttpServletRequest request, @Context HttpServletResponse response, @PathParam("name") String name ) throws Exception {
+        StaticAsset asset;
+        switch (name) {
+            case "upload.css":
+                asset = STYLE;
+                break;
+            case "upload.js":
+                asset = SCRIPT;
+                break;
+            default:
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                return;
+        }
+        asset.serve(request, response, StaticAsset.IMMUTABLE);
     }
-}
\ No newline at end of file
+}
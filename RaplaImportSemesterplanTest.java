@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the RaplaImportSemesterplan class.
+ */
+public class RaplaImportSemesterplanTest {
+
+    private RaplaImportSemesterplan page;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private ServletOutputStream out;
+
+    /**
+     * Set up the test environment before each test.
+     *
+     * @throws Exception if an error occurs during setup
+     */
+    @Before
+    public void setUp() throws Exception {
+        page = new RaplaImportSemesterplan();
+        request = mock(HttpServletRequest.class);
+        response = mock(HttpServletResponse.class);
+        out = mock(ServletOutputStream.class);
+        when(response.getOutputStream()).thenReturn(out);
+    }
+
+    /**
+     * Test that the page is served gzip compressed with its ETag and references the versioned assets.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testGeneratePage_Gzip() throws Exception {
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate, br");
+
+        page.generatePage(request, response);
+
+        verify(response).setStatus(HttpServletResponse.SC_OK);
+        verify(response).setHeader("ETag", RaplaImportSemesterplan.PAGE.getGzipEtag());
+        verify(response).setHeader("Content-Encoding", "gzip");
+        ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+        verify(out).write(body.capture());
+        String html = gunzip(body.getValue());
+        assertTrue(html.contains("semesterplan/assets/upload.css?v=" + RaplaImportSemesterplan.STYLE.getVersion()));
+        assertTrue(html.contains("semesterplan/assets/upload.js?v=" + RaplaImportSemesterplan.SCRIPT.getVersion()));
+    }
+
+    /**
+     * Test that a request with the current ETag is answered with 304 and no body.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testGeneratePage_NotModified() throws Exception {
+        when(request.getHeader("If-None-Match")).thenReturn("W/" + RaplaImportSemesterplan.PAGE.getEtag());
+
+        page.generatePage(request, response);
+
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(response, never()).getOutputStream();
+    }
+
+    /**
+     * Test that the tag of the gzip variant also revalidates a plain request, since both bodies are equivalent.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testGeneratePage_NotModifiedGzipTag() throws Exception {
+        when(request.getHeader("If-None-Match")).thenReturn(RaplaImportSemesterplan.PAGE.getGzipEtag());
+
+        page.generatePage(request, response);
+
+        verify(response).setHeader("ETag", RaplaImportSemesterplan.PAGE.getEtag());
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    /**
+     * Test that assets are served as immutable and unknown names are not found.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testGetAsset() throws Exception {
+        page.getAsset(request, response, "upload.css");
+        verify(response).setHeader("Cache-Control", StaticAsset.IMMUTABLE);
+        verify(response).setContentType("text/css;charset=UTF-8");
+
+        page.getAsset(request, response, "../ImportController.class");
+        verify(response).setStatus(HttpServletResponse.SC_NOT_FOUND);
+    }
+
+    private static String gunzip(byte[] compressed) throws Exception {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                plain.write(buffer, 0, count);
+            }
+        }
+        return new String(plain.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
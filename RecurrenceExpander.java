@@ -0,0 +1,280 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import net.fortuna.ical4j.model.Property;
+
+import java.text.ParseException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * RecurrenceExpander expands the RRULE, RDATE and EXDATE properties of a VEVENT into its occurrences.
+ * Rules are evaluated in the time zone of DTSTART, as RFC 5545 requires, and every occurrence is then converted
+ * into Rapla time on its own, so a weekly UTC event moves by an hour in Rapla time when daylight saving time
+ * starts or ends. Collapsing the occurrences back into Rapla series is left to the {@link SeriesDetector}.
+ * <p>
+ * The rules semester plans use are supported: DAILY, WEEKLY, MONTHLY and YEARLY frequencies with INTERVAL,
+ * COUNT or UNTIL, weekly rules on several weekdays (BYDAY) and BYMONTHDAY or BYMONTH values that repeat DTSTART.
+ * Other rule parts and rules without an end are rejected rather than imported incompletely.
+ */
+public class RecurrenceExpander {
+
+    private static final Set<String> SUPPORTED_PARTS = new HashSet<>(Arrays.asList(
+            "FREQ", "INTERVAL", "COUNT", "UNTIL", "BYDAY", "BYMONTHDAY", "BYMONTH", "WKST"));
+
+    private final IcsDateConverter dateConverter;
+    private final int maxOccurrences;
+
+    /**
+     * Creates an expander.
+     *
+     * @param dateConverter  the converter of the current import
+     * @param maxOccurrences the number of occurrences a single event may expand to
+     */
+    public RecurrenceExpander(IcsDateConverter dateConverter, int maxOccurrences) {
+        this.dateConverter = dateConverter;
+        this.maxOccurrences = maxOccurrences;
+    }
+
+    /**
+     * Expands an event into its occurrences.
+     *
+     * @param event     the parsed VEVENT
+     * @param start     the DTSTART property of the event
+     * @param startDate the start in Rapla time
+     * @param endDate   the end in Rapla time
+     * @param wholeDays whether the event covers whole days
+     * @return the occurrences ordered by start, the event itself if it has neither RRULE nor RDATE
+     * @throws ParseException if a recurrence property is invalid or not supported
+     */
+    public List<ParsedAppointment> expand(IcsEvent event, IcsProperty start, Date startDate, Date endDate, boolean wholeDays) throws ParseException {
+        IcsProperty rule = event.getProperty(Property.RRULE);
+        List<IcsProperty> recurrenceDates = event.getProperties(Property.RDATE);
+        if ((rule == null || rule.getValue() == null) && recurrenceDates.isEmpty()) {
+            return Collections.singletonList(ParsedAppointment.single(startDate, endDate, wholeDays));
+        }
+        long duration = endDate.getTime() - startDate.getTime();
+        Map<Long, ParsedAppointment> occurrences = new TreeMap<>();
+        if (rule == null || rule.getValue() == null) {
+            occurrences.put(startDate.getTime(), ParsedAppointment.single(startDate, endDate, wholeDays));
+        } else {
+            for (Date occurrence : expandRule(rule.getValue(), start, startDate)) {
+                occurrences.put(occurrence.getTime(), ParsedAppointment.single(occurrence, new Date(occurrence.getTime() + duration), wholeDays));
+            }
+        }
+        for (IcsProperty recurrenceDate : recurrenceDates) {
+            addRecurrenceDates(recurrenceDate, duration, wholeDays, occurrences);
+        }
+        for (IcsProperty exceptionDate : event.getProperties(Property.EXDATE)) {
+            if (exceptionDate.getValue() == null) {
+                continue;
+            }
+            for (String value : exceptionDate.getValue().split(",")) {
+                occurrences.remove(dateConverter.toRaplaDate(value.trim(), exceptionDate.getParameter(Property.TZID)).getTime());
+            }
+        }
+        if (occurrences.size() > maxOccurrences) {
+            throw new ParseException("Event expands to more than " + maxOccurrences + " occurrences", 0);
+        }
+        return new ArrayList<>(occurrences.values());
+    }
+
+    /**
+     * Computes the starts of the occurrences of an RRULE, the first being DTSTART.
+     */
+    private List<Date> expandRule(String rule, IcsProperty start, Date startDate) throws ParseException {
+        Map<String, String> parts = new HashMap<>();
+        for (String part : rule.split(";")) {
+            int separator = part.indexOf('=');
+            if (separator <= 0) {
+                throw new ParseException("Invalid RRULE '" + rule + "'", 0);
+            }
+            String name = part.substring(0, separator).trim().toUpperCase(Locale.ROOT);
+            if (!SUPPORTED_PARTS.contains(name)) {
+                throw new ParseException("Unsupported RRULE part " + name + " in '" + rule + "'", 0);
+            }
+            parts.put(name, part.substring(separator + 1).trim().toUpperCase(Locale.ROOT));
+        }
+
+        String value = start.getValue();
+        String tzid = start.getParameter(Property.TZID);
+        LocalDateTime first = LocalDateTime.ofEpochSecond(IcsDateConverter.parseEpochSeconds(value), 0, ZoneOffset.UTC);
+        ChronoUnit unit = frequency(parts.get("FREQ"), rule);
+        int interval = positive(parts.get("INTERVAL"), 1, rule);
+        Set<DayOfWeek> weekdays = weekdays(parts.get("BYDAY"), unit, rule);
+        requireRepeated(parts.get("BYMONTHDAY"), first.getDayOfMonth(), unit == ChronoUnit.MONTHS || unit == ChronoUnit.YEARS, rule);
+        requireRepeated(parts.get("BYMONTH"), first.getMonthValue(), unit == ChronoUnit.YEARS, rule);
+        DayOfWeek weekStart = parts.containsKey("WKST") ? IcsDateConverter.dayOfWeek(parts.get("WKST")) : DayOfWeek.MONDAY;
+
+        String until = parts.get("UNTIL");
+        if (until == null && !parts.containsKey("COUNT")) {
+            throw new ParseException("RRULE without COUNT or UNTIL is not supported: '" + rule + "'", 0);
+        }
+        int count = parts.containsKey("COUNT") ? positive(parts.get("COUNT"), 1, rule) : maxOccurrences + 1;
+        if (count > maxOccurrences) {
+            count = maxOccurrences + 1;
+        }
+        long untilTime = until == null ? Long.MAX_VALUE
+                : dateConverter.toRaplaDate(until, until.endsWith("Z") ? null : tzid).getTime();
+
+        // DTSTART always is the first occurrence, even if it does not match the rule
+        List<Date> occurrences = new ArrayList<>();
+        occurrences.add(startDate);
+        // Periods without a valid date (e.g. February for the 30th) are skipped, the bound stops rules that never match
+        long maxPeriods = (long) count * 12 + 12;
+        for (long period = 0; occurrences.size() < count && period < maxPeriods; period++) {
+            for (LocalDateTime candidate : candidates(first, unit, interval * period, weekdays, weekStart)) {
+                if (candidate.equals(first)) {
+                    continue;
+                }
+                Date occurrence = dateConverter.toRaplaDate(candidate.toEpochSecond(ZoneOffset.UTC), value.length(), tzid);
+                if (occurrence.getTime() > untilTime) {
+                    return occurrences;
+                }
+                occurrences.add(occurrence);
+                if (occurrences.size() == count) {
+                    break;
+                }
+            }
+        }
+        if (occurrences.size() > maxOccurrences) {
+            throw new ParseException("RRULE expands to more than " + maxOccurrences + " occurrences: '" + rule + "'", 0);
+        }
+        return occurrences;
+    }
+
+    /**
+     * Gets the occurrences within one period of the rule, in chronological order.
+     */
+    private static List<LocalDateTime> candidates(LocalDateTime first, ChronoUnit unit, long offset, Set<DayOfWeek> weekdays, DayOfWeek weekStart) {
+        if (weekdays.isEmpty()) {
+            LocalDateTime candidate = first.plus(offset, unit);
+            // Months without the day of DTSTART have no occurrence instead of one on their last day
+            if ((unit == ChronoUnit.MONTHS || unit == ChronoUnit.YEARS) && candidate.getDayOfMonth() != first.getDayOfMonth()) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(candidate);
+        }
+        LocalDate week = first.toLocalDate().with(TemporalAdjusters.previousOrSame(weekStart)).plusWeeks(offset);
+        TreeSet<LocalDateTime> candidates = new TreeSet<>();
+        for (DayOfWeek weekday : weekdays) {
+            LocalDateTime candidate = week.with(TemporalAdjusters.nextOrSame(weekday)).atTime(first.toLocalTime());
+            if (!candidate.isBefore(first)) {
+                candidates.add(candidate);
+            }
+        }
+        return new ArrayList<>(candidates);
+    }
+
+    private void addRecurrenceDates(IcsProperty property, long duration, boolean wholeDays, Map<Long, ParsedAppointment> occurrences) throws ParseException {
+        if (property.getValue() == null) {
+            return;
+        }
+        String tzid = property.getParameter(Property.TZID);
+        for (String value : property.getValue().split(",")) {
+            String trimmed = value.trim();
+            // VALUE=PERIOD gives start/end or start/duration
+            int separator = trimmed.indexOf('/');
+            Date start = dateConverter.toRaplaDate(separator < 0 ? trimmed : trimmed.substring(0, separator), tzid);
+            Date end;
+            if (separator < 0) {
+                end = new Date(start.getTime() + duration);
+            } else {
+                String periodEnd = trimmed.substring(separator + 1);
+                end = periodEnd.startsWith("P") || periodEnd.startsWith("+P")
+                        ? new Date(start.getTime() + IcsDateConverter.parseDurationSeconds(periodEnd) * 1000L)
+                        : dateConverter.toRaplaDate(periodEnd, tzid);
+            }
+            occurrences.putIfAbsent(start.getTime(), ParsedAppointment.single(start, end, wholeDays && separator < 0));
+        }
+    }
+
+    private static ChronoUnit frequency(String frequency, String rule) throws ParseException {
+        if (frequency != null) {
+            switch (frequency) {
+                case "DAILY": return ChronoUnit.DAYS;
+                case "WEEKLY": return ChronoUnit.WEEKS;
+                case "MONTHLY": return ChronoUnit.MONTHS;
+                case "YEARLY": return ChronoUnit.YEARS;
+                default: break;
+            }
+        }
+        throw new ParseException("Unsupported RRULE frequency in '" + rule + "'", 0);
+    }
+
+    private static Set<DayOfWeek> weekdays(String byDay, ChronoUnit unit, String rule) throws ParseException {
+        if (byDay == null) {
+            return Collections.emptySet();
+        }
+        if (unit != ChronoUnit.WEEKS) {
+            throw new ParseException("BYDAY is only supported for weekly rules: '" + rule + "'", 0);
+        }
+        Set<DayOfWeek> weekdays = new HashSet<>();
+        for (String weekday : byDay.split(",")) {
+            if (weekday.trim().length() != 2) {
+                throw new ParseException("Unsupported BYDAY value '" + weekday + "' in '" + rule + "'", 0);
+            }
+            weekdays.add(IcsDateConverter.dayOfWeek(weekday.trim()));
+        }
+        return weekdays;
+    }
+
+    /**
+     * Accepts a BYMONTHDAY or BYMONTH part only if it repeats the value DTSTART has anyway.
+     */
+    private static void requireRepeated(String part, int startValue, boolean allowed, String rule) throws ParseException {
+        if (part == null) {
+            return;
+        }
+        if (!allowed || !part.equals(String.valueOf(startValue))) {
+            throw new ParseException("Unsupported RRULE '" + rule + "'", 0);
+        }
+    }
+
+    private static int positive(String value, int defaultValue, String rule) throws ParseException {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int result = Integer.parseInt(value);
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new ParseException("Invalid number '" + value + "' in RRULE '" + rule + "'", 0);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the RecurrenceExpander class.
+ */
+public class RecurrenceExpanderTest {
+
+    private final IcsDateConverter dateConverter = new IcsDateConverter();
+    private final RecurrenceExpander expander = new RecurrenceExpander(dateConverter, 1000);
+
+    private static Date rapla(int year, int month, int day, int hour, int minute) {
+        return new Date(LocalDateTime.of(year, month, day, hour, minute).toEpochSecond(ZoneOffset.UTC) * 1000L);
+    }
+
+    private static IcsProperty property(String name, String value, String tzid) {
+        IcsProperty property = new IcsProperty(name, value);
+        if (tzid != null) {
+            property.setParameter("TZID", tzid);
+        }
+        return property;
+    }
+
+    private List<Date> expand(IcsEvent event) throws ParseException {
+        IcsProperty start = event.getProperty("DTSTART");
+        Date startDate = dateConverter.toRaplaDate(start);
+        List<Date> starts = new ArrayList<>();
+        for (ParsedAppointment occurrence : expander.expand(event, start, startDate, new Date(startDate.getTime() + 5400000L), false)) {
+            assertEquals(5400000L, occurrence.getEnd().getTime() - occurrence.getStart().getTime());
+            starts.add(occurrence.getStart());
+        }
+        return starts;
+    }
+
+    /**
+     * Test a weekly rule on two weekdays with a COUNT, which includes DTSTART.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testExpand_WeeklyByDay() throws Exception {
+        IcsEvent event = new IcsEvent(0);
+        event.addProperty(property("DTSTART", "20211004T091500", "Europe/Berlin"));
+        event.addProperty(property("RRULE", "FREQ=WEEKLY;BYDAY=MO,WE;COUNT=5", null));
+
+        assertEquals(Arrays.asList(rapla(2021, 10, 4, 9, 15), rapla(2021, 10, 6, 9, 15), rapla(2021, 10, 11, 9, 15),
+                rapla(2021, 10, 13, 9, 15), rapla(2021, 10, 18, 9, 15)), expand(event));
+    }
+
+    /**
+     * Test that a rule in UTC keeps its UTC time, so the Berlin wall clock moves when summer time ends.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testExpand_UtcAcrossDaylightSavingTime() throws Exception {
+        IcsEvent event = new IcsEvent(0);
+        event.addProperty(property("DTSTART", "20211018T071500Z", null));
+        event.addProperty(property("RRULE", "FREQ=WEEKLY;UNTIL=20211108T235959Z", null));
+
+        assertEquals(Arrays.asList(rapla(2021, 10, 18, 9, 15), rapla(2021, 10, 25, 9, 15), rapla(2021, 11, 1, 8, 15),
+                rapla(2021, 11, 8, 8, 15)), expand(event));
+    }
+
+    /**
+     * Test that EXDATE removes occurrences and RDATE adds some, including periods with their own end.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testExpand_ExceptionAndRecurrenceDates() throws Exception {
+        IcsEvent event = new IcsEvent(0);
+        event.addProperty(property("DTSTART", "20211004T091500", "Europe/Berlin"));
+        event.addProperty(property("RRULE", "FREQ=DAILY;INTERVAL=2;COUNT=3", null));
+        event.addProperty(property("EXDATE", "20211006T091500", "Europe/Berlin"));
+        IcsProperty period = property("RDATE", "20211012T071500Z/PT2H", null);
+        period.setParameter("VALUE", "PERIOD");
+        event.addProperty(period);
+
+        IcsProperty start = event.getProperty("DTSTART");
+        List<ParsedAppointment> occurrences = expander.expand(event, start, dateConverter.toRaplaDate(start), rapla(2021, 10, 4, 10, 45), false);
+
+        assertEquals(3, occurrences.size());
+        assertEquals(rapla(2021, 10, 4, 9, 15), occurrences.get(0).getStart());
+        assertEquals(rapla(2021, 10, 8, 9, 15), occurrences.get(1).getStart());
+        assertEquals(rapla(2021, 10, 12, 9, 15), occurrences.get(2).getStart());
+        assertEquals(rapla(2021, 10, 12, 11, 15), occurrences.get(2).getEnd());
+    }
+
+    /**
+     * Test that months without the day of DTSTART are skipped.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testExpand_MonthlyOnLastDay() throws Exception {
+        IcsEvent event = new IcsEvent(0);
+        event.addProperty(property("DTSTART", "20220131T100000", "Europe/Berlin"));
+        event.addProperty(property("RRULE", "FREQ=MONTHLY;COUNT=3", null));
+
+        assertEquals(Arrays.asList(rapla(2022, 1, 31, 10, 0), rapla(2022, 3, 31, 10, 0), rapla(2022, 5, 31, 10, 0)), expand(event));
+    }
+
+    /**
+     * Test that unsupported and endless rules are rejected.
+     */
+    @Test
+    public void testExpand_Unsupported() {
+        for (String rule : Arrays.asList("FREQ=MONTHLY;BYDAY=1MO;COUNT=3", "FREQ=WEEKLY", "FREQ=WEEKLY;BYSETPOS=1;COUNT=2", "FREQ=HOURLY;COUNT=2", "FREQ=WEEKLY;COUNT=2000")) {
+            IcsEvent event = new IcsEvent(0);
+            event.addProperty(property("DTSTART", "20211004T091500", "Europe/Berlin"));
+            event.addProperty(property("RRULE", rule, null));
+            assertThrows(ParseException.class, () -> expand(event));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ReservationLocks coordinates concurrent imports with a fixed set of locks striped by X-RAPLA-ID.
+ * Imports touching disjoint reservations take different stripes and run in parallel, overlapping ones wait for
+ * each other per stripe. The stripes of a chunk are always taken in ascending order, so two imports cannot deadlock.
+ * The locks only coordinate imports within this server.
+ */
+public class ReservationLocks {
+
+    /**
+     * The locks held for one chunk of an import.
+     */
+    public static class Lease implements AutoCloseable {
+        private final List<ReentrantLock> held = new ArrayList<>();
+        private final List<String> waitedIds = new ArrayList<>();
+        private final List<String> conflictedIds = new ArrayList<>();
+
+        /**
+         * Gets the ids whose stripe was held by another import and that had to wait for it.
+         */
+        public List<String> getWaitedIds() {
+            return waitedIds;
+        }
+
+        /**
+         * Gets the ids whose stripe could not be acquired in time. They must not be modified.
+         */
+        public List<String> getConflictedIds() {
+            return conflictedIds;
+        }
+
+        @Override
+        public void close() {
+            for (int i = held.size() - 1; i >= 0; i--) {
+                held.get(i).unlock();
+            }
+            held.clear();
+        }
+    }
+
+    private final ReentrantLock[] stripes;
+
+    /**
+     * Creates the locks.
+     *
+     * @param stripeCount the number of stripes, rounded up to a power of two
+     */
+    public ReservationLocks(int stripeCount) {
+        int size = stripeCount <= 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            // Fair, so an import waiting for a stripe is not overtaken by later ones
+            stripes[i] = new ReentrantLock(true);
+        }
+    }
+
+    /**
+     * Acquires the stripes of the given reservations.
+     *
+     * @param reservationIds the X-RAPLA-IDs of a chunk
+     * @param timeout        how long to wait for each stripe
+     * @param unit           the unit of the timeout
+     * @return the lease, to be closed once the chunk is stored
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public Lease acquire(Collection<String> reservationIds, long timeout, TimeUnit unit) throws InterruptedException {
+        Map<Integer, List<String>> idsByStripe = new TreeMap<>();
+        for (String reservationId : reservationIds) {
+            idsByStripe.computeIfAbsent(stripe(reservationId), k -> new ArrayList<>()).add(reservationId);
+        }
+        Lease lease = new Lease();
+        try {
+            for (Map.Entry<Integer, List<String>> entry : idsByStripe.entrySet()) {
+                ReentrantLock lock = stripes[entry.getKey()];
+                // The timed variant honours fairness, untimed tryLock() would barge past waiting imports
+                if (lock.tryLock(0, TimeUnit.NANOSECONDS)) {
+                    lease.held.add(lock);
+                    continue;
+                }
+                if (lock.tryLock(timeout, unit)) {
+                    lease.held.add(lock);
+                    lease.waitedIds.addAll(entry.getValue());
+                } else {
+                    lease.conflictedIds.addAll(entry.getValue());
+                }
+            }
+        } catch (InterruptedException e) {
+            lease.close();
+            throw e;
+        }
+        return lease;
+    }
+
+    private int stripe(String reservationId) {
+        int hash = reservationId.hashCode();
+        // Spread the higher bits, ids often differ only in their last characters
+        return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ReservationLocks class.
+ */
+public class ReservationLocksTest {
+
+    /**
+     * Test that an import waits for a reservation held by a concurrent import and reports a conflict after the timeout,
+     * while other reservations are not affected.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testAcquire_WaitAndConflict() throws Exception {
+        // One stripe per id is not guaranteed, so a single stripe makes the overlap deterministic
+        ReservationLocks locks = new ReservationLocks(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch locked = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            Future<?> holder = executor.submit(() -> {
+                try (ReservationLocks.Lease lease = locks.acquire(Collections.singletonList("a"), 1, TimeUnit.SECONDS)) {
+                    locked.countDown();
+                    release.await();
+                }
+                return null;
+            });
+            locked.await();
+
+            try (ReservationLocks.Lease lease = locks.acquire(Arrays.asList("a", "b"), 50, TimeUnit.MILLISECONDS)) {
+                assertEquals(Arrays.asList("a", "b"), lease.getConflictedIds());
+                assertTrue(lease.getWaitedIds().isEmpty());
+            }
+
+            release.countDown();
+            holder.get();
+            try (ReservationLocks.Lease lease = locks.acquire(Arrays.asList("a", "b"), 50, TimeUnit.MILLISECONDS)) {
+                assertTrue(lease.getConflictedIds().isEmpty());
+                assertTrue(lease.getWaitedIds().isEmpty());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that reservations on different stripes are locked independently.
+     *
+     * @throws Exception if an error occurs during the test
+     */
+    @Test
+    public void testAcquire_Disjoint() throws Exception {
+        ReservationLocks locks = new ReservationLocks(1024);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ReservationLocks.Lease held = locks.acquire(Collections.singletonList("module-1"), 1, TimeUnit.SECONDS)) {
+            ReservationLocks.Lease other = executor.submit(() -> locks.acquire(Collections.singletonList("module-2"), 50, TimeUnit.MILLISECONDS)).get();
+            assertTrue(other.getConflictedIds().isEmpty());
+            assertTrue(other.getWaitedIds().isEmpty());
+            executor.submit(other::close).get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
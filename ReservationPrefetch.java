@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.framework.RaplaException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ReservationPrefetch resolves all reservations referenced by an import in one pass and opens them for
+ * editing with a single bulk call, instead of one resolve and one edit round-trip per X-RAPLA-ID.
+ * Unknown ids are returned as data rather than signalled by exceptions.
+ */
+public class ReservationPrefetch {
+
+    /**
+     * The outcome of resolving a set of reservation references.
+     */
+    public static class Resolution {
+        private final Map<ReferenceInfo<Reservation>, Reservation> reservations;
+        private final List<String> unknownIds;
+
+        Resolution(Map<ReferenceInfo<Reservation>, Reservation> reservations, List<String> unknownIds) {
+            this.reservations = reservations;
+            this.unknownIds = unknownIds;
+        }
+
+        /**
+         * Gets the resolved reservations in the order of the requested references.
+         *
+         * @return the reservations by reference
+         */
+        public Map<ReferenceInfo<Reservation>, Reservation> getReservations() {
+            return reservations;
+        }
+
+        /**
+         * Gets the ids that do not refer to an existing reservation.
+         *
+         * @return the unknown ids in request order
+         */
+        public List<String> getUnknownIds() {
+            return unknownIds;
+        }
+    }
+
+    private final RaplaFacade facade;
+
+    public ReservationPrefetch(RaplaFacade facade) {
+        this.facade = facade;
+    }
+
+    /**
+     * Resolves the referenced reservations read-only from the facade's cache.
+     *
+     * @param references the references produced by the ICS parsing
+     * @return the resolved reservations and the unknown ids
+     */
+    public Resolution resolve(Collection<ReferenceInfo<Reservation>> references) {
+        Map<ReferenceInfo<Reservation>, Reservation> reservations = new LinkedHashMap<>();
+        List<String> unknownIds = new ArrayList<>();
+        for (ReferenceInfo<Reservation> reference : references) {
+            Reservation reservation = facade.tryResolve(reference);
+            if (reservation == null) {
+                unknownIds.add(reference.getId());
+            } else {
+                reservations.put(reference, reservation);
+            }
+        }
+        return new Resolution(reservations, unknownIds);
+    }
+
+    /**
+     * Opens the given persistent reservations for editing with one call to {@link RaplaFacade#editList(Collection)}.
+     *
+     * @param reservations the persistent reservations by reference
+     * @return the editable copies by reference, in the same order; reservations the facade returned no copy for
+     *         are missing and have to be reported as failed by the caller
+     * @throws RaplaException if the reservations cannot be edited
+     */
+    public Map<ReferenceInfo<Reservation>, Reservation> edit(Map<ReferenceInfo<Reservation>, Reservation> reservations) throws RaplaException {
+        if (reservations.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Reservation> editableById = new HashMap<>();
+        for (Reservation editable : facade.editList(reservations.values())) {
+            editableById.put(editable.getId(), editable);
+        }
+        Map<ReferenceInfo<Reservation>, Reservation> result = new LinkedHashMap<>();
+        for (Map.Entry<ReferenceInfo<Reservation>, Reservation> entry : reservations.entrySet()) {
+            Reservation editable = editableById.get(entry.getValue().getId());
+            if (editable != null) {
+                result.put(entry.getKey(), editable);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.rapla.entities.domain.RepeatingType;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SeriesDetector collapses the occurrences of one reservation into repeating appointments. Occurrences with the
+ * same time of day, duration and weekday that recur every n weeks become one weekly series, gaps become exceptions;
+ * the remaining occurrences on consecutive days become daily series. Since Rapla time is the Berlin wall clock
+ * encoded as UTC, a day is always 24 hours long and no time zone arithmetic is needed.
+ */
+public class SeriesDetector {
+
+    static final long DAY = 86_400_000L;
+    static final long WEEK = 7 * DAY;
+
+    /**
+     * Weeks between two occurrences from which a weekly series is split rather than continued with exceptions,
+     * e.g. around the lecture free period.
+     */
+    static final int MAX_GAP_WEEKS = 4;
+
+    private static final Comparator<ParsedAppointment> BY_START = Comparator.comparing(ParsedAppointment::getStart);
+
+    private final int minLength;
+
+    /**
+     * Creates a detector.
+     *
+     * @param minLength the number of occurrences from which a series is created, below 2 nothing is collapsed
+     */
+    public SeriesDetector(int minLength) {
+        this.minLength = minLength;
+    }
+
+    /**
+     * Collapses the occurrences of one reservation.
+     *
+     * @param appointments the occurrences in any order
+     * @return the series and the remaining single occurrences ordered by start, or the given occurrences if
+     *         there are too few of them to form a series
+     */
+    public List<ParsedAppointment> collapse(List<ParsedAppointment> appointments) {
+        if (minLength < 2 || appointments.size() < minLength) {
+            return appointments;
+        }
+        List<ParsedAppointment> result = new ArrayList<>(appointments.size());
+        Map<String, List<ParsedAppointment>> bySlot = new LinkedHashMap<>();
+        for (ParsedAppointment appointment : appointments) {
+            if (appointment.getRepeatingType() != null) {
+                result.add(appointment);
+                continue;
+            }
+            long start = appointment.getStart().getTime();
+            String slot = appointment.isWholeDays() + "|" + appointment.getDuration() + "|" + Math.floorMod(start, DAY);
+            bySlot.computeIfAbsent(slot, k -> new ArrayList<>()).add(appointment);
+        }
+        for (List<ParsedAppointment> slot : bySlot.values()) {
+            List<ParsedAppointment> remaining = new ArrayList<>();
+            collapseWeekly(slot, result, remaining);
+            collapseDaily(remaining, result);
+        }
+        result.sort(BY_START);
+        return result;
+    }
+
+    private void collapseWeekly(List<ParsedAppointment> slot, List<ParsedAppointment> result, List<ParsedAppointment> remaining) {
+        Map<Long, List<ParsedAppointment>> byWeekday = new LinkedHashMap<>();
+        for (ParsedAppointment appointment : slot) {
+            long weekday = Math.floorMod(Math.floorDiv(appointment.getStart().getTime(), DAY), 7L);
+            byWeekday.computeIfAbsent(weekday, k -> new ArrayList<>()).add(appointment);
+        }
+        for (List<ParsedAppointment> weekday : byWeekday.values()) {
+            weekday.sort(BY_START);
+            List<ParsedAppointment> segment = new ArrayList<>();
+            long last = Long.MIN_VALUE;
+            for (ParsedAppointment appointment : weekday) {
+                long start = appointment.getStart().getTime();
+                if (start == last) {
+                    // Duplicates stay separate appointments
+                    remaining.add(appointment);
+                    continue;
+                }
+                if (!segment.isEmpty() && start - last > MAX_GAP_WEEKS * WEEK) {
+                    weeklySeries(segment, result, remaining);
+                    segment = new ArrayList<>();
+                }
+                segment.add(appointment);
+                last = start;
+            }
+            weeklySeries(segment, result, remaining);
+        }
+    }
+
+    /**
+     * Turns occurrences on the same weekday into one series whose interval is the largest common number of weeks
+     * between them, unless more occurrences would be omitted than held.
+     */
+    private void weeklySeries(List<ParsedAppointment> segment, List<ParsedAppointment> result, List<ParsedAppointment> remaining) {
+        if (segment.size() < minLength) {
+            remaining.addAll(segment);
+            return;
+        }
+        long first = segment.get(0).getStart().getTime();
+        long interval = 0;
+        for (int i = 1; i < segment.size(); i++) {
+            interval = gcd(interval, (segment.get(i).getStart().getTime() - segment.get(i - 1).getStart().getTime()) / WEEK);
+        }
+        long step = interval * WEEK;
+        int number = (int) ((segment.get(segment.size() - 1).getStart().getTime() - first) / step) + 1;
+        if (number - segment.size() >= segment.size()) {
+            remaining.addAll(segment);
+            return;
+        }
+        List<Date> exceptions = new ArrayList<>();
+        int next = 0;
+        for (int i = 0; i < number; i++) {
+            long start = first + i * step;
+            if (segment.get(next).getStart().getTime() == start) {
+                next++;
+            } else {
+                exceptions.add(new Date(start));
+            }
+        }
+        result.add(ParsedAppointment.series(segment.get(0), RepeatingType.WEEKLY, (int) interval, number, exceptions));
+    }
+
+    private void collapseDaily(List<ParsedAppointment> remaining, List<ParsedAppointment> result) {
+        remaining.sort(BY_START);
+        int runStart = 0;
+        for (int i = 1; i <= remaining.size(); i++) {
+            boolean continues = i < remaining.size()
+                    && remaining.get(i).getStart().getTime() - remaining.get(i - 1).getStart().getTime() == DAY;
+            if (continues) {
+                continue;
+            }
+            int length = i - runStart;
+            if (length >= minLength) {
+                result.add(ParsedAppointment.series(remaining.get(runStart), RepeatingType.DAILY, 1, length, new ArrayList<>()));
+            } else {
+                result.addAll(remaining.subList(runStart, i));
+            }
+            runStart = i;
+        }
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import org.junit.Test;
+import org.rapla.entities.domain.RepeatingType;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SeriesDetector class.
+ */
+public class SeriesDetectorTest {
+
+    private final SeriesDetector detector = new SeriesDetector(3);
+
+    private static ParsedAppointment occurrence(LocalDateTime start) {
+        long millis = start.toEpochSecond(ZoneOffset.UTC) * 1000L;
+        return ParsedAppointment.single(new Date(millis), new Date(millis + 5400000L), false);
+    }
+
+    private static List<ParsedAppointment> weekly(LocalDateTime first, int... weeks) {
+        List<ParsedAppointment> occurrences = new ArrayList<>();
+        for (int week : weeks) {
+            occurrences.add(occurrence(first.plusWeeks(week)));
+        }
+        return occurrences;
+    }
+
+    /**
+     * Test that a weekly lecture with a holiday becomes one series with an exception.
+     */
+    @Test
+    public void testCollapse_WeeklyWithException() {
+        LocalDateTime first = LocalDateTime.of(2021, 10, 4, 9, 15);
+        List<ParsedAppointment> occurrences = weekly(first, 0, 1, 2, 3, 5, 6, 7, 8, 9, 10, 11);
+        Collections.reverse(occurrences);
+
+        List<ParsedAppointment> result = detector.collapse(occurrences);
+
+        assertEquals(1, result.size());
+        ParsedAppointment series = result.get(0);
+        assertEquals(occurrence(first).getStart(), series.getStart());
+        assertEquals(RepeatingType.WEEKLY, series.getRepeatingType());
+        assertEquals(1, series.getInterval());
+        assertEquals(12, series.getNumber());
+        assertEquals(Collections.singletonList(occurrence(first.plusWeeks(4)).getStart()), series.getExceptions());
+    }
+
+    /**
+     * Test that every other week becomes a series with interval 2 and that a long break splits the series.
+     */
+    @Test
+    public void testCollapse_BiweeklyAndBreak() {
+        LocalDateTime first = LocalDateTime.of(2021, 10, 6, 13, 15);
+        List<ParsedAppointment> result = detector.collapse(weekly(first, 0, 2, 4, 6, 14, 15, 16));
+
+        assertEquals(2, result.size());
+        assertEquals(2, result.get(0).getInterval());
+        assertEquals(4, result.get(0).getNumber());
+        assertTrue(result.get(0).getExceptions().isEmpty());
+        assertEquals(1, result.get(1).getInterval());
+        assertEquals(3, result.get(1).getNumber());
+    }
+
+    /**
+     * Test that a block week becomes a daily series and that different times are not mixed.
+     */
+    @Test
+    public void testCollapse_DailyBlock() {
+        LocalDateTime monday = LocalDateTime.of(2022, 2, 14, 9, 0);
+        List<ParsedAppointment> occurrences = new ArrayList<>();
+        for (int day = 0; day < 5; day++) {
+            occurrences.add(occurrence(monday.plusDays(day)));
+        }
+        occurrences.add(occurrence(monday.plusHours(4)));
+
+        List<ParsedAppointment> result = detector.collapse(occurrences);
+
+        assertEquals(2, result.size());
+        assertEquals(RepeatingType.DAILY, result.get(0).getRepeatingType());
+        assertEquals(5, result.get(0).getNumber());
+        assertNull(result.get(1).getRepeatingType());
+    }
+
+    /**
+     * Test that occurrences that do not form a series are kept, including duplicates.
+     */
+    @Test
+    public void testCollapse_NoSeries() {
+        LocalDateTime first = LocalDateTime.of(2021, 10, 4, 9, 15);
+        List<ParsedAppointment> occurrences = weekly(first, 0, 0, 1);
+
+        assertEquals(3, detector.collapse(occurrences).size());
+        assertEquals(3, new SeriesDetector(0).collapse(weekly(first, 0, 1, 2)).size());
+    }
+}
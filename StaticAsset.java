@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * StaticAsset is a response body rendered once into immutable byte arrays, plain and gzip compressed.
+ * It is served with an ETag derived from its content, so clients revalidate with If-None-Match and get a 304.
+ * The gzip variant carries its own strong tag with a {@code -gz} suffix, as its bytes differ from the plain body.
+ */
+public final class StaticAsset {
+
+    /**
+     * Cache-Control for content under a fixed URL: cached, but revalidated before every use.
+     */
+    public static final String REVALIDATE = "no-cache";
+
+    /**
+     * Cache-Control for content under a URL that changes with the content.
+     */
+    public static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    private final String contentType;
+    private final byte[] plain;
+    private final byte[] gzip;
+    private final String etag;
+    private final String gzipEtag;
+
+    /**
+     * Renders an asset.
+     *
+     * @param contentType the content type including the charset
+     * @param content     the content, encoded as UTF-8
+     */
+    public StaticAsset(String contentType, String content) {
+        this.contentType = contentType;
+        this.plain = content.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = gzip(plain);
+        // Tiny bodies can grow by compression, they are then only served plain
+        this.gzip = compressed.length < plain.length ? compressed : null;
+        String hash = IcsFingerprint.hex(IcsFingerprint.newDigest().digest(plain)).substring(0, 16);
+        this.etag = "\"" + hash + "\"";
+        this.gzipEtag = "\"" + hash + "-gz\"";
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Gets the entity tag of the plain body, a quoted prefix of the SHA-256 hash of the content.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Gets the entity tag of the gzip compressed body, the plain tag with a {@code -gz} suffix.
+     */
+    public String getGzipEtag() {
+        return gzipEtag;
+    }
+
+    /**
+     * Gets a version string for URLs referencing the asset, which changes whenever the content changes.
+     */
+    public String getVersion() {
+        return etag.substring(1, etag.length() - 1);
+    }
+
+    /**
+     * Writes the asset, or only 304 Not Modified if the client already has the current version.
+     *
+     * @param request      the request, providing If-None-Match and Accept-Encoding
+     * @param response     the response
+     * @param cacheControl the Cache-Control header, e.g. {@link #REVALIDATE} or {@link #IMMUTABLE}
+     * @throws IOException if the response cannot be written
+     */
+    public void serve(HttpServletRequest request, HttpServletResponse response, String cacheControl) throws IOException {
+        boolean compressed = gzip != null && acceptsGzip(request.getHeader("Accept-Encoding"));
+        response.setHeader("ETag", compressed ? gzipEtag : etag);
+        response.setHeader("Cache-Control", cacheControl);
+        response.setHeader("Vary", "Accept-Encoding");
+        if (matches(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        byte[] body = plain;
+        if (compressed) {
+            body = gzip;
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(contentType);
+        response.setContentLength(body.length);
+        OutputStream out = response.getOutputStream();
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Checks an If-None-Match header against the entity tags of both variants. Weak tags match as well, since
+     * both variants of the body are semantically identical.
+     */
+    boolean matches(String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag) || tag.equals(gzipEtag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether an Accept-Encoding header allows gzip, honouring an explicit q=0.
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.toLowerCase(Locale.ROOT).split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].replace(" ", "");
+                    if (parameter.matches("q=0(\\.0*)?")) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] gzip(byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+        try (GZIPOutputStream gzipOut = new GZIPOutputStream(out) {
+            {
+                // Compressed once at startup, so the best ratio is worth its time
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzipOut.write(content);
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAdjusters;
+
+/**
+ * SyntheticSemesterplanGenerator writes ICS files shaped like the semester plans exported for the import:
+ * one reservation (X-RAPLA-ID) per module with a weekly lecture over the semester. Used by benchmarks and
+ * load tests, so files of any size can be produced without real data.
+ */
+public class SyntheticSemesterplanGenerator {
+
+    private static final DateTimeFormatter LOCAL = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+    private static final DateTimeFormatter UTC = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    private int modules = 20;
+    private int firstModule = 0;
+    private int eventsPerModule = 12;
+    private LocalDate semesterStart = LocalDate.of(2024, 9, 30);
+    private boolean dstSpanning = true;
+    private boolean localTimes = true;
+
+    /**
+     * Sets the number of modules, i.e. of distinct X-RAPLA-IDs.
+     */
+    public void setModules(int modules) {
+        this.modules = modules;
+    }
+
+    /**
+     * Sets the index of the first module, so several generated files can reference disjoint reservations.
+     */
+    public void setFirstModule(int firstModule) {
+        this.firstModule = firstModule;
+    }
+
+    /**
+     * Sets the number of weekly lectures per module.
+     */
+    public void setEventsPerModule(int eventsPerModule) {
+        this.eventsPerModule = eventsPerModule;
+    }
+
+    /**
+     * Sets the Monday of the first lecture week.
+     */
+    public void setSemesterStart(LocalDate semesterStart) {
+        this.semesterStart = semesterStart;
+    }
+
+    /**
+     * Sets whether the lectures are moved to start two weeks before the end of summer time in the year of the
+     * semester start, so every module spans summer and winter time.
+     */
+    public void setDstSpanning(boolean dstSpanning) {
+        this.dstSpanning = dstSpanning;
+    }
+
+    /**
+     * Sets whether times are written as local times with TZID=Europe/Berlin and a VTIMEZONE block,
+     * or as UTC times as exported by most calendar tools.
+     */
+    public void setLocalTimes(boolean localTimes) {
+        this.localTimes = localTimes;
+    }
+
+    /**
+     * Gets the number of VEVENTs a generated file contains.
+     *
+     * @return modules times events per module
+     */
+    public int getEventCount() {
+        return modules * eventsPerModule;
+    }
+
+    /**
+     * Gets the X-RAPLA-ID used for a module.
+     *
+     * @param module the index of the module
+     * @return the id
+     */
+    public static String raplaId(int module) {
+        return "module-" + module;
+    }
+
+    /**
+     * Writes a generated file.
+     *
+     * @param out the target
+     * @throws IOException if the target cannot be written
+     */
+    public void write(Writer out) throws IOException {
+        // Summer time ends on the last Sunday of October, the semester then starts on the Monday two weeks before
+        LocalDate start = dstSpanning
+                ? LocalDate.of(semesterStart.getYear(), 10, 31).with(TemporalAdjusters.previousOrSame(DayOfWeek.SUNDAY)).minusDays(13)
+                : semesterStart;
+        out.write("BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//Rapla//Semesterplan Benchmark//DE\r\n");
+        if (localTimes) {
+            out.write("BEGIN:VTIMEZONE\r\nTZID:Europe/Berlin\r\n"
+                    + "BEGIN:DAYLIGHT\r\nDTSTART:19700329T020000\r\nTZOFFSETFROM:+0100\r\nTZOFFSETTO:+0200\r\nRRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=-1SU\r\nEND:DAYLIGHT\r\n"
+                    + "BEGIN:STANDARD\r\nDTSTART:19701025T030000\r\nTZOFFSETFROM:+0200\r\nTZOFFSETTO:+0100\r\nRRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU\r\nEND:STANDARD\r\n"
+                    + "END:VTIMEZONE\r\n");
+        }
+        for (int week = 0; week < eventsPerModule; week++) {
+            for (int module = firstModule; module < firstModule + modules; module++) {
+                // Modules are spread over the weekdays and four time slots
+                LocalDateTime begin = start.plusWeeks(week).plusDays(module % 5).atTime(8 + (module / 5 % 4) * 2, 15);
+                LocalDateTime end = begin.plusMinutes(90);
+                out.write("BEGIN:VEVENT\r\n");
+                out.write("UID:" + raplaId(module) + "-" + week + "@semesterplan.example\r\n");
+                out.write("DTSTAMP:20240701T120000Z\r\n");
+                writeTime(out, "DTSTART", begin);
+                writeTime(out, "DTEND", end);
+                out.write("SUMMARY:Modul " + module + " Vorlesung " + (week + 1) + "\r\n");
+                out.write("LOCATION:Raum " + (100 + module % 40) + "\r\n");
+                out.write("X-RAPLA-ID:" + raplaId(module) + "\r\n");
+                out.write("END:VEVENT\r\n");
+            }
+        }
+        out.write("END:VCALENDAR\r\n");
+    }
+
+    /**
+     * Generates a file as string.
+     *
+     * @return the ICS content
+     */
+    public String generate() {
+        StringWriter out = new StringWriter(getEventCount() * 256);
+        try {
+            write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Generates a file as UTF-8 bytes, as received by the upload endpoint.
+     *
+     * @return the ICS content
+     */
+    public byte[] generateBytes() {
+        return generate().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void writeTime(Writer out, String name, LocalDateTime time) throws IOException {
+        if (localTimes) {
+            out.write(name + ";TZID=Europe/Berlin:" + LOCAL.format(time) + "\r\n");
+        } else {
+            // Berlin wall clock, converted to UTC with the offset valid at that time
+            LocalDateTime utc = time.atZone(IcsDateConverter.RAPLA_ZONE).withZoneSameInstant(ZoneOffset.UTC).toLocalDateTime();
+            out.write(name + ":" + UTC.format(utc) + "\r\n");
+        }
+    }
+}
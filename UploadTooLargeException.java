@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author: Lennart Pahl on behalf of all authors
+ * Date: 2024-07-03
+ */
+
+package org.rapla.plugin.wwi2021;
+
+import java.io.IOException;
+
+/**
+ * Thrown while reading an upload that exceeds the allowed size. It is answered with status 413.
+ */
+public class UploadTooLargeException extends IOException {
+    private final long limit;
+
+    public UploadTooLargeException(String message, long limit) {
+        super(message);
+        this.limit = limit;
+    }
+
+    /**
+     * Gets the number of bytes that were allowed.
+     */
+    public long getLimit() {
+        return limit;
+    }
+}